@@ -30,7 +30,10 @@ import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.mgmt.WebServer;
 import nl.vu.cs.ajira.net.NetworkLayer;
 import nl.vu.cs.ajira.storage.Factory;
+import nl.vu.cs.ajira.storage.SpillManager;
 import nl.vu.cs.ajira.storage.SubmissionCache;
+import nl.vu.cs.ajira.storage.containers.OffHeapWritableContainer;
+import nl.vu.cs.ajira.storage.containers.RecordSorter;
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
 import nl.vu.cs.ajira.submissions.Job;
 import nl.vu.cs.ajira.submissions.Submission;
@@ -113,6 +116,7 @@ public class Ajira {
 	public void shutdown() {
 		log.info("Framework is shutting down ...");
 		globalContext.getInputLayerRegistry().close();
+		globalContext.getSpillManager().deleteAll();
 		if (!localMode) {
 			globalContext.getNetworkLayer().signalTermination();
 			try {
@@ -154,8 +158,11 @@ public class Ajira {
 		NetworkLayer net = NetworkLayer.getInstance();
 		boolean serverMode = true;
 
+		// The buffers of the tuples are stored off-heap if requested
 		@SuppressWarnings("unchecked")
-		Class<WritableContainer<WritableTuple>> clazz = (Class<WritableContainer<WritableTuple>>) (Class<?>) WritableContainer.class;
+		Class<WritableContainer<WritableTuple>> clazz = (Class<WritableContainer<WritableTuple>>) (Class<?>) (conf
+				.getBoolean(Consts.OFF_HEAP_CONTAINERS, false) ? OffHeapWritableContainer.class
+				: WritableContainer.class);
 		Factory<WritableContainer<WritableTuple>> bufferFactory = new Factory<WritableContainer<WritableTuple>>(
 				clazz, Consts.TUPLES_CONTAINER_MAX_BUFFER_SIZE);
 		MemoryManager.getInstance().registerFactory(bufferFactory);
@@ -199,6 +206,7 @@ public class Ajira {
 		}
 
 		StatisticsCollector stats = new StatisticsCollector(conf, net);
+		MemoryManager.getInstance().init(conf, stats);
 
 		globalContext = new Context();
 
@@ -209,6 +217,7 @@ public class Ajira {
 		ActionFactory ap = new ActionFactory();
 		DataProvider dp = new DataProvider();
 		SubmissionCache cache = new SubmissionCache(net);
+		SpillManager spillManager = new SpillManager(conf, stats);
 		ChainHandlerManager manager = ChainHandlerManager.getInstance();
 
 		SubmissionRegistry registry = new SubmissionRegistry(net, stats,
@@ -227,7 +236,8 @@ public class Ajira {
 		/**** INIT CONTEXT ****/
 		ChainNotifier notifier = new ChainNotifier();
 		globalContext.init(localMode, inputRegistry, tuplesContainer, registry,
-				manager, notifier, merger, net, stats, ap, dp, cache, conf);
+				manager, notifier, merger, net, stats, ap, dp, cache,
+				spillManager, conf);
 		notifier.init(globalContext);
 
 		/**** START PROCESSING THREADS ****/
@@ -251,6 +261,11 @@ public class Ajira {
 			thread.start();
 		}
 
+		/**** SET THE NUMBER OF SORTING THREADS ****/
+		i = conf.getInt(Consts.N_SORT_THREADS, Runtime.getRuntime()
+				.availableProcessors());
+		RecordSorter.setParallelism(i);
+
 		/**** START COMMUNICATION THREADS ****/
 		if (log.isDebugEnabled()) {
 			log.debug("Starting Sending/receiving threads ...");
@@ -20,6 +20,7 @@ import nl.vu.cs.ajira.datalayer.InputLayer;
 import nl.vu.cs.ajira.datalayer.InputLayerRegistry;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.net.NetworkLayer;
+import nl.vu.cs.ajira.storage.SpillManager;
 import nl.vu.cs.ajira.storage.SubmissionCache;
 import nl.vu.cs.ajira.submissions.Submission;
 import nl.vu.cs.ajira.submissions.SubmissionRegistry;
@@ -133,6 +134,7 @@ public class Context {
 	private SubmissionCache cache;
 	private ChainNotifier chainNotifier;
 	private CachedFilesMerger merger;
+	private SpillManager spillManager;
 	private CrashedSubmissions crashedSubmissions;
 	private ChainHandlerManager manager;
 
@@ -155,6 +157,7 @@ public class Context {
 	 * @param actionProvider
 	 * @param dataProvider
 	 * @param cache
+	 * @param spillManager
 	 * @param conf
 	 */
 	public void init(boolean localMode, InputLayerRegistry input,
@@ -162,7 +165,8 @@ public class Context {
 			ChainHandlerManager manager, ChainNotifier notifier,
 			CachedFilesMerger merger, NetworkLayer net,
 			StatisticsCollector stats, ActionFactory actionProvider,
-			DataProvider dataProvider, SubmissionCache cache, Configuration conf) {
+			DataProvider dataProvider, SubmissionCache cache,
+			SpillManager spillManager, Configuration conf) {
 		counter = localMode ? new UniqueCounter() : new UniqueCounter(
 				net.getNumberNodes(), net.getMyPartition());
 
@@ -179,6 +183,7 @@ public class Context {
 		this.dataProvider = dataProvider;
 		this.cache = cache;
 		this.merger = merger;
+		this.spillManager = spillManager;
 
 		initializeCounter(Consts.BUCKETCOUNTER_NAME, BUCKET_INIT);
 		initializeCounter(Consts.CHAINCOUNTER_NAME, CHAIN_INIT);
@@ -248,6 +253,10 @@ public class Context {
 		return merger;
 	}
 
+	public SpillManager getSpillManager() {
+		return spillManager;
+	}
+
 	public ChainHandlerManager getChainHandlerManager() {
 		return manager;
 	}
@@ -60,10 +60,10 @@ public interface ActionContext {
 			byte[] sortingFields, byte[] signature);
 
 	Bucket startTransfer(int nodeId, int bucketId, boolean sort,
-			byte[] sortingFields, byte[] signature, boolean streaming)
-			throws IOException;
+			byte[] sortingFields, byte[] signature, boolean streaming,
+			boolean compact) throws IOException;
 
 	void finishTransfer(int nodeId, int bucketId, boolean sort,
 			byte[] sortingFields, boolean decreaseCounter, byte[] signature,
-			boolean streaming) throws IOException;
+			boolean streaming, boolean compact) throws IOException;
 }
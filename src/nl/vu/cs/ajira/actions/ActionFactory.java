@@ -71,11 +71,24 @@ public class ActionFactory {
 		return new ActionConf(className, i.params, i.proc);
 	}
 
+	/**
+	 * Reads the parameters of an action, as they are serialized in a chain.
+	 */
+	public static Object[] readParams(DataInput rawParams) throws IOException {
+		return ActionConf.readValuesFromStream(rawParams);
+	}
+
 	public Action getAction(String className, DataInput rawParams)
 			throws IOException {
+		return getAction(className, readParams(rawParams));
+	}
 
-		Object[] params = ActionConf.readValuesFromStream(rawParams);
-
+	/**
+	 * Returns an action with parameters that have already been read. The
+	 * array may be shared with other instances of the action, and is not
+	 * modified.
+	 */
+	public Action getAction(String className, Object[] params) {
 		Factory<Action> factory = listFactories.get(className);
 		if (factory == null) {
 			synchronized (this) {
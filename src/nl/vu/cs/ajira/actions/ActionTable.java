@@ -0,0 +1,261 @@
+package nl.vu.cs.ajira.actions;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.ajira.data.types.bytearray.BDataInput;
+
+/**
+ * The actions of a submission, numbered so that the chains refer to them with
+ * a small id instead of their class name. An entry is either a class, or a
+ * class with the serialized parameters of one of its configurations: the
+ * chains that use such an entry do not carry the parameters either, and every
+ * node parses them only once.
+ *
+ * The table is filled by the submitting node while it builds the first chain
+ * of the submission, so it holds the actions of the job and the ones added by
+ * their configurators. It is then fixed, stored in the submission cache and
+ * broadcast to the other nodes before the chain is sent. Every node registers
+ * the table of a submission when it arrives in its submission cache, and
+ * forgets it when the submission is removed from the cache.
+ */
+public class ActionTable implements Serializable {
+
+	private static final long serialVersionUID = -2706436451734926564L;
+
+	/**
+	 * The key of the table in the submission cache.
+	 */
+	public static final String CACHE_KEY = "ajira.ActionTable";
+
+	private static final Map<Integer, ActionTable> registry = new HashMap<Integer, ActionTable>();
+	// The last table looked up, to save the map lookup on the hot path
+	private static volatile ActionTable last = null;
+
+	private final List<String> classNames = new ArrayList<String>();
+	// null for the entries that are only a class
+	private final List<byte[]> params = new ArrayList<byte[]>();
+	private volatile int submissionId = -1;
+	private volatile boolean fixed;
+
+	// Built when the table is registered, and only read once it is fixed.
+	// Open addressing on the hash of the entries with parameters: entry + 1,
+	// or 0 for a free slot.
+	private transient volatile int[] table;
+	private transient int[] hashes;
+	private transient Map<String, Integer> classIds;
+	private transient Object[][] parsedParams;
+
+	/**
+	 * @return the number of entries of the table
+	 */
+	public int size() {
+		return classNames.size();
+	}
+
+	/**
+	 * @return the class name of the entry
+	 */
+	public String getClassName(int id) {
+		return classNames.get(id);
+	}
+
+	/**
+	 * @return the parameters of the entry, or <code>null</code> if the entry
+	 *         is only a class. The array is shared, and must not be modified.
+	 */
+	public Object[] getParams(int id) {
+		return parsedParams[id];
+	}
+
+	private static int hash(String className, byte[] b, int start, int len) {
+		int h = className.hashCode();
+		for (int i = start; i < start + len; ++i) {
+			h = 31 * h + b[i];
+		}
+		return h;
+	}
+
+	private boolean matches(int id, String className, byte[] b, int start,
+			int len) {
+		byte[] p = params.get(id);
+		if (p == null || p.length != len
+				|| !classNames.get(id).equals(className)) {
+			return false;
+		}
+		for (int i = 0; i < len; ++i) {
+			if (p[i] != b[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up an action with its parameters. While the table is being
+	 * filled, the action is added if it is not there yet.
+	 *
+	 * @param className
+	 *            the class of the action
+	 * @param b
+	 *            the buffer that holds the serialized parameters
+	 * @param start
+	 *            the position of the parameters in the buffer
+	 * @param len
+	 *            the length of the parameters
+	 * @return the id of the entry with the class and the parameters, or -1
+	 */
+	public int lookup(String className, byte[] b, int start, int len) {
+		int hash = hash(className, b, start, len);
+		if (!fixed) {
+			synchronized (this) {
+				if (!fixed) {
+					// Few entries: the table is only filled by the first
+					// chain
+					for (int i = 0; i < classNames.size(); ++i) {
+						if (matches(i, className, b, start, len)) {
+							return i;
+						}
+					}
+					if (!classNames.contains(className)) {
+						classNames.add(className);
+						params.add(null);
+					}
+					byte[] p = new byte[len];
+					System.arraycopy(b, start, p, 0, len);
+					classNames.add(className);
+					params.add(p);
+					return classNames.size() - 1;
+				}
+			}
+		}
+		int[] t = table;
+		int slot = hash & (t.length - 1);
+		for (;;) {
+			int e = t[slot] - 1;
+			if (e < 0) {
+				return -1;
+			}
+			if (hashes[e] == hash && matches(e, className, b, start, len)) {
+				return e;
+			}
+			slot = (slot + 1) & (t.length - 1);
+		}
+	}
+
+	/**
+	 * Looks up the entry of a class, for an action whose parameters are not
+	 * in the table. Must be called once the table is fixed.
+	 *
+	 * @return the id of the entry with the class alone, or -1
+	 */
+	public int lookupClass(String className) {
+		Integer id = classIds.get(className);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Creates the table of a submission, which is filled by the chains built
+	 * until {@link #fix()} is called.
+	 */
+	public static ActionTable create(int submissionId) {
+		ActionTable table = new ActionTable();
+		register(submissionId, table);
+		return table;
+	}
+
+	/**
+	 * Stops adding new entries to the table.
+	 */
+	public synchronized void fix() throws IOException {
+		init();
+		fixed = true;
+	}
+
+	private synchronized void init() throws IOException {
+		int n = classNames.size();
+		int size = 16;
+		while (size < n * 2) {
+			size <<= 1;
+		}
+		int[] t = new int[size];
+		int[] hashes = new int[n];
+		Map<String, Integer> classIds = new HashMap<String, Integer>();
+		Object[][] parsedParams = new Object[n][];
+		BDataInput input = new BDataInput();
+		for (int i = 0; i < n; ++i) {
+			byte[] p = params.get(i);
+			if (p == null) {
+				classIds.put(classNames.get(i), i);
+				continue;
+			}
+			hashes[i] = hash(classNames.get(i), p, 0, p.length);
+			int slot = hashes[i] & (size - 1);
+			while (t[slot] != 0) {
+				slot = (slot + 1) & (size - 1);
+			}
+			t[slot] = i + 1;
+			input.setBuffer(p);
+			input.setCurrentPosition(0);
+			parsedParams[i] = ActionConf.readValuesFromStream(input);
+		}
+		this.hashes = hashes;
+		this.classIds = classIds;
+		this.parsedParams = parsedParams;
+		this.table = t;
+	}
+
+	/**
+	 * Called by the submission cache when the table of a submission arrives.
+	 */
+	public static void register(int submissionId, ActionTable table) {
+		// A table that was received has to build its lookup structures
+		if (table.fixed && table.table == null) {
+			try {
+				table.init();
+			} catch (IOException e) {
+				throw new Error("Could not read the actions of submission "
+						+ submissionId, e);
+			}
+		}
+		synchronized (registry) {
+			table.submissionId = submissionId;
+			registry.put(submissionId, table);
+		}
+	}
+
+	/**
+	 * Called by the submission cache when a submission is removed.
+	 */
+	public static void unregister(int submissionId) {
+		synchronized (registry) {
+			ActionTable t = registry.remove(submissionId);
+			if (t != null) {
+				t.submissionId = -1;
+			}
+			last = null;
+		}
+	}
+
+	/**
+	 * @return the table registered for the submission, or <code>null</code>
+	 */
+	public static ActionTable getRegistered(int submissionId) {
+		ActionTable t = last;
+		if (t != null && t.submissionId == submissionId) {
+			return t;
+		}
+		synchronized (registry) {
+			t = registry.get(submissionId);
+			if (t != null) {
+				// In the lock, so that unregister() cannot be missed
+				last = t;
+			}
+		}
+		return t;
+	}
+}
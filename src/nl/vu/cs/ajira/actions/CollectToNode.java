@@ -82,7 +82,7 @@ public class CollectToNode extends Action {
 			ActionOutput output) throws Exception {
 		if (bucket == null) {
 			bucket = context.startTransfer(nodeId, bucketId, sort,
-					sortingFields, fields, streamingMode);
+					sortingFields, fields, streamingMode, false);
 		}
 		bucket.add(inputTuple);
 	}
@@ -91,7 +91,7 @@ public class CollectToNode extends Action {
 	public void stopProcess(ActionContext context, ActionOutput output)
 			throws Exception {
 		context.finishTransfer(nodeId, bucketId, sort, sortingFields,
-				bucket != null, fields, streamingMode);
+				bucket != null, fields, streamingMode, false);
 		bucket = null;
 	}
 }
@@ -117,6 +117,8 @@ public class GroupBy extends Action {
 	public static int BA_FIELDS_TO_GROUP = 0;
 	public static final int SA_TUPLE_FIELDS = 1;
 	public static final int I_NPARTITIONS_PER_NODE = 2;
+	public static final int S_COMBINER = 3;
+	public static final int B_COMPACT = 4;
 
 	private GroupIterator itr;
 	private byte[] posFieldsToGroup;
@@ -147,6 +149,14 @@ public class GroupBy extends Action {
 				partition.setParamInt(PartitionToNodes.I_NPARTITIONS_PER_NODE,
 						(Integer) params[I_NPARTITIONS_PER_NODE]);
 			}
+			if (params[S_COMBINER] != null) {
+				partition.setParamString(PartitionToNodes.S_COMBINER,
+						(String) params[S_COMBINER]);
+			}
+			if (params[B_COMPACT] != null) {
+				partition.setParamBoolean(PartitionToNodes.B_COMPACT,
+						(Boolean) params[B_COMPACT]);
+			}
 			controller.addAction(partition);
 		}
 	}
@@ -158,6 +168,8 @@ public class GroupBy extends Action {
 		conf.registerParameter(SA_TUPLE_FIELDS, "TUPLE_FIELDS", null, true);
 		conf.registerParameter(I_NPARTITIONS_PER_NODE, "NPARTITIONS_PER_NODE",
 				null, false);
+		conf.registerParameter(S_COMBINER, "COMBINER", null, false);
+		conf.registerParameter(B_COMPACT, "COMPACT", null, false);
 		conf.registerCustomConfigurator(new Configurator());
 	}
 
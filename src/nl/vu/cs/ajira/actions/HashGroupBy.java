@@ -0,0 +1,672 @@
+package nl.vu.cs.ajira.actions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import nl.vu.cs.ajira.data.types.DataProvider;
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.TBag;
+import nl.vu.cs.ajira.data.types.TStringArray;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.data.types.TupleFactory;
+import nl.vu.cs.ajira.data.types.bytearray.FDataInput;
+import nl.vu.cs.ajira.data.types.bytearray.FDataOutput;
+import nl.vu.cs.ajira.datalayer.InputQuery;
+import nl.vu.cs.ajira.mgmt.MemoryManager;
+import nl.vu.cs.ajira.storage.RawComparator;
+import nl.vu.cs.ajira.storage.SpillManager;
+
+import org.iq80.snappy.SnappyInputStream;
+import org.iq80.snappy.SnappyOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>HashGroupBy</code> action groups its input on the specified fields,
+ * like {@link GroupBy}, but without sorting. The input is partitioned with an
+ * unsorted {@link PartitionToNodes}, and every partition is grouped in a hash
+ * table that is keyed on the serialized fields to group. When memory becomes
+ * scarce, the table is spilled to disk in hash partitions, which are grouped
+ * one at a time when the input is finished. A partition that does not fit in
+ * memory either is partitioned again, with a different hash seed, and its
+ * parts are grouped one at a time as well. The groups are output, in no
+ * particular order, at the end of the input, as the fields to group followed
+ * by a {@link TBag} with the remaining fields.
+ */
+public class HashGroupBy extends Action {
+
+	static final Logger log = LoggerFactory.getLogger(HashGroupBy.class);
+
+	/* PARAMETERS */
+
+	/**
+	 * The <code>BA_FIELDS_TO_GROUP</code> parameter is of type
+	 * <code>byte[]</code>, is required, and specifies the fields of the tuple
+	 * that form the key of a group.
+	 */
+	public static final int BA_FIELDS_TO_GROUP = 0;
+
+	/**
+	 * The <code>SA_TUPLE_FIELDS</code> parameter is of type
+	 * <code>String[]</code>, is required, and specifies the class name of the
+	 * type of each field in the tuple (see {@link nl.vu.cs.ajira.data.types}).
+	 */
+	public static final int SA_TUPLE_FIELDS = 1;
+
+	/**
+	 * The <code>I_NPARTITIONS_PER_NODE</code> parameter is of type
+	 * <code>int</code>, is not required, and is passed on to
+	 * {@link PartitionToNodes}.
+	 */
+	public static final int I_NPARTITIONS_PER_NODE = 2;
+
+	private static final int SPILL_PARTITION_BITS = 4;
+	private static final int N_SPILL_PARTITIONS = 1 << SPILL_PARTITION_BITS;
+	private static final int MIN_SIZE_TO_SPILL = 4 * 1024 * 1024;
+	private static final int CHECK_MEMORY_INTERVAL = 1024 * 1024;
+	// A partition that still does not fit after this many re-partitionings
+	// probably holds a single huge group, and is loaded as it is.
+	private static final int MAX_SPILL_LEVELS = 4;
+
+	/**
+	 * Growing byte buffer that gives access to its content.
+	 */
+	private static class Arena extends ByteArrayOutputStream {
+		public Arena(int size) {
+			super(size);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+
+		public void truncate(int size) {
+			count = size;
+		}
+	}
+
+	/**
+	 * Input stream that reads from an arbitrary position of a buffer.
+	 */
+	private static class ArenaInput extends ByteArrayInputStream {
+		public ArenaInput() {
+			super(new byte[0]);
+		}
+
+		public void seek(byte[] buffer, int position) {
+			buf = buffer;
+			pos = position;
+			count = buffer.length;
+		}
+	}
+
+	/**
+	 * Open-addressing hash table that maps the serialized key of a group on
+	 * the list of the serialized values of the group.
+	 */
+	private static class GroupTable {
+		private final Arena keys = new Arena(64 * 1024);
+		private final Arena values = new Arena(64 * 1024);
+		private final FDataOutput keysOutput = new FDataOutput(keys);
+		private final FDataOutput valuesOutput = new FDataOutput(values);
+
+		// Contains the group id + 1, or 0 for an empty slot.
+		private int[] index = new int[1024];
+
+		private int nGroups;
+		private int[] groupKeyOffset = new int[512];
+		private int[] groupKeyLength = new int[512];
+		private int[] groupHash = new int[512];
+		private int[] groupFirst = new int[512];
+		private int[] groupLast = new int[512];
+
+		private int nRecords;
+		private int[] recordOffset = new int[1024];
+		private int[] recordNext = new int[1024];
+
+		// Seed of the hash function, which differs per level of spill
+		// partitions.
+		private int seed;
+
+		private byte[] loadKey = new byte[256];
+		private byte[] loadValue = new byte[256];
+
+		private int hash(byte[] b, int offset, int length) {
+			int h = 1;
+			for (int i = offset; i < offset + length; ++i) {
+				h = 31 * h + b[i];
+			}
+			h ^= seed * 0x9e3779b9;
+			// Spread the bits, so that both the low bits (slot) and the high
+			// bits (spill partition) are usable.
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			return h;
+		}
+
+		/**
+		 * Adds a tuple to the table.
+		 */
+		public void add(Tuple tuple, byte[] keyFields, byte[] valueFields)
+				throws IOException {
+			int keyOffset = keys.size();
+			for (int i = 0; i < keyFields.length; ++i) {
+				tuple.get(keyFields[i]).writeTo(keysOutput);
+			}
+			int group = getGroup(keyOffset, keys.size() - keyOffset);
+
+			int valueOffset = values.size();
+			for (int i = 0; i < valueFields.length; ++i) {
+				tuple.get(valueFields[i]).writeTo(valuesOutput);
+			}
+			addRecord(group, valueOffset);
+		}
+
+		/**
+		 * Adds an already serialized key/value pair to the table.
+		 */
+		public void addRaw(byte[] key, int keyLength, byte[] value,
+				int valueLength) {
+			int keyOffset = keys.size();
+			keys.write(key, 0, keyLength);
+			int group = getGroup(keyOffset, keyLength);
+			int valueOffset = values.size();
+			values.write(value, 0, valueLength);
+			addRecord(group, valueOffset);
+		}
+
+		/**
+		 * Returns the group of the key that was just appended to the keys. If
+		 * the group already exists, the key is removed again.
+		 */
+		private int getGroup(int keyOffset, int keyLength) {
+			byte[] b = keys.getBuffer();
+			int hash = hash(b, keyOffset, keyLength);
+			int mask = index.length - 1;
+			int pos = hash & mask;
+			for (;;) {
+				int group = index[pos] - 1;
+				if (group < 0) {
+					break;
+				}
+				if (groupHash[group] == hash
+						&& RawComparator.compareBytes(b,
+								groupKeyOffset[group], groupKeyLength[group],
+								b, keyOffset, keyLength) == 0) {
+					keys.truncate(keyOffset);
+					return group;
+				}
+				pos = (pos + 1) & mask;
+			}
+
+			// New group
+			if (nGroups == groupKeyOffset.length) {
+				int sz = 2 * nGroups;
+				groupKeyOffset = Arrays.copyOf(groupKeyOffset, sz);
+				groupKeyLength = Arrays.copyOf(groupKeyLength, sz);
+				groupHash = Arrays.copyOf(groupHash, sz);
+				groupFirst = Arrays.copyOf(groupFirst, sz);
+				groupLast = Arrays.copyOf(groupLast, sz);
+			}
+			int group = nGroups++;
+			groupKeyOffset[group] = keyOffset;
+			groupKeyLength[group] = keyLength;
+			groupHash[group] = hash;
+			groupFirst[group] = -1;
+			groupLast[group] = -1;
+			index[pos] = group + 1;
+
+			if (2 * nGroups > index.length) {
+				rehash();
+			}
+			return group;
+		}
+
+		private void rehash() {
+			index = new int[2 * index.length];
+			int mask = index.length - 1;
+			for (int group = 0; group < nGroups; ++group) {
+				int pos = groupHash[group] & mask;
+				while (index[pos] != 0) {
+					pos = (pos + 1) & mask;
+				}
+				index[pos] = group + 1;
+			}
+		}
+
+		private void addRecord(int group, int valueOffset) {
+			if (nRecords == recordOffset.length) {
+				recordOffset = Arrays.copyOf(recordOffset, 2 * nRecords);
+				recordNext = Arrays.copyOf(recordNext, 2 * nRecords);
+			}
+			int record = nRecords++;
+			recordOffset[record] = valueOffset;
+			recordNext[record] = -1;
+			if (groupLast[group] == -1) {
+				groupFirst[group] = record;
+			} else {
+				recordNext[groupLast[group]] = record;
+			}
+			groupLast[group] = record;
+		}
+
+		private int getRecordLength(int record) {
+			int end = record + 1 < nRecords ? recordOffset[record + 1]
+					: values.size();
+			return end - recordOffset[record];
+		}
+
+		/**
+		 * Writes all the groups of the table to the spill streams, and empties
+		 * the table.
+		 */
+		public void spill(FDataOutput[] streams) throws IOException {
+			byte[] k = keys.getBuffer();
+			byte[] v = values.getBuffer();
+			for (int group = 0; group < nGroups; ++group) {
+				FDataOutput out = streams[groupHash[group] >>> (32 - SPILL_PARTITION_BITS)];
+				out.writeBoolean(true);
+				out.writeInt(groupKeyLength[group]);
+				out.write(k, groupKeyOffset[group], groupKeyLength[group]);
+				for (int r = groupFirst[group]; r != -1; r = recordNext[r]) {
+					int length = getRecordLength(r);
+					out.writeInt(length);
+					out.write(v, recordOffset[r], length);
+				}
+				out.writeInt(-1);
+			}
+			clear();
+		}
+
+		/**
+		 * Reads the next group that was spilled to a stream.
+		 * 
+		 * @return false if there are no more groups in the stream
+		 */
+		public boolean loadGroup(FDataInput in) throws IOException {
+			if (!in.readBoolean()) {
+				return false;
+			}
+			int keyLength = in.readInt();
+			if (keyLength > loadKey.length) {
+				loadKey = new byte[keyLength];
+			}
+			in.readFully(loadKey, 0, keyLength);
+			int valueLength;
+			while ((valueLength = in.readInt()) != -1) {
+				if (valueLength > loadValue.length) {
+					loadValue = new byte[valueLength];
+				}
+				in.readFully(loadValue, 0, valueLength);
+				addRaw(loadKey, keyLength, loadValue, valueLength);
+			}
+			return true;
+		}
+
+		/**
+		 * Empties the table, and sets the seed of the hash function used from
+		 * now on.
+		 */
+		public void clear(int seed) {
+			clear();
+			this.seed = seed;
+		}
+
+		public void clear() {
+			keys.reset();
+			values.reset();
+			Arrays.fill(index, 0);
+			nGroups = 0;
+			nRecords = 0;
+		}
+
+		public int getNGroups() {
+			return nGroups;
+		}
+
+		/**
+		 * Returns the (approximate) number of bytes used by the content of the
+		 * table.
+		 */
+		public long getSize() {
+			return keys.size() + values.size() + 4L
+					* (7 * nGroups + 2 * nRecords);
+		}
+	}
+
+	/**
+	 * Iterates over the values of a group of the table.
+	 */
+	private static class ValuesIterator implements Iterator<Tuple> {
+		private final GroupTable table;
+		private final ArenaInput arenaInput = new ArenaInput();
+		private final FDataInput input = new FDataInput(arenaInput);
+		private final SimpleData[] values;
+		private final Tuple outputTuple;
+		private int record;
+
+		public ValuesIterator(GroupTable table, SimpleData[] values) {
+			this.table = table;
+			this.values = values;
+			this.outputTuple = TupleFactory.newTuple(values);
+		}
+
+		public void init(int group) {
+			record = table.groupFirst[group];
+		}
+
+		@Override
+		public boolean hasNext() {
+			return record != -1;
+		}
+
+		@Override
+		public Tuple next() {
+			arenaInput.seek(table.values.getBuffer(),
+					table.recordOffset[record]);
+			try {
+				for (int i = 0; i < values.length; ++i) {
+					values[i].readFrom(input);
+				}
+			} catch (IOException e) {
+				throw new Error("Error with the iterator", e);
+			}
+			record = table.recordNext[record];
+			return outputTuple;
+		}
+
+		@Override
+		public void remove() {
+		}
+	}
+
+	private static class Configurator extends ActionConf.Configurator {
+
+		@Override
+		public void setupAction(InputQuery query, Object[] params,
+				ActionController controller, ActionContext context) {
+			ActionConf partition = ActionFactory
+					.getActionConf(PartitionToNodes.class);
+
+			params[BA_FIELDS_TO_GROUP] = convertToBytes(params[BA_FIELDS_TO_GROUP]);
+
+			partition.setParamBoolean(PartitionToNodes.B_SORT, false);
+			partition.setParamByteArray(PartitionToNodes.BA_PARTITION_FIELDS,
+					(byte[]) params[BA_FIELDS_TO_GROUP]);
+			partition.setParamStringArray(PartitionToNodes.SA_TUPLE_FIELDS,
+					(TStringArray) params[SA_TUPLE_FIELDS]);
+			if (params[I_NPARTITIONS_PER_NODE] != null) {
+				partition.setParamInt(PartitionToNodes.I_NPARTITIONS_PER_NODE,
+						(Integer) params[I_NPARTITIONS_PER_NODE]);
+			}
+			controller.addAction(partition);
+		}
+	}
+
+	private byte[] posFieldsToGroup;
+	private byte[] posOtherFields;
+	private GroupTable table;
+	private SimpleData[] outputTuple;
+	private ValuesIterator itr;
+
+	private FDataOutput[] spillStreams;
+	private File[] spillFiles;
+	private long lastCheckedSize;
+	private int nSpills;
+
+	@Override
+	public void registerActionParameters(ActionConf conf) {
+		conf.registerParameter(BA_FIELDS_TO_GROUP, "FIELDS_TO_GROUP", null,
+				true);
+		conf.registerParameter(SA_TUPLE_FIELDS, "TUPLE_FIELDS", null, true);
+		conf.registerParameter(I_NPARTITIONS_PER_NODE, "NPARTITIONS_PER_NODE",
+				null, false);
+		conf.registerCustomConfigurator(new Configurator());
+	}
+
+	@Override
+	public void startProcess(ActionContext context) throws Exception {
+		posFieldsToGroup = getParamByteArray(BA_FIELDS_TO_GROUP);
+		posOtherFields = null;
+		table = null;
+		outputTuple = null;
+		itr = null;
+		spillStreams = null;
+		spillFiles = null;
+		lastCheckedSize = 0;
+		nSpills = 0;
+	}
+
+	private void init(Tuple tuple) {
+		int n = tuple.getNElements();
+		posOtherFields = new byte[n - posFieldsToGroup.length];
+		int c = 0;
+		for (int i = 0; i < n; ++i) {
+			boolean found = false;
+			for (int j = 0; j < posFieldsToGroup.length && !found; ++j) {
+				found = posFieldsToGroup[j] == i;
+			}
+			if (!found) {
+				posOtherFields[c++] = (byte) i;
+			}
+		}
+
+		DataProvider dp = DataProvider.get();
+		outputTuple = new SimpleData[posFieldsToGroup.length + 1];
+		for (int i = 0; i < posFieldsToGroup.length; ++i) {
+			outputTuple[i] = dp.get(tuple.get(posFieldsToGroup[i])
+					.getIdDatatype());
+		}
+		SimpleData[] values = new SimpleData[posOtherFields.length];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = dp.get(tuple.get(posOtherFields[i]).getIdDatatype());
+		}
+
+		table = new GroupTable();
+		itr = new ValuesIterator(table, values);
+		outputTuple[posFieldsToGroup.length] = new TBag(itr);
+	}
+
+	@Override
+	public void process(Tuple tuple, ActionContext context,
+			ActionOutput actionOutput) throws Exception {
+		if (table == null) {
+			init(tuple);
+		}
+		table.add(tuple, posFieldsToGroup, posOtherFields);
+
+		long size = table.getSize();
+		if (size - lastCheckedSize > CHECK_MEMORY_INTERVAL) {
+			lastCheckedSize = size;
+			if (size > MIN_SIZE_TO_SPILL
+					&& MemoryManager.getInstance().isMemoryLow()) {
+				spill(context);
+				lastCheckedSize = 0;
+			}
+		}
+	}
+
+	private static FDataOutput[] openSpillStreams(ActionContext context,
+			File[] files) throws IOException {
+		SpillManager spills = context.getContext().getSpillManager();
+		FDataOutput[] streams = new FDataOutput[files.length];
+		for (int i = 0; i < files.length; ++i) {
+			files[i] = spills.newSpillFile("hashgroup");
+			streams[i] = new FDataOutput(new SnappyOutputStream(
+					new BufferedOutputStream(new FileOutputStream(files[i]))));
+		}
+		return streams;
+	}
+
+	private static void closeSpillStreams(FDataOutput[] streams)
+			throws IOException {
+		for (int i = 0; i < streams.length; ++i) {
+			streams[i].writeBoolean(false);
+			streams[i].close();
+		}
+	}
+
+	private static void deleteSpillFiles(ActionContext context, File[] files) {
+		SpillManager spills = context.getContext().getSpillManager();
+		for (File file : files) {
+			if (file != null) {
+				spills.delete(file);
+			}
+		}
+	}
+
+	private void spill(ActionContext context) throws IOException {
+		if (spillStreams == null) {
+			spillFiles = new File[N_SPILL_PARTITIONS];
+			spillStreams = openSpillStreams(context, spillFiles);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Spilling " + table.getNGroups() + " groups ("
+					+ table.getSize() + " bytes)");
+		}
+		table.spill(spillStreams);
+		nSpills++;
+	}
+
+	private void outputGroups(ActionOutput actionOutput) throws Exception {
+		ArenaInput arenaInput = new ArenaInput();
+		FDataInput input = new FDataInput(arenaInput);
+		int nGroups = table.getNGroups();
+		for (int group = 0; group < nGroups; ++group) {
+			arenaInput.seek(table.keys.getBuffer(),
+					table.groupKeyOffset[group]);
+			for (int i = 0; i < posFieldsToGroup.length; ++i) {
+				outputTuple[i].readFrom(input);
+			}
+			itr.init(group);
+			actionOutput.output(outputTuple);
+		}
+	}
+
+	/*
+	 * Groups the spill partitions of the given level one by one, and returns
+	 * the number of groups.
+	 */
+	private long groupPartitions(ActionContext context,
+			ActionOutput actionOutput, File[] files, int level)
+			throws Exception {
+		long nGroups = 0;
+		for (int i = 0; i < files.length; ++i) {
+			File[] parts = loadPartition(context, files[i], level + 1);
+			context.getContext().getSpillManager().delete(files[i]);
+			if (parts == null) {
+				nGroups += table.getNGroups();
+				outputGroups(actionOutput);
+				table.clear();
+			} else {
+				try {
+					nGroups += groupPartitions(context, actionOutput, parts,
+							level + 1);
+				} finally {
+					deleteSpillFiles(context, parts);
+				}
+			}
+		}
+		return nGroups;
+	}
+
+	/*
+	 * Loads a spill partition in the table, using the hash seed of the given
+	 * level. If memory becomes scarce while loading, the partition is spilled
+	 * again, in new partitions of this level, which are returned. Otherwise,
+	 * null is returned and the groups are in the table.
+	 */
+	private File[] loadPartition(ActionContext context, File file, int level)
+			throws IOException {
+		table.clear(level);
+		File[] parts = null;
+		FDataOutput[] streams = null;
+		boolean ok = false;
+		FDataInput in = new FDataInput(new SnappyInputStream(
+				new BufferedInputStream(new FileInputStream(file))));
+		try {
+			long lastChecked = 0;
+			while (table.loadGroup(in)) {
+				long size = table.getSize();
+				if (size - lastChecked > CHECK_MEMORY_INTERVAL) {
+					lastChecked = size;
+					if (level <= MAX_SPILL_LEVELS && size > MIN_SIZE_TO_SPILL
+							&& MemoryManager.getInstance().isMemoryLow()) {
+						if (streams == null) {
+							if (log.isDebugEnabled()) {
+								log.debug("Partitioning " + file
+										+ " again, level " + level);
+							}
+							parts = new File[N_SPILL_PARTITIONS];
+							streams = openSpillStreams(context, parts);
+						}
+						table.spill(streams);
+						nSpills++;
+						lastChecked = 0;
+					}
+				}
+			}
+			if (streams != null) {
+				table.spill(streams);
+				closeSpillStreams(streams);
+			}
+			ok = true;
+		} finally {
+			in.close();
+			if (!ok && parts != null) {
+				if (streams != null) {
+					for (FDataOutput stream : streams) {
+						try {
+							stream.close();
+						} catch (Throwable e) {
+							// ignore
+						}
+					}
+				}
+				deleteSpillFiles(context, parts);
+			}
+		}
+		return parts;
+	}
+
+	@Override
+	public void stopProcess(ActionContext context, ActionOutput actionOutput)
+			throws Exception {
+		if (table == null) {
+			return;
+		}
+
+		long nGroups = 0;
+		if (spillStreams == null) {
+			nGroups = table.getNGroups();
+			outputGroups(actionOutput);
+		} else {
+			// Complete the partitions on disk, and group them one by one.
+			File[] files = spillFiles;
+			try {
+				spill(context);
+				closeSpillStreams(spillStreams);
+				nGroups = groupPartitions(context, actionOutput, files, 0);
+			} finally {
+				deleteSpillFiles(context, files);
+			}
+			context.incrCounter("HashGroupBy: spills", nSpills);
+		}
+		context.incrCounter("HashGroupBy: groups", nGroups);
+
+		table = null;
+		itr = null;
+		outputTuple = null;
+		spillStreams = null;
+		spillFiles = null;
+	}
+}
@@ -1,8 +1,10 @@
 package nl.vu.cs.ajira.actions;
 
+import nl.vu.cs.ajira.actions.support.Combiner;
 import nl.vu.cs.ajira.actions.support.HashPartitioner;
 import nl.vu.cs.ajira.actions.support.Partitioner;
 import nl.vu.cs.ajira.buckets.Bucket;
+import nl.vu.cs.ajira.buckets.WritableTuple;
 import nl.vu.cs.ajira.data.types.DataProvider;
 import nl.vu.cs.ajira.data.types.TIntArray;
 import nl.vu.cs.ajira.data.types.TStringArray;
@@ -86,6 +88,28 @@ public class PartitionToNodes extends Action {
 	 */
 	public static final int B_STREAMING = 7;
 
+	/**
+	 * The <code>S_COMBINER</code> parameter is of type <code>String</code>, is
+	 * not required, and defaults to <code>null</code>. When specified, it
+	 * indicates a class name of a class that must extend {@link Combiner}, and
+	 * must have a public parameterless constructor. The combiner pre-aggregates
+	 * the tuples with equal sorting fields before they are spilled to disk or
+	 * sent to another node. It is only used when the partitions are sorted.
+	 */
+	public static final int S_COMBINER = 8;
+
+	/**
+	 * The <code>B_COMPACT</code> parameter is of type <code>boolean</code>, is
+	 * not required, and defaults to <code>false</code>. When set, the tuples
+	 * are stored and transferred in a compact form: <code>TInt</code> and
+	 * <code>TLong</code> fields take one byte for small values, and the
+	 * per-tuple headers are smaller (see {@link WritableTuple}). It pays off
+	 * for tuples of small numbers. Sorted partitions then order the
+	 * <code>TInt</code> and <code>TLong</code> fields numerically, negative
+	 * numbers first.
+	 */
+	public static final int B_COMPACT = 9;
+
 	static final Logger log = LoggerFactory.getLogger(PartitionToNodes.class);
 
 	private boolean shouldSort;
@@ -97,12 +121,14 @@ public class PartitionToNodes extends Action {
 	private Bucket[] bucketsCache;
 	private int nPartitionsPerNode;
 	private String sPartitioner = null;
+	private String sCombiner = null;
 	private Partitioner partitioner = null;
 	private int nPartitions;
 	private int[] bucketIds;
 	private boolean partition;
 	private boolean sentChain;
 	private boolean streaming;
+	private boolean compact;
 
 	// private long[] partitionCounts;
 
@@ -145,6 +171,10 @@ public class PartitionToNodes extends Action {
 				params[B_STREAMING] = new Boolean(false);
 			}
 
+			if (params[B_COMPACT] == null) {
+				params[B_COMPACT] = new Boolean(false);
+			}
+
 			params[IA_SORTING_FIELDS] = convertToBytes(params[IA_SORTING_FIELDS]);
 			params[BA_PARTITION_FIELDS] = convertToBytes(params[BA_PARTITION_FIELDS]);
 
@@ -167,6 +197,8 @@ public class PartitionToNodes extends Action {
 		conf.registerParameter(BA_PARTITION_FIELDS, "BA_PARTITION_FIELDS",
 				null, false);
 		conf.registerParameter(B_STREAMING, "B_STREAMING", false, false);
+		conf.registerParameter(S_COMBINER, "S_COMBINER", null, false);
+		conf.registerParameter(B_COMPACT, "B_COMPACT", false, false);
 
 		conf.registerCustomConfigurator(new ParametersProcessor());
 	}
@@ -175,9 +207,11 @@ public class PartitionToNodes extends Action {
 	public void startProcess(ActionContext context) throws Exception {
 		shouldSort = getParamBoolean(B_SORT);
 		streaming = getParamBoolean(B_STREAMING);
+		compact = getParamBoolean(B_COMPACT);
 		sortingFields = getParamByteArray(IA_SORTING_FIELDS);
 
 		sPartitioner = getParamString(S_PARTITIONER);
+		sCombiner = shouldSort ? getParamString(S_COMBINER) : null;
 		nPartitionsPerNode = getParamInt(I_NPARTITIONS_PER_NODE);
 		partitionFields = getParamByteArray(BA_PARTITION_FIELDS);
 
@@ -231,14 +265,20 @@ public class PartitionToNodes extends Action {
 				int nodeNo = partition / nPartitionsPerNode;
 				int bucketNo = bucketIds[partition % nPartitionsPerNode];
 				b = context.startTransfer(nodeNo, bucketNo, shouldSort,
-						sortingFields, tupleFields, streaming);
+						sortingFields, tupleFields, streaming, compact);
+				if (sCombiner != null) {
+					b.setCombiner(sCombiner);
+				}
 				bucketsCache[partition] = b;
 			}
 		} else {
 			b = bucketsCache[0];
 			if (b == null) {
 				b = context.startTransfer(0, bucketIds[0], shouldSort,
-						sortingFields, tupleFields, streaming);
+						sortingFields, tupleFields, streaming, compact);
+				if (sCombiner != null) {
+					b.setCombiner(sCombiner);
+				}
 				bucketsCache[0] = b;
 			}
 		}
@@ -269,7 +309,7 @@ public class PartitionToNodes extends Action {
 			int nodeNo = i / nPartitionsPerNode;
 			int bucketNo = bucketIds[i % nPartitionsPerNode];
 			context.finishTransfer(nodeNo, bucketNo, shouldSort, sortingFields,
-					bucketsCache[i] != null, tupleFields, streaming);
+					bucketsCache[i] != null, tupleFields, streaming, compact);
 			// context.incrCounter("Partition-" + i, partitionCounts[i]);
 		}
 
@@ -10,7 +10,12 @@ import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
 import nl.vu.cs.ajira.datalayer.InputQuery;
 import nl.vu.cs.ajira.datalayer.files.FileCollection;
+import nl.vu.cs.ajira.datalayer.files.BlockDecoder;
+import nl.vu.cs.ajira.datalayer.files.ColumnarFileReader;
+import nl.vu.cs.ajira.datalayer.files.DefaultFileReader;
 import nl.vu.cs.ajira.datalayer.files.FileLayer;
+import nl.vu.cs.ajira.datalayer.files.SplittableFileReader;
+import nl.vu.cs.ajira.utils.Consts;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +26,11 @@ import org.slf4j.LoggerFactory;
  * spits them up into chunks of a certain size, and divides these over the available
  * nodes, to read those files. A next action gets the tuples read from these files as
  * input. Note that all this may cause chains to be executed on all available nodes.
+ * When the reader is a {@link SplittableFileReader}, a large uncompressed file is
+ * cut into byte ranges, so that it is read by all the chain handlers of the cluster
+ * instead of by a single chain. The {@link DefaultFileReader} also reads ranges of
+ * files that are compressed in blocks (see {@link BlockDecoder}), which are cut at
+ * block boundaries.
  */
 public class ReadFromFiles extends Action {
 
@@ -53,6 +63,22 @@ public class ReadFromFiles extends Action {
 	 */
 	public static final int S_FILE_FILTER = 2;
 
+	/**
+	 * The <code>BA_PROJECTION</code> parameter, of type <code>byte[]</code>,
+	 * is not required, and, if provided, contains the positions of the fields
+	 * to read, like {@link Project#BA_FIELDS}. It is used by readers that can
+	 * skip fields, like {@link ColumnarFileReader}.
+	 */
+	public static final int BA_PROJECTION = 3;
+
+	/**
+	 * The <code>S_BLOCK_FILTER</code> parameter, of type <code>String</code>,
+	 * is not required, and, if provided, should contain the class name of an
+	 * implementation of {@link ColumnarFileReader.BlockFilter}, which decides
+	 * which blocks of a columnar file are read.
+	 */
+	public static final int S_BLOCK_FILTER = 4;
+
 	static final Logger log = LoggerFactory.getLogger(ReadFromFiles.class);
 
 	private static int splitCounter = 0;	// Added to create unique strings for the context cache. --Ceriel
@@ -61,6 +87,12 @@ public class ReadFromFiles extends Action {
 	private int splitId;
 	private String baseSplit = null;
 	private String customReader = null;
+	private byte[] projection = null;
+	private String blockFilter = null;
+	private boolean splittable;
+	// The reader can read ranges of files compressed in blocks
+	private boolean blocksSplittable;
+	private int nRangesPerFile;
 
 	private static class ParametersProcessor extends ActionConf.Configurator {
 		@Override
@@ -100,7 +132,12 @@ public class ReadFromFiles extends Action {
 		c.setParamWritable(QueryInputLayer.W_QUERY, new Query(tuple));
 		output.branch(new ActionSequence(c));
 
+		newFileSplit();
+	}
+
+	private void newFileSplit() {
 		currentFileSplit = new FileCollection();
+		currentFileSplit.setReaderOptions(projection, blockFilter);
 	}
 
 	@Override
@@ -109,15 +146,36 @@ public class ReadFromFiles extends Action {
 		conf.registerParameter(S_CUSTOM_READER, "S_CUSTOM_READER", null, false);
 		conf.registerParameter(S_FILE_FILTER, "S_FILE_FILTER",
 				FilterHiddenFiles.class.getName(), false);
+		conf.registerParameter(BA_PROJECTION, "BA_PROJECTION", null, false);
+		conf.registerParameter(S_BLOCK_FILTER, "S_BLOCK_FILTER", null, false);
 		conf.registerCustomConfigurator(new ParametersProcessor());
 	}
 
 	@Override
 	public void startProcess(ActionContext context) throws Exception {
 		customReader = getParamString(S_CUSTOM_READER);
+		projection = getParamByteArray(BA_PROJECTION);
+		blockFilter = getParamString(S_BLOCK_FILTER);
 		minimumFileSplitSize = context.getSystemParamInt(MINIMUM_SPLIT_SIZE,
 				MINIMUM_FILE_SPLIT);
-		currentFileSplit = new FileCollection();
+		Class<?> reader = DefaultFileReader.class;
+		if (customReader != null) {
+			try {
+				reader = Class.forName(customReader);
+			} catch (ClassNotFoundException e) {
+				// The input layer reports it
+				reader = null;
+			}
+		}
+		splittable = reader != null
+				&& SplittableFileReader.class.isAssignableFrom(reader);
+		blocksSplittable = reader != null
+				&& DefaultFileReader.class.isAssignableFrom(reader);
+		// A large file is cut in a range per chain handler of the cluster
+		nRangesPerFile = context.getSystemParamInt(Consts.N_PROC_THREADS,
+				Runtime.getRuntime().availableProcessors())
+				* context.getNumberNodes();
+		newFileSplit();
 		splitId = 0;
 	}
 
@@ -128,12 +186,53 @@ public class ReadFromFiles extends Action {
 		// In input I receive a list of files
 		File file = new File(((TString) inputTuple.get(0)).getValue());
 
+		long length = file.length();
+		long rangeSize = Math.max(minimumFileSplitSize,
+				(length + nRangesPerFile - 1) / nRangesPerFile);
+		if (splittable && length > rangeSize) {
+			if (!BlockDecoder.isCompressed(file)) {
+				for (long offset = 0; offset < length; offset += rangeSize) {
+					addRange(file, offset, Math.min(rangeSize, length - offset),
+							context, output);
+				}
+				return;
+			}
+			BlockDecoder decoder = blocksSplittable ? BlockDecoder.open(file)
+					: null;
+			if (decoder != null) {
+				// Cut at the first block boundary after every rangeSize bytes
+				try {
+					long offset = 0;
+					while (decoder.readBlock(null) >= 0) {
+						long start = decoder.getBlockStart();
+						if (start - offset >= rangeSize) {
+							addRange(file, offset, start - offset, context,
+									output);
+							offset = start;
+						}
+					}
+					addRange(file, offset, length - offset, context, output);
+				} finally {
+					decoder.close();
+				}
+				return;
+			}
+		}
+
 		if (currentFileSplit.getSize() >= minimumFileSplitSize) {
 			processSplit(context, output);
 		}
 		currentFileSplit.addFile(file);
 	}
 
+	private void addRange(File file, long offset, long length,
+			ActionContext context, ActionOutput output) throws Exception {
+		if (currentFileSplit.getSize() >= minimumFileSplitSize) {
+			processSplit(context, output);
+		}
+		currentFileSplit.addFile(file, offset, length);
+	}
+
 	@Override
 	public void stopProcess(ActionContext context, ActionOutput output)
 			throws Exception {
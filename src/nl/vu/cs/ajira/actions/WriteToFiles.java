@@ -25,9 +25,10 @@ public class WriteToFiles extends Action {
 	 * The <code>S_CUSTOM_WRITER</code> parameter, of type <code>String</code>,
 	 * is not required, and defaults to the class name of
 	 * {@link DefaultFileWriter}. When supplied, it should indicate a class name
-	 * of a class that must extend {@link DefaultFileWriter}, and must have a
-	 * public constructor with two parameters: an {@link ActionContext}, and a
-	 * {@link File}.
+	 * of a class that implements {@link FileWriter}, and must have a public
+	 * parameterless constructor. For instance,
+	 * {@link nl.vu.cs.ajira.datalayer.files.ColumnarFileWriter} writes a binary
+	 * format that can be read back without parsing text.
 	 */
 	public static final int S_CUSTOM_WRITER = 0;
 
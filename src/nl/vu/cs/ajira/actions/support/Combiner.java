@@ -0,0 +1,41 @@
+package nl.vu.cs.ajira.actions.support;
+
+import nl.vu.cs.ajira.data.types.Tuple;
+
+/**
+ * This is the base class of a combiner. A <code>Combiner</code> pre-aggregates
+ * tuples with equal keys inside a bucket, before its content is spilled to
+ * disk or transferred to another node. The {@link #combine(Tuple, Tuple)}
+ * method must be associative and must leave the key fields and the shape of
+ * the accumulator unchanged, since the result is processed again by the
+ * reducer (and possibly combined again).
+ */
+public abstract class Combiner {
+
+	/** The fields that form the key of the tuple. */
+	protected byte[] key_fields;
+
+	/**
+	 * Initializes the combiner.
+	 *
+	 * @param key_fields
+	 *            the fields of the tuple that form the key, or
+	 *            <code>null</code> when all fields are part of the key
+	 */
+	public void init(byte[] key_fields) {
+		this.key_fields = key_fields;
+	}
+
+	/**
+	 * Merges <code>tuple</code> into <code>accumulator</code>. Both tuples are
+	 * guaranteed to have equal keys.
+	 *
+	 * @param accumulator
+	 *            the tuple that collects the aggregated values
+	 * @param tuple
+	 *            the tuple to merge into the accumulator
+	 * @throws Exception
+	 */
+	abstract public void combine(Tuple accumulator, Tuple tuple)
+			throws Exception;
+}
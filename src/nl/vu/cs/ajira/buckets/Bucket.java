@@ -15,12 +15,16 @@ import java.util.List;
 import java.util.Map;
 
 import nl.vu.cs.ajira.Context;
+import nl.vu.cs.ajira.actions.support.Combiner;
 import nl.vu.cs.ajira.chains.ChainNotifier;
+import nl.vu.cs.ajira.data.types.DataProvider;
 import nl.vu.cs.ajira.data.types.SimpleData;
 import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.data.types.TupleFactory;
 import nl.vu.cs.ajira.data.types.bytearray.FDataInput;
 import nl.vu.cs.ajira.data.types.bytearray.FDataOutput;
 import nl.vu.cs.ajira.datalayer.TupleIterator;
+import nl.vu.cs.ajira.mgmt.MemoryManager;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.storage.Factory;
 import nl.vu.cs.ajira.storage.RawComparator;
@@ -38,7 +42,7 @@ import org.slf4j.LoggerFactory;
  * maximum limit. Basically, it contains a buffer and a map over the files that
  * were used to spill tuples on the disk.
  */
-public class Bucket {
+public class Bucket implements MemoryManager.Spillable {
 
 	public static final int N_WBUFFS = 2;
 
@@ -48,6 +52,19 @@ public class Bucket {
 		WriteBuffer next;
 	}
 
+	/**
+	 * The combiner and the scratch tuples used to combine a buffer. Producers
+	 * combine their full buffers without holding the lock of the bucket, so
+	 * every combining thread takes its own from a free list.
+	 */
+	private static class CombineState {
+		Combiner combiner;
+		Tuple accumulator;
+		Tuple current;
+		WritableTuple serializer;
+		CombineState next;
+	}
+
 	Context context;
 
 	private boolean startedReading;
@@ -58,6 +75,16 @@ public class Bucket {
 
 	static final Logger log = LoggerFactory.getLogger(Bucket.class);
 
+	private static final StatisticsCollector.Counter ADDALL_TIME = StatisticsCollector.counter("Bucket:addAll: overall time (ms)");
+	private static final StatisticsCollector.Counter CACHE_WRITE_TIME = StatisticsCollector.counter("Time spent writing to cache (ms)");
+	private static final StatisticsCollector.Counter COMBINE_TIME = StatisticsCollector.counter("Bucket:combineBuffer: time combining (ms)");
+	private static final StatisticsCollector.Counter COMBINE_REMOVED = StatisticsCollector.counter("Bucket:combineBuffer: tuples removed");
+	private static final StatisticsCollector.Counter CACHE_READ_TIME = StatisticsCollector.counter("Bucket:removeChunk: time reading from cache (ms)");
+	private static final StatisticsCollector.Counter CACHE_READ_BYTES = StatisticsCollector.counter("Bucket:removeChunk: Bytes read from cache");
+	private static final StatisticsCollector.Counter COMBINE_INEX_TIME = StatisticsCollector.counter("Bucket:combineInExBuffers: overall time (ms)");
+	private static final StatisticsCollector.Counter SPILLS = StatisticsCollector.counter("Bucket: spills requested by the memory manager");
+	private static final StatisticsCollector.Counter REMOVEW_TIME = StatisticsCollector.counter("Bucket:removeWChunk: overall time (ms)");
+
 	// Used for unsorted streams.
 	private final List<File> cacheFiles = new ArrayList<File>();
 	private final Map<Long, Integer> children = new HashMap<Long, Integer>();
@@ -69,6 +96,13 @@ public class Bucket {
 	private byte[] signature;
 	private WritableTuple serializer;
 
+	// Used for pre-aggregating tuples with equal keys
+	private Combiner combiner;
+	private String combinerClass;
+	private CombineState freeCombineStates;
+	// Number of producers that combine a full buffer outside the lock.
+	private int numCombiners;
+
 	private long elementsInCache = 0;
 	private SortedBucketCache sortedBucketCache;
 
@@ -115,6 +149,15 @@ public class Bucket {
 
 	private boolean streaming;
 
+	// Set if this bucket is sent to a remote node: the sender is signalled
+	// whenever a chunk is ready.
+	private boolean transfer;
+
+	// Set when a container was reserved over budget by a thread that held a
+	// lock of the bucket: the next add() waits for the budget once it has
+	// released the lock.
+	private volatile boolean waitForMemory;
+
 	/**
 	 * This method is used to add a tuple to the in-memory buffer. If the
 	 * element cannot be added on the first attempt, the buffer has to be
@@ -128,20 +171,47 @@ public class Bucket {
 	 * 
 	 * @throws Exception
 	 */
-	public synchronized boolean add(Tuple tuple) throws Exception {
+	public boolean add(Tuple tuple) throws Exception {
+		boolean[] fullSorted = new boolean[1];
+		WritableContainer<WritableTuple> full = addTuple(tuple, fullSorted);
+		if (full != null) {
+			combineFullBuffer(full, fullSorted[0]);
+		}
+		if (waitForMemory) {
+			waitForMemory = false;
+			MemoryManager.getInstance().awaitBudget(submissionNode,
+					submissionId, this);
+		}
+		return true;
+	}
+
+	/*
+	 * Adds the tuple to the in-memory buffer. If the buffer is full and the
+	 * bucket has a combiner, the full buffer is swapped out and returned, so
+	 * that the caller combines it after releasing the lock.
+	 */
+	private synchronized WritableContainer<WritableTuple> addTuple(
+			Tuple tuple, boolean[] fullSorted) throws Exception {
 		if (inBuffer == null) {
-			inBuffer = getContainer();
+			inBuffer = getContainer(false);
 		}
 		totalNumberOfElements++;
 
 		serializer.setTuple(tuple);
 		boolean response = inBuffer.add(serializer);
+		WritableContainer<WritableTuple> full = null;
 
 		if (response) {
 			isInBufferSorted = inBuffer.getNElements() < 2;
 		} else {
-			cacheBuffer(inBuffer, isInBufferSorted);
-			inBuffer = getContainer();
+			if (combiner != null) {
+				full = inBuffer;
+				fullSorted[0] = isInBufferSorted;
+				numCombiners++;
+			} else {
+				cacheBuffer(inBuffer, isInBufferSorted);
+			}
+			inBuffer = getContainer(false);
 			response = inBuffer.add(serializer);
 			isInBufferSorted = true;
 
@@ -167,7 +237,44 @@ public class Bucket {
 				iter = null;
 			}
 		}
-		return response;
+		return full;
+	}
+
+	/*
+	 * Combines a full buffer that add() swapped out, without holding the lock
+	 * of the bucket, and puts the result back: in the in-memory buffer if it
+	 * shrank enough (otherwise we would combine it again soon), and in the
+	 * cache otherwise.
+	 */
+	private void combineFullBuffer(WritableContainer<WritableTuple> buffer,
+			boolean sorted) throws Exception {
+		WritableContainer<WritableTuple> combined = null;
+		try {
+			combined = combine(buffer, sorted);
+		} finally {
+			synchronized (this) {
+				if (combined != null) {
+					if (combined.getRawSize() >= Consts.TUPLES_CONTAINER_MAX_BUFFER_SIZE / 2) {
+						cacheBuffer(combined, true);
+					} else if (inBuffer == null
+							|| inBuffer.getNElements() == 0) {
+						releaseInBuffer();
+						inBuffer = combined;
+						isInBufferSorted = true;
+					} else if (combined.addAll(inBuffer)) {
+						releaseInBuffer();
+						inBuffer = combined;
+						isInBufferSorted = false;
+					} else {
+						cacheBuffer(combined, true);
+					}
+				}
+				numCombiners--;
+				if (numCombiners == 0) {
+					notifyAll();
+				}
+			}
+		}
 	}
 
 	/**
@@ -248,8 +355,14 @@ public class Bucket {
 		}
 
 		stats.addCounter(submissionNode, submissionId,
-				"Bucket:addAll: overall time (ms)", System.currentTimeMillis()
-						- time);
+				ADDALL_TIME, System.currentTimeMillis() - time);
+	}
+
+	/**
+	 * Marks this bucket as the local side of a transfer to a remote node.
+	 */
+	void setTransfer() {
+		transfer = true;
 	}
 
 	/**
@@ -304,14 +417,14 @@ public class Bucket {
 					if (sort && !sorted) {
 						TupleComparator c = new TupleComparator();
 						comparator.copyTo(c);
-						buffer.sort(c, fb);
+						buffer.sort(c, fb, context.getSpillManager());
 					}
 
 					long time = System.currentTimeMillis();
 
 					if (!sort) {
-						File cacheFile = File.createTempFile("cache", "tmp");
-						cacheFile.deleteOnExit();
+						File cacheFile = context.getSpillManager()
+								.newSpillFile("cache");
 
 						OutputStream fout = new SnappyOutputStream(
 								new BufferedOutputStream(new FileOutputStream(
@@ -320,6 +433,8 @@ public class Bucket {
 						FDataOutput cacheOutputStream = new FDataOutput(fout);
 						buffer.writeTo(cacheOutputStream);
 						cacheOutputStream.close();
+						context.getSpillManager().fileWritten(submissionNode,
+								submissionId, cacheFile);
 						synchronized (Bucket.this) {
 							cacheFiles.add(cacheFile);
 						}
@@ -328,7 +443,7 @@ public class Bucket {
 					}
 
 					stats.addCounter(submissionNode, submissionId,
-							"Time spent writing to cache (ms)",
+							CACHE_WRITE_TIME,
 							System.currentTimeMillis() - time);
 					releaseContainer(buffer);
 				} catch (Throwable e) {
@@ -348,6 +463,147 @@ public class Bucket {
 
 	}
 
+	/**
+	 * Sorts the buffer (if necessary) and merges the adjacent tuples that have
+	 * equal keys with the combiner of the bucket. The original buffer is
+	 * released.
+	 * 
+	 * @param buffer
+	 *            Buffer (tuples container) to be combined
+	 * @param sorted
+	 *            True/false if the tuples inside the buffer are sorted or not
+	 * @return A sorted buffer that contains the combined tuples
+	 * @throws Exception
+	 */
+	private synchronized WritableContainer<WritableTuple> combineBuffer(
+			WritableContainer<WritableTuple> buffer, boolean sorted)
+			throws Exception {
+		return combine(buffer, sorted);
+	}
+
+	/*
+	 * Does the work of combineBuffer(). Does not need the lock of the bucket,
+	 * except to take and return the combine state and to update the number
+	 * of elements.
+	 */
+	private WritableContainer<WritableTuple> combine(
+			WritableContainer<WritableTuple> buffer, boolean sorted)
+			throws Exception {
+		int nElements = buffer.getNElements();
+		if (nElements < 2) {
+			return buffer;
+		}
+
+		long time = System.currentTimeMillis();
+		if (!sorted) {
+			TupleComparator c = new TupleComparator();
+			comparator.copyTo(c);
+			buffer.sort(c, fb, context.getSpillManager());
+		}
+
+		WritableContainer<WritableTuple> retval = getContainer(false);
+		CombineState state = getCombineState();
+		try {
+			Tuple accumulator = state.accumulator;
+			Tuple current = state.current;
+			WritableTuple serializer = state.serializer;
+			serializer.setTuple(accumulator);
+			buffer.remove(serializer);
+			while (buffer.getNElements() > 0) {
+				serializer.setTuple(current);
+				buffer.remove(serializer);
+				if (equalKeys(accumulator, current)) {
+					state.combiner.combine(accumulator, current);
+				} else {
+					serializer.setTuple(accumulator);
+					retval.add(serializer);
+					Tuple t = accumulator;
+					accumulator = current;
+					current = t;
+				}
+			}
+			serializer.setTuple(accumulator);
+			retval.add(serializer);
+		} finally {
+			releaseCombineState(state);
+		}
+		releaseContainer(buffer);
+
+		synchronized (this) {
+			totalNumberOfElements -= nElements - retval.getNElements();
+		}
+		stats.addCounter(submissionNode, submissionId,
+				COMBINE_TIME,
+				System.currentTimeMillis() - time);
+		stats.addCounter(submissionNode, submissionId,
+				COMBINE_REMOVED, nElements
+						- retval.getNElements());
+		return retval;
+	}
+
+	private boolean equalKeys(Tuple t1, Tuple t2) {
+		if (sortingFields == null) {
+			for (int i = 0; i < t1.getNElements(); ++i) {
+				if (t1.get(i).compareTo(t2.get(i)) != 0) {
+					return false;
+				}
+			}
+		} else {
+			for (int i = 0; i < sortingFields.length; ++i) {
+				if (t1.get(sortingFields[i]).compareTo(
+						t2.get(sortingFields[i])) != 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the combiner that is used to pre-aggregate the tuples with equal
+	 * keys before they are spilled to disk or transferred. Only sorting
+	 * buckets support a combiner, and the first one that is set wins.
+	 * 
+	 * @param className
+	 *            The class name of the combiner (see {@link Combiner})
+	 * @throws Exception
+	 */
+	public synchronized void setCombiner(String className) throws Exception {
+		if (combiner != null || !sortingBucket) {
+			return;
+		}
+		combinerClass = className;
+		CombineState state = newCombineState();
+		state.next = freeCombineStates;
+		freeCombineStates = state;
+		combiner = state.combiner;
+	}
+
+	private CombineState newCombineState() throws Exception {
+		CombineState state = new CombineState();
+		state.combiner = (Combiner) Class.forName(combinerClass).newInstance();
+		state.combiner.init(sortingFields);
+		DataProvider dp = DataProvider.get();
+		state.accumulator = TupleFactory.newTuple(dp.getArrayOf(signature));
+		state.current = TupleFactory.newTuple(dp.getArrayOf(signature));
+		state.serializer = new WritableTuple(serializer);
+		return state;
+	}
+
+	private synchronized CombineState getCombineState() throws Exception {
+		CombineState state = freeCombineStates;
+		if (state == null) {
+			return newCombineState();
+		}
+		freeCombineStates = state.next;
+		return state;
+	}
+
+	private synchronized void releaseCombineState(CombineState state) {
+		state.next = freeCombineStates;
+		freeCombineStates = state;
+	}
+
 	/**
 	 * This method is used to internally check if all the send-receive
 	 * operations performed over the bucket are finished.
@@ -409,11 +665,15 @@ public class Bucket {
 	 * @param signature
 	 *            The signature used for defining the sort order between the
 	 *            fields
+	 * @param compact
+	 *            Whether the tuples are serialized in the compact mode of
+	 *            {@link WritableTuple}
 	 */
 	@SuppressWarnings("unchecked")
 	void init(long key, Context context, StatisticsCollector stats,
 			int submissionNode, int submissionId, boolean sort,
-			boolean sortRemote, boolean streaming, byte[] sortingFields,
+			boolean sortRemote, boolean streaming, boolean compact,
+			byte[] sortingFields,
 			Factory<WritableContainer<WritableTuple>> fb,
 			CachedFilesMerger merger, byte[] signature) {
 		this.sortingBucket = sort || sortRemote;
@@ -422,6 +682,7 @@ public class Bucket {
 		this.inBuffer = null;
 		this.context = context;
 		this.streaming = streaming;
+		this.transfer = false;
 
 		isFinished = false;
 		receivedMainChain = false;
@@ -436,6 +697,10 @@ public class Bucket {
 
 		elementsInCache = 0;
 
+		// Files left over by a previous (failed) use of the bucket
+		for (File file : cacheFiles) {
+			context.getSpillManager().delete(file);
+		}
 		cacheFiles.clear();
 		children.clear();
 
@@ -451,7 +716,11 @@ public class Bucket {
 		isInBufferSorted = true;
 		this.sort = sort;
 		this.signature = signature;
-		if (sort) {
+		this.combiner = null;
+		this.combinerClass = null;
+		this.freeCombineStates = null;
+		this.numCombiners = 0;
+		if (sortingBucket) {
 			this.sortingFields = sortingFields;
 			// Retrieve suitable comparators for the fields to sort
 			RawComparator<? extends SimpleData>[] array = null;
@@ -459,29 +728,76 @@ public class Bucket {
 			if (sortingFields != null) {
 				array = new RawComparator[sortingFields.length];
 				for (int i = 0; i < sortingFields.length; ++i) {
-					array[i] = RawComparator
-							.getComparator(signature[sortingFields[i]]);
+					array[i] = getFieldComparator(signature[sortingFields[i]],
+							compact);
 				}
 			} else {
 				array = new RawComparator[signature.length];
 				for (int i = 0; i < signature.length; ++i) {
-					array[i] = RawComparator.getComparator(signature[i]);
+					array[i] = getFieldComparator(signature[i], compact);
 				}
 			}
 
-			this.comparator.init(array);
-			this.serializer = new WritableTuple(sortingFields, signature.length);
-			sortedBucketCache = new SortedBucketCache(comparator, this, merger);
-		} else if (sortRemote) {
 			this.serializer = new WritableTuple(sortingFields, signature.length);
+			if (useNormalizedKeys(context, sortingFields, signature)) {
+				this.comparator.initNormalized();
+				this.serializer.setNormalizedKeys(true);
+			} else {
+				this.comparator.init(array, compact);
+			}
+			if (sort) {
+				sortedBucketCache = new SortedBucketCache(comparator, this,
+						merger);
+			}
 		} else {
 			this.serializer = new WritableTuple();
 		}
+		this.serializer.setCompact(compact);
 		// for (int i = 0; i < N_WBUFFS; i++) {
 		WriteBuffer w = new WriteBuffer();
 		w.next = freeList;
 		freeList = w;
 		// }
+		MemoryManager.getInstance().registerSpillable(this);
+	}
+
+	/*
+	 * Normalized keys are used if they are enabled in the configuration and
+	 * all the sort fields can be encoded. All the nodes must agree.
+	 */
+	private static boolean useNormalizedKeys(Context context,
+			byte[] sortingFields, byte[] signature) {
+		if (!context.getConfiguration().getBoolean(Consts.NORMALIZED_KEYS,
+				false)) {
+			return false;
+		}
+		if (sortingFields == null) {
+			for (byte type : signature) {
+				if (!NormalizedKey.isSupported(type)) {
+					return false;
+				}
+			}
+		} else {
+			for (byte field : sortingFields) {
+				if (!NormalizedKey.isSupported(signature[field])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * The numbers written by a compact WritableTuple are compared as plain
+	 * bytes.
+	 */
+	private static RawComparator<? extends SimpleData> getFieldComparator(
+			int type, boolean compact) {
+		if (compact
+				&& (type == Consts.DATATYPE_TINT || type == Consts.DATATYPE_TLONG)) {
+			return new RawComparator<SimpleData>();
+		}
+		return RawComparator.getComparator(type);
 	}
 
 	public synchronized long inmemory_size() {
@@ -536,6 +852,7 @@ public class Bucket {
 	 * Release the buffer -- GC.
 	 */
 	synchronized void releaseBuffers() {
+		MemoryManager.getInstance().unregisterSpillable(this);
 		waitForCachersToFinish();
 		isFinished = true;
 		notifyAll();
@@ -580,21 +897,23 @@ public class Bucket {
 					fi = cacheFiles.remove(0);
 				}
 				if (retval == null) {
-					retval = getContainer();
+					retval = getContainer(false);
 				}
 				if (fi != null) {
 					FDataInput di = new FDataInput(new SnappyInputStream(
 							new BufferedInputStream(new FileInputStream(fi))));
 					retval.readFrom(di); // Read the oldest file
 					stats.addCounter(submissionNode, submissionId,
-							"Bucket:removeChunk: time reading from cache (ms)",
+							CACHE_READ_TIME,
 							System.currentTimeMillis() - time);
 					stats.addCounter(submissionNode, submissionId,
-							"Bucket:removeChunk: Bytes read from cache",
+							CACHE_READ_BYTES,
 							retval.getRawSize());
 					elementsInCache -= retval.getNElements();
 					di.close();
-					fi.delete();
+					context.getSpillManager().fileRead(submissionNode,
+							submissionId, fi);
+					context.getSpillManager().delete(fi);
 				}
 			}
 
@@ -602,6 +921,10 @@ public class Bucket {
 			// inBuffer, or exBuffer, but then we must be sure they are not
 			// being cached.
 			if (inBuffer != null && inBuffer.getNElements() != 0) {
+				if (combiner != null) {
+					inBuffer = combineBuffer(inBuffer, isInBufferSorted);
+					isInBufferSorted = true;
+				}
 				if (retval == null) {
 					retval = inBuffer;
 					inBuffer = null;
@@ -649,16 +972,79 @@ public class Bucket {
 	}
 
 	public WritableContainer<WritableTuple> getContainer() {
+		return getContainer(true);
+	}
+
+	/**
+	 * Gets an empty container, with its memory reserved.
+	 * 
+	 * @param wait
+	 *            whether the reservation may wait for the memory budget. Must
+	 *            be false if the caller holds a lock of the bucket or of its
+	 *            cache.
+	 */
+	WritableContainer<WritableTuple> getContainer(boolean wait) {
 		WritableContainer<WritableTuple> retval = fb.get();
 		retval.init(sortingBucket);
+		retval.reserve(submissionNode, submissionId, this, wait);
+		if (!wait && MemoryManager.getInstance().isOverBudget()) {
+			waitForMemory = true;
+		}
 		return retval;
 	}
 
 	public void releaseContainer(WritableContainer<WritableTuple> v) {
+		v.releaseReservation();
 		v.clear();
 		fb.release(v);
 	}
 
+	@Override
+	public long getSpillableBytes() {
+		// Called without the lock of the bucket: the fields may change while
+		// they are read, but an estimate is enough.
+		if (isFinished) {
+			return 0;
+		}
+		long bytes = 0;
+		WritableContainer<WritableTuple> b = inBuffer;
+		if (b != null && b.getNElements() > 0) {
+			bytes += b.getTotalCapacity();
+		}
+		b = exBuffer;
+		if (b != null && b.getNElements() > 0) {
+			bytes += b.getTotalCapacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Spills the in-memory buffers to disk, because the memory budget is
+	 * exhausted. The buffers are released by the cachers once written.
+	 */
+	@Override
+	public synchronized void spill() {
+		if (isFinished) {
+			return;
+		}
+		boolean spilled = false;
+		if (inBuffer != null && inBuffer.getNElements() > 0) {
+			cacheBuffer(inBuffer, isInBufferSorted);
+			inBuffer = null;
+			isInBufferSorted = true;
+			spilled = true;
+		}
+		if (exBuffer != null && exBuffer.getNElements() > 0) {
+			cacheBuffer(exBuffer, isExBufferSorted);
+			exBuffer = null;
+			isExBufferSorted = true;
+			spilled = true;
+		}
+		if (spilled) {
+			stats.addCounter(submissionNode, submissionId, SPILLS, 1);
+		}
+	}
+
 	private WritableContainer<WritableTuple> removeChunk(boolean[] done)
 			throws Exception {
 		if (sort) {
@@ -743,7 +1129,7 @@ public class Bucket {
 		isExBufferSorted = true;
 
 		stats.addCounter(submissionNode, submissionId,
-				"Bucket:combineInExBuffers: overall time (ms)",
+				COMBINE_INEX_TIME,
 				System.currentTimeMillis() - time);
 	}
 
@@ -802,6 +1188,7 @@ public class Bucket {
 			w.next = null;
 			w.buffer = removeChunk(retval);
 			w.removeChunkReturned = retval[0];
+			boolean last = retval[0];
 
 			synchronized (availableListLock) {
 				WriteBuffer b = availableList, prev = null;
@@ -815,16 +1202,21 @@ public class Bucket {
 					prev.next = w;
 				}
 				availableListLock.notifyAll();
-				if (w.removeChunkReturned) {
+				if (last) {
 					// LOG-DEBUG
 					if (log.isDebugEnabled()) {
 						log.debug("fillWriteBufers: done, no more chunks to fill with, "
 								+ "stop the thread for double-buffering & notify all...");
 					}
 					done = true;
-					return;
 				}
 			}
+			if (transfer) {
+				context.getNetworkLayer().signalTransferReady(key);
+			}
+			if (last) {
+				return;
+			}
 		}
 	}
 
@@ -868,7 +1260,7 @@ public class Bucket {
 					if (ready != null) {
 						ready[0] = true;
 					}
-					return getContainer();
+					return getContainer(false);
 				}
 				try {
 					availableListLock.wait();
@@ -897,7 +1289,7 @@ public class Bucket {
 			}
 
 			stats.addCounter(submissionNode, submissionId,
-					"Bucket:removeWChunk: overall time (ms)",
+					REMOVEW_TIME,
 					System.currentTimeMillis() - timeStart);
 			if (ready != null) {
 				ready[0] = true;
@@ -928,7 +1320,7 @@ public class Bucket {
 		}
 
 		stats.addCounter(submissionNode, submissionId,
-				"Bucket:removeWChunk: overall time (ms)",
+				REMOVEW_TIME,
 				System.currentTimeMillis() - timeStart);
 		if (ready != null) {
 			ready[0] = isf;
@@ -941,16 +1333,32 @@ public class Bucket {
 	 */
 	public synchronized void setFinished() {
 
+		// Wait for the producers that are combining a full buffer, which
+		// they put back when done.
+		while (numCombiners > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+
 		// Combine internal + external buffers before finish
 		combineInExBuffers();
 
 		if (sort) {
 			if (inBuffer != null) {
-				if (!isInBufferSorted) {
+				if (combiner != null) {
+					try {
+						inBuffer = combineBuffer(inBuffer, isInBufferSorted);
+					} catch (Exception e) {
+						throw new Error("Unexpected exception", e);
+					}
+				} else if (!isInBufferSorted) {
 					TupleComparator c = new TupleComparator();
 					comparator.copyTo(c);
 					try {
-						inBuffer.sort(c, fb);
+						inBuffer.sort(c, fb, context.getSpillManager());
 					} catch (Exception e) {
 						throw new Error("Unexpected exception", e);
 					}
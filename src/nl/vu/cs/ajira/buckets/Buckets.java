@@ -11,6 +11,7 @@ import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.actions.ActionContext;
 import nl.vu.cs.ajira.chains.ChainNotifier;
 import nl.vu.cs.ajira.datalayer.TupleIterator;
+import nl.vu.cs.ajira.mgmt.MemoryManager;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.net.NetworkLayer;
 import nl.vu.cs.ajira.storage.Factory;
@@ -120,6 +121,7 @@ public class Buckets {
 						+ "  buckets unused of a total size of " + size);
 			}
 		}
+		MemoryManager.getInstance().submissionFinished(submissionId);
 	}
 
 	/**
@@ -140,6 +142,9 @@ public class Buckets {
 	 * @param sortRemote
 	 *            set if this is a to be sorted remote bucket that is not sorted
 	 *            locally
+	 * @param compact
+	 *            Whether the tuples are serialized in the compact mode of
+	 *            {@link WritableTuple}
 	 * @param sortingFields
 	 *            What fields to sort on
 	 * @param signature
@@ -149,15 +154,16 @@ public class Buckets {
 	 */
 	public synchronized Bucket getOrCreateBucket(int submissionNode,
 			int idSubmission, int idBucket, boolean sort, boolean sortRemote,
-			boolean streaming, byte[] sortingFields, byte[] signature) {
+			boolean streaming, boolean compact, byte[] sortingFields,
+			byte[] signature) {
 		long key = getKey(idSubmission, idBucket);
 		Bucket bucket = buckets.get(key);
 
 		if (bucket == null) {
 			bucket = new Bucket();
 			bucket.init(key, context, stats, submissionNode, idSubmission,
-					sort, sortRemote, streaming, sortingFields, fb, merger,
-					signature);
+					sort, sortRemote, streaming, compact, sortingFields, fb,
+					merger, signature);
 			buckets.put(key, bucket);
 			ChainNotifier notifier = notifiers.remove(key);
 			if (notifier != null) {
@@ -314,15 +320,18 @@ public class Buckets {
 	 *            fields
 	 * @param context
 	 *            Context of the action
+	 * @param compact
+	 *            Whether the tuples are serialized in the compact mode of
+	 *            {@link WritableTuple}
 	 * @return The bucket prepared for the transfer
 	 */
 	public Bucket startTransfer(int submissionNode, int submission, int node,
 			int bucketID, boolean sort, byte[] sortingFields, byte[] signature,
-			ActionContext context, boolean streaming) {
+			ActionContext context, boolean streaming, boolean compact) {
 
 		if (node == myPartition || net.getNumberNodes() == 1) {
 			return getOrCreateBucket(submissionNode, submission, bucketID,
-					sort, sort, streaming, sortingFields, signature);
+					sort, sort, streaming, compact, sortingFields, signature);
 		}
 
 		Map<Long, TransferInfo> map = activeTransfers[node];
@@ -338,7 +347,8 @@ public class Buckets {
 				// Remote buckets are not sorted (sorting is disabled)
 				info.bucket = getOrCreateBucket(submissionNode, submission,
 						context.getNewBucketID(), false, sort, streaming,
-						sortingFields, signature);
+						compact, sortingFields, signature);
+				info.bucket.setTransfer();
 				info.streaming = streaming;
 				map.put(key, info);
 			} else {
@@ -352,8 +362,9 @@ public class Buckets {
 	public void alertTransfer(boolean updateCounters, int submissionNode,
 			int submission, int node, int bucketID, long chainId,
 			long parentChainId, int nchildren, boolean responsible,
-			boolean sort, byte[] sortingParams, byte[] signature,
-			Map<Long, List<Integer>> additionalChildren) throws IOException {
+			boolean sort, boolean compact, byte[] sortingParams,
+			byte[] signature, Map<Long, List<Integer>> additionalChildren)
+			throws IOException {
 
 		if (node == myPartition || net.getNumberNodes() == 1) {
 			return;
@@ -402,6 +413,8 @@ public class Buckets {
 			return;
 		}
 
+		boolean push = stateBuffer == 3 && net.isPushingTransfers();
+
 		WriteMessage message = net.getMessageToSend(net.getPeerLocation(node),
 				NetworkLayer.nameMgmtReceiverPort);
 		message.writeByte((byte) 1); // Mark to indicate there are tuples
@@ -436,18 +449,23 @@ public class Buckets {
 				message.writeInt(0);
 			}
 		}
+		message.writeBoolean(compact);
 
 		if (stateBuffer == 3) {
 			// There will be something in the bucket, alert
 			// the node responsible with this remote-data.
 			message.writeLong(info.bucket.getKey()); // Local bucket key
 			message.writeBoolean(info.streaming);
+			// If true, the destination does not need to request the data.
+			message.writeBoolean(push);
 		} else if (stateBuffer == 1) { // empty bucket
 			message.writeLong(-1); // Flag
 			message.writeBoolean(false);
+			message.writeBoolean(false);
 		} else {
 			message.writeLong(-2); // Already sent update.
 			message.writeBoolean(false);
+			message.writeBoolean(false);
 		}
 
 		message.writeByte((byte) signature.length);
@@ -474,6 +492,13 @@ public class Buckets {
 		}
 
 		net.finishMessage(message, submission);
+
+		if (push) {
+			// Start sending after the alert, so that the destination does not
+			// have to wait long for its bucket to be created.
+			net.startPushTransfer(info.bucket.getKey(), node, submission,
+					submissionNode, bucketID);
+		}
 	}
 
 	/**
@@ -509,17 +534,22 @@ public class Buckets {
 	 * @param decreaseCounter
 	 *            True/false if we need to decrease the transfer info counter or
 	 *            not
+	 * @param compact
+	 *            Whether the tuples are serialized in the compact mode of
+	 *            {@link WritableTuple}
 	 * @throws IOException
 	 */
 	public void finishTransfer(int submissionNode, int submission, int node,
 			int bucketID, long chainId, long parentChainId, int nchildren,
 			boolean responsible, boolean sort, boolean streaming,
 			byte[] sortingFields, byte[] signature, boolean decreaseCounter,
-			Map<Long, List<Integer>> additionalChildren) throws IOException {
+			Map<Long, List<Integer>> additionalChildren, boolean compact)
+			throws IOException {
 
 		if (node == myPartition || net.getNumberNodes() == 1) {
 			Bucket bucket = getOrCreateBucket(submissionNode, submission,
-					bucketID, sort, sort, streaming, sortingFields, signature);
+					bucketID, sort, sort, streaming, compact, sortingFields,
+					signature);
 
 			if (additionalChildren != null) {
 				bucket.setAdditionalCounters(additionalChildren);
@@ -533,17 +563,25 @@ public class Buckets {
 
 		long key = getKey(submission, bucketID);
 		alertTransfer(true, submissionNode, submission, node, bucketID,
-				chainId, parentChainId, nchildren, responsible, sort,
+				chainId, parentChainId, nchildren, responsible, sort, compact,
 				sortingFields, signature, additionalChildren);
 
 		if (decreaseCounter) {
 			Map<Long, TransferInfo> map = activeTransfers[node];
+			long bucketKey = -1;
 			synchronized (map) {
 				TransferInfo info = map.get(key);
 				if (info != null) {
 					info.count--;
+					if (info.count == 0) {
+						bucketKey = info.bucket.getKey();
+					}
 				}
 			}
+			if (bucketKey != -1) {
+				// The rest of the bucket can be sent.
+				net.signalTransferReady(bucketKey);
+			}
 		}
 	}
 
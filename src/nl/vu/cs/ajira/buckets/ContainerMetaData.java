@@ -14,11 +14,13 @@ public final class ContainerMetaData extends MetaData {
 		this.bucket = bucket;
 	}
 
+	private final int[] length = new int[1];
+
 	@Override
-	public final byte[] getNextElement() {
+	public final void nextElement() {
 		nElements--;
-		current = container.removeRaw(current);
-		return current;
+		buffer = container.removeRaw(buffer, length);
+		setCurrent(length[0]);
 	}
 
 	@Override
@@ -1,17 +1,12 @@
 package nl.vu.cs.ajira.buckets;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import nl.vu.cs.ajira.data.types.bytearray.FDataInput;
-import nl.vu.cs.ajira.data.types.bytearray.FDataOutput;
+import nl.vu.cs.ajira.storage.SpillManager;
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
 
-import org.iq80.snappy.SnappyInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,89 +18,79 @@ import org.slf4j.LoggerFactory;
  */
 public final class FileMetaData extends MetaData {
 	static final Logger log = LoggerFactory.getLogger(FileMetaData.class);
-	private String filename;
+	private final Bucket bucket;
+	private final File file;
 	private long size;
+	private SpillFileInput input;
 	private FDataInput stream;
 	private boolean finished = false;
 
-	static List<byte[]> bufferList = new ArrayList<byte[]>();
-
-	private static int BUFFERSZ = 1024 * 1024;
-
-	private static synchronized byte[] getTmpBuffer() {
-		if (bufferList.isEmpty()) {
-			return new byte[BUFFERSZ];
-		}
-		return bufferList.remove(bufferList.size() - 1);
-	}
-
-	private static synchronized void releaseTmpBuffer(byte[] buf) {
-		bufferList.add(buf);
-	}
-
-	public FileMetaData(String filename, byte[] min, long nEl, byte[] max,
-			long sz) {
+	public FileMetaData(Bucket bucket, File file, byte[] min, long nEl,
+			byte[] max, long sz) {
 		super(min, max, nEl);
-		this.filename = filename;
+		this.bucket = bucket;
+		this.file = file;
 		this.size = sz;
 		// consistencyCheck();
 	}
 
 	@Override
 	public String getName() {
-		return filename;
+		return file.getPath();
 	}
 
 	@Override
 	public void finished() {
 		if (!finished) {
 			finished = true;
-			try {
-				stream.close();
-			} catch (Throwable e) {
-				// ignore
+			SpillManager spills = bucket.context.getSpillManager();
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (Throwable e) {
+					// ignore
+				}
+				spills.fileRead(bucket.submissionNode, bucket.submissionId,
+						file);
 			}
 			stream = null;
+			input = null;
 			size = 0;
 			nElements = 0;
-			new File(filename).delete();
+			spills.delete(file);
 		}
 	}
 
 	private void consistencyCheck() {
 		try {
-			stream = new FDataInput(new SnappyInputStream(
-					new BufferedInputStream(new FileInputStream(filename))));
+			stream = new FDataInput(new SpillFileInput(file));
 			long nel = nElements - 1;
 			long sz = size;
 			if (nel > 0) {
 				if (sz <= 0) {
-					log.error("inconsistency in file " + filename,
+					log.error("inconsistency in file " + file,
 							new Throwable());
 					throw new Error("Inconsistency");
 				}
 			}
 			if (nel == 0 && sz != 0) {
-				log.error("inconsistency in file " + filename, new Throwable());
+				log.error("inconsistency in file " + file, new Throwable());
 				throw new Error("Inconsistency");
 			}
 			while (nel > 0) {
 				// Consistency check
 				int length = stream.readInt();
-				if (length != current.length) {
-					current = new byte[length];
-				}
 				if (length < 0 || length > 4096) {
-					log.error("inconsistency in file " + filename,
+					log.error("inconsistency in file " + file,
 							new Throwable());
 					throw new Error("Inconsistency");
 				}
-				stream.readFully(current);
+				stream.readFully(setCurrent(length), 0, length);
 				sz -= 4 + length;
 				nel--;
 			}
 			if (sz != 0) {
-				log.error("inconsistency in file " + filename, new Throwable());
+				log.error("inconsistency in file " + file, new Throwable());
 				throw new Error("Inconsistency");
 			}
 			stream.close();
@@ -119,8 +104,8 @@ public final class FileMetaData extends MetaData {
 	@Override
 	public void openStream() throws IOException {
 		if (stream == null) {
-			stream = new FDataInput(new SnappyInputStream(
-					new BufferedInputStream(new FileInputStream(filename))));
+			input = new SpillFileInput(file);
+			stream = new FDataInput(input);
 		}
 	}
 
@@ -129,34 +114,30 @@ public final class FileMetaData extends MetaData {
 	}
 
 	@Override
-	public byte[] getNextElement() throws IOException {
+	public void nextElement() throws IOException {
 		nElements--;
 		int length = stream.readInt();
-		if (length != current.length) {
-			current = new byte[length];
-		}
-		stream.readFully(current);
+		stream.readFully(setCurrent(length), 0, length);
 		size -= length + 4;
-		return current;
 	}
 
-	public long fullCopy(FDataOutput f) throws IOException {
+	/**
+	 * Appends the remaining elements (except the current one) to a spill file.
+	 * The compressed blocks are copied as they are.
+	 * 
+	 * @param out
+	 *            the spill file to write to
+	 * @return the (uncompressed) number of bytes that were appended
+	 * @throws IOException
+	 */
+	public long fullCopy(SpillFileOutput out) throws IOException {
 		if (nElements == 1) {
 			finished();
 			return 0;
 		}
 		long sz = size;
-		byte[] tmpBuffer = getTmpBuffer();
-		do {
-			int siz = tmpBuffer.length;
-			if (siz > size) {
-				siz = (int) size;
-			}
-			stream.readFully(tmpBuffer, 0, siz);
-			f.write(tmpBuffer, 0, siz);
-			size -= siz;
-		} while (size > 0);
-		releaseTmpBuffer(tmpBuffer);
+		input.transferTo(out);
+		size = 0;
 		finished();
 		return sz;
 	}
@@ -7,13 +7,20 @@ import nl.vu.cs.ajira.storage.containers.WritableContainer;
 public abstract class MetaData {
 	byte[] minimum;
 	byte[] maximum;
+	// The current element is the first currentLength bytes of current: the
+	// minimum at first, and then the buffer that the next elements are read
+	// into. The buffer only grows, so that reading an element of a different
+	// length does not allocate a new one.
 	byte[] current;
+	int currentLength;
+	byte[] buffer = new byte[64];
 	long nElements;
 
 	public MetaData(byte[] min, byte[] max, long nElements) {
 		this.minimum = min;
 		this.maximum = max;
-		this.current = new byte[1];
+		this.current = min;
+		this.currentLength = min == null ? 0 : min.length;
 		this.nElements = nElements;
 	}
 
@@ -21,7 +28,34 @@ public abstract class MetaData {
 		return nElements == 0;
 	}
 
-	public abstract byte[] getNextElement() throws IOException;
+	/**
+	 * Reads the next element, which then is the current one. The previous
+	 * current element is overwritten.
+	 */
+	public abstract void nextElement() throws IOException;
+
+	/**
+	 * Makes the current element the first length bytes of the buffer,
+	 * growing the buffer if it is too small.
+	 * 
+	 * @return the buffer
+	 */
+	final byte[] setCurrent(int length) {
+		if (length > buffer.length) {
+			buffer = new byte[Math.max(length, 2 * buffer.length)];
+		}
+		current = buffer;
+		currentLength = length;
+		return buffer;
+	}
+
+	public final byte[] getCurrent() {
+		return current;
+	}
+
+	public final int getCurrentLength() {
+		return currentLength;
+	}
 
 	public abstract String getName();
 
@@ -0,0 +1,212 @@
+package nl.vu.cs.ajira.buckets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.TBoolean;
+import nl.vu.cs.ajira.data.types.TByte;
+import nl.vu.cs.ajira.data.types.TByteSlice;
+import nl.vu.cs.ajira.data.types.TDouble;
+import nl.vu.cs.ajira.data.types.TInt;
+import nl.vu.cs.ajira.data.types.TLong;
+import nl.vu.cs.ajira.data.types.TString;
+import nl.vu.cs.ajira.data.types.TUtf8String;
+import nl.vu.cs.ajira.utils.Consts;
+import nl.vu.cs.ajira.utils.Varint;
+
+/**
+ * Encodes the sort fields of a tuple in a normalized key: a sequence of bytes
+ * whose unsigned lexicographic order is the order of the tuples, so that two
+ * keys are compared with a single byte comparison instead of one comparator
+ * per field. The encoding of every field is self-delimiting, and can be
+ * decoded back into the field:
+ * <ul>
+ * <li>numbers are written big endian with the sign bit flipped (doubles also
+ * have the other bits flipped when they are negative), or with the ordered
+ * encoding of {@link Varint} in compact mode;</li>
+ * <li>strings and byte slices are written with every 0 byte escaped as 0 0xFF,
+ * and end with 0 1. A null string is written as 0 0.</li>
+ * </ul>
+ * Numbers are thus ordered numerically, negative numbers first. This is not
+ * the order of the default comparator, which compares their two's complement
+ * bytes unsigned and so puts negative numbers after the positive ones (see
+ * {@link Consts#NORMALIZED_KEYS}).
+ */
+final class NormalizedKey {
+
+	private static final int ESCAPE = 0;
+	private static final int ESCAPED_ZERO = 0xFF;
+	private static final int END = 1;
+	private static final int NULL = 0;
+
+	private byte[] bytes = new byte[64];
+
+	/**
+	 * @return whether fields of the given type can be part of a normalized
+	 *         key
+	 */
+	static boolean isSupported(int type) {
+		return type == Consts.DATATYPE_TINT || type == Consts.DATATYPE_TLONG
+				|| type == Consts.DATATYPE_TDOUBLE
+				|| type == Consts.DATATYPE_TBOOLEAN
+				|| type == Consts.DATATYPE_TBYTE
+				|| type == Consts.DATATYPE_TSTRING
+				|| type == Consts.DATATYPE_TBYTESLICE
+				|| type == Consts.DATATYPE_TUTF8STRING;
+	}
+
+	private static void writeEscaped(DataOutput output, byte[] b, int start,
+			int length) throws IOException {
+		for (int i = start; i < start + length; ++i) {
+			if (b[i] == ESCAPE) {
+				output.writeByte(ESCAPE);
+				output.writeByte(ESCAPED_ZERO);
+			} else {
+				output.writeByte(b[i]);
+			}
+		}
+		output.writeByte(ESCAPE);
+		output.writeByte(END);
+	}
+
+	/*
+	 * Reads an escaped string in the bytes array, and returns its length, or
+	 * -1 for a null string.
+	 */
+	private int readEscaped(DataInput input) throws IOException {
+		int n = 0;
+		for (;;) {
+			byte b = input.readByte();
+			if (b == ESCAPE) {
+				int next = input.readUnsignedByte();
+				if (next == END) {
+					return n;
+				} else if (next == NULL) {
+					return -1;
+				}
+				b = ESCAPE;
+			}
+			if (n == bytes.length) {
+				bytes = Arrays.copyOf(bytes, n * 2);
+			}
+			bytes[n++] = b;
+		}
+	}
+
+	/**
+	 * Writes the normalized encoding of a field.
+	 */
+	void write(DataOutput output, SimpleData value, boolean compact)
+			throws IOException {
+		switch (value.getIdDatatype()) {
+		case Consts.DATATYPE_TINT:
+			if (compact) {
+				Varint.writeOrderedLong(output, ((TInt) value).getValue());
+			} else {
+				output.writeInt(((TInt) value).getValue() ^ Integer.MIN_VALUE);
+			}
+			break;
+		case Consts.DATATYPE_TLONG:
+			if (compact) {
+				Varint.writeOrderedLong(output, ((TLong) value).getValue());
+			} else {
+				output.writeLong(((TLong) value).getValue() ^ Long.MIN_VALUE);
+			}
+			break;
+		case Consts.DATATYPE_TDOUBLE:
+			long bits = Double.doubleToLongBits(((TDouble) value).getValue());
+			output.writeLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+			break;
+		case Consts.DATATYPE_TBOOLEAN:
+			output.writeBoolean(((TBoolean) value).getValue());
+			break;
+		case Consts.DATATYPE_TBYTE:
+			output.writeByte(((TByte) value).getValue());
+			break;
+		case Consts.DATATYPE_TSTRING:
+			String s = ((TString) value).getValue();
+			if (s == null) {
+				output.writeByte(ESCAPE);
+				output.writeByte(NULL);
+			} else {
+				byte[] b = s.getBytes();
+				writeEscaped(output, b, 0, b.length);
+			}
+			break;
+		case Consts.DATATYPE_TBYTESLICE:
+			TByteSlice slice = (TByteSlice) value;
+			writeEscaped(output, slice.getArray(), slice.getStart(),
+					slice.getLength());
+			break;
+		case Consts.DATATYPE_TUTF8STRING:
+			TUtf8String u = (TUtf8String) value;
+			if (u.getBytes() == null) {
+				output.writeByte(ESCAPE);
+				output.writeByte(NULL);
+			} else {
+				writeEscaped(output, u.getBytes(), 0, u.getLength());
+			}
+			break;
+		default:
+			throw new IOException("Type " + value.getIdDatatype()
+					+ " cannot be part of a normalized key");
+		}
+	}
+
+	/**
+	 * Decodes a field written by
+	 * {@link #write(DataOutput, SimpleData, boolean)}.
+	 */
+	void read(DataInput input, SimpleData value, boolean compact)
+			throws IOException {
+		switch (value.getIdDatatype()) {
+		case Consts.DATATYPE_TINT:
+			if (compact) {
+				((TInt) value).setValue((int) Varint.readOrderedLong(input));
+			} else {
+				((TInt) value).setValue(input.readInt() ^ Integer.MIN_VALUE);
+			}
+			break;
+		case Consts.DATATYPE_TLONG:
+			if (compact) {
+				((TLong) value).setValue(Varint.readOrderedLong(input));
+			} else {
+				((TLong) value).setValue(input.readLong() ^ Long.MIN_VALUE);
+			}
+			break;
+		case Consts.DATATYPE_TDOUBLE:
+			long bits = input.readLong();
+			((TDouble) value).setValue(Double
+					.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits));
+			break;
+		case Consts.DATATYPE_TBOOLEAN:
+			((TBoolean) value).setValue(input.readBoolean());
+			break;
+		case Consts.DATATYPE_TBYTE:
+			((TByte) value).setValue(input.readByte());
+			break;
+		case Consts.DATATYPE_TSTRING:
+			int n = readEscaped(input);
+			((TString) value).setValue(n < 0 ? null : new String(bytes, 0, n));
+			break;
+		case Consts.DATATYPE_TBYTESLICE:
+			n = readEscaped(input);
+			((TByteSlice) value).set(Arrays.copyOf(bytes, n), 0, n);
+			break;
+		case Consts.DATATYPE_TUTF8STRING:
+			n = readEscaped(input);
+			if (n < 0) {
+				((TUtf8String) value).setValue(null);
+			} else {
+				((TUtf8String) value).set(bytes, 0, n);
+			}
+			break;
+		default:
+			throw new IOException("Type " + value.getIdDatatype()
+					+ " cannot be part of a normalized key");
+		}
+	}
+}
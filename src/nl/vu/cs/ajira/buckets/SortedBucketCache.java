@@ -1,22 +1,16 @@
 package nl.vu.cs.ajira.buckets;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import nl.vu.cs.ajira.data.types.bytearray.FDataOutput;
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
 
-import org.iq80.snappy.SnappyOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,10 +60,12 @@ public final class SortedBucketCache {
 		}
 	}
 
-	private Comparator<byte[]> byteArrayComparator = new Comparator<byte[]>() {
+	private Comparator<MetaData> currentComparator = new Comparator<MetaData>() {
 		@Override
-		public int compare(byte[] o1, byte[] o2) {
-			return -comparator.compare(o1, 0, o1.length, o2, 0, o2.length);
+		public int compare(MetaData o1, MetaData o2) {
+			return -comparator.compare(o1.getCurrent(), 0,
+					o1.getCurrentLength(), o2.getCurrent(), 0,
+					o2.getCurrentLength());
 		}
 	};
 
@@ -100,11 +96,14 @@ public final class SortedBucketCache {
 			.getLogger(SortedBucketCache.class);
 
 	private long elementsInCache;
-	private final Map<byte[], MetaData> sortedCacheFiles = new HashMap<byte[], MetaData>();
 	private final TupleComparator comparator = new TupleComparator();
 
-	private final SortedList<byte[]> minimumSortedList = new SortedList<byte[]>(
-			MIN_MERGER_THRESHOLD, byteArrayComparator);
+	/**
+	 * The cached files (and containers), sorted on their current element, so
+	 * that the last one holds the minimum.
+	 */
+	private final SortedList<MetaData> minimumSortedList = new SortedList<MetaData>(
+			MIN_MERGER_THRESHOLD, currentComparator);
 	private final Bucket bucket;
 	private Throwable mergerException = null;
 	private boolean finished;
@@ -122,9 +121,7 @@ public final class SortedBucketCache {
 		comparator.copyTo(this.comparator);
 		this.bucket = bucket;
 		for (MetaData f : l) {
-			byte[] min = f.getMinimum();
-			minimumSortedList.add(min);
-			sortedCacheFiles.put(min, f);
+			minimumSortedList.add(f);
 			elementsInCache += f.getNElements();
 		}
 		if (log.isDebugEnabled()) {
@@ -148,8 +145,9 @@ public final class SortedBucketCache {
 	public void cacheBuffer(final WritableContainer<WritableTuple> buffer)
 			throws IOException {
 
-		File cacheFile = File.createTempFile("cache", "tmp");
-		FDataOutput cacheOutputStream = createStream(cacheFile);
+		File cacheFile = newSpillFile();
+		FDataOutput cacheOutputStream = new FDataOutput(new SpillFileOutput(
+				cacheFile));
 
 		int nElements = buffer.getNElements();
 		byte[] min = buffer.removeRaw(null);
@@ -158,20 +156,19 @@ public final class SortedBucketCache {
 
 		buffer.writeElementsTo(cacheOutputStream);
 		cacheOutputStream.close();
+		fileWritten(cacheFile);
 
-		FileMetaData f = new FileMetaData(cacheFile.getAbsolutePath(), min,
-				nElements, max, sz);
+		FileMetaData f = new FileMetaData(bucket, cacheFile, min, nElements,
+				max, sz);
 
 		addMetaData(f, true);
 	}
 
 	private void addMetaData(MetaData f, boolean checkMerger) {
-		byte[] min = f.getMinimum();
 		SortedBucketCache toMerge = null;
 		synchronized (this) {
 			sizeWhenMergersAreDone++;
-			sortedCacheFiles.put(min, f);
-			minimumSortedList.add(min);
+			minimumSortedList.add(f);
 			elementsInCache += f.getNElements();
 			if (log.isDebugEnabled()) {
 				log.debug("Caching buffer for bucket " + bucket.getKey() + ", "
@@ -213,7 +210,8 @@ public final class SortedBucketCache {
 		return false;
 	}
 
-	private long fullCopy(FileMetaData meta, FDataOutput f) throws IOException {
+	private long fullCopy(FileMetaData meta, SpillFileOutput f)
+			throws IOException {
 		elementsInCache -= meta.getNElements() - 1;
 		return meta.fullCopy(f);
 	}
@@ -244,13 +242,13 @@ public final class SortedBucketCache {
 		}
 	}
 
-	private static FDataOutput createStream(File cacheFile)
-			throws FileNotFoundException, IOException {
-		cacheFile.deleteOnExit();
+	private File newSpillFile() throws IOException {
+		return bucket.context.getSpillManager().newSpillFile("cache");
+	}
 
-		OutputStream fout = new SnappyOutputStream(new BufferedOutputStream(
-				new FileOutputStream(cacheFile)));
-		return new FDataOutput(fout);
+	private void fileWritten(File file) {
+		bucket.context.getSpillManager().fileWritten(bucket.submissionNode,
+				bucket.submissionId, file);
 	}
 
 	/**
@@ -260,8 +258,9 @@ public final class SortedBucketCache {
 	 * @throws Exception
 	 */
 	FileMetaData dump() throws Exception {
-		File cacheFile = File.createTempFile("cache", "tmp");
-		FDataOutput cacheOutputStream = createStream(cacheFile);
+		File cacheFile = newSpillFile();
+		SpillFileOutput spillFile = new SpillFileOutput(cacheFile);
+		FDataOutput cacheOutputStream = new FDataOutput(spillFile);
 
 		byte[] min = null;
 		byte[] max = null;
@@ -269,30 +268,34 @@ public final class SortedBucketCache {
 		long nElements = elementsInCache;
 		long written = 0;
 
-		for (MetaData f : sortedCacheFiles.values()) {
+		// The current elements are overwritten while merging, so the
+		// maximum of the result is taken from the maxima of the files.
+		for (MetaData f : minimumSortedList) {
 			f.openStream();
+			byte[] m = f.getMaximum();
+			if (m != null
+					&& (max == null || comparator.compare(m, 0, m.length, max,
+							0, max.length) > 0)) {
+				max = m;
+			}
 		}
 
 		if (log.isDebugEnabled()) {
-			log.debug("Merging " + sortedCacheFiles.size() + " cache files");
+			log.debug("Merging " + minimumSortedList.size() + " cache files");
 		}
 
 		while (written != nElements) {
-			// Remove the minimum of the tuples.
-			byte[] minimum = minimumSortedList.removeLastElement();
+			// Remove the metadata with the minimum of the tuples.
+			MetaData meta = minimumSortedList.removeLastElement();
 			if (min == null) {
 				// The minimum is not represented on file.
-				min = minimum;
+				min = Arrays.copyOf(meta.getCurrent(),
+						meta.getCurrentLength());
 			} else {
 				// Write it.
-				cacheOutputStream.writeInt(minimum.length);
-				cacheOutputStream.write(minimum);
-				sz += minimum.length + 4;
+				sz += writeCurrent(meta, cacheOutputStream);
 			}
 			written++;
-			// Remove its entry from the sortedCacheFiles.
-			MetaData meta = sortedCacheFiles.remove(minimum);
-			max = minimum;
 			if (meta.getNElements() == 1) {
 				meta.finished();
 				continue;
@@ -301,30 +304,34 @@ public final class SortedBucketCache {
 			// See if we can copy this complete MetaData.
 			if (len == 0 || compareWithSortedList(meta.getMaximum())) {
 				// Yes we can.
-				max = meta.getMaximum();
 				written += meta.getNElements() - 1;
-				sz += ((FileMetaData) meta).fullCopy(cacheOutputStream);
+				sz += ((FileMetaData) meta).fullCopy(spillFile);
 				continue;
 			}
 			// If not, just stay with this MetaData as long as we can.
-			minimum = meta.getNextElement();
-			while (compareWithSortedList(minimum)) {
-				cacheOutputStream.writeInt(minimum.length);
-				cacheOutputStream.write(minimum);
-				sz += minimum.length + 4;
+			meta.nextElement();
+			while (compareWithSortedList(meta)) {
+				sz += writeCurrent(meta, cacheOutputStream);
 				written++;
-				minimum = meta.getNextElement();
+				meta.nextElement();
 			}
 			// And then put it back.
-			sortedCacheFiles.put(minimum, meta);
-			minimumSortedList.add(minimum);
+			minimumSortedList.add(meta);
 		}
 
 		cacheOutputStream.close();
+		fileWritten(cacheFile);
 
 		// Return a new FileMetaData object representing the merged result.
-		return new FileMetaData(cacheFile.getAbsolutePath(), min, nElements,
-				max, sz);
+		return new FileMetaData(bucket, cacheFile, min, nElements, max, sz);
+	}
+
+	private static int writeCurrent(MetaData meta, FDataOutput out)
+			throws IOException {
+		int length = meta.getCurrentLength();
+		out.writeInt(length);
+		out.write(meta.getCurrent(), 0, length);
+		return length + 4;
 	}
 
 	private int getMergeSize() {
@@ -376,7 +383,7 @@ public final class SortedBucketCache {
 
 		// Add all files to fileList, in order to sort them according to
 		// remaining size.
-		for (MetaData f : sortedCacheFiles.values()) {
+		for (MetaData f : minimumSortedList) {
 			if (f instanceof FileMetaData) {
 				fileList.add((FileMetaData) f);
 			}
@@ -391,10 +398,7 @@ public final class SortedBucketCache {
 		// Now, we have MIN_FILES_TO_MERGE files left on the list.
 		// Remove their info from the cache info.
 		for (FileMetaData f : fileList) {
-			byte[] min = f.getMinimum();
-
-			minimumSortedList.remove(min);
-			sortedCacheFiles.remove(min);
+			minimumSortedList.remove(f);
 			elementsInCache -= f.getNElements();
 		}
 		workersCount++;
@@ -432,7 +436,17 @@ public final class SortedBucketCache {
 	 *         minimum
 	 */
 	private boolean compareWithSortedList(byte[] element) {
-		return minimumSortedList.comparator.compare(element,
+		MetaData last = minimumSortedList.getLastElement();
+		return -comparator.compare(element, 0, element.length,
+				last.getCurrent(), 0, last.getCurrentLength()) >= 0;
+	}
+
+	/**
+	 * Same as {@link #compareWithSortedList(byte[])}, for the current element
+	 * of the metadata given as a parameter.
+	 */
+	private boolean compareWithSortedList(MetaData meta) {
+		return minimumSortedList.comparator.compare(meta,
 				minimumSortedList.getLastElement()) >= 0;
 	}
 
@@ -455,17 +469,17 @@ public final class SortedBucketCache {
 				log.debug("Bucket " + bucket.getKey()
 						+ " is ready to return data.");
 			}
-			for (MetaData d : sortedCacheFiles.values()) {
+			for (MetaData d : minimumSortedList) {
 				d.openStream();
 			}
 		}
 		long totTime = System.currentTimeMillis();
 
-		WritableContainer<WritableTuple> tmpBuffer = bucket.getContainer();
+		WritableContainer<WritableTuple> tmpBuffer = bucket.getContainer(false);
 
 		if (log.isDebugEnabled()) {
 			log.debug("removeChunk: number of streams is "
-					+ sortedCacheFiles.size());
+					+ minimumSortedList.size());
 		}
 
 		boolean insertResponse = false;
@@ -478,11 +492,11 @@ public final class SortedBucketCache {
 		do {
 			// Remove the minimum of the tuples and try to add
 			// it to the buffer.
-			byte[] minimum = minimumSortedList.removeLastElement();
-			insertResponse = tmpBuffer.addRaw(minimum);
+			MetaData meta = minimumSortedList.removeLastElement();
+			insertResponse = tmpBuffer.addRaw(meta.getCurrent(),
+					meta.getCurrentLength());
 
 			if (insertResponse) {
-				MetaData meta = sortedCacheFiles.remove(minimum);
 				elementsInCache--;
 				if (meta.getNElements() == 1) {
 					meta.finished();
@@ -496,35 +510,35 @@ public final class SortedBucketCache {
 						continue;
 					}
 					// Now try to fill the buffer with it.
-					minimum = meta.getNextElement();
-					while (tmpBuffer.addRaw(minimum)) {
+					meta.nextElement();
+					while (tmpBuffer.addRaw(meta.getCurrent(),
+							meta.getCurrentLength())) {
 						elementsInCache--;
-						minimum = meta.getNextElement();
+						meta.nextElement();
 					}
 					insertResponse = false;
 					// if (meta.getNElements() > 0) {
 					// This is always the case, because we could not copy it
 					// completely.
-					sortedCacheFiles.put(minimum, meta);
-					minimumSortedList.add(minimum);
+					minimumSortedList.add(meta);
 					// }
 					break;
 				}
 
-				minimum = meta.getNextElement();
+				meta.nextElement();
 				// No, it could not. Now try to stay with this MetaData as long
 				// as we can. Note that here, we cannot exhaust the metadata,
 				// since that
 				// case is caught above.
-				while (compareWithSortedList(minimum)
-						&& (insertResponse = tmpBuffer.addRaw(minimum))) {
+				while (compareWithSortedList(meta)
+						&& (insertResponse = tmpBuffer.addRaw(
+								meta.getCurrent(), meta.getCurrentLength()))) {
 					elementsInCache--;
-					minimum = meta.getNextElement();
+					meta.nextElement();
 				}
-				sortedCacheFiles.put(minimum, meta);
 			}
 			// Put it back
-			minimumSortedList.add(minimum);
+			minimumSortedList.add(meta);
 		} while (insertResponse && elementsInCache > 0);
 
 		if (log.isDebugEnabled()) {
@@ -538,10 +552,9 @@ public final class SortedBucketCache {
 	}
 
 	public synchronized void finished() {
-		for (MetaData meta : sortedCacheFiles.values()) {
+		for (MetaData meta : minimumSortedList) {
 			meta.finished();
 		}
-		sortedCacheFiles.clear();
 		minimumSortedList.clear();
 		elementsInCache = 0;
 
@@ -0,0 +1,123 @@
+package nl.vu.cs.ajira.buckets;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * Reads a spill file written by {@link SpillFileOutput}. Every block is read
+ * with a positional read of the channel into arrays that are reused for all
+ * the blocks, and uncompressed blocks are copied only once.
+ */
+public class SpillFileInput extends InputStream {
+
+	private final FileChannel channel;
+	private final long fileSize;
+
+	/** Position of the header of the next block in the file. */
+	private long nextBlock = 0;
+
+	private final byte[] block = new byte[SpillFileOutput.BLOCK_SIZE];
+	private final ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+	private int blockPos = 0;
+	private int blockLength = 0;
+	private final byte[] compressed = new byte[SpillFileOutput.HEADER_SIZE
+			+ Snappy.maxCompressedLength(SpillFileOutput.BLOCK_SIZE)];
+	private final ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+
+	public SpillFileInput(File file) throws IOException {
+		channel = new FileInputStream(file).getChannel();
+		fileSize = channel.size();
+	}
+
+	/*
+	 * Reads len bytes of the file, starting at pos, into the array of b,
+	 * starting at off.
+	 */
+	private void readFully(ByteBuffer b, int off, int len, long pos)
+			throws IOException {
+		b.limit(off + len);
+		b.position(off);
+		while (b.hasRemaining()) {
+			if (channel.read(b, pos + b.position() - off) < 0) {
+				throw new EOFException("Truncated spill file");
+			}
+		}
+	}
+
+	private boolean readBlock() throws IOException {
+		if (nextBlock >= fileSize) {
+			return false;
+		}
+		readFully(compressedBuffer, 0, SpillFileOutput.HEADER_SIZE, nextBlock);
+		int length = compressedBuffer.getInt(0);
+		int uncompressedLength = compressedBuffer.getInt(4);
+		long pos = nextBlock + SpillFileOutput.HEADER_SIZE;
+		if (length == uncompressedLength) {
+			readFully(blockBuffer, 0, length, pos);
+		} else {
+			readFully(compressedBuffer, SpillFileOutput.HEADER_SIZE, length,
+					pos);
+			Snappy.uncompress(compressed, SpillFileOutput.HEADER_SIZE, length,
+					block, 0);
+		}
+		nextBlock = pos + length;
+		blockPos = 0;
+		blockLength = uncompressedLength;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (blockPos == blockLength && !readBlock()) {
+			return -1;
+		}
+		return block[blockPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (blockPos == blockLength && !readBlock()) {
+			return -1;
+		}
+		int sz = Math.min(len, blockLength - blockPos);
+		System.arraycopy(block, blockPos, b, off, sz);
+		blockPos += sz;
+		return sz;
+	}
+
+	@Override
+	public int available() {
+		return blockLength - blockPos;
+	}
+
+	/**
+	 * Appends the rest of this file to a spill file that is being written.
+	 * Only the remainder of the current block is recompressed; the following
+	 * blocks are transferred as they are.
+	 *
+	 * @param out
+	 *            the spill file to write to
+	 * @throws IOException
+	 */
+	void transferTo(SpillFileOutput out) throws IOException {
+		out.write(block, blockPos, blockLength - blockPos);
+		blockPos = blockLength;
+		out.transferFrom(channel, nextBlock, fileSize - nextBlock);
+		nextBlock = fileSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,112 @@
+package nl.vu.cs.ajira.buckets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * Writes a spill file of a sorted bucket. The data is split in blocks of at
+ * most {@link #BLOCK_SIZE} bytes. Every block is compressed on its own with
+ * Snappy and is preceded by a header with its compressed and uncompressed
+ * length (if they are equal, the block is stored uncompressed). Since the file
+ * is only a sequence of blocks, whole blocks of another spill file can be
+ * appended without decompressing them (see
+ * {@link #transferFrom(FileChannel, long, long)}). The file is read back with
+ * {@link SpillFileInput}.
+ */
+public class SpillFileOutput extends OutputStream {
+
+	/** Maximum (uncompressed) size of a block. */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	/** Size of the header of a block: compressed and uncompressed length. */
+	static final int HEADER_SIZE = 8;
+
+	private final FileChannel channel;
+	private final byte[] block = new byte[BLOCK_SIZE];
+	private int blockSize = 0;
+	private final byte[] compressed = new byte[HEADER_SIZE
+			+ Snappy.maxCompressedLength(BLOCK_SIZE)];
+	private final ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+
+	public SpillFileOutput(File file) throws IOException {
+		channel = new FileOutputStream(file).getChannel();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (blockSize == BLOCK_SIZE) {
+			flushBlock();
+		}
+		block[blockSize++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (blockSize == BLOCK_SIZE) {
+				flushBlock();
+			}
+			int sz = Math.min(len, BLOCK_SIZE - blockSize);
+			System.arraycopy(b, off, block, blockSize, sz);
+			blockSize += sz;
+			off += sz;
+			len -= sz;
+		}
+	}
+
+	private void flushBlock() throws IOException {
+		if (blockSize == 0) {
+			return;
+		}
+		int length = Snappy.compress(block, 0, blockSize, compressed,
+				HEADER_SIZE);
+		if (length >= blockSize) {
+			// Not worth it: store the block as it is.
+			System.arraycopy(block, 0, compressed, HEADER_SIZE, blockSize);
+			length = blockSize;
+		}
+		compressedBuffer.clear();
+		compressedBuffer.putInt(length);
+		compressedBuffer.putInt(blockSize);
+		compressedBuffer.position(0);
+		compressedBuffer.limit(HEADER_SIZE + length);
+		while (compressedBuffer.hasRemaining()) {
+			channel.write(compressedBuffer);
+		}
+		blockSize = 0;
+	}
+
+	/**
+	 * Appends <code>count</code> bytes of complete blocks of another spill
+	 * file, starting at position <code>pos</code>, without decompressing them.
+	 *
+	 * @param source
+	 *            the channel of the other spill file
+	 * @param pos
+	 *            the position of the first block header to copy
+	 * @param count
+	 *            the number of (compressed) bytes to copy
+	 * @throws IOException
+	 */
+	void transferFrom(FileChannel source, long pos, long count)
+			throws IOException {
+		flushBlock();
+		while (count > 0) {
+			long n = source.transferTo(pos, count, channel);
+			pos += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushBlock();
+		channel.close();
+	}
+}
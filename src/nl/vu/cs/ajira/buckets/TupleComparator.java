@@ -4,6 +4,7 @@ import nl.vu.cs.ajira.data.types.SimpleData;
 import nl.vu.cs.ajira.data.types.bytearray.ByteArray;
 import nl.vu.cs.ajira.data.types.bytearray.CBDataInput;
 import nl.vu.cs.ajira.storage.RawComparator;
+import nl.vu.cs.ajira.utils.Varint;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +22,9 @@ public class TupleComparator extends RawComparator<WritableTuple> {
 	private CBDataInput reader1 = new CBDataInput(new ByteArray());
 	private CBDataInput reader2 = new CBDataInput(new ByteArray());
 	private int length_positions;
+	private int prefixOffset;
+	private boolean compact;
+	private boolean normalized;
 
 	/**
 	 * Initialization method. Takes the array of comparators used for sorting
@@ -30,8 +34,40 @@ public class TupleComparator extends RawComparator<WritableTuple> {
 	 *            Comparator for each field
 	 */
 	public void init(RawComparator<? extends SimpleData>[] comparators) {
+		init(comparators, false);
+	}
+
+	/**
+	 * Initialization method. Takes the array of comparators used for sorting
+	 * the fields, and whether the tuples are serialized in the compact mode of
+	 * {@link WritableTuple}.
+	 * 
+	 * @param comparators
+	 *            Comparator for each field
+	 * @param compact
+	 *            Whether the tuples are compact
+	 */
+	public void init(RawComparator<? extends SimpleData>[] comparators,
+			boolean compact) {
 		this.comparators = comparators;
+		this.compact = compact;
+		this.normalized = false;
 		length_positions = comparators.length * 2;
+		prefixOffset = comparators.length > 0 ? comparators[0]
+				.getLexicographicOffset() : -1;
+	}
+
+	/**
+	 * Initialization method for tuples that start with a normalized key (see
+	 * {@link WritableTuple#setNormalizedKeys(boolean)}), which are compared
+	 * as plain bytes.
+	 */
+	public void initNormalized() {
+		this.comparators = null;
+		this.compact = false;
+		this.normalized = true;
+		length_positions = 0;
+		prefixOffset = 0;
 	}
 
 	/**
@@ -43,6 +79,78 @@ public class TupleComparator extends RawComparator<WritableTuple> {
 	public void copyTo(TupleComparator comp) {
 		comp.comparators = comparators;
 		comp.length_positions = length_positions;
+		comp.prefixOffset = prefixOffset;
+		comp.compact = compact;
+		comp.normalized = normalized;
+	}
+
+	/**
+	 * Returns the number of fields that are compared.
+	 */
+	public int getNumberFields() {
+		// A normalized key is compared as one field
+		return normalized ? 1 : comparators.length;
+	}
+
+	/**
+	 * Checks whether the first compared field can be ordered on a normalized
+	 * prefix of its bytes (see {@link #getPrefix(byte[], int)}).
+	 */
+	public boolean supportsPrefix() {
+		return prefixOffset >= 0;
+	}
+
+	/**
+	 * Returns the number of bytes of the first field that are compared.
+	 * 
+	 * @param b
+	 *            The (circular) buffer that contains the tuple
+	 * @param s
+	 *            The start of the tuple
+	 */
+	public int getFirstFieldLength(byte[] b, int s) {
+		if (compact || normalized) {
+			return (int) (Varint.readUnsignedInt(b, s) >>> 32) - prefixOffset;
+		}
+		reader1.setBuffer(b);
+		reader1.setCurrentPosition(s + 1);
+		return reader1.readShort() - prefixOffset;
+	}
+
+	/**
+	 * Returns the first eight compared bytes of the first field as a big
+	 * endian number, padded with zeros, with the sign bit flipped. If the
+	 * prefixes of two tuples differ, a signed comparison of the prefixes gives
+	 * the same result as {@link #compare(byte[], int, int, byte[], int, int)}.
+	 * Only valid if {@link #supportsPrefix()} returns true.
+	 * 
+	 * @param b
+	 *            The (circular) buffer that contains the tuple
+	 * @param s
+	 *            The start of the tuple
+	 */
+	public long getPrefix(byte[] b, int s) {
+		int l = getFirstFieldLength(b, s);
+		int pos;
+		if (compact || normalized) {
+			pos = (int) Varint.readUnsignedInt(b, s) + prefixOffset;
+		} else {
+			pos = s + 1 + length_positions + prefixOffset;
+		}
+		if (pos >= b.length) {
+			pos -= b.length;
+		}
+		long prefix = 0;
+		for (int i = 0; i < 8; ++i) {
+			prefix <<= 8;
+			if (i < l) {
+				prefix |= b[pos] & 0xff;
+				if (++pos == b.length) {
+					pos = 0;
+				}
+			}
+		}
+		return prefix ^ Long.MIN_VALUE;
 	}
 
 	/**
@@ -51,6 +159,15 @@ public class TupleComparator extends RawComparator<WritableTuple> {
 	 */
 	@Override
 	public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+		if (normalized) {
+			long v1 = Varint.readUnsignedInt(b1, s1);
+			long v2 = Varint.readUnsignedInt(b2, s2);
+			return compareBytes(b1, (int) v1, (int) (v1 >>> 32), b2,
+					(int) v2, (int) (v2 >>> 32));
+		}
+		if (compact) {
+			return compareCompact(b1, s1, b2, s2);
+		}
 		reader1.setBuffer(b1);
 		reader2.setBuffer(b2);
 
@@ -80,4 +197,29 @@ public class TupleComparator extends RawComparator<WritableTuple> {
 
 		return 0;
 	}
+
+	/*
+	 * Compares two tuples in compact mode, where every field is preceded by
+	 * its length.
+	 */
+	private int compareCompact(byte[] b1, int s1, byte[] b2, int s2) {
+		for (int i = 0; i < comparators.length; ++i) {
+			long v1 = Varint.readUnsignedInt(b1, s1);
+			long v2 = Varint.readUnsignedInt(b2, s2);
+			int lField1 = (int) (v1 >>> 32);
+			int lField2 = (int) (v2 >>> 32);
+			s1 = (int) v1;
+			s2 = (int) v2;
+
+			int res;
+			if ((res = comparators[i].compare(b1, s1, lField1, b2, s2, lField2)) != 0) {
+				return res;
+			}
+
+			s1 += lField1;
+			s2 += lField2;
+		}
+
+		return 0;
+	}
 }
@@ -1,13 +1,20 @@
 package nl.vu.cs.ajira.buckets;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.TInt;
+import nl.vu.cs.ajira.data.types.TLong;
 import nl.vu.cs.ajira.data.types.Tuple;
 import nl.vu.cs.ajira.data.types.TupleFactory;
 import nl.vu.cs.ajira.data.types.bytearray.BDataOutput;
 import nl.vu.cs.ajira.storage.Writable;
+import nl.vu.cs.ajira.utils.Consts;
+import nl.vu.cs.ajira.utils.Varint;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,9 +24,34 @@ import org.slf4j.LoggerFactory;
  * how it can be sorted (sort order, which fields, etc) --- if are given by
  * params into the custom constructor, otherwise it acts as a simple byte
  * serializer
+ * 
+ * In compact mode (see {@link #setCompact(boolean)}) the tuple is written
+ * without the number of fields, the <code>TInt</code> and <code>TLong</code>
+ * fields are written as variable-length numbers, and every sort field is
+ * preceded by its variable-length size instead of a table of 2-byte sizes. The
+ * numeric sort fields use the ordered encoding of {@link Varint}, so that they
+ * are still compared as plain bytes.
+ * 
+ * With normalized keys (see {@link #setNormalizedKeys(boolean)}) the sort
+ * fields are encoded together in a {@link NormalizedKey}, preceded by its
+ * variable-length size, and followed by the other fields. The tuples are then
+ * compared with a single byte comparison.
  */
 public class WritableTuple implements Writable {
+
+	// Gives access to the buffer, to avoid a copy
+	private static class KeyBuffer extends ByteArrayOutputStream {
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
 	private boolean shouldSort = false;
+	private boolean compact = false;
+	private boolean normalized = false;
+	private NormalizedKey normalizedKey;
+	private KeyBuffer key;
+	private DataOutputStream keyOutput;
 	private byte[] fieldsToSort;
 	private byte[] otherFields;
 	private int nFields;
@@ -34,6 +66,8 @@ public class WritableTuple implements Writable {
 	 */
 	public WritableTuple(WritableTuple w) {
 		shouldSort = w.shouldSort;
+		setCompact(w.compact);
+		setNormalizedKeys(w.normalized);
 		fieldsToSort = w.fieldsToSort;
 		otherFields = w.otherFields;
 		nFields = w.nFields;
@@ -125,11 +159,194 @@ public class WritableTuple implements Writable {
 		return tuple;
 	}
 
+	/**
+	 * Switches the compact serialization on or off. Readers and writers of the
+	 * same bytes must agree on it.
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+		if (compact && key == null) {
+			key = new KeyBuffer();
+			keyOutput = new DataOutputStream(key);
+		}
+	}
+
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Switches the normalized keys on or off. Only sorting serializers whose
+	 * sort fields are all supported by {@link NormalizedKey} can use them.
+	 */
+	public void setNormalizedKeys(boolean normalized) {
+		this.normalized = normalized;
+		if (normalized && normalizedKey == null) {
+			normalizedKey = new NormalizedKey();
+			if (key == null) {
+				key = new KeyBuffer();
+				keyOutput = new DataOutputStream(key);
+			}
+		}
+	}
+
+	private void writeNormalized(DataOutput output) throws IOException {
+		key.reset();
+		if (fieldsToSort != null) {
+			for (int i = 0; i < fieldsToSort.length; ++i) {
+				normalizedKey.write(keyOutput, tuple.get(fieldsToSort[i]),
+						compact);
+			}
+		} else {
+			for (int i = 0; i < tuple.getNElements(); ++i) {
+				normalizedKey.write(keyOutput, tuple.get(i), compact);
+			}
+		}
+		Varint.writeUnsignedInt(output, key.size());
+		output.write(key.getBuffer(), 0, key.size());
+		if (fieldsToSort != null) {
+			for (int i = 0; i < otherFields.length; ++i) {
+				if (compact) {
+					writeCompactValue(output, tuple.get(otherFields[i]));
+				} else {
+					tuple.get(otherFields[i]).writeTo(output);
+				}
+			}
+		}
+	}
+
+	private void readNormalized(DataInput input) throws IOException {
+		Varint.readUnsignedInt(input);
+		if (fieldsToSort != null) {
+			for (int i = 0; i < fieldsToSort.length; ++i) {
+				normalizedKey.read(input, tuple.get(fieldsToSort[i]), compact);
+			}
+			for (int i = 0; i < otherFields.length; ++i) {
+				if (compact) {
+					readCompactValue(input, tuple.get(otherFields[i]));
+				} else {
+					tuple.get(otherFields[i]).readFrom(input);
+				}
+			}
+		} else {
+			for (int i = 0; i < tuple.getNElements(); ++i) {
+				normalizedKey.read(input, tuple.get(i), compact);
+			}
+		}
+	}
+
+	private static boolean isNumber(int type) {
+		return type == Consts.DATATYPE_TINT || type == Consts.DATATYPE_TLONG;
+	}
+
+	private static long getNumber(SimpleData value) {
+		if (value.getIdDatatype() == Consts.DATATYPE_TINT) {
+			return ((TInt) value).getValue();
+		}
+		return ((TLong) value).getValue();
+	}
+
+	private static void setNumber(SimpleData value, long number) {
+		if (value.getIdDatatype() == Consts.DATATYPE_TINT) {
+			((TInt) value).setValue((int) number);
+		} else {
+			((TLong) value).setValue(number);
+		}
+	}
+
+	private void writeCompactKey(DataOutput output, SimpleData value)
+			throws IOException {
+		if (isNumber(value.getIdDatatype())) {
+			long n = getNumber(value);
+			Varint.writeUnsignedInt(output, Varint.sizeOfOrderedLong(n));
+			Varint.writeOrderedLong(output, n);
+		} else {
+			key.reset();
+			value.writeTo(keyOutput);
+			Varint.writeUnsignedInt(output, key.size());
+			output.write(key.getBuffer(), 0, key.size());
+		}
+	}
+
+	private static void writeCompactValue(DataOutput output, SimpleData value)
+			throws IOException {
+		if (isNumber(value.getIdDatatype())) {
+			Varint.writeSignedLong(output, getNumber(value));
+		} else {
+			value.writeTo(output);
+		}
+	}
+
+	private static void readCompactKey(DataInput input, SimpleData value)
+			throws IOException {
+		Varint.readUnsignedInt(input);
+		if (isNumber(value.getIdDatatype())) {
+			setNumber(value, Varint.readOrderedLong(input));
+		} else {
+			value.readFrom(input);
+		}
+	}
+
+	private static void readCompactValue(DataInput input, SimpleData value)
+			throws IOException {
+		if (isNumber(value.getIdDatatype())) {
+			setNumber(value, Varint.readSignedLong(input));
+		} else {
+			value.readFrom(input);
+		}
+	}
+
+	private void readCompact(DataInput input) throws IOException {
+		if (shouldSort && fieldsToSort != null) {
+			for (int i = 0; i < fieldsToSort.length; ++i) {
+				readCompactKey(input, tuple.get(fieldsToSort[i]));
+			}
+			for (int i = 0; i < otherFields.length; ++i) {
+				readCompactValue(input, tuple.get(otherFields[i]));
+			}
+		} else if (shouldSort) {
+			for (int i = 0; i < tuple.getNElements(); ++i) {
+				readCompactKey(input, tuple.get(i));
+			}
+		} else {
+			for (int i = 0; i < tuple.getNElements(); ++i) {
+				readCompactValue(input, tuple.get(i));
+			}
+		}
+	}
+
+	private void writeCompact(DataOutput output) throws IOException {
+		if (shouldSort && fieldsToSort != null) {
+			for (int i = 0; i < fieldsToSort.length; ++i) {
+				writeCompactKey(output, tuple.get(fieldsToSort[i]));
+			}
+			for (int i = 0; i < otherFields.length; ++i) {
+				writeCompactValue(output, tuple.get(otherFields[i]));
+			}
+		} else if (shouldSort) {
+			for (int i = 0; i < tuple.getNElements(); ++i) {
+				writeCompactKey(output, tuple.get(i));
+			}
+		} else {
+			for (int i = 0; i < tuple.getNElements(); ++i) {
+				writeCompactValue(output, tuple.get(i));
+			}
+		}
+	}
+
 	/**
 	 * Reads a tuple from an input data stream.
 	 */
 	@Override
 	public void readFrom(DataInput input) throws IOException {
+		if (normalized) {
+			readNormalized(input);
+			return;
+		}
+		if (compact) {
+			readCompact(input);
+			return;
+		}
 		int n = input.readUnsignedByte();
 		if (n != tuple.getNElements()) {
 			// SimpleData[] els = new SimpleData[n];
@@ -169,6 +386,14 @@ public class WritableTuple implements Writable {
 	 */
 	@Override
 	public void writeTo(DataOutput output) throws IOException {
+		if (normalized) {
+			writeNormalized(output);
+			return;
+		}
+		if (compact) {
+			writeCompact(output);
+			return;
+		}
 		output.writeByte((byte) nFields);
 		if (shouldSort) {
 			// First write the fields that need to be sorted
@@ -4,6 +4,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import nl.vu.cs.ajira.actions.Action;
@@ -11,6 +12,7 @@ import nl.vu.cs.ajira.actions.ActionConf;
 import nl.vu.cs.ajira.actions.ActionContext;
 import nl.vu.cs.ajira.actions.ActionController;
 import nl.vu.cs.ajira.actions.ActionFactory;
+import nl.vu.cs.ajira.actions.ActionTable;
 import nl.vu.cs.ajira.actions.ActionSequence;
 import nl.vu.cs.ajira.actions.support.Query;
 import nl.vu.cs.ajira.buckets.WritableTuple;
@@ -72,6 +74,23 @@ public class Chain implements Writable, InputQuery {
 		}
 	}
 
+	/**
+	 * An action of the chain that has already been decoded. The action is
+	 * identified by the position where its record ends in the buffer, which
+	 * does not change when the chain is copied or branched.
+	 */
+	private static final class DecodedAction {
+		final int end;
+		final String className;
+		final Object[] params;
+
+		DecodedAction(int end, String className, Object[] params) {
+			this.end = end;
+			this.className = className;
+			this.params = params;
+		}
+	}
+
 	private static final int CHAIN_RESERVED_SPACE = 39;
 
 	private final FlowController controller = new FlowController();
@@ -85,9 +104,18 @@ public class Chain implements Writable, InputQuery {
 	private final BDataOutput cos = new BDataOutput(buffer);
 	private final BDataInput cis = new BDataInput(buffer);
 
+	// The actions decoded by getActions(), so that a chain that does not
+	// leave this node does not parse again the class names and the parameters
+	// of its actions every time it is processed. They are shared with the
+	// copies and the branches of the chain, and forgotten when the buffer
+	// is cut below their record or read from the network.
+	private DecodedAction[] decoded = new DecodedAction[8];
+	private int nDecoded;
+
 	@Override
 	public void readFrom(DataInput input) throws IOException {
 		bufferSize = input.readInt();
+		forgetDecoded(CHAIN_RESERVED_SPACE);
 		grow(bufferSize, true);
 		input.readFully(buffer, 0, bufferSize);
 
@@ -177,6 +205,31 @@ public class Chain implements Writable, InputQuery {
 		return Utils.decodeInt(buffer, 24);
 	}
 
+	/**
+	 * Counts n more children of this chain, for the branches that are made by
+	 * changing the chain id of a serialized branch (see
+	 * {@link #setSerializedChainId(byte[], int, long)}).
+	 */
+	public void addChainChildren(int n) {
+		setTotalChainChildren(getTotalChainChildren() + n);
+	}
+
+	/**
+	 * Changes the id of a chain serialized with {@link #writeTo(DataOutput)}.
+	 * 
+	 * @param serialized
+	 *            the buffer that holds the chain
+	 * @param start
+	 *            the position of the chain in the buffer
+	 * @param chainId
+	 *            the new id
+	 */
+	public static void setSerializedChainId(byte[] serialized, int start,
+			long chainId) {
+		// The buffer of the chain follows its size
+		Utils.encodeLong(serialized, start + 4 + 8, chainId);
+	}
+
 	@Override
 	public void setInputLayer(Class<? extends InputLayer> clazz) {
 		inputLayer = null;
@@ -299,6 +352,16 @@ public class Chain implements Writable, InputQuery {
 		cos.setCurrentPosition(bufferSize);
 		action.writeTo(cos);
 		int sizeAction = cos.cb.getEnd() - totalSize;
+		ActionTable table = ActionTable.getRegistered(getSubmissionId());
+		int id = table == null ? -1 : table.lookup(action.getClassName(),
+				buffer, totalSize, sizeAction);
+		int classId = -1;
+		if (id >= 0) {
+			// The parameters are in the table
+			sizeAction = 0;
+		} else if (table != null) {
+			classId = table.lookupClass(action.getClassName());
+		}
 		bufferSize += sizeAction;
 		Utils.encodeInt(buffer, bufferSize, sizeAction);
 		bufferSize += 4;
@@ -307,11 +370,16 @@ public class Chain implements Writable, InputQuery {
 		Utils.encodeLong(buffer, bufferSize, getChainId());
 		bufferSize += 8;
 
-		// Serialize the class name
-		byte[] sAction = action.getClassName().getBytes();
-		System.arraycopy(sAction, 0, buffer, bufferSize, sAction.length);
-		bufferSize += sAction.length;
-		Utils.encodeInt(buffer, bufferSize, sAction.length);
+		if (id >= 0 || classId >= 0) {
+			// A negative length is the complement of the id in the table
+			Utils.encodeInt(buffer, bufferSize, ~(id >= 0 ? id : classId));
+		} else {
+			// Serialize the class name
+			byte[] sAction = action.getClassName().getBytes();
+			System.arraycopy(sAction, 0, buffer, bufferSize, sAction.length);
+			bufferSize += sAction.length;
+			Utils.encodeInt(buffer, bufferSize, sAction.length);
+		}
 		bufferSize += 4;
 
 		if (action.getConfigurator() != null
@@ -324,8 +392,72 @@ public class Chain implements Writable, InputQuery {
 		return retval;
 	}
 
+	/*
+	 * Returns the number of bytes of the class name of an action, given the
+	 * length that is written after it, which is negative when the action is
+	 * in the table of the submission.
+	 */
+	private static int nameLength(int length) {
+		return length < 0 ? 0 : length;
+	}
+
+	private ActionTable getActionTable() throws IOException {
+		ActionTable table = ActionTable.getRegistered(getSubmissionId());
+		if (table == null) {
+			throw new IOException("No action table for submission "
+					+ getSubmissionId());
+		}
+		return table;
+	}
+
 	void setRawSize(int size) {
 		bufferSize = size;
+		forgetDecoded(size);
+	}
+
+	/*
+	 * Forgets the decoded actions whose record ends after the given size.
+	 */
+	private void forgetDecoded(int size) {
+		int n = 0;
+		for (int i = 0; i < nDecoded; ++i) {
+			if (decoded[i].end <= size) {
+				decoded[n++] = decoded[i];
+			}
+		}
+		for (int i = n; i < nDecoded; ++i) {
+			decoded[i] = null;
+		}
+		nDecoded = n;
+	}
+
+	/*
+	 * Shares with the other chain the decoded actions that are in its first
+	 * size bytes.
+	 */
+	private void copyDecodedTo(Chain newChain, int size) {
+		if (newChain.decoded.length < nDecoded) {
+			newChain.decoded = new DecodedAction[decoded.length];
+		}
+		int n = 0;
+		for (int i = 0; i < nDecoded; ++i) {
+			if (decoded[i].end <= size) {
+				newChain.decoded[n++] = decoded[i];
+			}
+		}
+		for (int i = n; i < newChain.nDecoded; ++i) {
+			newChain.decoded[i] = null;
+		}
+		newChain.nDecoded = n;
+	}
+
+	private DecodedAction getDecoded(int end) {
+		for (int i = 0; i < nDecoded; ++i) {
+			if (decoded[i].end == end) {
+				return decoded[i];
+			}
+		}
+		return null;
 	}
 
 	void copyTo(Chain newChain) {
@@ -334,6 +466,7 @@ public class Chain implements Writable, InputQuery {
 		System.arraycopy(buffer, 0, newChain.buffer, 0, bufferSize);
 		tuple.copyTo(newChain.tuple);
 		newChain.inputLayer = inputLayer;
+		copyDecodedTo(newChain, bufferSize);
 	}
 
 	public void branch(Chain newChain, long newChainId, int skippingActions) {
@@ -347,7 +480,8 @@ public class Chain implements Writable, InputQuery {
 			// Remove the first n actions
 			while (skippingActions-- > 0 && bufferSize > CHAIN_RESERVED_SPACE) {
 				bufferSize -= 4;
-				int sizeNameAction = Utils.decodeInt(buffer, bufferSize);
+				int sizeNameAction = nameLength(Utils.decodeInt(buffer,
+						bufferSize));
 				bufferSize -= 12 + sizeNameAction; // Skip also the chainID
 				bufferSize -= Utils.decodeInt(buffer, bufferSize);
 				if (buffer[--bufferSize] == 1) {
@@ -378,7 +512,8 @@ public class Chain implements Writable, InputQuery {
 			// Remove the first n actions
 			while (startFromAction-- > 0 && sizeToCopy > CHAIN_RESERVED_SPACE) {
 				sizeToCopy -= 4;
-				int sizeNameAction = Utils.decodeInt(buffer, sizeToCopy);
+				int sizeNameAction = nameLength(Utils.decodeInt(buffer,
+						sizeToCopy));
 				sizeToCopy -= 12 + sizeNameAction; // Skip also the chainID
 				sizeToCopy -= Utils.decodeInt(buffer, sizeToCopy);
 				if (buffer[--sizeToCopy] == 1) {
@@ -388,7 +523,7 @@ public class Chain implements Writable, InputQuery {
 			// Get parentChainId
 			if (sizeToCopy > CHAIN_RESERVED_SPACE) {
 				int tmpSize = sizeToCopy - 4;
-				int tNameAction = Utils.decodeInt(buffer, tmpSize);
+				int tNameAction = nameLength(Utils.decodeInt(buffer, tmpSize));
 				parentChainId = Utils.decodeLong(buffer, sizeToCopy - 12
 						- tNameAction);
 			}
@@ -399,6 +534,7 @@ public class Chain implements Writable, InputQuery {
 			newChain.buffer = new byte[buffer.length];
 		}
 		System.arraycopy(buffer, 0, newChain.buffer, 0, sizeToCopy);
+		copyDecodedTo(newChain, sizeToCopy);
 
 		// Set up the new chain
 		newChain.setParentChainId(parentChainId);
@@ -417,18 +553,45 @@ public class Chain implements Writable, InputQuery {
 		int bucketId = 0;
 
 		while (tmpSize > CHAIN_RESERVED_SPACE && !stopProcessing) {
+			DecodedAction d = getDecoded(tmpSize);
+			int end = tmpSize;
 			tmpSize -= 4;
 			int size = Utils.decodeInt(buffer, tmpSize);
-			String sAction = new String(buffer, tmpSize - size, size);
+			String sAction;
+			int id = -1;
+			if (size < 0) {
+				id = ~size;
+				sAction = getActionTable().getClassName(id);
+				size = 0;
+			} else {
+				sAction = d != null ? d.className : new String(buffer, tmpSize
+						- size, size);
+			}
 
 			tmpSize -= 8 + size;
 			long chainId = Utils.decodeLong(buffer, tmpSize);
 
 			// Get size of the action
 			tmpSize -= 4;
-			tmpSize -= Utils.decodeInt(buffer, tmpSize);
-			cis.setCurrentPosition(tmpSize);
-			Action action = ap.getAction(sAction, cis);
+			int sizeAction = Utils.decodeInt(buffer, tmpSize);
+			tmpSize -= sizeAction;
+			Object[] params;
+			if (id >= 0 && sizeAction == 0) {
+				// The parameters are in the table
+				params = getActionTable().getParams(id);
+			} else {
+				if (d == null) {
+					cis.setCurrentPosition(tmpSize);
+					d = new DecodedAction(end, sAction,
+							ActionFactory.readParams(cis));
+					if (nDecoded == decoded.length) {
+						decoded = Arrays.copyOf(decoded, nDecoded * 2);
+					}
+					decoded[nDecoded++] = d;
+				}
+				params = d.params;
+			}
+			Action action = ap.getAction(sAction, params);
 
 			stopProcessing = buffer[--tmpSize] == 1;
 			if (stopProcessing) {
@@ -447,12 +610,18 @@ public class Chain implements Writable, InputQuery {
 		}
 	}
 
-	int countActionsContaining(String s) {
+	int countActionsContaining(String s) throws IOException {
 		int tmpSize = bufferSize;
 		int count = 0;
 		while (tmpSize > CHAIN_RESERVED_SPACE) {
 			int size = Utils.decodeInt(buffer, tmpSize - 4);
-			String sAction = new String(buffer, tmpSize - size - 4, size);
+			String sAction;
+			if (size < 0) {
+				sAction = getActionTable().getClassName(~size);
+				size = 0;
+			} else {
+				sAction = new String(buffer, tmpSize - size - 4, size);
+			}
 			if (sAction.indexOf(s) != -1) {
 				count++;
 			}
@@ -24,7 +24,6 @@ import nl.vu.cs.ajira.datalayer.chainsplits.ChainSplitLayer;
 import nl.vu.cs.ajira.datalayer.chainsplits.ChainSplitLayer.SplitIterator;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.net.NetworkLayer;
-import nl.vu.cs.ajira.storage.containers.WritableContainer;
 import nl.vu.cs.ajira.submissions.JobProperties;
 import nl.vu.cs.ajira.utils.Consts;
 
@@ -58,7 +57,7 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 	private int submissionNode;
 	private int submissionId;
 	private Chain chain;
-	private final WritableContainer<Chain> chainsBuffer;
+	private final ChainQueue chainsBuffer;
 	private final ChainHandlerManager manager;
 	private final NetworkLayer net;
 	private final ChainHandler handler;
@@ -75,6 +74,8 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 	protected static final Logger log = LoggerFactory
 			.getLogger(ChainExecutor.class);
 
+	private static final StatisticsCollector.Counter CHAINS_GENERATED = StatisticsCollector.counter("Chains Dynamically Generated");
+
 	public ChainExecutor(ChainHandler handler, Context context) {
 		this.context = context;
 		this.localMode = context.isLocalMode();
@@ -88,6 +89,11 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 		}
 	}
 
+	// New chains go to the stripe of the handler, if there is one.
+	private int getStripe() {
+		return handler == null ? -1 : handler.getStripe();
+	}
+
 	public ChainExecutor(ChainHandler handler, Context context, Chain chain) {
 		this(handler, context);
 		init(chain);
@@ -214,7 +220,7 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 					transferNodeId));
 			supportChain.setQuery(supportQuery);
 			if (localMode)
-				chainsBuffer.add(supportChain);
+				chainsBuffer.add(supportChain, getStripe());
 			else
 				net.sendChain(supportChain);
 		}
@@ -287,12 +293,12 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 		}
 
 		if (localMode)
-			chainsBuffer.add(supportChain);
+			chainsBuffer.add(supportChain, getStripe());
 		else
 			net.sendChain(supportChain);
 
 		stats.addCounter(chain.getSubmissionNode(), chain.getSubmissionId(),
-				"Chains Dynamically Generated", 1);
+				CHAINS_GENERATED, 1);
 	}
 
 	private void incrementChildren(long chain, int v) {
@@ -331,7 +337,7 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 		manager.startSeparateChainHandler(supportChain);
 
 		stats.addCounter(chain.getSubmissionNode(), chain.getSubmissionId(),
-				"Chains Dynamically Generated", 1);
+				CHAINS_GENERATED, 1);
 
 		openedStreams.add(itr);
 		return itr;
@@ -341,17 +347,17 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 	public Bucket getBucket(final int bucketId, final boolean sort,
 			boolean streaming, byte[] sortingFields, byte[] signature) {
 		return context.getBuckets().getOrCreateBucket(submissionNode,
-				submissionId, bucketId, sort, sort, streaming, sortingFields,
-				signature);
+				submissionId, bucketId, sort, sort, streaming, false,
+				sortingFields, signature);
 	}
 
 	@Override
 	public Bucket startTransfer(int nodeId, int bucketId, boolean sort,
-			byte[] sortingFields, byte[] signature, boolean streaming)
-			throws IOException {
+			byte[] sortingFields, byte[] signature, boolean streaming,
+			boolean compact) throws IOException {
 		Bucket temp = context.getBuckets().startTransfer(submissionNode,
 				submissionId, nodeId, bucketId, sort, sortingFields, signature,
-				this, streaming);
+				this, streaming, compact);
 
 		int children = chain.getTotalChainChildren();
 
@@ -370,7 +376,7 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 		// method will check this)
 		context.getBuckets().alertTransfer(false, submissionNode, submissionId,
 				nodeId, bucketId, chain.getChainId(), -1, 0, false, sort,
-				sortingFields, signature, null);
+				compact, sortingFields, signature, null);
 
 		return temp;
 	}
@@ -378,7 +384,7 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 	@Override
 	public void finishTransfer(int nodeId, int bucketId, boolean sort,
 			byte[] sortingFields, boolean decreaseCounter, byte[] signature,
-			boolean streaming) throws IOException {
+			boolean streaming, boolean compact) throws IOException {
 
 		int children = chain.getTotalChainChildren();
 
@@ -402,13 +408,13 @@ public class ChainExecutor implements ActionContext, ActionOutput {
 					submissionId, nodeId, bucketId, chain.getChainId(),
 					chain.getParentChainId(), children, roots[currentAction],
 					sort, streaming, sortingFields, signature, decreaseCounter,
-					newChildren);
+					newChildren, compact);
 		} else {
 			context.getBuckets().finishTransfer(this.submissionNode,
 					submissionId, nodeId, bucketId, chain.getChainId(),
 					chain.getParentChainId(), children, roots[currentAction],
 					sort, streaming, sortingFields, signature, decreaseCounter,
-					null);
+					null, compact);
 		}
 	}
 
@@ -15,7 +15,6 @@ import nl.vu.cs.ajira.datalayer.TupleIterator;
 import nl.vu.cs.ajira.datalayer.buckets.BucketsLayer;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.net.NetworkLayer;
-import nl.vu.cs.ajira.storage.containers.WritableContainer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +23,10 @@ public class ChainHandler implements Runnable {
 
 	static final Logger log = LoggerFactory.getLogger(ChainHandler.class);
 
+	private static final StatisticsCollector.Counter CHAINS_PROCESSED = StatisticsCollector.counter("Chains Processed");
+	private static final StatisticsCollector.Histogram CHAIN_RUNTIME = StatisticsCollector
+			.histogram("ChainHandler: chain runtime (ms)");
+
 	public static final int STATUS_INACTIVE = 0;
 	public static final int STATUS_ACTIVE = 1;
 	public static final int STATUS_WAIT = 2;
@@ -31,7 +34,8 @@ public class ChainHandler implements Runnable {
 
 	private Context context = null;
 	private NetworkLayer net = null;
-	private WritableContainer<Chain> chainsToProcess = null;
+	private ChainQueue chainsToProcess = null;
+	private final int stripe;
 	private ActionFactory ap = null;
 	private StatisticsCollector stats = null;
 	private Chain currentChain = new Chain();
@@ -42,14 +46,14 @@ public class ChainHandler implements Runnable {
 	private final Query query = new Query();
 	private final Tuple tuple = TupleFactory.newTuple();
 	private final ChainExecutor actions;
-
-	private boolean shouldStop;
+	private final ChainHandlerManager manager;
 
 	ChainHandler(Context context) {
 		this.context = context;
 		this.net = context.getNetworkLayer();
-		this.chainsToProcess = context.getChainHandlerManager()
-				.getChainsToProcess();
+		this.manager = context.getChainHandlerManager();
+		this.chainsToProcess = manager.getChainsToProcess();
+		this.stripe = chainsToProcess.newStripe();
 		this.stats = context.getStatisticsCollector();
 		this.ap = context.getActionsProvider();
 		actions = new ChainExecutor(this, context);
@@ -134,14 +138,16 @@ public class ChainHandler implements Runnable {
 					}
 				} while (!eof && !getSubmissionFailed());
 
+				timeCycle = System.currentTimeMillis() - timeCycle;
 				if (log.isDebugEnabled()) {
-					timeCycle = System.currentTimeMillis() - timeCycle;
 					log.debug("Chain " + currentChain.getChainId()
 							+ "runtime cycle: " + timeCycle);
 				}
 
 				stats.addCounter(currentChain.getSubmissionNode(),
-						currentChain.getSubmissionId(), "Chains Processed", 1);
+						currentChain.getSubmissionId(), CHAINS_PROCESSED, 1);
+				stats.record(currentChain.getSubmissionNode(),
+						currentChain.getSubmissionId(), CHAIN_RUNTIME, timeCycle);
 
 			} finally {
 				input.releaseIterator(itr, actions);
@@ -164,10 +170,6 @@ public class ChainHandler implements Runnable {
 		}
 	}
 
-	public synchronized void stop() {
-		shouldStop = true;
-	}
-
 	@Override
 	public void run() {
 
@@ -192,14 +194,13 @@ public class ChainHandler implements Runnable {
 		}
 
 		while (true) {
-			synchronized (this) {
-				if (shouldStop) {
-					setStatus(STATUS_FINISHED);
-					return;
-				}
+			if (manager.shouldStop()) {
+				setStatus(STATUS_FINISHED);
+				return;
 			}
 			// Get a new chain to process
-			chainsToProcess.remove(currentChain);
+			chainsToProcess.remove(currentChain, stripe);
+			int submissionId = currentChain.getSubmissionId();
 			try {
 				setStatus(STATUS_ACTIVE);
 				processChain();
@@ -210,11 +211,27 @@ public class ChainHandler implements Runnable {
 				net.signalChainFailed(currentChain, e);
 			} finally {
 				setStatus(STATUS_INACTIVE);
+				chainsToProcess.chainFinished(submissionId);
 			}
 		}
 	}
 
+	/**
+	 * @return the stripe of the chain queue used by this handler
+	 */
+	int getStripe() {
+		return stripe;
+	}
+
 	void setStatus(int status) {
+		if (!singleChain) {
+			// Let the manager replace this handler while it is blocked.
+			if (status == STATUS_WAIT && this.status != STATUS_WAIT) {
+				manager.handlerBlocked();
+			} else if (status != STATUS_WAIT && this.status == STATUS_WAIT) {
+				manager.handlerUnblocked();
+			}
+		}
 		this.status = status;
 	}
 
@@ -5,14 +5,21 @@ import ibis.util.ThreadPool;
 import java.util.Set;
 
 import nl.vu.cs.ajira.Context;
-import nl.vu.cs.ajira.storage.containers.CheckedConcurrentWritableContainer;
-import nl.vu.cs.ajira.storage.containers.WritableContainer;
 import nl.vu.cs.ajira.utils.Consts;
 
 import org.eclipse.jetty.util.ConcurrentHashSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Manages the chain handlers of this node. The pool is elastic: the number of
+ * handlers that are not blocked (see {@link ChainHandler#STATUS_WAIT}) is kept
+ * at the configured number of processing threads. A new handler is started as
+ * soon as one blocks, and a handler stops after its current chain when there
+ * are too many unblocked handlers. The total number of handlers, blocked or
+ * not, is bounded by {@link Consts#N_MAX_PROC_THREADS} (by default four times
+ * the number of processing threads).
+ */
 public class ChainHandlerManager {
 
 	static final Logger log = LoggerFactory
@@ -21,8 +28,8 @@ public class ChainHandlerManager {
 	private static ChainHandlerManager manager = new ChainHandlerManager();
 
 	private Context context;
-	private final WritableContainer<Chain> chainsToProcess = new CheckedConcurrentWritableContainer<Chain>(
-			Consts.SIZE_BUFFERS_CHAINS_PROCESS);
+	private final ChainQueue chainsToProcess = new ChainQueue(2 * Runtime
+			.getRuntime().availableProcessors());
 
 	// Statistics
 	private final Set<ChainHandler> chainHandlers = new ConcurrentHashSet<ChainHandler>();
@@ -33,6 +40,11 @@ public class ChainHandlerManager {
 	private int chainCounter = 0;
 	private final int singleChains = 0;
 
+	// The elastic pool. Protected by this.
+	private int poolHandlers = 0;
+	private int blockedHandlers = 0;
+	private int maxHandlers = 0;
+
 	public static ChainHandlerManager getInstance() {
 		return manager;
 	}
@@ -41,8 +53,12 @@ public class ChainHandlerManager {
 		this.context = context;
 	}
 
-	public void startChainHandlers(int nChainHandlers) {
+	public synchronized void startChainHandlers(int nChainHandlers) {
 		this.nChainHandlers = nChainHandlers;
+		maxHandlers = Math.max(nChainHandlers, context.getConfiguration()
+				.getInt(Consts.N_MAX_PROC_THREADS, 4 * nChainHandlers));
+		chainsToProcess.init(context, SchedulingPolicy.create(context
+				.getConfiguration().get(Consts.CHAIN_SCHEDULING_POLICY, null)));
 		for (int j = 0; j < nChainHandlers; ++j) {
 			if (log.isDebugEnabled()) {
 				log.debug("Starting Chain Handler " + j + " ...");
@@ -54,6 +70,44 @@ public class ChainHandlerManager {
 			chainHandlers.add(handler);
 		}
 		chainCounter += nChainHandlers;
+		poolHandlers += nChainHandlers;
+	}
+
+	/**
+	 * Called when a chain handler blocks. Starts a new handler if there are
+	 * not enough unblocked ones left, and the maximum number of handlers is
+	 * not reached.
+	 */
+	synchronized void handlerBlocked() {
+		blockedHandlers++;
+		if (poolHandlers - blockedHandlers < nChainHandlers
+				&& poolHandlers < maxHandlers) {
+			ChainHandler handler = new ChainHandler(context);
+			ThreadPool.createNew(handler, "Chain Handler " + chainCounter++);
+			chainHandlers.add(handler);
+			poolHandlers++;
+		}
+	}
+
+	/**
+	 * Called when a blocked chain handler continues.
+	 */
+	synchronized void handlerUnblocked() {
+		blockedHandlers--;
+	}
+
+	/**
+	 * Called by a chain handler before it takes a new chain.
+	 * 
+	 * @return true if the handler should stop, because there are more
+	 *         unblocked handlers than needed
+	 */
+	synchronized boolean shouldStop() {
+		if (poolHandlers - blockedHandlers > nChainHandlers) {
+			poolHandlers--;
+			return true;
+		}
+		return false;
 	}
 
 	public void startSeparateChainHandler(Chain chain) {
@@ -62,10 +116,28 @@ public class ChainHandlerManager {
 		chainHandlers.add(handler);
 	}
 
-	public WritableContainer<Chain> getChainsToProcess() {
+	public ChainQueue getChainsToProcess() {
 		return chainsToProcess;
 	}
 
+	/**
+	 * @return the number of chains waiting to be processed
+	 */
+	public int getQueuedChains() {
+		return chainsToProcess.getNElements();
+	}
+
+	/**
+	 * @return the number of chains of the submission waiting to be processed
+	 */
+	public int getQueuedChains(int submissionId) {
+		return chainsToProcess.getNElements(submissionId);
+	}
+
+	public synchronized int getBlockedChainHandlers() {
+		return blockedHandlers;
+	}
+
 	public int getActiveChainHandlers() {
 		return activeHandlers;
 	}
@@ -88,7 +160,6 @@ public class ChainHandlerManager {
 		waitHandlers = 0;
 		ChainHandler[] handlers = chainHandlers
 				.toArray(new ChainHandler[chainHandlers.size()]);
-		ChainHandler firstActive = null;
 
 		for (ChainHandler handler : handlers) {
 			if (handler.getStatus() == ChainHandler.STATUS_FINISHED) {
@@ -98,48 +169,41 @@ public class ChainHandlerManager {
 			} else if (handler.getStatus() == ChainHandler.STATUS_INACTIVE) {
 				inactiveHandlers++;
 			} else if (handler.getStatus() == ChainHandler.STATUS_ACTIVE) {
-				if (firstActive == null) {
-					firstActive = handler;
-				}
 				activeHandlers++;
 			} else if (handler.getStatus() == ChainHandler.STATUS_WAIT) {
 				waitHandlers++;
 			}
 		}
 
-		// Start a new chain if the number of non-blocked handlers is less than
-		// the initial number of chain handlers.
-		if (inactiveHandlers == 0 && activeHandlers < nChainHandlers
-				&& chainsToProcess.getNElements() > 0) {
-			ChainHandler handler = new ChainHandler(context);
-			ThreadPool.createNew(handler, "Chain Handler " + chainCounter++);
-			chainHandlers.add(handler);
-		} else if (activeHandlers > nChainHandlers) {
-			// signal one of the active handlers to stop when its chain is
-			// finished.
-			firstActive.stop();
+		if (log.isDebugEnabled()) {
+			log.debug("Chain handlers: active = " + activeHandlers
+					+ ", inactive = " + inactiveHandlers + ", waiting = "
+					+ waitHandlers + ", queued chains = "
+					+ chainsToProcess.getNElements());
 		}
 	}
 
 	public void submissionFailed(int submissionId) {
-		// Grab a lock on chainsToProcess, so that chain handlers can no longer
-		// obtain chains.
-		synchronized (chainsToProcess) {
-			// Kill all chains that are waiting for a tuple iterator to become
-			// ready.
-			context.getChainNotifier().removeWaiters(submissionId);
-
-			int nChains = chainsToProcess.getNElements();
-			for (int i = 0; i < nChains; i++) {
-				Chain ch = new Chain();
-				chainsToProcess.remove(ch);
-				if (ch.getSubmissionId() != submissionId) {
-					chainsToProcess.add(ch);
-				}
-			}
-			for (ChainHandler ch : chainHandlers) {
-				ch.submissionFailed(submissionId);
-			}
+		// Kill all chains that are waiting for a tuple iterator to become
+		// ready.
+		context.getChainNotifier().removeWaiters(submissionId);
+
+		// Chain handlers take their chains while holding the lock of a
+		// stripe, so a chain of the submission is either purged here or
+		// already the current chain of its handler.
+		chainsToProcess.removeChainsOf(submissionId);
+		for (ChainHandler ch : chainHandlers) {
+			ch.submissionFailed(submissionId);
 		}
 	}
+
+	/**
+	 * Releases the scheduling state of a submission that has finished.
+	 * 
+	 * @param submissionId
+	 *            the submission
+	 */
+	public void submissionFinished(int submissionId) {
+		chainsToProcess.submissionFinished(submissionId);
+	}
 }
@@ -0,0 +1,388 @@
+package nl.vu.cs.ajira.chains;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.vu.cs.ajira.Context;
+import nl.vu.cs.ajira.mgmt.StatisticsCollector;
+import nl.vu.cs.ajira.storage.Container;
+import nl.vu.cs.ajira.storage.containers.WritableContainer;
+
+/**
+ * The queue of the chains that wait to be processed on this node. Instead of a
+ * single container protected by one lock, the chains are spread over several
+ * stripes, each with its own lock. Every chain handler has a home stripe: the
+ * chains it generates (branches, splits) go there and it takes its chains from
+ * there first. When its stripe is empty, it steals from the other stripes.
+ * Chains added by other threads (network, notifier) are spread round-robin.
+ *
+ * Within a stripe, the chains are kept in a queue per submission, and the
+ * {@link SchedulingPolicy} decides which submission the next chain is taken
+ * from. The time every chain spends in the queue is added to the counters of
+ * its submission.
+ */
+public class ChainQueue implements Container<Chain> {
+
+	private static final StatisticsCollector.Counter WAIT_TIME = StatisticsCollector.counter("ChainQueue: time waiting in queue (ms)");
+	private static final StatisticsCollector.Histogram WAIT_LATENCY = StatisticsCollector
+			.histogram("ChainQueue: time waiting in queue (ms)");
+
+	/**
+	 * The state of a submission, shared by all the stripes.
+	 */
+	private static class Submission {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger queued = new AtomicInteger();
+		volatile Integer priority;
+	}
+
+	private static class Entry {
+		final Chain chain = new Chain();
+		long sequence;
+		long enqueued;
+	}
+
+	/**
+	 * The chains of one submission in one stripe.
+	 */
+	public static final class SubmissionQueue {
+		private final int submissionId;
+		private final Submission submission;
+		private final ArrayDeque<Entry> chains = new ArrayDeque<Entry>();
+
+		SubmissionQueue(int submissionId, Submission submission) {
+			this.submissionId = submissionId;
+			this.submission = submission;
+		}
+
+		public int getSubmissionId() {
+			return submissionId;
+		}
+
+		/**
+		 * @return the sequence number of the oldest chain in the queue: lower
+		 *         numbers were added earlier
+		 */
+		public long getOldestSequence() {
+			return chains.peekFirst().sequence;
+		}
+
+		/**
+		 * @return the number of chains of the submission that are being
+		 *         processed on this node
+		 */
+		public int getRunningChains() {
+			return submission.running.get();
+		}
+
+		public Integer getPriority() {
+			return submission.priority;
+		}
+
+		public void setPriority(Integer priority) {
+			submission.priority = priority;
+		}
+	}
+
+	private static class Stripe {
+		final List<SubmissionQueue> queues = new ArrayList<SubmissionQueue>();
+		final Map<Integer, SubmissionQueue> bySubmission = new HashMap<Integer, SubmissionQueue>();
+		// Entries that can be reused
+		final ArrayDeque<Entry> free = new ArrayDeque<Entry>();
+		long sequence;
+	}
+
+	private final Stripe[] stripes;
+	private final AtomicInteger nextStripe = new AtomicInteger();
+	private final AtomicInteger nElements = new AtomicInteger();
+	private final Map<Integer, Submission> submissions = new ConcurrentHashMap<Integer, Submission>();
+
+	private SchedulingPolicy policy = new SchedulingPolicy.Fifo();
+	private StatisticsCollector stats;
+
+	// Handlers that are waiting for a chain wait on sleepLock.
+	private final Object sleepLock = new Object();
+	private final AtomicInteger sleepers = new AtomicInteger();
+
+	public ChainQueue(int nStripes) {
+		stripes = new Stripe[Math.max(1, nStripes)];
+		for (int i = 0; i < stripes.length; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Sets the scheduling policy. Must be called before the chain handlers
+	 * start.
+	 */
+	void init(Context context, SchedulingPolicy policy) {
+		policy.init(context);
+		this.policy = policy;
+		this.stats = context.getStatisticsCollector();
+	}
+
+	/**
+	 * @return a stripe for a new chain handler
+	 */
+	int newStripe() {
+		return (nextStripe.getAndIncrement() & Integer.MAX_VALUE)
+				% stripes.length;
+	}
+
+	private Submission getSubmission(int submissionId) {
+		Submission s = submissions.get(submissionId);
+		if (s == null) {
+			synchronized (submissions) {
+				s = submissions.get(submissionId);
+				if (s == null) {
+					s = new Submission();
+					submissions.put(submissionId, s);
+				}
+			}
+		}
+		return s;
+	}
+
+	private void enqueue(Stripe s, Chain chain, long now) {
+		int submissionId = chain.getSubmissionId();
+		SubmissionQueue q = s.bySubmission.get(submissionId);
+		if (q == null) {
+			q = new SubmissionQueue(submissionId, getSubmission(submissionId));
+			s.bySubmission.put(submissionId, q);
+			s.queues.add(q);
+		}
+		Entry e = s.free.pollFirst();
+		if (e == null) {
+			e = new Entry();
+		}
+		chain.copyTo(e.chain);
+		e.sequence = s.sequence++;
+		e.enqueued = now;
+		q.chains.addLast(e);
+		q.submission.queued.incrementAndGet();
+		nElements.incrementAndGet();
+	}
+
+	/**
+	 * Adds a copy of the chain to the specified stripe.
+	 *
+	 * @param chain
+	 *            the chain to add
+	 * @param stripe
+	 *            the stripe, or -1 to pick one
+	 */
+	public void add(Chain chain, int stripe) {
+		if (stripe < 0) {
+			stripe = newStripe();
+		}
+		Stripe s = stripes[stripe];
+		synchronized (s) {
+			enqueue(s, chain, System.currentTimeMillis());
+		}
+		if (sleepers.get() > 0) {
+			synchronized (sleepLock) {
+				sleepLock.notify();
+			}
+		}
+	}
+
+	/**
+	 * Adds copies of several chains to a stripe, with a single lock. The
+	 * handlers of the other stripes steal them when they run out of chains.
+	 *
+	 * @param chains
+	 *            the chains to add
+	 */
+	public void addAll(List<Chain> chains) {
+		if (chains.isEmpty()) {
+			return;
+		}
+		Stripe s = stripes[newStripe()];
+		long now = System.currentTimeMillis();
+		synchronized (s) {
+			for (Chain chain : chains) {
+				enqueue(s, chain, now);
+			}
+		}
+		if (sleepers.get() > 0) {
+			synchronized (sleepLock) {
+				if (chains.size() == 1) {
+					sleepLock.notify();
+				} else {
+					sleepLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean add(Chain chain) {
+		add(chain, -1);
+		return true;
+	}
+
+	@Override
+	public boolean addAll(WritableContainer<Chain> elements) {
+		Chain chain = new Chain();
+		while (elements.getNElements() > 0) {
+			elements.remove(chain);
+			add(chain, -1);
+		}
+		return true;
+	}
+
+	private void removeQueue(Stripe s, SubmissionQueue q) {
+		s.queues.remove(q);
+		s.bySubmission.remove(q.submissionId);
+	}
+
+	private boolean poll(Chain chain, int stripe) {
+		Stripe s = stripes[stripe];
+		long waited;
+		synchronized (s) {
+			int n = s.queues.size();
+			if (n == 0) {
+				return false;
+			}
+			SubmissionQueue best = s.queues.get(0);
+			for (int i = 1; i < n; ++i) {
+				SubmissionQueue q = s.queues.get(i);
+				if (policy.before(q, best)) {
+					best = q;
+				}
+			}
+			Entry e = best.chains.pollFirst();
+			if (best.chains.isEmpty()) {
+				removeQueue(s, best);
+			}
+			// Copy while holding the lock, so that removeChainsOf() sees
+			// either the chain in the stripe or in its handler.
+			e.chain.copyTo(chain);
+			best.submission.queued.decrementAndGet();
+			best.submission.running.incrementAndGet();
+			waited = System.currentTimeMillis() - e.enqueued;
+			s.free.addFirst(e);
+			nElements.decrementAndGet();
+		}
+		if (stats != null) {
+			stats.addCounter(chain.getSubmissionNode(),
+					chain.getSubmissionId(), WAIT_TIME, waited);
+			stats.record(chain.getSubmissionNode(), chain.getSubmissionId(),
+					WAIT_LATENCY, waited);
+		}
+		return true;
+	}
+
+	private boolean pollAny(Chain chain, int home) {
+		for (int i = 0; i < stripes.length; ++i) {
+			if (poll(chain, (home + i) % stripes.length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a chain, preferably from the given stripe. Blocks until a chain
+	 * is available. The caller must call {@link #chainFinished(int)} when it
+	 * is done with the chain.
+	 *
+	 * @param chain
+	 *            the object that receives the chain
+	 * @param home
+	 *            the stripe of the caller
+	 */
+	public void remove(Chain chain, int home) {
+		if (pollAny(chain, home)) {
+			return;
+		}
+		synchronized (sleepLock) {
+			sleepers.incrementAndGet();
+			try {
+				// Check again: an add() that did not see us sleeping has
+				// already made its chain visible.
+				while (!pollAny(chain, home)) {
+					try {
+						sleepLock.wait();
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+			} finally {
+				sleepers.decrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(Chain chain) {
+		remove(chain, newStripe());
+		return true;
+	}
+
+	/**
+	 * Signals that a chain obtained with {@link #remove(Chain, int)} has been
+	 * processed.
+	 *
+	 * @param submissionId
+	 *            the submission of the chain
+	 */
+	void chainFinished(int submissionId) {
+		Submission s = submissions.get(submissionId);
+		if (s != null) {
+			s.running.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes all the chains of a submission, and forgets its state.
+	 *
+	 * @param submissionId
+	 *            the submission
+	 */
+	void removeChainsOf(int submissionId) {
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				SubmissionQueue q = s.bySubmission.get(submissionId);
+				if (q != null) {
+					removeQueue(s, q);
+					Iterator<Entry> itr = q.chains.iterator();
+					while (itr.hasNext()) {
+						s.free.addFirst(itr.next());
+						nElements.decrementAndGet();
+					}
+				}
+			}
+		}
+		submissions.remove(submissionId);
+	}
+
+	/**
+	 * Forgets the state of a submission that has finished.
+	 *
+	 * @param submissionId
+	 *            the submission
+	 */
+	void submissionFinished(int submissionId) {
+		submissions.remove(submissionId);
+	}
+
+	@Override
+	public int getNElements() {
+		return nElements.get();
+	}
+
+	/**
+	 * @return the number of chains of the submission waiting in the queue
+	 */
+	public int getNElements(int submissionId) {
+		Submission s = submissions.get(submissionId);
+		return s == null ? 0 : s.queued.get();
+	}
+}
@@ -0,0 +1,116 @@
+package nl.vu.cs.ajira.chains;
+
+import nl.vu.cs.ajira.Context;
+import nl.vu.cs.ajira.chains.ChainQueue.SubmissionQueue;
+import nl.vu.cs.ajira.submissions.JobProperties;
+import nl.vu.cs.ajira.utils.Consts;
+
+/**
+ * Decides which submission the next chain of the {@link ChainQueue} is taken
+ * from. The policy is chosen with the {@link Consts#CHAIN_SCHEDULING_POLICY}
+ * parameter: <code>fifo</code> (the default), <code>fair</code>,
+ * <code>priority</code>, or the name of a subclass with a public no-argument
+ * constructor.
+ */
+public abstract class SchedulingPolicy {
+
+	protected Context context;
+
+	void init(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Compares the queues of two submissions. Called with the lock of the
+	 * stripe that holds them.
+	 *
+	 * @return true if the next chain of <code>a</code> should run before the
+	 *         next chain of <code>b</code>
+	 */
+	public abstract boolean before(SubmissionQueue a, SubmissionQueue b);
+
+	/**
+	 * Chains are processed in the order in which they were added.
+	 */
+	public static class Fifo extends SchedulingPolicy {
+		@Override
+		public boolean before(SubmissionQueue a, SubmissionQueue b) {
+			return a.getOldestSequence() < b.getOldestSequence();
+		}
+	}
+
+	/**
+	 * The next chain comes from the submission with the fewest running chains
+	 * on this node, so that concurrent submissions share the chain handlers.
+	 */
+	public static class FairShare extends SchedulingPolicy {
+		@Override
+		public boolean before(SubmissionQueue a, SubmissionQueue b) {
+			int ra = a.getRunningChains();
+			int rb = b.getRunningChains();
+			if (ra != rb) {
+				return ra < rb;
+			}
+			return a.getOldestSequence() < b.getOldestSequence();
+		}
+	}
+
+	/**
+	 * The next chain comes from the submission with the highest
+	 * {@link JobProperties#PRIORITY} (0 if not set); equal priorities are
+	 * served in order.
+	 */
+	public static class Priority extends SchedulingPolicy {
+		@Override
+		public boolean before(SubmissionQueue a, SubmissionQueue b) {
+			int pa = getPriority(a);
+			int pb = getPriority(b);
+			if (pa != pb) {
+				return pa > pb;
+			}
+			return a.getOldestSequence() < b.getOldestSequence();
+		}
+
+		private int getPriority(SubmissionQueue q) {
+			Integer p = q.getPriority();
+			if (p == null) {
+				// The properties are broadcast with the job, but they may
+				// arrive after its first chains.
+				JobProperties props = (JobProperties) context
+						.getSubmissionCache().getObjectFromCache(
+								q.getSubmissionId(), "job-properties");
+				if (props == null) {
+					return 0;
+				}
+				p = props.getPriority();
+				q.setPriority(p);
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Creates the policy with the given name.
+	 *
+	 * @param name
+	 *            <code>fifo</code>, <code>fair</code>, <code>priority</code>
+	 *            or a class name
+	 * @return the policy
+	 */
+	public static SchedulingPolicy create(String name) {
+		if (name == null || name.equals("fifo")) {
+			return new Fifo();
+		} else if (name.equals("fair")) {
+			return new FairShare();
+		} else if (name.equals("priority")) {
+			return new Priority();
+		}
+		try {
+			return Class.forName(name).asSubclass(SchedulingPolicy.class)
+					.newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Unknown scheduling policy "
+					+ name, e);
+		}
+	}
+}
@@ -53,6 +53,10 @@ public class DataProvider {
 		list[Consts.DATATYPE_TDOUBLE] = new Factory<SimpleData>(TDouble.class);
 		list[Consts.DATATYPE_TDOUBLEARRAY] = new Factory<SimpleData>(
 				TDoubleArray.class);
+		list[Consts.DATATYPE_TBYTESLICE] = new Factory<SimpleData>(
+				TByteSlice.class);
+		list[Consts.DATATYPE_TUTF8STRING] = new Factory<SimpleData>(
+				TUtf8String.class);
 
 		retrieveIds.put(TLong.class.getName(), Consts.DATATYPE_TLONG);
 		retrieveIds.put(TInt.class.getName(), Consts.DATATYPE_TINT);
@@ -70,6 +74,9 @@ public class DataProvider {
 		retrieveIds.put(TDouble.class.getName(), Consts.DATATYPE_TDOUBLE);
 		retrieveIds.put(TDoubleArray.class.getName(),
 				Consts.DATATYPE_TDOUBLEARRAY);
+		retrieveIds.put(TByteSlice.class.getName(), Consts.DATATYPE_TBYTESLICE);
+		retrieveIds.put(TUtf8String.class.getName(),
+				Consts.DATATYPE_TUTF8STRING);
 
 		for (Map.Entry<Integer, Class<? extends SimpleData>> entry : registeredTypes
 				.entrySet()) {
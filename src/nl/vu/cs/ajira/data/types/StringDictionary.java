@@ -0,0 +1,196 @@
+package nl.vu.cs.ajira.data.types;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.vu.cs.ajira.actions.ActionContext;
+
+/**
+ * A dictionary of strings, shared by all the nodes that run a submission.
+ * A {@link TUtf8String} that is attached to the dictionary and holds one of its
+ * strings is serialized as the number of the string, instead of its bytes.
+ *
+ * The dictionary must be fixed before the tuples that use it are produced: one
+ * action builds it and calls {@link #share(ActionContext)}, which stores it in
+ * the submission cache and broadcasts it to the other nodes. Every node
+ * registers the dictionary of a submission when it arrives in its submission
+ * cache, so that the strings can be decoded anywhere, and forgets it when the
+ * submission is removed from the cache.
+ */
+public class StringDictionary implements Serializable {
+
+	private static final long serialVersionUID = 3113787591206214513L;
+
+	/**
+	 * The key of the dictionary in the submission cache.
+	 */
+	public static final String CACHE_KEY = "ajira.StringDictionary";
+
+	private static final Map<Integer, StringDictionary> registry = new HashMap<Integer, StringDictionary>();
+	// The last dictionary looked up, to save the map lookup on the hot path
+	private static volatile StringDictionary last = null;
+
+	private final byte[][] entries;
+	private final int[] hashes;
+	private volatile int submissionId = -1;
+	// Open addressing: entry + 1, or 0 for a free slot
+	private transient int[] table;
+
+	/**
+	 * Creates a dictionary with the given strings, numbered in the order of
+	 * the collection. Duplicates are ignored.
+	 */
+	public StringDictionary(Collection<String> strings) {
+		byte[][] e = new byte[strings.size()][];
+		int n = 0;
+		Map<String, Boolean> seen = new HashMap<String, Boolean>();
+		for (String s : strings) {
+			if (s != null && seen.put(s, Boolean.TRUE) == null) {
+				e[n++] = s.getBytes(TUtf8String.UTF8);
+			}
+		}
+		entries = new byte[n][];
+		hashes = new int[n];
+		for (int i = 0; i < n; ++i) {
+			entries[i] = e[i];
+			hashes[i] = TUtf8String.hash(e[i], 0, e[i].length);
+		}
+	}
+
+	/**
+	 * @return the number of strings in the dictionary
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * @return the UTF-8 bytes of the string with the given number
+	 */
+	public byte[] get(int id) {
+		return entries[id];
+	}
+
+	/**
+	 * @return the submission the dictionary is registered for, or -1
+	 */
+	public int getSubmissionId() {
+		return submissionId;
+	}
+
+	private int[] getTable() {
+		int[] t = table;
+		if (t == null) {
+			int size = 16;
+			while (size < entries.length * 2) {
+				size <<= 1;
+			}
+			t = new int[size];
+			for (int i = 0; i < entries.length; ++i) {
+				int slot = hashes[i] & (size - 1);
+				while (t[slot] != 0) {
+					slot = (slot + 1) & (size - 1);
+				}
+				t[slot] = i + 1;
+			}
+			table = t;
+		}
+		return t;
+	}
+
+	/**
+	 * Looks up a string.
+	 *
+	 * @param bytes
+	 *            the UTF-8 bytes of the string
+	 * @param length
+	 *            the number of bytes
+	 * @param hash
+	 *            the hash of the bytes, as computed by {@link TUtf8String}
+	 * @return the number of the string, or -1 if it is not in the dictionary
+	 */
+	public int lookup(byte[] bytes, int length, int hash) {
+		int[] t = getTable();
+		int slot = hash & (t.length - 1);
+		for (;;) {
+			int e = t[slot] - 1;
+			if (e < 0) {
+				return -1;
+			}
+			if (hashes[e] == hash && entries[e].length == length) {
+				byte[] entry = entries[e];
+				int i = 0;
+				while (i < length && entry[i] == bytes[i]) {
+					i++;
+				}
+				if (i == length) {
+					return e;
+				}
+			}
+			slot = (slot + 1) & (t.length - 1);
+		}
+	}
+
+	/**
+	 * Stores the dictionary in the cache of the submission and sends it to
+	 * all the other nodes.
+	 */
+	public void share(ActionContext context) throws IOException {
+		context.putObjectInCache(CACHE_KEY, this);
+		context.broadcastCacheObjects(CACHE_KEY);
+	}
+
+	/**
+	 * @return the dictionary of the submission of the context, or
+	 *         <code>null</code>
+	 */
+	public static StringDictionary get(ActionContext context) {
+		return (StringDictionary) context.getObjectFromCache(CACHE_KEY);
+	}
+
+	/**
+	 * Called by the submission cache when the dictionary of a submission
+	 * arrives.
+	 */
+	public static void register(int submissionId, StringDictionary dictionary) {
+		synchronized (registry) {
+			dictionary.submissionId = submissionId;
+			registry.put(submissionId, dictionary);
+		}
+	}
+
+	/**
+	 * Called by the submission cache when a submission is removed.
+	 */
+	public static void unregister(int submissionId) {
+		synchronized (registry) {
+			StringDictionary d = registry.remove(submissionId);
+			if (d != null) {
+				d.submissionId = -1;
+			}
+			last = null;
+		}
+	}
+
+	/**
+	 * @return the dictionary registered for the submission, or
+	 *         <code>null</code>
+	 */
+	public static StringDictionary getRegistered(int submissionId) {
+		StringDictionary d = last;
+		if (d != null && d.submissionId == submissionId) {
+			return d;
+		}
+		synchronized (registry) {
+			d = registry.get(submissionId);
+			if (d != null) {
+				// In the lock, so that unregister() cannot be missed
+				last = d;
+			}
+		}
+		return d;
+	}
+}
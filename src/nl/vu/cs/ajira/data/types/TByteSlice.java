@@ -0,0 +1,214 @@
+package nl.vu.cs.ajira.data.types;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.storage.RawComparator;
+import nl.vu.cs.ajira.utils.Consts;
+
+/**
+ *
+ * This class provides a view over a range of a byte array, for instance a line
+ * of a file or a word of a line. Setting the view does not copy the bytes, so a
+ * view can be moved over a buffer without allocating anything. The bytes are
+ * not decoded: {@link #toString()} does that when a <code>String</code> is
+ * really needed.
+ *
+ * The view is only valid as long as the owner of the array does not change it.
+ * {@link #copyTo(SimpleData)} and {@link #readFrom(DataInput)} copy the bytes
+ * into an array that belongs to the destination.
+ *
+ */
+public final class TByteSlice extends SimpleData {
+
+	byte[] array;
+	int start;
+	int length;
+	// true if array belongs to this object and can be overwritten
+	boolean owned;
+
+	/**
+	 * Creates an empty TByteSlice object.
+	 */
+	public TByteSlice() {
+	}
+
+	/**
+	 * Creates a TByteSlice object that is a view over the given range.
+	 */
+	public TByteSlice(byte[] array, int start, int length) {
+		set(array, start, length);
+	}
+
+	/**
+	 * Makes this object a view over a range of an array. The bytes are not
+	 * copied.
+	 *
+	 * @param array
+	 *            the array that holds the bytes
+	 * @param start
+	 *            the position of the first byte
+	 * @param length
+	 *            the number of bytes
+	 */
+	public void set(byte[] array, int start, int length) {
+		this.array = array;
+		this.start = start;
+		this.length = length;
+		owned = false;
+	}
+
+	/**
+	 *
+	 * @return the array that holds the bytes of the view
+	 */
+	public byte[] getArray() {
+		return array;
+	}
+
+	/**
+	 *
+	 * @return the position of the first byte of the view in the array
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 *
+	 * @return the number of bytes of the view
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 *
+	 * @param i
+	 *            the position in the view
+	 * @return the byte at position i of the view
+	 */
+	public byte byteAt(int i) {
+		return array[start + i];
+	}
+
+	private void ensureOwnedCapacity(int size) {
+		if (!owned || array == null || array.length < size) {
+			array = new byte[size];
+			owned = true;
+		}
+		start = 0;
+		length = size;
+	}
+
+	@Override
+	/**
+	 * Returns the id of the class.
+	 */
+	public int getIdDatatype() {
+		return Consts.DATATYPE_TBYTESLICE;
+	}
+
+	@Override
+	/**
+	 * Reads from a DataInput the number of bytes and then the bytes,
+	 * into an array that belongs to this object.
+	 */
+	public void readFrom(DataInput input) throws IOException {
+		int size = input.readInt();
+		ensureOwnedCapacity(size);
+		input.readFully(array, 0, size);
+	}
+
+	@Override
+	/**
+	 * Writes in a DataOutput the number of bytes and then the bytes
+	 * of the view.
+	 */
+	public void writeTo(DataOutput output) throws IOException {
+		output.writeInt(length);
+		output.write(array, start, length);
+	}
+
+	@Override
+	/**
+	 * Copies the bytes of the view in an array that belongs to the parameter.
+	 */
+	public void copyTo(SimpleData el) {
+		TByteSlice s = (TByteSlice) el;
+		if (s == this) {
+			return;
+		}
+		s.ensureOwnedCapacity(length);
+		System.arraycopy(array, start, s.array, 0, length);
+	}
+
+	@Override
+	/**
+	 * Compares the bytes of two TByteSlice objects as unsigned values.
+	 */
+	public int compareTo(SimpleData el) {
+		TByteSlice s = (TByteSlice) el;
+		return RawComparator.compareBytes(array, start, length, s.array,
+				s.start, s.length);
+	}
+
+	@Override
+	/**
+	 * Compares two TByteSlice objects.
+	 * It returns true if they hold the same bytes
+	 * It returns false otherwise
+	 */
+	public boolean equals(SimpleData el, ActionContext context) {
+		TByteSlice s = (TByteSlice) el;
+		if (length != s.length) {
+			return false;
+		}
+		for (int i = 0; i < length; ++i) {
+			if (array[start + i] != s.array[s.start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 1;
+		for (int i = start; i < start + length; ++i) {
+			h = 31 * h + array[i];
+		}
+		return h;
+	}
+
+	/**
+	 * Decodes the bytes of the view with the default charset.
+	 */
+	@Override
+	public String toString() {
+		return new String(array, start, length);
+	}
+
+	/**
+	 * Initialize the static members of the class.
+	 */
+	static {
+		RawComparator.registerComparator(Consts.DATATYPE_TBYTESLICE,
+				new RawComparator<SimpleData>() {
+					@Override
+					public int compare(byte[] b1, int s1, int l1, byte[] b2,
+							int s2, int l2) {
+						return super.compare(b1, s1 + 4, l1 - 4, b2, s2 + 4,
+								l2 - 4);
+					}
+
+					@Override
+					public int getLexicographicOffset() {
+						// Skip the length
+						return 4;
+					}
+				});
+	}
+}
@@ -151,6 +151,12 @@ public final class TString extends SimpleData {
 						return super.compare(b1, s1 + 4, l1 - 4, b2, s2 + 4,
 								l2 - 4);
 					}
+
+					@Override
+					public int getLexicographicOffset() {
+						// Skip the length
+						return 4;
+					}
 				});
 	}
 }
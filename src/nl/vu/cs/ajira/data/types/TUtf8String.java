@@ -0,0 +1,361 @@
+package nl.vu.cs.ajira.data.types;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import nl.vu.cs.ajira.actions.ActionContext;
+import nl.vu.cs.ajira.storage.RawComparator;
+import nl.vu.cs.ajira.utils.Consts;
+import nl.vu.cs.ajira.utils.Varint;
+
+/**
+ *
+ * This class provides a string that is kept as its UTF-8 bytes, so that it is
+ * not decoded and encoded again every time it is serialized, hashed or
+ * compared. The <code>String</code> is only built when {@link #getValue()} is
+ * called. The strings are ordered by their bytes, which is the order of the
+ * Unicode code points, both by {@link #compareTo(SimpleData)} and by the raw
+ * comparator used for sorting.
+ *
+ * A string can be attached to the {@link StringDictionary} of the submission.
+ * If the dictionary holds the string, only the number of the string is
+ * serialized. The strings read that way share the bytes of the dictionary and
+ * stay attached to it, so that they are sent as numbers again. Setting or
+ * reading any other value detaches the string from its dictionary.
+ *
+ * The serialized form starts with a marker byte: {@link #INLINE}, followed by
+ * the number of bytes and the bytes, {@link #DICTIONARY}, followed by the
+ * submission and the number of the string, or {@link #NULL}. The numbers are
+ * written with {@link Varint}.
+ *
+ */
+public final class TUtf8String extends SimpleData {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int INLINE = 0;
+	static final int DICTIONARY = 1;
+	static final int NULL = 2;
+
+	// null for a null string
+	byte[] bytes;
+	int length;
+	// true if bytes belongs to this object and can be overwritten
+	boolean owned;
+	int hash;
+	boolean hashed;
+	String value;
+	StringDictionary dictionary;
+	// Number of the string in the dictionary, -1 if it is not there, -2 if
+	// not looked up yet
+	int entry = -2;
+
+	/**
+	 * Creates a null TUtf8String.
+	 */
+	public TUtf8String() {
+	}
+
+	/**
+	 * Creates a TUtf8String with the given value.
+	 */
+	public TUtf8String(String value) {
+		setValue(value);
+	}
+
+	static int hash(byte[] b, int start, int length) {
+		int h = 1;
+		for (int i = start; i < start + length; ++i) {
+			h = 31 * h + b[i];
+		}
+		return h;
+	}
+
+	// A new value is not attached to the dictionary of the previous one
+	private void changed() {
+		hashed = false;
+		value = null;
+		dictionary = null;
+		entry = -2;
+	}
+
+	private void ensureOwnedCapacity(int size) {
+		if (!owned || bytes == null || bytes.length < size) {
+			bytes = new byte[size];
+			owned = true;
+		}
+		length = size;
+	}
+
+	/**
+	 * Sets the value of the string.
+	 *
+	 * @param value
+	 *            the new value, or <code>null</code>
+	 */
+	public void setValue(String value) {
+		changed();
+		if (value == null) {
+			bytes = null;
+			length = 0;
+		} else {
+			bytes = value.getBytes(UTF8);
+			length = bytes.length;
+			owned = true;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Sets the value of the string to a copy of the given UTF-8 bytes.
+	 */
+	public void set(byte[] b, int start, int length) {
+		changed();
+		ensureOwnedCapacity(length);
+		System.arraycopy(b, start, bytes, 0, length);
+	}
+
+	/**
+	 *
+	 * @return the value of the string, decoded at the first call
+	 */
+	public String getValue() {
+		if (value == null && bytes != null) {
+			value = new String(bytes, 0, length, UTF8);
+		}
+		return value;
+	}
+
+	/**
+	 *
+	 * @return the array that holds the UTF-8 bytes of the string, starting at
+	 *         position 0. It must not be modified.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @return the number of UTF-8 bytes of the string
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Attaches the string to a dictionary, so that it is serialized as a
+	 * number if the dictionary holds it. The string stays attached until its
+	 * value is changed.
+	 *
+	 * @param dictionary
+	 *            the dictionary of the submission (see
+	 *            {@link StringDictionary#get(ActionContext)}), or
+	 *            <code>null</code>
+	 */
+	public void setDictionary(StringDictionary dictionary) {
+		this.dictionary = dictionary;
+		entry = -2;
+	}
+
+	/**
+	 *
+	 * @return the dictionary the string is attached to, or <code>null</code>
+	 */
+	public StringDictionary getDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	/**
+	 * Returns the id of the class.
+	 */
+	public int getIdDatatype() {
+		return Consts.DATATYPE_TUTF8STRING;
+	}
+
+	@Override
+	/**
+	 * Reads the string from a DataInput. A string that was sent as a number
+	 * shares the bytes of the dictionary of the submission.
+	 */
+	public void readFrom(DataInput input) throws IOException {
+		changed();
+		int marker = input.readByte();
+		if (marker == INLINE) {
+			int size = Varint.readUnsignedInt(input);
+			ensureOwnedCapacity(size);
+			input.readFully(bytes, 0, size);
+		} else if (marker == DICTIONARY) {
+			int submissionId = Varint.readUnsignedInt(input);
+			int id = Varint.readUnsignedInt(input);
+			StringDictionary d = StringDictionary
+					.getRegistered(submissionId);
+			if (d == null) {
+				throw new IOException("No string dictionary for submission "
+						+ submissionId);
+			}
+			dictionary = d;
+			entry = id;
+			bytes = d.get(id);
+			length = bytes.length;
+			owned = false;
+		} else {
+			bytes = null;
+			length = 0;
+		}
+	}
+
+	@Override
+	/**
+	 * Writes the string in a DataOutput, as a number if it is attached to a
+	 * dictionary that holds it.
+	 */
+	public void writeTo(DataOutput output) throws IOException {
+		if (bytes == null) {
+			output.writeByte(NULL);
+			return;
+		}
+		if (dictionary != null && dictionary.getSubmissionId() >= 0) {
+			if (entry == -2) {
+				entry = dictionary.lookup(bytes, length, hashCode());
+			}
+			if (entry >= 0) {
+				output.writeByte(DICTIONARY);
+				Varint.writeUnsignedInt(output, dictionary.getSubmissionId());
+				Varint.writeUnsignedInt(output, entry);
+				return;
+			}
+		}
+		output.writeByte(INLINE);
+		Varint.writeUnsignedInt(output, length);
+		output.write(bytes, 0, length);
+	}
+
+	@Override
+	/**
+	 * Copies the string in the parameter. The bytes are shared if they come
+	 * from a dictionary, and copied otherwise.
+	 */
+	public void copyTo(SimpleData el) {
+		TUtf8String s = (TUtf8String) el;
+		if (s == this) {
+			return;
+		}
+		if (bytes == null || !owned) {
+			s.bytes = bytes;
+			s.length = length;
+			s.owned = false;
+		} else {
+			s.ensureOwnedCapacity(length);
+			System.arraycopy(bytes, 0, s.bytes, 0, length);
+		}
+		s.hash = hash;
+		s.hashed = hashed;
+		s.value = value;
+		s.dictionary = dictionary;
+		s.entry = entry;
+	}
+
+	@Override
+	/**
+	 * Compares the bytes of two TUtf8String objects as unsigned values. The
+	 * null string comes before all the others.
+	 */
+	public int compareTo(SimpleData el) {
+		TUtf8String s = (TUtf8String) el;
+		if (bytes == null || s.bytes == null) {
+			return (bytes == null ? 0 : 1) - (s.bytes == null ? 0 : 1);
+		}
+		return RawComparator.compareBytes(bytes, 0, length, s.bytes, 0,
+				s.length);
+	}
+
+	@Override
+	/**
+	 * Compares two TUtf8String objects.
+	 * It returns true if they hold the same bytes
+	 * It returns false otherwise
+	 */
+	public boolean equals(SimpleData el, ActionContext context) {
+		TUtf8String s = (TUtf8String) el;
+		if (bytes == null || s.bytes == null) {
+			return bytes == s.bytes;
+		}
+		if (length != s.length || hashCode() != s.hashCode()) {
+			return false;
+		}
+		if (bytes == s.bytes) {
+			return true;
+		}
+		for (int i = 0; i < length; ++i) {
+			if (bytes[i] != s.bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	/**
+	 * Returns the hash of the bytes, which is computed once.
+	 */
+	public int hashCode() {
+		if (!hashed) {
+			hash = bytes == null ? 0 : hash(bytes, 0, length);
+			hashed = true;
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return getValue();
+	}
+
+	/**
+	 * Initialize the static members of the class.
+	 */
+	static {
+		RawComparator.registerComparator(Consts.DATATYPE_TUTF8STRING,
+				new RawComparator<SimpleData>() {
+					@Override
+					public int compare(byte[] b1, int s1, int l1, byte[] b2,
+							int s2, int l2) {
+						int m1 = b1[s1 < b1.length ? s1 : s1 - b1.length];
+						int m2 = b2[s2 < b2.length ? s2 : s2 - b2.length];
+						if (m1 == NULL || m2 == NULL) {
+							return (m1 == NULL ? 0 : 1) - (m2 == NULL ? 0 : 1);
+						}
+
+						long v1 = Varint.readUnsignedInt(b1, s1 + 1);
+						if (m1 == DICTIONARY) {
+							long id = Varint.readUnsignedInt(b1, (int) v1);
+							b1 = StringDictionary.getRegistered(
+									(int) (v1 >>> 32)).get((int) (id >>> 32));
+							s1 = 0;
+							l1 = b1.length;
+						} else {
+							s1 = (int) v1;
+							l1 = (int) (v1 >>> 32);
+						}
+
+						long v2 = Varint.readUnsignedInt(b2, s2 + 1);
+						if (m2 == DICTIONARY) {
+							long id = Varint.readUnsignedInt(b2, (int) v2);
+							b2 = StringDictionary.getRegistered(
+									(int) (v2 >>> 32)).get((int) (id >>> 32));
+							s2 = 0;
+							l2 = b2.length;
+						} else {
+							s2 = (int) v2;
+							l2 = (int) (v2 >>> 32);
+						}
+
+						return compareBytes(b1, s1, l1, b2, s2, l2);
+					}
+				});
+	}
+}
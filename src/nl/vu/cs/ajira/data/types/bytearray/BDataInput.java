@@ -66,6 +66,15 @@ public class BDataInput implements DataInput {
 		cb.start = i;
 	}
 
+	/**
+	 * Returns the current position in the ByteArray.
+	 * 
+	 * @return the current position
+	 */
+	public int getCurrentPosition() {
+		return cb.start;
+	}
+
 	@Override
 	/**
 	 * Returns the first byte from the beginning of 
@@ -3,15 +3,31 @@ package nl.vu.cs.ajira.data.types.bytearray;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-// import nl.vu.cs.ajira.mgmt.MemoryManager;
+import nl.vu.cs.ajira.mgmt.MemoryManager;
 import nl.vu.cs.ajira.storage.RawComparator;
 import nl.vu.cs.ajira.utils.Utils;
 
 import org.iq80.snappy.Snappy;
 
+/**
+ * A (circular) buffer of bytes. The bytes are stored either in a heap array or,
+ * for an off-heap buffer, in a direct {@link ByteBuffer} allocated through the
+ * {@link MemoryManager}. Off-heap buffers are read and written with
+ * {@link DCBDataInput} and {@link DCBDataOutput}, and are written to (read
+ * from) a {@link ByteBufferOutput} ({@link ByteBufferInput}) without copying
+ * them to the heap.
+ */
 public class ByteArray {
+	/* Size of the chunks used to copy off-heap data from/to streams */
+	private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
 	protected byte[] buffer = null;
+	/* The off-heap storage, or null */
+	ByteBuffer direct = null;
+	/* A view on direct, used for bulk copies */
+	private ByteBuffer view = null;
 	protected int start = 0;
 	protected int end = 0;
 	protected int maxSize = 0;
@@ -26,7 +42,25 @@ public class ByteArray {
 	 *            the maximum size of the buffer
 	 */
 	public ByteArray(int size, int maxSize) {
-		buffer = new byte[size];
+		this(size, maxSize, false);
+	}
+
+	/**
+	 * Creates a new ByteArray, on the heap or off-heap.
+	 * 
+	 * @param size
+	 *            the new size of the buffer
+	 * @param maxSize
+	 *            the maximum size of the buffer
+	 * @param offHeap
+	 *            whether the buffer is stored off-heap
+	 */
+	public ByteArray(int size, int maxSize, boolean offHeap) {
+		if (offHeap) {
+			setDirect(MemoryManager.getInstance().allocateDirect(size));
+		} else {
+			buffer = new byte[size];
+		}
 		this.maxSize = maxSize;
 		initialSize = size;
 	}
@@ -52,8 +86,170 @@ public class ByteArray {
 		return start;
 	}
 
+	/**
+	 * @return true if the bytes are stored off-heap
+	 */
+	public boolean isOffHeap() {
+		return direct != null;
+	}
+
+	private void setDirect(ByteBuffer b) {
+		direct = b;
+		view = b == null ? null : b.duplicate();
+	}
+
+	/**
+	 * Returns a view on <code>len</code> bytes of the off-heap storage,
+	 * starting at <code>pos</code>. The view is reused by the next call.
+	 */
+	ByteBuffer view(int pos, int len) {
+		view.limit(pos + len);
+		view.position(pos);
+		return view;
+	}
+
+	/**
+	 * Copies <code>len</code> bytes of the off-heap storage, starting at
+	 * <code>pos</code>, to <code>b</code>. The bytes must not wrap around.
+	 */
+	void getDirect(int pos, byte[] b, int off, int len) {
+		view(pos, len).get(b, off, len);
+	}
+
+	/**
+	 * Copies <code>len</code> bytes of <code>b</code> to the off-heap storage,
+	 * starting at <code>pos</code>. The bytes must not wrap around.
+	 */
+	void putDirect(int pos, byte[] b, int off, int len) {
+		view(pos, len).put(b, off, len);
+	}
+
+	/**
+	 * Copies bytes of the buffer to an array, wrapping around its end.
+	 * 
+	 * @param pos
+	 *            the position of the first byte
+	 * @param b
+	 *            the destination array
+	 * @param off
+	 *            the offset in the destination array
+	 * @param len
+	 *            the number of bytes
+	 */
+	protected void getBytes(int pos, byte[] b, int off, int len) {
+		int capacity = getTotalCapacity();
+		int len1 = Math.min(len, capacity - pos);
+		if (direct != null) {
+			getDirect(pos, b, off, len1);
+			if (len > len1) {
+				getDirect(0, b, off + len1, len - len1);
+			}
+		} else {
+			System.arraycopy(buffer, pos, b, off, len1);
+			if (len > len1) {
+				System.arraycopy(buffer, 0, b, off + len1, len - len1);
+			}
+		}
+	}
+
+	/**
+	 * @return a new view on the off-heap storage, for
+	 *         {@link #getBytes(ByteBuffer, int, byte[], int, int)}
+	 */
+	protected ByteBuffer newView() {
+		return direct.duplicate();
+	}
+
+	/**
+	 * Same as {@link #getBytes(int, byte[], int, int)} for the off-heap
+	 * storage, through a view returned by {@link #newView()}. Several threads
+	 * can read the storage at the same time, each with its own view.
+	 */
+	protected static void getBytes(ByteBuffer view, int pos, byte[] b,
+			int off, int len) {
+		int len1 = Math.min(len, view.capacity() - pos);
+		view.limit(pos + len1);
+		view.position(pos);
+		view.get(b, off, len1);
+		if (len > len1) {
+			view.limit(len - len1);
+			view.position(0);
+			view.get(b, off + len1, len - len1);
+		}
+	}
+
+	/* Reads len bytes at position pos of the off-heap storage. */
+	private void readDirect(DataInput in, int pos, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		if (in instanceof ByteBufferInput) {
+			((ByteBufferInput) in).readFully(view(pos, len));
+			return;
+		}
+		byte[] chunk = new byte[Math.min(len, COPY_CHUNK_SIZE)];
+		while (len > 0) {
+			int sz = Math.min(len, chunk.length);
+			in.readFully(chunk, 0, sz);
+			putDirect(pos, chunk, 0, sz);
+			pos += sz;
+			len -= sz;
+		}
+	}
+
+	/* Writes len bytes at position pos of the off-heap storage. */
+	private void writeDirect(DataOutput out, int pos, int len)
+			throws IOException {
+		if (len == 0) {
+			return;
+		}
+		if (out instanceof ByteBufferOutput) {
+			// The output may keep the buffer until the data is sent
+			((ByteBufferOutput) out).write(view(pos, len).slice());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(len, COPY_CHUNK_SIZE)];
+		while (len > 0) {
+			int sz = Math.min(len, chunk.length);
+			getDirect(pos, chunk, 0, sz);
+			out.write(chunk, 0, sz);
+			pos += sz;
+			len -= sz;
+		}
+	}
+
+	/**
+	 * Takes over the storage of another ByteArray. An off-heap storage is
+	 * moved: the other ByteArray can no longer be used.
+	 */
+	protected void takeStorage(ByteArray other) {
+		if (direct != null && direct != other.direct) {
+			MemoryManager.getInstance().freeDirect(direct);
+		}
+		buffer = other.buffer;
+		setDirect(other.direct);
+		other.setDirect(null);
+		capacityChanged();
+	}
+
+	/**
+	 * Called when the storage is replaced by a bigger (or a different) one.
+	 */
+	protected void capacityChanged() {
+	}
+
 	public void readFrom(FDataInput in, int sz) throws IOException {
-		if (sz > buffer.length - end) {
+		if (direct != null) {
+			int len1 = direct.capacity() - end;
+			if (sz > len1) {
+				readDirect(in, end, len1);
+				end = sz - len1;
+				readDirect(in, 0, end);
+			} else {
+				readDirect(in, end, sz);
+				end += sz;
+			}
+		} else if (sz > buffer.length - end) {
 			in.readFully(buffer, end, buffer.length - end);
 			end = sz - buffer.length + end;
 			in.readFully(buffer, 0, end);
@@ -65,6 +261,18 @@ public class ByteArray {
 	}
 
 	private void readFrom(byte[] b, int s, int len) {
+		if (direct != null) {
+			int len1 = direct.capacity() - end;
+			if (len > len1) {
+				putDirect(end, b, s, len1);
+				end = len - len1;
+				putDirect(0, b, s + len1, end);
+			} else {
+				putDirect(end, b, s, len);
+				end += len;
+			}
+			return;
+		}
 		int len1 = buffer.length - end;
 		if (len > len1) {
 			System.arraycopy(b, s, buffer, end, len1);
@@ -76,24 +284,68 @@ public class ByteArray {
 		}
 	}
 
+	/*
+	 * Appends len bytes of in, starting at offset. The bytes must not wrap
+	 * around the end of in.
+	 */
+	private void readFrom(ByteArray in, int offset, int len) {
+		if (in.direct == null) {
+			readFrom(in.buffer, offset, len);
+			return;
+		}
+		int capacity = getTotalCapacity();
+		int len1 = capacity - end;
+		if (direct == null) {
+			if (len > len1) {
+				in.getDirect(offset, buffer, end, len1);
+				end = len - len1;
+				in.getDirect(offset + len1, buffer, 0, end);
+			} else {
+				in.getDirect(offset, buffer, end, len);
+				end += len;
+			}
+		} else {
+			if (len > len1) {
+				view(end, len1).put(source(in, offset, len1));
+				end = len - len1;
+				view(0, end).put(source(in, offset + len1, end));
+			} else {
+				view(end, len).put(source(in, offset, len));
+				end += len;
+			}
+		}
+	}
+
+	private ByteBuffer source(ByteArray in, int pos, int len) {
+		if (in != this) {
+			return in.view(pos, len);
+		}
+		// Copy within the same buffer: cannot use the same view twice
+		ByteBuffer d = direct.duplicate();
+		d.limit(pos + len);
+		d.position(pos);
+		return d;
+	}
+
 	public void copyRegion(ByteArray in, int offset, int len) {
 		if (len == 0) {
 			return;
 		}
-		if (offset + len <= in.buffer.length) {
-			readFrom(in.buffer, offset, len);
+		int inCapacity = in.getTotalCapacity();
+		if (offset + len <= inCapacity) {
+			readFrom(in, offset, len);
 		} else {
-			readFrom(in.buffer, offset, in.buffer.length - offset);
-			readFrom(in.buffer, 0, len - (in.buffer.length - offset));
+			readFrom(in, offset, inCapacity - offset);
+			readFrom(in, 0, len - (inCapacity - offset));
 		}
 	}
 
 	public void readFrom(ByteArray in) {
 		if (in.end >= in.start) {
-			readFrom(in.buffer, in.start, in.end - in.start);
+			readFrom(in, in.start, in.end - in.start);
 		} else {
-			readFrom(in.buffer, in.start, in.buffer.length - in.start);
-			readFrom(in.buffer, 0, in.end);
+			readFrom(in, in.start, in.getTotalCapacity() - in.start);
+			readFrom(in, 0, in.end);
 		}
 	}
 
@@ -105,14 +357,23 @@ public class ByteArray {
 					+ ", maxSize = " + maxSize);
 		}
 		end = len;
-		if (len > 0) {
+		if (direct != null) {
+			readDirect(input, 0, end);
+		} else if (len > 0) {
 			input.readFully(buffer, 0, end);
 		}
 	}
 
 	public void writeRaw(DataOutput out) throws IOException {
 
-		if (end > start) {
+		if (direct != null) {
+			if (end >= start) {
+				writeDirect(out, start, end - start);
+			} else {
+				writeDirect(out, start, direct.capacity() - start);
+				writeDirect(out, 0, end);
+			}
+		} else if (end > start) {
 			out.write(this.buffer, start, end - start);
 		} else if (start > end) {
 			out.write(this.buffer, start, buffer.length - start);
@@ -122,7 +383,15 @@ public class ByteArray {
 
 	public void writeTo(DataOutput out, int offset, int len) throws IOException {
 		int e = offset + len;
-		if (e <= buffer.length) {
+		if (direct != null) {
+			int capacity = direct.capacity();
+			if (e <= capacity) {
+				writeDirect(out, offset, len);
+			} else {
+				writeDirect(out, offset, capacity - offset);
+				writeDirect(out, 0, e - capacity);
+			}
+		} else if (e <= buffer.length) {
 			out.write(buffer, offset, len);
 		} else {
 			e -= buffer.length;
@@ -133,7 +402,10 @@ public class ByteArray {
 
 	public void writeTo(DataOutput output) throws IOException {
 		int size = 0;
-		if (end > start) {
+		if (direct != null) {
+			output.writeInt(getRawSize());
+			writeRaw(output);
+		} else if (end > start) {
 			size = end - start;
 			output.writeInt(size);
 			output.write(buffer, start, end - start);
@@ -166,6 +438,11 @@ public class ByteArray {
 		else
 			len = end + buffer.length - start;
 
+		if (direct != null) {
+			byte[] b = new byte[len];
+			getBytes(this.start, b, 0, len);
+			return RawComparator.compareBytes(b, 0, len, buffer, start, len);
+		}
 		return RawComparator.compareBytes(this.buffer, this.start, len, buffer,
 				start, len);
 	}
@@ -175,7 +452,7 @@ public class ByteArray {
 	 * @return the length of the buffer
 	 */
 	public int getTotalCapacity() {
-		return buffer.length;
+		return direct != null ? direct.capacity() : buffer.length;
 	}
 
 	/**
@@ -190,7 +467,7 @@ public class ByteArray {
 		if (end >= start) {
 			return end - start;
 		} else {
-			return end + buffer.length - start;
+			return end + getTotalCapacity() - start;
 		}
 	}
 
@@ -206,7 +483,7 @@ public class ByteArray {
 		if (end >= start) {
 			currentSize = end - start;
 		} else {
-			currentSize = buffer.length - start + end;
+			currentSize = getTotalCapacity() - start + end;
 		}
 		// Since we assume that the buffer is empty if cb.end == cb.start,
 		// we cannot fill the buffer completely, hence -1. --Ceriel
@@ -220,6 +497,11 @@ public class ByteArray {
 	 *            is the new length of the buffer.
 	 */
 	private void growBuffer(int sz) {
+		if (direct != null) {
+			growDirect(sz);
+			capacityChanged();
+			return;
+		}
 		byte[] b = new byte[sz];
 		if (end >= start) {
 			System.arraycopy(buffer, start, b, start, end - start);
@@ -236,6 +518,32 @@ public class ByteArray {
 			}
 		}
 		buffer = b;
+		capacityChanged();
+	}
+
+	/**
+	 * Same as {@link #growBuffer(int)}, for the off-heap storage.
+	 */
+	private void growDirect(int sz) {
+		ByteBuffer old = direct;
+		int capacity = old.capacity();
+		ByteArray b = new ByteArray();
+		b.setDirect(MemoryManager.getInstance().allocateDirect(sz));
+		if (end >= start) {
+			b.view(start, end - start).put(view(start, end - start));
+		} else {
+			b.view(start, capacity - start).put(view(start, capacity - start));
+			if (sz >= capacity + end) {
+				b.view(capacity, end).put(view(0, end));
+				end += capacity;
+			} else {
+				b.view(capacity, sz - capacity).put(view(0, sz - capacity));
+				end -= (sz - capacity);
+				b.view(0, end).put(view(sz - capacity, end));
+			}
+		}
+		setDirect(b.direct);
+		MemoryManager.getInstance().freeDirect(old);
 	}
 
 	/**
@@ -252,19 +560,20 @@ public class ByteArray {
 			return false;
 		}
 		int currentSize;
+		int capacity = getTotalCapacity();
 		if (end >= start) {
 			currentSize = end - start;
 		} else {
-			currentSize = buffer.length - start + end;
+			currentSize = capacity - start + end;
 		}
-		int len = buffer.length;
+		int len = capacity;
 		int remaining = len - currentSize;
 
 		while (remaining <= sz) {
 			len <<= 1;
 			remaining = len - currentSize;
 		}
-		if (len > buffer.length) {
+		if (len > capacity) {
 			/*
 			 * Commented out code below. It breaks the assumption that you can
 			 * always copy a WritableContainer into another empty
@@ -287,7 +596,16 @@ public class ByteArray {
 	 */
 	public int getHash(int maxBytes) {
 		int hash = 0;
-		if (end > start) {
+		if (direct != null) {
+			int capacity = direct.capacity();
+			int size = Math.min(maxBytes, getRawSize());
+			for (int i = 0, pos = start; i < size; i++) {
+				hash = 31 * hash + (direct.get(pos) & 0xff);
+				if (++pos == capacity) {
+					pos = 0;
+				}
+			}
+		} else if (end > start) {
 			for (int i = start; maxBytes > 0 && i < end; i++, maxBytes--) {
 				hash = 31 * hash + (buffer[i] & 0xff);
 			}
@@ -309,38 +627,77 @@ public class ByteArray {
 		// }
 	}
 
+	/**
+	 * @return the maximum number of bytes written by
+	 *         {@link #compress(byte[], int)} for <code>size</code> bytes
+	 */
+	public static int maxCompressedLength(int size) {
+		// The bytes that wrap around the end start another block
+		int blocks = size / COPY_CHUNK_SIZE + 2;
+		return 4 + blocks
+				* (4 + Snappy.maxCompressedLength(COPY_CHUNK_SIZE));
+	}
+
+	/**
+	 * Compresses the bytes of the buffer in <code>value</code>. They are
+	 * compressed in blocks of at most 64 KB, so that an off-heap buffer is
+	 * only copied to the heap one block at a time. The result is the total
+	 * number of bytes, followed by the compressed size and the bytes of every
+	 * block.
+	 * 
+	 * @return the number of bytes written in <code>value</code>
+	 */
 	public int compress(byte[] value, int offset) {
-		int size;
-		if (end > start) {
-			value[offset] = 0;
-			size = Snappy.compress(buffer, start, end - start, value,
-					offset + 1);
-		} else {
-			value[offset] = 1;
-			size = Snappy.compress(buffer, start, buffer.length - start, value,
-					offset + 5);
-			Utils.encodeInt(value, offset + 1, size);
-			size += 4 + Snappy.compress(buffer, 0, end, value, offset + 5
-					+ size);
+		int size = getRawSize();
+		Utils.encodeInt(value, offset, size);
+		int pos = offset + 4;
+		int capacity = getTotalCapacity();
+		byte[] chunk = direct != null ? new byte[Math.min(size,
+				COPY_CHUNK_SIZE)] : null;
+		int p = start;
+		while (size > 0) {
+			int sz = Math.min(Math.min(size, COPY_CHUNK_SIZE), capacity - p);
+			int csz;
+			if (direct != null) {
+				getDirect(p, chunk, 0, sz);
+				csz = Snappy.compress(chunk, 0, sz, value, pos + 4);
+			} else {
+				csz = Snappy.compress(buffer, p, sz, value, pos + 4);
+			}
+			Utils.encodeInt(value, pos, csz);
+			pos += 4 + csz;
+			size -= sz;
+			p += sz;
+			if (p == capacity) {
+				p = 0;
+			}
 		}
-		return size + 1;
+		return pos - offset;
 	}
 
+	/**
+	 * Replaces the bytes of the buffer with the ones compressed by
+	 * {@link #compress(byte[], int)}.
+	 */
 	public void decompress(byte[] value, int offset, int len) {
-		if (value[offset] == 0) {
-			grow(Snappy.getUncompressedLength(value, offset + 1));
-			end = Snappy.uncompress(value, offset + 1, len - 1, buffer, 0);
-		} else {
-			int s = Utils.decodeInt(value, offset + 1);
-			// Calculate uncompress size
-			offset += 5;
-			len -= 5;
-			int un_s = Snappy.getUncompressedLength(value, offset);
-			un_s += Snappy.getUncompressedLength(value, offset + s);
-			grow(un_s);
-
-			end = Snappy.uncompress(value, offset, s, buffer, 0);
-			end += Snappy.uncompress(value, offset + s, len - s, buffer, end);
+		start = end = 0;
+		grow(Utils.decodeInt(value, offset));
+		int e = offset + len;
+		int pos = offset + 4;
+		byte[] chunk = null;
+		while (pos < e) {
+			int csz = Utils.decodeInt(value, pos);
+			pos += 4;
+			if (direct != null) {
+				if (chunk == null) {
+					chunk = new byte[COPY_CHUNK_SIZE];
+				}
+				int sz = Snappy.uncompress(value, pos, csz, chunk, 0);
+				readFrom(chunk, 0, sz);
+			} else {
+				end += Snappy.uncompress(value, pos, csz, buffer, end);
+			}
+			pos += csz;
 		}
 	}
 }
@@ -0,0 +1,21 @@
+package nl.vu.cs.ajira.data.types.bytearray;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link java.io.DataInput} that can read directly into a {@link ByteBuffer},
+ * so that off-heap data does not have to be copied from the heap.
+ */
+public interface ByteBufferInput {
+
+	/**
+	 * Reads as many bytes as there are between the position and the limit of
+	 * the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer that receives the bytes
+	 * @throws IOException
+	 */
+	public void readFully(ByteBuffer buffer) throws IOException;
+}
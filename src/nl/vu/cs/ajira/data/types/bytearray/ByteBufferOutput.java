@@ -0,0 +1,20 @@
+package nl.vu.cs.ajira.data.types.bytearray;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link java.io.DataOutput} that can write a {@link ByteBuffer} directly,
+ * so that off-heap data does not have to be copied to the heap first.
+ */
+public interface ByteBufferOutput {
+
+	/**
+	 * Writes the bytes between the position and the limit of the buffer.
+	 * 
+	 * @param buffer
+	 *            the bytes to write
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer buffer) throws IOException;
+}
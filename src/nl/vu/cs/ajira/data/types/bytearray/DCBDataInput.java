@@ -0,0 +1,101 @@
+package nl.vu.cs.ajira.data.types.bytearray;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from a circular {@link ByteArray} whose bytes are stored off-heap.
+ */
+public class DCBDataInput extends CBDataInput {
+
+	/**
+	 * Creates a new DCBDataInput.
+	 * 
+	 * @param cb
+	 *            is the off-heap ByteArray that is read
+	 */
+	public DCBDataInput(ByteArray cb) {
+		super(cb);
+	}
+
+	@Override
+	public byte readByte() {
+		ByteBuffer d = cb.direct;
+		if (cb.start >= d.capacity())
+			cb.start = 0;
+		return d.get(cb.start++);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) {
+		int capacity = cb.direct.capacity();
+		if (cb.start >= capacity) {
+			cb.start = 0;
+		}
+		cb.getBytes(cb.start, b, off, len);
+		cb.start += len;
+		if (cb.start >= capacity) {
+			cb.start -= capacity;
+		}
+	}
+
+	@Override
+	public int readInt() {
+		ByteBuffer d = cb.direct;
+		int start = cb.start;
+		if (start + 4 <= d.capacity()) {
+			cb.start = start + 4;
+			return d.getInt(start);
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (readByte() & 0xFF);
+		}
+		return value;
+	}
+
+	@Override
+	public short readShort() {
+		ByteBuffer d = cb.direct;
+		int start = cb.start;
+		if (start + 2 <= d.capacity()) {
+			cb.start = start + 2;
+			return d.getShort(start);
+		}
+		int value = readByte() << 8;
+		return (short) (value | (readByte() & 0xFF));
+	}
+
+	@Override
+	public long readLong() {
+		ByteBuffer d = cb.direct;
+		int start = cb.start;
+		if (start + 8 <= d.capacity()) {
+			cb.start = start + 8;
+			return d.getLong(start);
+		}
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (readByte() & 0xFF);
+		}
+		return value;
+	}
+
+	@Override
+	public String readUTF() {
+		int size = readInt();
+		byte[] b = new byte[size];
+		readFully(b, 0, size);
+		return new String(b);
+	}
+
+	@Override
+	public int skipBytes(int n) {
+		int capacity = cb.direct.capacity();
+		if (cb.start + n < capacity) {
+			cb.start += n;
+		} else {
+			cb.start = n - (capacity - cb.start);
+		}
+		return n;
+	}
+}
@@ -0,0 +1,131 @@
+package nl.vu.cs.ajira.data.types.bytearray;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes to a circular {@link ByteArray} whose bytes are stored off-heap.
+ */
+public class DCBDataOutput extends CBDataOutput {
+
+	/**
+	 * Creates a new DCBDataOutput.
+	 * 
+	 * @param cb
+	 *            is the off-heap ByteArray that is written
+	 * @param grow
+	 *            whether the ByteArray is grown when it is full
+	 */
+	public DCBDataOutput(ByteArray cb, boolean grow) {
+		super(cb, grow);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (grow && !cb.grow(1)) {
+			throw new IOException("Not enough space");
+		}
+		ByteBuffer d = cb.direct;
+		if (cb.end >= d.capacity()) {
+			cb.end = 0;
+		}
+		d.put(cb.end++, (byte) b);
+	}
+
+	@Override
+	public void write(byte[] buffer2, int offset, int length)
+			throws IOException {
+		if (grow && !cb.grow(length)) {
+			throw new IOException("Not enough space");
+		}
+		int capacity = cb.direct.capacity();
+		if (cb.end >= capacity) {
+			cb.end = 0;
+		}
+		if (length > capacity - cb.end) {
+			int len1 = capacity - cb.end;
+			cb.putDirect(cb.end, buffer2, offset, len1);
+			cb.putDirect(0, buffer2, offset + len1, length - len1);
+			cb.end = length - len1;
+		} else {
+			cb.putDirect(cb.end, buffer2, offset, length);
+			cb.end += length;
+		}
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException {
+		if (grow && !cb.grow(4)) {
+			throw new IOException("Not enough space");
+		}
+		ByteBuffer d = cb.direct;
+		if (cb.end + 4 <= d.capacity()) {
+			d.putInt(cb.end, value);
+			cb.end += 4;
+		} else {
+			for (int i = 3; i >= 0; i--) {
+				if (cb.end >= d.capacity()) {
+					cb.end = 0;
+				}
+				d.put(cb.end++, (byte) (value >>> i * 8));
+			}
+		}
+	}
+
+	@Override
+	public void writeShort(int value) throws IOException {
+		if (grow && !cb.grow(2)) {
+			throw new IOException("Not enough space");
+		}
+		ByteBuffer d = cb.direct;
+		if (cb.end + 2 <= d.capacity()) {
+			d.putShort(cb.end, (short) value);
+			cb.end += 2;
+		} else {
+			for (int i = 1; i >= 0; i--) {
+				if (cb.end >= d.capacity()) {
+					cb.end = 0;
+				}
+				d.put(cb.end++, (byte) (value >>> i * 8));
+			}
+		}
+	}
+
+	@Override
+	public void writeLong(long value) throws IOException {
+		if (grow && !cb.grow(8)) {
+			throw new IOException("Not enough space");
+		}
+		ByteBuffer d = cb.direct;
+		if (cb.end + 8 <= d.capacity()) {
+			d.putLong(cb.end, value);
+			cb.end += 8;
+		} else {
+			for (int i = 7; i >= 0; i--) {
+				if (cb.end >= d.capacity()) {
+					cb.end = 0;
+				}
+				d.put(cb.end++, (byte) (value >>> i * 8));
+			}
+		}
+	}
+
+	@Override
+	public void skipBytes(int bytes) throws IOException {
+		if (grow && !cb.grow(bytes)) {
+			throw new IOException("Not enough space");
+		}
+		int capacity = cb.direct.capacity();
+		if (cb.end + bytes < capacity) {
+			cb.end += bytes;
+		} else {
+			cb.end = bytes - (capacity - cb.end);
+		}
+	}
+
+	@Override
+	public void writeTo(DataOutput out) throws IOException {
+		cb.writeRaw(out);
+	}
+}
@@ -0,0 +1,262 @@
+package nl.vu.cs.ajira.datalayer.files;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * Decodes a file that is compressed in independent blocks, one block at a
+ * time. Since every block can be decoded on its own, such a file can be cut
+ * at block boundaries and the pieces can be decoded in parallel. Two formats
+ * are supported:
+ * <ul>
+ * <li>files with the <code>.snappy</code> extension, in the format of
+ * {@link org.iq80.snappy.SnappyOutputStream}: a header followed by blocks of
+ * at most 32 KB that start with their flag, length and checksum;</li>
+ * <li>files with the <code>.gz</code> extension that are written by
+ * <code>bgzip</code>: a sequence of gzip members of at most 64 KB, each of
+ * which holds its own compressed size in the <code>BC</code> extra field.</li>
+ * </ul>
+ * The block boundaries are found from the block headers, without decoding the
+ * blocks. Other gzip files can only be decoded as a whole.
+ */
+public abstract class BlockDecoder {
+
+	protected final RandomAccessFile file;
+	protected long blockStart;
+
+	protected BlockDecoder(RandomAccessFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens a block decoder for the file.
+	 *
+	 * @param f
+	 *            the file
+	 * @return the decoder, or <code>null</code> if the file is not compressed
+	 *         in blocks
+	 * @throws IOException
+	 *             in case of trouble
+	 */
+	public static BlockDecoder open(File f) throws IOException {
+		boolean snappy = f.getName().endsWith(".snappy");
+		if (!snappy && !f.getName().endsWith(".gz")) {
+			return null;
+		}
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		BlockDecoder decoder = null;
+		try {
+			if (snappy) {
+				decoder = new SnappyBlocks(file);
+			} else if (Bgzf.isBgzf(file)) {
+				decoder = new Bgzf(file);
+			}
+			return decoder;
+		} finally {
+			// Also if the header could not be read
+			if (decoder == null) {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * @param f
+	 *            the file
+	 * @return <code>true</code> if the name of the file says that it is
+	 *         compressed
+	 */
+	public static boolean isCompressed(File f) {
+		return f.getName().endsWith(".gz") || f.getName().endsWith(".snappy");
+	}
+
+	/**
+	 * @return the maximum size of a decoded block
+	 */
+	public abstract int getMaxBlockSize();
+
+	/**
+	 * Positions the decoder at the start of a block.
+	 *
+	 * @param offset
+	 *            the position of the block in the file, or 0 for the first
+	 *            block
+	 */
+	public void seek(long offset) throws IOException {
+		file.seek(offset);
+	}
+
+	/**
+	 * @return the position in the file of the last block read
+	 */
+	public long getBlockStart() {
+		return blockStart;
+	}
+
+	/**
+	 * Reads the next block.
+	 *
+	 * @param dest
+	 *            the array that receives the decoded block, of at least
+	 *            {@link #getMaxBlockSize()} bytes, or <code>null</code> to skip
+	 *            the block without decoding it
+	 * @return the number of decoded bytes, or -1 at the end of the file
+	 */
+	public abstract int readBlock(byte[] dest) throws IOException;
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	static class SnappyBlocks extends BlockDecoder {
+		private static final byte[] STREAM_HEADER = new byte[] { 's', 'n',
+				'a', 'p', 'p', 'y', 0 };
+		private static final int MAX_BLOCK_SIZE = 32768;
+
+		private final byte[] header = new byte[7];
+		private final byte[] input = new byte[Snappy
+				.maxCompressedLength(MAX_BLOCK_SIZE)];
+
+		SnappyBlocks(RandomAccessFile file) throws IOException {
+			super(file);
+			seek(0);
+		}
+
+		@Override
+		public int getMaxBlockSize() {
+			return MAX_BLOCK_SIZE;
+		}
+
+		@Override
+		public void seek(long offset) throws IOException {
+			if (offset == 0) {
+				file.seek(0);
+				file.readFully(header, 0, STREAM_HEADER.length);
+				for (int i = 0; i < STREAM_HEADER.length; ++i) {
+					if (header[i] != STREAM_HEADER[i]) {
+						throw new IOException("Not a snappy stream");
+					}
+				}
+			} else {
+				file.seek(offset);
+			}
+		}
+
+		@Override
+		public int readBlock(byte[] dest) throws IOException {
+			blockStart = file.getFilePointer();
+			int n = file.read(header, 0, 1);
+			if (n < 1) {
+				return -1;
+			}
+			file.readFully(header, 1, 6);
+			// The checksum is not verified
+			boolean compressed = header[0] == 1;
+			int length = ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+			if (dest == null) {
+				file.seek(blockStart + 7 + length);
+				return 0;
+			}
+			if (!compressed) {
+				file.readFully(dest, 0, length);
+				return length;
+			}
+			file.readFully(input, 0, length);
+			return Snappy.uncompress(input, 0, length, dest, 0);
+		}
+	}
+
+	static class Bgzf extends BlockDecoder {
+		private static final int MAX_BLOCK_SIZE = 65536;
+		private static final int HEADER_SIZE = 12;
+
+		private final byte[] input = new byte[MAX_BLOCK_SIZE];
+		private final Inflater inflater = new Inflater(true);
+
+		Bgzf(RandomAccessFile file) throws IOException {
+			super(file);
+			file.seek(0);
+		}
+
+		static boolean isBgzf(RandomAccessFile file) throws IOException {
+			byte[] h = new byte[HEADER_SIZE + 4];
+			file.seek(0);
+			if (file.read(h) < h.length) {
+				return false;
+			}
+			return (h[0] & 0xff) == 0x1f && (h[1] & 0xff) == 0x8b && h[2] == 8
+					&& (h[3] & 4) != 0 && h[12] == 'B' && h[13] == 'C';
+		}
+
+		@Override
+		public int getMaxBlockSize() {
+			return MAX_BLOCK_SIZE;
+		}
+
+		private static int readShort(byte[] b, int i) {
+			return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8);
+		}
+
+		@Override
+		public int readBlock(byte[] dest) throws IOException {
+			blockStart = file.getFilePointer();
+			int n = file.read(input, 0, 1);
+			if (n < 1) {
+				return -1;
+			}
+			file.readFully(input, 1, HEADER_SIZE - 1);
+			int xlen = readShort(input, 10);
+			file.readFully(input, HEADER_SIZE, xlen);
+			int blockSize = -1;
+			for (int i = HEADER_SIZE; i + 4 <= HEADER_SIZE + xlen;) {
+				int slen = readShort(input, i + 2);
+				if (input[i] == 'B' && input[i + 1] == 'C' && slen == 2) {
+					blockSize = readShort(input, i + 4) + 1;
+				}
+				i += 4 + slen;
+			}
+			if ((input[0] & 0xff) != 0x1f || (input[1] & 0xff) != 0x8b
+					|| blockSize < 0) {
+				throw new IOException("Not a BGZF block at position "
+						+ blockStart);
+			}
+			if (dest == null) {
+				file.seek(blockStart + blockSize);
+				return 0;
+			}
+			int start = HEADER_SIZE + xlen;
+			file.readFully(input, start, blockSize - start);
+			int isize = readShort(input, blockSize - 4)
+					| (readShort(input, blockSize - 2) << 16);
+			inflater.reset();
+			inflater.setInput(input, start, blockSize - start - 8);
+			try {
+				n = 0;
+				while (n < isize && !inflater.finished()) {
+					int r = inflater.inflate(dest, n, isize - n);
+					if (r == 0 && inflater.needsInput()) {
+						throw new EOFException("Truncated BGZF block at position "
+								+ blockStart);
+					}
+					n += r;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt BGZF block at position "
+						+ blockStart, e);
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			super.close();
+		}
+	}
+}
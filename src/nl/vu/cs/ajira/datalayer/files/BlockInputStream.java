@@ -0,0 +1,258 @@
+package nl.vu.cs.ajira.datalayer.files;
+
+import ibis.util.ThreadPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An input stream whose data is decompressed by a background thread, so that
+ * the decompression and the parsing of the input do not share one core. The
+ * background thread decodes blocks ahead of the reader into a bounded queue.
+ * The data comes either from a {@link BlockDecoder} or from any other stream,
+ * which is then read in chunks of {@link #CHUNK_SIZE} bytes.
+ */
+public class BlockInputStream extends InputStream {
+
+	static final Logger log = LoggerFactory.getLogger(BlockInputStream.class);
+
+	public static final int CHUNK_SIZE = 64 * 1024;
+	public static final int QUEUE_SIZE = 8;
+
+	private static class Block {
+		final byte[] data;
+		long start;
+		int length;
+
+		Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private final ArrayDeque<Block> full = new ArrayDeque<Block>();
+	private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+	private int nBlocks = 0;
+	private boolean done = false;
+	private boolean closed = false;
+	private Throwable error = null;
+
+	// Owned by the reader
+	private Block current = null;
+	private int currentPos = 0;
+	private long delivered = 0;
+	private final long end;
+	private long endPosition = Long.MAX_VALUE;
+
+	/**
+	 * Decodes the blocks of a file, starting at the given block.
+	 *
+	 * @param decoder
+	 *            the decoder of the file
+	 * @param offset
+	 *            the position of the first block to decode
+	 * @param end
+	 *            the position of a block whose start must be located in the
+	 *            decoded data (see {@link #getEndPosition()})
+	 */
+	public BlockInputStream(final BlockDecoder decoder, long offset, long end)
+			throws IOException {
+		this.end = end;
+		decoder.seek(offset);
+		final int blockSize = decoder.getMaxBlockSize();
+		ThreadPool.createNew(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Block b = getFreeBlock(blockSize);
+						if (b == null) {
+							break;
+						}
+						b.length = decoder.readBlock(b.data);
+						b.start = decoder.getBlockStart();
+						if (b.length < 0) {
+							break;
+						}
+						putFullBlock(b);
+					}
+				} catch (Throwable e) {
+					failed(e);
+				} finally {
+					finished();
+					try {
+						decoder.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}, "Input decompression");
+	}
+
+	/**
+	 * Reads the given stream in a background thread.
+	 *
+	 * @param input
+	 *            the stream, typically a decompressing one
+	 */
+	public BlockInputStream(final InputStream input) {
+		this.end = Long.MAX_VALUE;
+		ThreadPool.createNew(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long position = 0;
+					for (;;) {
+						Block b = getFreeBlock(CHUNK_SIZE);
+						if (b == null) {
+							break;
+						}
+						int n = 0;
+						while (n < CHUNK_SIZE) {
+							int r = input.read(b.data, n, CHUNK_SIZE - n);
+							if (r < 0) {
+								break;
+							}
+							n += r;
+						}
+						if (n == 0) {
+							break;
+						}
+						b.length = n;
+						b.start = position;
+						position += n;
+						putFullBlock(b);
+					}
+				} catch (Throwable e) {
+					failed(e);
+				} finally {
+					finished();
+					try {
+						input.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}, "Input decompression");
+	}
+
+	// Returns null when the stream is closed
+	private synchronized Block getFreeBlock(int size) {
+		while (!closed && free.isEmpty() && nBlocks == QUEUE_SIZE) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+		if (closed) {
+			return null;
+		}
+		if (!free.isEmpty()) {
+			return free.removeFirst();
+		}
+		nBlocks++;
+		return new Block(size);
+	}
+
+	private synchronized void putFullBlock(Block b) {
+		full.addLast(b);
+		notifyAll();
+	}
+
+	private synchronized void failed(Throwable e) {
+		error = e;
+	}
+
+	private synchronized void finished() {
+		done = true;
+		notifyAll();
+	}
+
+	private synchronized Block nextBlock() throws IOException {
+		while (full.isEmpty() && !done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+		if (full.isEmpty()) {
+			if (error != null) {
+				throw new IOException("Decompression of the input failed",
+						error);
+			}
+			return null;
+		}
+		return full.removeFirst();
+	}
+
+	private synchronized void releaseBlock(Block b) {
+		free.addLast(b);
+		notifyAll();
+	}
+
+	// Returns false at the end of the stream
+	private boolean ensureCurrent() throws IOException {
+		while (current == null || currentPos == current.length) {
+			if (current != null) {
+				releaseBlock(current);
+				current = null;
+			}
+			Block b = nextBlock();
+			if (b == null) {
+				return false;
+			}
+			if (b.start >= end && endPosition == Long.MAX_VALUE) {
+				endPosition = delivered;
+			}
+			current = b;
+			currentPos = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureCurrent()) {
+			return -1;
+		}
+		delivered++;
+		return current.data[currentPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureCurrent()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - currentPos);
+		System.arraycopy(current.data, currentPos, b, off, n);
+		currentPos += n;
+		delivered += n;
+		return n;
+	}
+
+	/**
+	 * @return the number of bytes read before the first block that starts at
+	 *         or after the <code>end</code> given to the constructor, or
+	 *         <code>Long.MAX_VALUE</code> if that block has not been read yet
+	 */
+	public long getEndPosition() {
+		return endPosition;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
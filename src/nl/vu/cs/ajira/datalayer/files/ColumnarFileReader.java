@@ -0,0 +1,284 @@
+package nl.vu.cs.ajira.datalayer.files;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import nl.vu.cs.ajira.data.types.DataProvider;
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.data.types.bytearray.BDataInput;
+
+import org.iq80.snappy.Snappy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the files written by {@link ColumnarFileWriter}. Only the fields in
+ * the projection are decoded, in the order of the projection, like the
+ * {@link nl.vu.cs.ajira.actions.Project} action would return them. The blocks
+ * whose statistics do not pass the {@link BlockFilter} are skipped without
+ * decoding them. Both are set through the parameters of
+ * {@link nl.vu.cs.ajira.actions.ReadFromFiles}.
+ */
+public class ColumnarFileReader implements FileReader {
+
+	static final Logger log = LoggerFactory.getLogger(ColumnarFileReader.class);
+
+	/**
+	 * Decides, from the statistics of a block, whether the block can hold
+	 * tuples that are of interest. Implementations must have a public
+	 * parameterless constructor.
+	 */
+	public interface BlockFilter {
+		/**
+		 * @param min
+		 *            the minimum value of every field of the block, or
+		 *            <code>null</code> for the fields without statistics
+		 * @param max
+		 *            the maximum value of every field of the block, or
+		 *            <code>null</code> for the fields without statistics
+		 * @return <code>false</code> if the block can be skipped
+		 */
+		public boolean mayMatch(SimpleData[] min, SimpleData[] max);
+	}
+
+	private static class Column {
+		int type = -1;
+		int encoding;
+		boolean needed;
+		byte[] raw = new byte[0];
+		final BDataInput input = new BDataInput();
+		SimpleData value;
+		SimpleData[] dictionary;
+	}
+
+	private DataInputStream in = null;
+	private byte[] projection = null;
+	private BlockFilter filter = null;
+
+	private Column[] columns = new Column[0];
+	private int[] lengths = new int[0];
+	private SimpleData[] min = new SimpleData[0];
+	private SimpleData[] max = new SimpleData[0];
+	private byte[] chunk = new byte[0];
+	private int rowsLeft = 0;
+	private SimpleData[] row = null;
+	private boolean hasRow = false;
+	private long skippedBlocks = 0;
+
+	/**
+	 * Sets the fields to read and the filter of the blocks. Must be called
+	 * before {@link #init(File)}.
+	 *
+	 * @param projection
+	 *            the positions of the fields to return, or <code>null</code>
+	 *            for all the fields
+	 * @param filterClass
+	 *            the class name of a {@link BlockFilter}, or <code>null</code>
+	 */
+	public void configure(byte[] projection, String filterClass) {
+		this.projection = projection;
+		if (filterClass != null) {
+			try {
+				filter = Class.forName(filterClass)
+						.asSubclass(BlockFilter.class).newInstance();
+			} catch (Throwable e) {
+				log.error("Could not load block filter " + filterClass, e);
+				throw new Error("Could not load block filter " + filterClass,
+						e);
+			}
+		}
+	}
+
+	@Override
+	public void init(File file) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("Reading columnar file " + file.getPath());
+		}
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				file), 64 * 1024));
+		byte[] magic = new byte[ColumnarFileWriter.MAGIC.length];
+		in.readFully(magic);
+		for (int i = 0; i < magic.length; ++i) {
+			if (magic[i] != ColumnarFileWriter.MAGIC[i]) {
+				in.close();
+				throw new IOException(file + " is not a columnar file");
+			}
+		}
+	}
+
+	private void skip(int n) throws IOException {
+		while (n > 0) {
+			int s = in.skipBytes(n);
+			if (s <= 0) {
+				throw new EOFException();
+			}
+			n -= s;
+		}
+	}
+
+	private SimpleData readValue(int type) throws IOException {
+		SimpleData v = DataProvider.get().get(type);
+		v.readFrom(in);
+		return v;
+	}
+
+	/**
+	 * Reads the next block.
+	 *
+	 * @return <code>false</code> at the end of the file
+	 */
+	private boolean readBlock() throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return false;
+		}
+		int nRows = (first << 24) | (in.readUnsignedByte() << 16)
+				| (in.readUnsignedShort());
+		int nColumns = in.readInt();
+		if (columns.length != nColumns) {
+			columns = new Column[nColumns];
+			for (int i = 0; i < nColumns; ++i) {
+				columns[i] = new Column();
+			}
+			lengths = new int[nColumns];
+			min = new SimpleData[nColumns];
+			max = new SimpleData[nColumns];
+		}
+
+		// Read the headers
+		int[] rawLengths = new int[nColumns];
+		for (int i = 0; i < nColumns; ++i) {
+			Column c = columns[i];
+			int type = in.readUnsignedByte();
+			if (type != c.type) {
+				c.type = type;
+				c.value = DataProvider.get().get(type);
+			}
+			c.encoding = in.readUnsignedByte();
+			if (in.readBoolean()) {
+				min[i] = readValue(type);
+				max[i] = readValue(type);
+			} else {
+				min[i] = max[i] = null;
+			}
+			rawLengths[i] = in.readInt();
+			lengths[i] = in.readInt();
+			c.needed = projection == null;
+		}
+		if (projection != null) {
+			for (byte f : projection) {
+				if (f >= nColumns) {
+					throw new IOException("Field " + f
+							+ " does not exist: the tuples have " + nColumns
+							+ " fields");
+				}
+				columns[f].needed = true;
+			}
+		}
+
+		if (filter != null && !filter.mayMatch(min, max)) {
+			for (int i = 0; i < nColumns; ++i) {
+				skip(lengths[i]);
+			}
+			skippedBlocks++;
+			rowsLeft = 0;
+			return true;
+		}
+
+		// Read the chunks of the fields in the projection
+		for (int i = 0; i < nColumns; ++i) {
+			Column c = columns[i];
+			if (!c.needed) {
+				skip(lengths[i]);
+				continue;
+			}
+			if (chunk.length < lengths[i]) {
+				chunk = new byte[lengths[i]];
+			}
+			in.readFully(chunk, 0, lengths[i]);
+			if (c.raw.length < rawLengths[i]) {
+				c.raw = new byte[rawLengths[i]];
+			}
+			Snappy.uncompress(chunk, 0, lengths[i], c.raw, 0);
+			c.input.setCurrentPosition(c.raw, 0);
+			if (c.encoding == ColumnarFileWriter.DICTIONARY) {
+				c.dictionary = new SimpleData[c.input.readInt()];
+				for (int j = 0; j < c.dictionary.length; ++j) {
+					c.dictionary[j] = DataProvider.get().get(c.type);
+					c.dictionary[j].readFrom(c.input);
+				}
+			} else {
+				c.dictionary = null;
+			}
+		}
+
+		int nFields = projection == null ? nColumns : projection.length;
+		if (row == null || row.length != nFields) {
+			row = new SimpleData[nFields];
+		}
+		for (int i = 0; i < nFields; ++i) {
+			row[i] = columns[projection == null ? i : projection[i]].value;
+		}
+		rowsLeft = nRows;
+		return true;
+	}
+
+	/**
+	 * Decodes the next tuple, and returns whether it can be obtained by
+	 * {@link #getTuple(Tuple)}.
+	 */
+	@Override
+	public boolean next() throws IOException {
+		while (rowsLeft == 0) {
+			if (in == null || !readBlock()) {
+				hasRow = false;
+				close();
+				return false;
+			}
+		}
+		for (Column c : columns) {
+			if (!c.needed) {
+				continue;
+			}
+			if (c.dictionary != null) {
+				c.dictionary[c.input.readInt()].copyTo(c.value);
+			} else {
+				c.value.readFrom(c.input);
+			}
+		}
+		rowsLeft--;
+		hasRow = true;
+		return true;
+	}
+
+	@Override
+	public void getTuple(Tuple tuple) {
+		if (!hasRow) {
+			throw new NoSuchElementException("No tuple available");
+		}
+		tuple.set(row);
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (in != null) {
+				in.close();
+				if (log.isDebugEnabled() && skippedBlocks > 0) {
+					log.debug("Skipped " + skippedBlocks + " blocks");
+				}
+			}
+		} catch (Throwable e) {
+			if (log.isInfoEnabled()) {
+				log.info("Got exception while closing file (ignored)", e);
+			}
+		}
+		in = null;
+	}
+}
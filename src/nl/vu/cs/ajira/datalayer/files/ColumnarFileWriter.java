@@ -0,0 +1,243 @@
+package nl.vu.cs.ajira.datalayer.files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.ajira.data.types.DataProvider;
+import nl.vu.cs.ajira.data.types.SimpleData;
+import nl.vu.cs.ajira.data.types.TString;
+import nl.vu.cs.ajira.data.types.Tuple;
+import nl.vu.cs.ajira.utils.Consts;
+
+import org.iq80.snappy.Snappy;
+
+/**
+ * Writes tuples in a binary, columnar format that {@link ColumnarFileReader}
+ * reads back without parsing text. The tuples are grouped in blocks of at most
+ * {@link #MAX_BLOCK_ROWS} tuples. Within a block, the values of every field are
+ * stored together, in a chunk that is compressed with Snappy, so that a reader
+ * can skip the fields it does not need. The chunks of scalar types also hold
+ * the minimum and the maximum value of the block, so that a reader can skip
+ * whole blocks. The strings are dictionary-encoded when they repeat enough.
+ *
+ * The format of a file is:
+ *
+ * <pre>
+ * file   := MAGIC block*
+ * block  := nRows:int nColumns:int header[nColumns] chunk[nColumns]
+ * header := type:byte encoding:byte hasStats:boolean [min max] rawLength:int length:int
+ * chunk  := the Snappy compression of rawLength bytes:
+ *   PLAIN:      value[nRows]
+ *   DICTIONARY: nEntries:int value[nEntries] index:int[nRows]
+ * </pre>
+ *
+ * where the type is the id of the {@link SimpleData} class of the field (see
+ * {@link DataProvider}), and the values are written with
+ * {@link SimpleData#writeTo(java.io.DataOutput)}. All the tuples of a block
+ * have the same fields: a tuple with other fields starts a new block.
+ *
+ * Use it with {@link nl.vu.cs.ajira.actions.WriteToFiles#S_CUSTOM_WRITER}.
+ */
+public class ColumnarFileWriter implements FileWriter {
+
+	public static final byte[] MAGIC = new byte[] { 'A', 'J', 'C', 'O', 'L',
+			1 };
+	public static final int MAX_BLOCK_ROWS = 64 * 1024;
+	public static final int MAX_BLOCK_BYTES = 4 * 1024 * 1024;
+
+	static final int PLAIN = 0;
+	static final int DICTIONARY = 1;
+
+	private static class Column {
+		final int type;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream data = new DataOutputStream(bytes);
+		boolean hasStats;
+		SimpleData min;
+		SimpleData max;
+		// Used by the string columns instead of data
+		Map<String, Integer> dictionary;
+		List<String> entries;
+		int[] indices;
+		long stringBytes;
+
+		Column(int type) {
+			this.type = type;
+			hasStats = hasStats(type);
+			if (hasStats) {
+				min = DataProvider.get().get(type);
+				max = DataProvider.get().get(type);
+			}
+			if (type == Consts.DATATYPE_TSTRING) {
+				dictionary = new HashMap<String, Integer>();
+				entries = new ArrayList<String>();
+				indices = new int[1024];
+			}
+		}
+
+		long size() {
+			return dictionary != null ? stringBytes : bytes.size();
+		}
+	}
+
+	private DataOutputStream out = null;
+	private Column[] columns = null;
+	private int nRows = 0;
+	private final TString string = new TString();
+
+	/**
+	 * @return true if the values of the type are ordered, so that their
+	 *         minimum and maximum are useful to skip blocks
+	 */
+	static boolean hasStats(int type) {
+		return type == Consts.DATATYPE_TLONG || type == Consts.DATATYPE_TINT
+				|| type == Consts.DATATYPE_TDOUBLE
+				|| type == Consts.DATATYPE_TSTRING
+				|| type == Consts.DATATYPE_TBYTE
+				|| type == Consts.DATATYPE_TBYTESLICE;
+	}
+
+	@Override
+	public void init(File file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 64 * 1024));
+		out.write(MAGIC);
+	}
+
+	private boolean sameColumns(Tuple tuple) {
+		if (columns.length != tuple.getNElements()) {
+			return false;
+		}
+		for (int i = 0; i < columns.length; ++i) {
+			if (columns[i].type != tuple.get(i).getIdDatatype()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void write(Tuple tuple) throws IOException {
+		if (columns != null && !sameColumns(tuple)) {
+			flush();
+		}
+		if (columns == null) {
+			columns = new Column[tuple.getNElements()];
+			for (int i = 0; i < columns.length; ++i) {
+				columns[i] = new Column(tuple.get(i).getIdDatatype());
+			}
+		}
+		long size = 0;
+		for (int i = 0; i < columns.length; ++i) {
+			Column c = columns[i];
+			SimpleData value = tuple.get(i);
+			if (c.dictionary != null) {
+				addString(c, ((TString) value).getValue());
+			} else {
+				value.writeTo(c.data);
+			}
+			if (c.hasStats) {
+				if (nRows == 0) {
+					value.copyTo(c.min);
+					value.copyTo(c.max);
+				} else if (value.compareTo(c.min) < 0) {
+					value.copyTo(c.min);
+				} else if (value.compareTo(c.max) > 0) {
+					value.copyTo(c.max);
+				}
+			}
+			size += c.size();
+		}
+		nRows++;
+		if (nRows == MAX_BLOCK_ROWS || size >= MAX_BLOCK_BYTES) {
+			flush();
+		}
+	}
+
+	private void addString(Column c, String s) {
+		if (s == null) {
+			// Null strings cannot be compared
+			c.hasStats = false;
+		}
+		Integer index = c.dictionary.get(s);
+		if (index == null) {
+			index = c.entries.size();
+			c.dictionary.put(s, index);
+			c.entries.add(s);
+			c.stringBytes += s == null ? 4 : 4 + s.length();
+		}
+		if (nRows == c.indices.length) {
+			c.indices = Arrays.copyOf(c.indices, nRows * 2);
+		}
+		c.indices[nRows] = index;
+		c.stringBytes += 4;
+	}
+
+	private int encodeStrings(Column c) throws IOException {
+		if (c.entries.size() <= nRows / 2) {
+			c.data.writeInt(c.entries.size());
+			for (String s : c.entries) {
+				string.setValue(s);
+				string.writeTo(c.data);
+			}
+			for (int i = 0; i < nRows; ++i) {
+				c.data.writeInt(c.indices[i]);
+			}
+			return DICTIONARY;
+		}
+		for (int i = 0; i < nRows; ++i) {
+			string.setValue(c.entries.get(c.indices[i]));
+			string.writeTo(c.data);
+		}
+		return PLAIN;
+	}
+
+	private void flush() throws IOException {
+		if (nRows == 0) {
+			columns = null;
+			return;
+		}
+		int[] encodings = new int[columns.length];
+		for (int i = 0; i < columns.length; ++i) {
+			Column c = columns[i];
+			encodings[i] = c.dictionary != null ? encodeStrings(c) : PLAIN;
+		}
+		byte[][] chunks = new byte[columns.length][];
+		out.writeInt(nRows);
+		out.writeInt(columns.length);
+		for (int i = 0; i < columns.length; ++i) {
+			Column c = columns[i];
+			byte[] raw = c.bytes.toByteArray();
+			chunks[i] = Snappy.compress(raw);
+			out.writeByte(c.type);
+			out.writeByte(encodings[i]);
+			out.writeBoolean(c.hasStats);
+			if (c.hasStats) {
+				c.min.writeTo(out);
+				c.max.writeTo(out);
+			}
+			out.writeInt(raw.length);
+			out.writeInt(chunks[i].length);
+		}
+		for (byte[] chunk : chunks) {
+			out.write(chunk);
+		}
+		columns = null;
+		nRows = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+}
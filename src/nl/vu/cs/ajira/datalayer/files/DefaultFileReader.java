@@ -17,15 +17,32 @@ import org.slf4j.LoggerFactory;
 
 /**
  * 
- * This class it is used to parse the content of a file.
+ * This class it is used to parse the content of a file. It returns one tuple
+ * per line. It can also read a byte range of an uncompressed file: then it
+ * returns the lines that start in the range. Compressed files are decoded by
+ * a background thread (see {@link BlockInputStream}); the files that are
+ * compressed in blocks (see {@link BlockDecoder}) can be read in ranges too.
  * 
  */
-public class DefaultFileReader implements FileReader {
+public class DefaultFileReader implements SplittableFileReader {
 
 	static final Logger log = LoggerFactory.getLogger(DefaultFileReader.class);
+	private static final int RANGE_BUFFER_SIZE = 64 * 1024;
+
 	protected BufferedReader reader = null;
 	TString currentLine = new TString();
 
+	// Used when reading a byte range
+	private InputStream rangeInput = null;
+	private byte[] buffer;
+	private int bufferPos;
+	private int bufferLen;
+	private long position;
+	private long end;
+	private byte[] line;
+	// Set when reading a range of a file that is compressed in blocks
+	private BlockInputStream blocks = null;
+
 	/**
 	 * Custom constructor.
 	 * 
@@ -39,13 +56,125 @@ public class DefaultFileReader implements FileReader {
 		if (log.isDebugEnabled()) {
 			log.debug("Reading file " + file.getPath());
 		}
-		InputStream input = new FileInputStream(file);
-		if (file.getName().endsWith(".gz")) {
-			input = new GZIPInputStream(input);
+		InputStream input;
+		BlockDecoder decoder = BlockDecoder.open(file);
+		if (decoder != null) {
+			input = new BlockInputStream(decoder, 0, Long.MAX_VALUE);
+		} else if (file.getName().endsWith(".gz")) {
+			input = new BlockInputStream(new GZIPInputStream(
+					new FileInputStream(file)));
+		} else {
+			input = new FileInputStream(file);
 		}
 		reader = new BufferedReader(new InputStreamReader(input));
 	}
 
+	/**
+	 * Initializes the reader to read the lines that start in a byte range
+	 * of the file. Unless the range starts at the beginning of the file, the
+	 * reader starts one byte before the range and skips up to the end of
+	 * that line, so that a line is read exactly once over all the ranges.
+	 * 
+	 * If the file is compressed in blocks, the range must start and end at
+	 * block boundaries. Then the positions in the decoded data are not known
+	 * in advance: unless the range starts at the beginning of the file, the
+	 * reader skips the first line, and it returns the lines that start up to
+	 * and including the first byte of the block at the end of the range.
+	 * 
+	 * @param file
+	 *          the file that will be used for reading.
+	 * @param offset
+	 *          the position of the first byte of the range.
+	 * @param length
+	 *          the number of bytes of the range.
+	 * @throws IOException
+	 * 			in case of trouble.
+	 */
+	@Override
+	public void init(File file, long offset, long length) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("Reading file " + file.getPath() + " from " + offset
+					+ ", " + length + " bytes");
+		}
+		BlockDecoder decoder = BlockDecoder.open(file);
+		if (decoder != null) {
+			blocks = new BlockInputStream(decoder, offset, offset + length);
+			rangeInput = blocks;
+			position = 0;
+		} else if (BlockDecoder.isCompressed(file)) {
+			throw new IOException("Cannot read a range of " + file);
+		} else {
+			FileInputStream input = new FileInputStream(file);
+			position = offset > 0 ? offset - 1 : 0;
+			end = offset + length;
+			input.getChannel().position(position);
+			rangeInput = input;
+		}
+		buffer = new byte[RANGE_BUFFER_SIZE];
+		bufferPos = bufferLen = 0;
+		line = new byte[256];
+		if (offset > 0) {
+			readLine();
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (bufferPos == bufferLen) {
+			bufferPos = 0;
+			bufferLen = Math.max(0, rangeInput.read(buffer));
+		}
+		return bufferPos < bufferLen;
+	}
+
+	/**
+	 * Reads the bytes up to the next line terminator ('\n', '\r' or "\r\n")
+	 * into <code>line</code>.
+	 * 
+	 * @return the number of bytes of the line, or -1 at the end of the file
+	 */
+	private int readLine() throws IOException {
+		int n = 0;
+		while (fill()) {
+			byte b = buffer[bufferPos++];
+			position++;
+			if (b == '\n') {
+				return n;
+			}
+			if (b == '\r') {
+				if (fill() && buffer[bufferPos] == '\n') {
+					bufferPos++;
+					position++;
+				}
+				return n;
+			}
+			if (n == line.length) {
+				byte[] l = new byte[n * 2];
+				System.arraycopy(line, 0, l, 0, n);
+				line = l;
+			}
+			line[n++] = b;
+		}
+		return n > 0 ? n : -1;
+	}
+
+	private boolean nextInRange() throws IOException {
+		boolean inRange;
+		if (blocks != null) {
+			inRange = fill() && position <= blocks.getEndPosition();
+		} else {
+			inRange = position < end;
+		}
+		int n = inRange ? readLine() : -1;
+		if (n < 0) {
+			close();
+			rangeInput = null;
+			currentLine = null;
+			return false;
+		}
+		currentLine.setValue(new String(line, 0, n));
+		return true;
+	}
+
 	/**
 	 * Tries to read one line from the input file, and returns whether
 	 * it can be obtained by {@link #getTuple(Tuple)}.
@@ -57,6 +186,9 @@ public class DefaultFileReader implements FileReader {
 	 */
 	@Override
 	public boolean next() throws IOException {
+		if (rangeInput != null) {
+			return nextInRange();
+		}
 		String s = reader.readLine();
 		if (s == null) {
 			try {
@@ -94,6 +226,9 @@ public class DefaultFileReader implements FileReader {
 			if (reader != null) {
 				reader.close();
 			}
+			if (rangeInput != null) {
+				rangeInput.close();
+			}
 		} catch (Throwable e) {
 			if (log.isInfoEnabled()) {
 				log.info("Got exception while closing reader (ignored)", e);
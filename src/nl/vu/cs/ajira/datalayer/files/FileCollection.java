@@ -8,6 +8,8 @@ import java.util.List;
 /**
  * This class represents a collection of files and provides 
  * the methods that are needed to manipulate the collection. 
+ * An entry of the collection is either a whole file or a byte range
+ * of a file, which is read by a {@link SplittableFileReader}.
  *
  */
 public class FileCollection implements Serializable {
@@ -15,7 +17,11 @@ public class FileCollection implements Serializable {
 	private static final long serialVersionUID = -5088467846029256354L;
 
 	private final List<File> files = new ArrayList<File>();
+	private final List<Long> offsets = new ArrayList<Long>();
+	private final List<Long> lengths = new ArrayList<Long>();
 	long totalSize = 0;
+	private byte[] projection = null;
+	private String blockFilter = null;
 
 	/**
 	 * Adds a file to the list.
@@ -25,8 +31,29 @@ public class FileCollection implements Serializable {
 	 * 		of files.
 	 */
 	public void addFile(File file) {
+		long length = file.length();
 		files.add(file);
-		totalSize += file.length();
+		offsets.add(0L);
+		lengths.add(-1L);
+		totalSize += length;
+	}
+
+	/**
+	 * Adds a byte range of a file to the list. The range holds the lines
+	 * that start in it.
+	 * 
+	 * @param file
+	 * 		The file the range belongs to.
+	 * @param offset
+	 * 		The position of the first byte of the range.
+	 * @param length
+	 * 		The number of bytes of the range.
+	 */
+	public void addFile(File file, long offset, long length) {
+		files.add(file);
+		offsets.add(offset);
+		lengths.add(length);
+		totalSize += length;
 	}
 
 	/**
@@ -48,6 +75,40 @@ public class FileCollection implements Serializable {
 		return totalSize;
 	}
 
+	/**
+	 * Sets the options of the readers that support them, like
+	 * {@link ColumnarFileReader}.
+	 * 
+	 * @param projection
+	 * 		The positions of the fields to read, or <code>null</code>
+	 * 		for all of them.
+	 * @param blockFilter
+	 * 		The class name of a {@link ColumnarFileReader.BlockFilter},
+	 * 		or <code>null</code>.
+	 */
+	public void setReaderOptions(byte[] projection, String blockFilter) {
+		this.projection = projection;
+		this.blockFilter = blockFilter;
+	}
+
+	/**
+	 * 
+	 * @return
+	 * 		The positions of the fields to read, or <code>null</code>.
+	 */
+	public byte[] getProjection() {
+		return projection;
+	}
+
+	/**
+	 * 
+	 * @return
+	 * 		The class name of the filter of the blocks, or <code>null</code>.
+	 */
+	public String getBlockFilter() {
+		return blockFilter;
+	}
+
 	/**
 	 * Returns the String representation of the Object.
 	 */
@@ -75,4 +136,38 @@ public class FileCollection implements Serializable {
 	public File getFile(int i) {
 		return files.get(i);
 	}
+
+	/**
+	 * 
+	 * @param i
+	 * 		The position of the entry that it is looked.
+	 * @return
+	 * 		<code>true</code> if the entry is a byte range of its file,
+	 * 		<code>false</code> if it is the whole file.
+	 */
+	public boolean isRange(int i) {
+		return lengths.get(i) >= 0;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 * 		The position of the entry that it is looked.
+	 * @return
+	 * 		The position of the first byte of the entry in its file.
+	 */
+	public long getOffset(int i) {
+		return offsets.get(i);
+	}
+
+	/**
+	 * 
+	 * @param i
+	 * 		The position of the entry that it is looked.
+	 * @return
+	 * 		The number of bytes of the entry, or -1 if it is the whole file.
+	 */
+	public long getLength(int i) {
+		return lengths.get(i);
+	}
 }
\ No newline at end of file
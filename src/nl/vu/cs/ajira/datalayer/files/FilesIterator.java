@@ -60,9 +60,19 @@ public class FilesIterator extends TupleIterator {
 			}
 
 			if (currentIndex < files.getNFiles()) {
-				File file = files.getFile(currentIndex++);
+				int i = currentIndex++;
+				File file = files.getFile(i);
 				currentItr = cfileReader.newInstance();
-				currentItr.init(file);
+				if (currentItr instanceof ColumnarFileReader) {
+					((ColumnarFileReader) currentItr).configure(
+							files.getProjection(), files.getBlockFilter());
+				}
+				if (files.isRange(i)) {
+					((SplittableFileReader) currentItr).init(file,
+							files.getOffset(i), files.getLength(i));
+				} else {
+					currentItr.init(file);
+				}
 				if (currentItr != null) {
 					return next();
 				} else {
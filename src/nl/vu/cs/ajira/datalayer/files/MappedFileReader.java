@@ -0,0 +1,208 @@
+package nl.vu.cs.ajira.datalayer.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+import nl.vu.cs.ajira.data.types.TByteSlice;
+import nl.vu.cs.ajira.data.types.Tuple;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * This class reads the lines of an uncompressed file through a memory mapping
+ * of the file. Every line is returned as a {@link TByteSlice}, without decoding
+ * it into a <code>String</code>: the slice is a view over an array of the
+ * reader, which is reused for the next line, so reading a line does not
+ * allocate anything. Together with {@link nl.vu.cs.ajira.utils.ByteTokenizer},
+ * line-oriented actions can process the input without allocating per line.
+ *
+ * The file is mapped in windows of at most {@link #MAP_SIZE} bytes, so a line
+ * cannot be longer than that. Use it with
+ * {@link nl.vu.cs.ajira.actions.ReadFromFiles#S_CUSTOM_READER}.
+ *
+ */
+public class MappedFileReader implements SplittableFileReader {
+
+	static final Logger log = LoggerFactory.getLogger(MappedFileReader.class);
+
+	public static final long MAP_SIZE = 64 * 1024 * 1024;
+
+	private RandomAccessFile file = null;
+	private FileChannel channel = null;
+	private long fileLength;
+	private MappedByteBuffer map = null;
+	private long mapStart;
+	private long position;
+	private long end;
+
+	private byte[] line = new byte[256];
+	private final TByteSlice currentLine = new TByteSlice();
+	private boolean hasLine = false;
+
+	/**
+	 * Initializes the reader to read the whole file.
+	 *
+	 * @param file
+	 *          the file that will be used for reading.
+	 * @throws IOException
+	 * 			in case of trouble.
+	 */
+	@Override
+	public void init(File file) throws IOException {
+		init(file, 0, file.length());
+	}
+
+	/**
+	 * Initializes the reader to read the lines that start in a byte range
+	 * of the file, like {@link DefaultFileReader#init(File, long, long)}.
+	 *
+	 * @param file
+	 *          the file that will be used for reading.
+	 * @param offset
+	 *          the position of the first byte of the range.
+	 * @param length
+	 *          the number of bytes of the range.
+	 * @throws IOException
+	 * 			in case of trouble.
+	 */
+	@Override
+	public void init(File file, long offset, long length) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("Mapping file " + file.getPath() + " from " + offset
+					+ ", " + length + " bytes");
+		}
+		if (BlockDecoder.isCompressed(file)) {
+			throw new IOException("Cannot map compressed file " + file);
+		}
+		this.file = new RandomAccessFile(file, "r");
+		channel = this.file.getChannel();
+		fileLength = channel.size();
+		position = offset > 0 ? offset - 1 : 0;
+		end = offset + length;
+		if (offset > 0) {
+			readLine();
+		}
+	}
+
+	private void map() throws IOException {
+		mapStart = position;
+		map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart,
+				Math.min(MAP_SIZE, fileLength - mapStart));
+	}
+
+	private void copyLine(int from, int n) {
+		if (n > line.length) {
+			line = new byte[Math.max(n, line.length * 2)];
+		}
+		map.position(from);
+		map.get(line, 0, n);
+	}
+
+	/**
+	 * Copies the bytes up to the next line terminator ('\n', '\r' or "\r\n")
+	 * into <code>line</code>.
+	 *
+	 * @return the number of bytes of the line, or -1 at the end of the file
+	 */
+	private int readLine() throws IOException {
+		if (position >= fileLength) {
+			return -1;
+		}
+		for (;;) {
+			if (map == null || position < mapStart
+					|| position >= mapStart + map.limit()) {
+				map();
+			}
+			int from = (int) (position - mapStart);
+			int limit = map.limit();
+			for (int i = from; i < limit; ++i) {
+				byte b = map.get(i);
+				if (b == '\n' || b == '\r') {
+					int n = i - from;
+					copyLine(from, n);
+					position = mapStart + i + 1;
+					if (b == '\r' && position < fileLength) {
+						if (i + 1 == limit) {
+							map();
+						}
+						if (map.get((int) (position - mapStart)) == '\n') {
+							position++;
+						}
+					}
+					return n;
+				}
+			}
+			if (mapStart + limit == fileLength) {
+				// Last line, without terminator
+				int n = limit - from;
+				copyLine(from, n);
+				position = fileLength;
+				return n;
+			}
+			if (from == 0) {
+				throw new IOException("Line longer than " + MAP_SIZE
+						+ " bytes at position " + position);
+			}
+			// The line crosses the end of the window: map from its start
+			map();
+		}
+	}
+
+	/**
+	 * Tries to read one line from the input file, and returns whether
+	 * it can be obtained by {@link #getTuple(Tuple)}.
+	 *
+	 * @throws IOException
+	 * 			in case of trouble.
+	 * @return
+	 *			<code>true</code> if it was possible to read a line, <code>false</code> otherwise.
+	 */
+	@Override
+	public boolean next() throws IOException {
+		int n = channel != null && position < end ? readLine() : -1;
+		if (n < 0) {
+			close();
+			hasLine = false;
+			return false;
+		}
+		currentLine.set(line, 0, n);
+		hasLine = true;
+		return true;
+	}
+
+	/**
+	 * Updates the field of the tuple with a view over the last line read.
+	 *
+	 * @param tuple
+	 *          the tuple that will be updated with the line.
+	 */
+	@Override
+	public void getTuple(Tuple tuple) {
+		if (!hasLine) {
+			throw new NoSuchElementException("No tuple available");
+		}
+		tuple.set(currentLine);
+	}
+
+	@Override
+	public void close() {
+		map = null;
+		channel = null;
+		try {
+			if (file != null) {
+				file.close();
+			}
+		} catch (Throwable e) {
+			if (log.isInfoEnabled()) {
+				log.info("Got exception while closing file (ignored)", e);
+			}
+		}
+		file = null;
+	}
+}
@@ -0,0 +1,33 @@
+package nl.vu.cs.ajira.datalayer.files;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.vu.cs.ajira.actions.ReadFromFiles;
+
+/**
+ * A {@link FileReader} that can read a byte range of a file instead of the
+ * whole file. {@link ReadFromFiles} only cuts large files into ranges when the
+ * reader implements this interface, so that a single large file is read by
+ * several chains in parallel.
+ */
+public interface SplittableFileReader extends FileReader {
+
+	/**
+	 * Initializes this <code>FileReader</code> to read the tuples that start
+	 * in the given byte range. The tuple that crosses the start of the range
+	 * belongs to the previous range, the tuple that crosses its end belongs
+	 * to this one.
+	 *
+	 * @param file
+	 *            the file to be read
+	 * @param offset
+	 *            the position of the first byte of the range
+	 * @param length
+	 *            the number of bytes of the range
+	 * @throws IOException
+	 *             in case of trouble (for instance when the file could not be
+	 *             opened)
+	 */
+	public void init(File file, long offset, long length) throws IOException;
+}
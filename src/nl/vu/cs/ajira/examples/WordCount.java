@@ -10,6 +10,7 @@ import nl.vu.cs.ajira.actions.ActionSequence;
 import nl.vu.cs.ajira.actions.GroupBy;
 import nl.vu.cs.ajira.actions.ReadFromFiles;
 import nl.vu.cs.ajira.actions.WriteToFiles;
+import nl.vu.cs.ajira.actions.support.Combiner;
 import nl.vu.cs.ajira.data.types.TBag;
 import nl.vu.cs.ajira.data.types.TInt;
 import nl.vu.cs.ajira.data.types.TLong;
@@ -75,6 +76,20 @@ public class WordCount {
 		}
 	}
 
+	/**
+	 * 
+	 * This combiner pre-aggregates the counts of the same word before they are
+	 * sent to the node that executes <code>SumCounts</code>.
+	 * 
+	 */
+	public static class SumCombiner extends Combiner {
+		@Override
+		public void combine(Tuple accumulator, Tuple tuple) {
+			TInt count = (TInt) accumulator.get(1);
+			count.setValue(count.getValue() + ((TInt) tuple.get(1)).getValue());
+		}
+	}
+
 	public static Job createJob(String inDir, String outDir)
 			throws ActionNotConfiguredException {
 		Job job = new Job();
@@ -93,6 +108,7 @@ public class WordCount {
 		action.setParamStringArray(GroupBy.SA_TUPLE_FIELDS,
 				TString.class.getName(), TInt.class.getName());
 		action.setParamByteArray(GroupBy.BA_FIELDS_TO_GROUP, (byte) 0);
+		action.setParamString(GroupBy.S_COMBINER, SumCombiner.class.getName());
 		actions.add(action);
 
 		// Sum the counts
@@ -1,62 +1,677 @@
 package nl.vu.cs.ajira.mgmt;
 
+import ibis.util.ThreadPool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 
 import nl.vu.cs.ajira.storage.Factory;
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
+import nl.vu.cs.ajira.utils.Configuration;
 import nl.vu.cs.ajira.utils.Consts;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the memory used by this node.
+ * 
+ * The containers of the tuples are accounted for against a fixed budget (the
+ * {@link Consts#MEMORY_BUDGET} parameter, by default a fraction of the heap,
+ * or of the direct memory if the containers are off-heap). Every container
+ * handed out by a bucket or by the network layer reserves its bytes with
+ * {@link #reserve(int, int, long, Spillable)}. When the budget is exhausted,
+ * the reservation waits while the registered {@link Spillable}s are asked to
+ * spill their tuples to disk, largest first. If there is nothing left to
+ * spill, or no memory comes free within {@link Consts#MEMORY_MAX_WAIT}
+ * milliseconds, the reservation goes over budget rather than blocking forever.
+ * A caller that holds a lock must not wait: it reserves without waiting, and
+ * calls {@link #awaitBudget(int, int, Spillable)} once the lock is released.
+ * 
+ * A budget smaller than a few containers makes the buckets spill tiny files.
+ * The reservations and the waits are reported to the
+ * {@link StatisticsCollector} per submission.
+ * 
+ * The off-heap memory of the containers is allocated with
+ * {@link #allocateDirect(int)} and is accounted for explicitly, up to the
+ * maximum set with <code>-XX:MaxDirectMemorySize</code> (by default, the
+ * maximum heap size).
+ */
 public class MemoryManager {
 
+	static final Logger log = LoggerFactory.getLogger(MemoryManager.class);
+
+	private static final StatisticsCollector.Counter RESERVED = StatisticsCollector.counter("MemoryManager: bytes reserved");
+	private static final StatisticsCollector.Counter WAITS = StatisticsCollector.counter("MemoryManager: reservations that waited");
+	private static final StatisticsCollector.Counter WAIT_TIME = StatisticsCollector.counter("MemoryManager: time waiting for memory (ms)");
+	private static final StatisticsCollector.Histogram WAIT_LATENCY = StatisticsCollector.histogram("MemoryManager: time waiting for memory (ms)");
+	private static final StatisticsCollector.Counter OVER_BUDGET = StatisticsCollector.counter("MemoryManager: reservations over budget");
+
+	// How long a reservation waits before asking for the next spill
+	private static final long SPILL_INTERVAL = 50;
+
+	/**
+	 * Something that keeps tuples in memory and can move them to disk when the
+	 * budget is exhausted.
+	 */
+	public interface Spillable {
+		/**
+		 * Called without holding any lock of the memory manager, possibly by
+		 * a thread that holds the lock of another spillable: it must not
+		 * block. An estimate is enough.
+		 * 
+		 * @return the number of bytes that {@link #spill()} would free
+		 */
+		long getSpillableBytes();
+
+		/**
+		 * Starts writing the tuples kept in memory to disk. Their memory is
+		 * released when the write is done. Called in a separate thread.
+		 */
+		void spill();
+	}
+
+	/**
+	 * The memory reserved by the containers of a submission.
+	 */
+	public static final class Reservation {
+		final int submissionNode;
+		final int submissionId;
+		long bytes;
+		boolean closed;
+
+		Reservation(int submissionNode, int submissionId) {
+			this.submissionNode = submissionNode;
+			this.submissionId = submissionId;
+		}
+	}
+
+	/**
+	 * Tracks a direct buffer, so that its size is subtracted when it is
+	 * garbage collected without being freed.
+	 */
+	private static final class DirectRef extends WeakReference<ByteBuffer> {
+		final int size;
+		final int hash;
+		DirectRef next;
+
+		DirectRef(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			size = buffer.capacity();
+			hash = System.identityHashCode(buffer);
+		}
+	}
+
+	private static final Method unsafeInvokeCleaner;
+	private static final Object unsafe;
+
+	static {
+		Method m = null;
+		Object u = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = f.get(null);
+			m = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Throwable e) {
+			// Not available: the buffers are released by the garbage collector.
+			m = null;
+		}
+		unsafeInvokeCleaner = m;
+		unsafe = u;
+	}
+
 	private final static MemoryManager instance = new MemoryManager();
 
 	private final List<Factory<? extends WritableContainer<?>>> factories = new ArrayList<Factory<? extends WritableContainer<?>>>();
-	private final Random r = new Random();
-
-	private long bytesUsed;
-	private long bytesMax;
-	private long bytesAvailable;
-	private long cachedObjects;
-	private long sizeCache;
 
 	private long bytesCanBeRequested;
 
+	private final Map<Integer, DirectRef> directBuffers = new HashMap<Integer, DirectRef>();
+	private final ReferenceQueue<ByteBuffer> collectedBuffers = new ReferenceQueue<ByteBuffer>();
+	private final long maxOffHeapBytes = getMaxDirectMemory();
+	private long offHeapBytes;
+
+	// The budget of the containers. All the fields below are protected by
+	// budgetLock.
+	private final Object budgetLock = new Object();
+	private long budget = (long) (Runtime.getRuntime().maxMemory() * Consts.MAX_MEMORY_TO_USE);
+	private long maxWait = 1000;
+	private long reserved;
+	private final Map<Integer, Reservation> reservations = new HashMap<Integer, Reservation>();
+	private final Set<Spillable> spillables = new HashSet<Spillable>();
+	private final Set<Spillable> spilling = new HashSet<Spillable>();
+
+	private StatisticsCollector stats;
+
 	private MemoryManager() {
 		doHouseKeeping();
 	}
 
+	private static long getMaxDirectMemory() {
+		try {
+			for (String arg : ManagementFactory.getRuntimeMXBean()
+					.getInputArguments()) {
+				if (arg.startsWith("-XX:MaxDirectMemorySize=")) {
+					String v = arg.substring(arg.indexOf('=') + 1)
+							.toLowerCase();
+					long unit = 1;
+					char last = v.charAt(v.length() - 1);
+					if (last == 'k') {
+						unit = 1024;
+					} else if (last == 'm') {
+						unit = 1024 * 1024;
+					} else if (last == 'g') {
+						unit = 1024 * 1024 * 1024;
+					}
+					if (unit > 1) {
+						v = v.substring(0, v.length() - 1);
+					}
+					return Long.parseLong(v) * unit;
+				}
+			}
+		} catch (Throwable e) {
+			// Use the default
+		}
+		return Runtime.getRuntime().maxMemory();
+	}
+
 	public static MemoryManager getInstance() {
 		return instance;
 	}
 
+	/**
+	 * Reads the budget of the containers from the configuration.
+	 * 
+	 * @param conf
+	 *            the configuration of the cluster
+	 * @param stats
+	 *            where the reservations are reported, or <code>null</code>
+	 */
+	public void init(Configuration conf, StatisticsCollector stats) {
+		long max = conf.getBoolean(Consts.OFF_HEAP_CONTAINERS, false) ? maxOffHeapBytes
+				: Runtime.getRuntime().maxMemory();
+		synchronized (budgetLock) {
+			budget = conf.getLong(Consts.MEMORY_BUDGET,
+					(long) (max * Consts.MAX_MEMORY_TO_USE));
+			maxWait = conf.getLong(Consts.MEMORY_MAX_WAIT, maxWait);
+			this.stats = stats;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Memory budget of the containers: " + budget + " bytes");
+		}
+	}
+
 	public void doHouseKeeping() {
-		// Calculate actual memory space. If memory runs out, start cleaning up
-		// the factories.
-		Runtime r = Runtime.getRuntime();
-		bytesUsed = r.totalMemory() - r.freeMemory();
-		bytesMax = r.maxMemory();
-		long maxAvailableMemory = (long) (bytesMax * Consts.MAX_MEMORY_TO_USE);
-		bytesAvailable = Math.min(maxAvailableMemory, bytesMax - bytesUsed);
-
-		// Calculates the number of cached objects and their size
-		cachedObjects = 0;
-		sizeCache = 0;
+		// The containers cached by the factories are not reserved. Drop them
+		// when they do not fit in what is left of the budget, or when the heap
+		// is running low anyway.
+		long sizeCache = 0;
 		for (Factory<? extends WritableContainer<?>> factory : factories) {
-			cachedObjects += factory.getNAvailableElements();
-			sizeCache += factory.getEstimatedSizeInBytes(this.r);
+			sizeCache += factory.getSizeInBytes();
 		}
-		sizeCache += cachedObjects * 8; // Space required to keep address to the
-										// objects
-
-		boolean cleanup = bytesAvailable < (maxAvailableMemory * Consts.MIN_MEMORY_SIZE_BEFORE_CLEANING);
-		if (cleanup && sizeCache > bytesAvailable) {
+		long available;
+		synchronized (budgetLock) {
+			available = budget - reserved;
+		}
+		if (sizeCache > available || isMemoryLow()) {
 			for (Factory<? extends WritableContainer<?>> factory : factories) {
 				factory.clean();
 			}
 		}
-		bytesCanBeRequested = bytesAvailable;
+		bytesCanBeRequested = available;
+	}
+
+	/**
+	 * Checks whether the budget of the containers is exhausted, or the heap
+	 * usage exceeds the fraction of the memory that Ajira is allowed to use.
+	 * Memory hungry operators use this to decide when to spill their state to
+	 * disk.
+	 * 
+	 * @return true if memory is running low
+	 */
+	public boolean isMemoryLow() {
+		synchronized (budgetLock) {
+			if (reserved >= budget) {
+				return true;
+			}
+		}
+		Runtime r = Runtime.getRuntime();
+		long used = r.totalMemory() - r.freeMemory();
+		return used > r.maxMemory() * Consts.MAX_MEMORY_TO_USE
+				|| isOffHeapLow();
+	}
+
+	private boolean isOffHeapLow() {
+		return getOffHeapBytes() > maxOffHeapBytes * Consts.MAX_MEMORY_TO_USE;
+	}
+
+	/**
+	 * Registers something that can be asked to spill when the budget is
+	 * exhausted.
+	 */
+	public void registerSpillable(Spillable s) {
+		synchronized (budgetLock) {
+			spillables.add(s);
+		}
+	}
+
+	public void unregisterSpillable(Spillable s) {
+		synchronized (budgetLock) {
+			spillables.remove(s);
+		}
+	}
+
+	/**
+	 * Reserves memory for a container of a submission. If the budget is
+	 * exhausted, asks the spillables to spill, largest first, and waits until
+	 * enough memory is released or {@link Consts#MEMORY_MAX_WAIT} milliseconds
+	 * have passed. Must not be called while holding a lock that the spills or
+	 * the releases of memory may need.
+	 * 
+	 * @param submissionNode
+	 *            the node that submitted the job
+	 * @param submissionId
+	 *            the submission
+	 * @param bytes
+	 *            the number of bytes to reserve
+	 * @param requester
+	 *            the spillable on behalf of which the memory is reserved, which
+	 *            is not asked to spill, or <code>null</code>
+	 * @return the reservation of the submission, to be passed to
+	 *         {@link #resize(Reservation, long)} and
+	 *         {@link #release(Reservation, long)}
+	 */
+	public Reservation reserve(int submissionNode, int submissionId,
+			long bytes, Spillable requester) {
+		return reserve(submissionNode, submissionId, bytes, requester, true);
+	}
+
+	/**
+	 * Same as {@link #reserve(int, int, long, Spillable)}, but if
+	 * <code>wait</code> is false the memory is reserved at once, and a spill
+	 * is requested if the budget is exceeded.
+	 */
+	public Reservation reserve(int submissionNode, int submissionId,
+			long bytes, Spillable requester, boolean wait) {
+		boolean[] overBudget = new boolean[1];
+		long startWait = wait ? await(bytes, requester, overBudget) : 0;
+		Reservation r;
+		boolean exhausted;
+		StatisticsCollector stats;
+		synchronized (budgetLock) {
+			r = grant(submissionNode, submissionId, bytes);
+			exhausted = reserved > budget;
+			stats = this.stats;
+		}
+		if (!wait && exhausted) {
+			overBudget[0] = true;
+			requestSpill(requester);
+		}
+
+		if (stats != null) {
+			stats.addCounter(submissionNode, submissionId, RESERVED, bytes);
+		}
+		report(stats, submissionNode, submissionId, startWait, overBudget[0]);
+		if (overBudget[0] && log.isDebugEnabled()) {
+			log.debug("Reservation of " + bytes + " bytes goes over budget");
+		}
+		return r;
+	}
+
+	/**
+	 * Waits, as {@link #reserve(int, int, long, Spillable)} does, until the
+	 * memory reserved is within the budget. Called by those that reserved
+	 * memory without waiting while they held a lock, once it is released.
+	 * 
+	 * @param submissionNode
+	 *            the node that submitted the job
+	 * @param submissionId
+	 *            the submission
+	 * @param requester
+	 *            the spillable that waits, which is not asked to spill, or
+	 *            <code>null</code>
+	 */
+	public void awaitBudget(int submissionNode, int submissionId,
+			Spillable requester) {
+		boolean[] overBudget = new boolean[1];
+		long startWait = await(0, requester, overBudget);
+		StatisticsCollector stats;
+		synchronized (budgetLock) {
+			stats = this.stats;
+		}
+		report(stats, submissionNode, submissionId, startWait, overBudget[0]);
+	}
+
+	/**
+	 * @return true if more memory is reserved than the budget allows
+	 */
+	public boolean isOverBudget() {
+		synchronized (budgetLock) {
+			return reserved > budget;
+		}
+	}
+
+	/*
+	 * Waits until bytes more fit in the budget, asking the spillables other
+	 * than the requester to spill. Gives up, and sets overBudget[0], when
+	 * nothing more can be spilled or after maxWait milliseconds.
+	 * 
+	 * Returns the time the wait started, or 0 if it did not wait.
+	 */
+	private long await(long bytes, Spillable requester, boolean[] overBudget) {
+		long startWait = 0;
+		for (;;) {
+			synchronized (budgetLock) {
+				if (reserved + bytes <= budget || reserved == 0) {
+					return startWait;
+				}
+				if (startWait == 0) {
+					startWait = System.currentTimeMillis();
+				} else if (System.currentTimeMillis() - startWait >= maxWait) {
+					overBudget[0] = true;
+					return startWait;
+				}
+			}
+			boolean spilled = requestSpill(requester);
+			synchronized (budgetLock) {
+				if (!spilled) {
+					// Nothing more can be spilled: waiting would not help
+					overBudget[0] = true;
+					return startWait;
+				}
+				if (reserved + bytes > budget) {
+					try {
+						budgetLock.wait(SPILL_INTERVAL);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+
+	private static void report(StatisticsCollector stats, int submissionNode,
+			int submissionId, long startWait, boolean overBudget) {
+		if (stats == null) {
+			return;
+		}
+		if (startWait != 0) {
+			long waited = System.currentTimeMillis() - startWait;
+			stats.addCounter(submissionNode, submissionId, WAITS, 1);
+			stats.addCounter(submissionNode, submissionId, WAIT_TIME, waited);
+			stats.record(submissionNode, submissionId, WAIT_LATENCY, waited);
+		}
+		if (overBudget) {
+			stats.addCounter(submissionNode, submissionId, OVER_BUDGET, 1);
+		}
+	}
+
+	// Called with the lock on budgetLock
+	private Reservation grant(int submissionNode, int submissionId, long bytes) {
+		Reservation r = reservations.get(submissionId);
+		if (r == null) {
+			r = new Reservation(submissionNode, submissionId);
+			reservations.put(submissionId, r);
+		}
+		r.bytes += bytes;
+		reserved += bytes;
+		return r;
+	}
+
+	/**
+	 * Changes the size of a reservation, when a container grows or shrinks.
+	 * Never waits: if the budget is exceeded, a spill is requested.
+	 * 
+	 * @param r
+	 *            the reservation
+	 * @param delta
+	 *            the number of bytes to add
+	 */
+	public void resize(Reservation r, long delta) {
+		boolean exhausted;
+		StatisticsCollector stats;
+		synchronized (budgetLock) {
+			if (!r.closed) {
+				r.bytes += delta;
+				reserved += delta;
+			}
+			exhausted = reserved > budget;
+			stats = this.stats;
+			if (delta < 0) {
+				budgetLock.notifyAll();
+			}
+		}
+		if (delta > 0) {
+			if (stats != null) {
+				stats.addCounter(r.submissionNode, r.submissionId, RESERVED,
+						delta);
+			}
+			if (exhausted) {
+				requestSpill(null);
+			}
+		}
+	}
+
+	/**
+	 * Gives back memory obtained with
+	 * {@link #reserve(int, int, long, Spillable)}.
+	 * 
+	 * @param r
+	 *            the reservation
+	 * @param bytes
+	 *            the number of bytes to give back
+	 */
+	public void release(Reservation r, long bytes) {
+		synchronized (budgetLock) {
+			if (!r.closed) {
+				r.bytes -= bytes;
+				reserved -= bytes;
+			}
+			budgetLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Releases the memory still reserved by a submission, for instance by
+	 * containers that were never given back.
+	 * 
+	 * @param submissionId
+	 *            the submission
+	 */
+	public void submissionFinished(int submissionId) {
+		synchronized (budgetLock) {
+			Reservation r = reservations.remove(submissionId);
+			if (r != null) {
+				r.closed = true;
+				reserved -= r.bytes;
+				r.bytes = 0;
+				budgetLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Asks the largest spillable that is not spilling yet to spill.
+	 * 
+	 * @return true if a new spill was started
+	 */
+	private boolean requestSpill(Spillable exclude) {
+		List<Spillable> candidates;
+		synchronized (budgetLock) {
+			candidates = new ArrayList<Spillable>(spillables);
+			candidates.removeAll(spilling);
+		}
+		Spillable largest = null;
+		long largestBytes = 0;
+		for (Spillable s : candidates) {
+			if (s == exclude) {
+				continue;
+			}
+			long bytes = s.getSpillableBytes();
+			if (bytes > largestBytes) {
+				largest = s;
+				largestBytes = bytes;
+			}
+		}
+		synchronized (budgetLock) {
+			if (largest == null || !spilling.add(largest)) {
+				return false;
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Budget exhausted: spilling " + largestBytes + " bytes");
+		}
+		final Spillable s = largest;
+		ThreadPool.createNew(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					s.spill();
+				} catch (Throwable e) {
+					log.warn("Spill requested by the memory manager failed", e);
+				}
+				synchronized (budgetLock) {
+					spilling.remove(s);
+				}
+			}
+		}, "Spill requested by the memory manager");
+		return true;
+	}
+
+	/**
+	 * @return the budget of the containers, in bytes
+	 */
+	public long getBudget() {
+		synchronized (budgetLock) {
+			return budget;
+		}
+	}
+
+	/**
+	 * @return the number of bytes reserved by the containers
+	 */
+	public long getReservedBytes() {
+		synchronized (budgetLock) {
+			return reserved;
+		}
+	}
+
+	/**
+	 * @return the number of bytes reserved by the containers of a submission
+	 */
+	public long getReservedBytes(int submissionId) {
+		synchronized (budgetLock) {
+			Reservation r = reservations.get(submissionId);
+			return r == null ? 0 : r.bytes;
+		}
+	}
+
+	/**
+	 * Allocates a direct buffer and adds its size to the off-heap memory in
+	 * use. The buffer should be given back with {@link #freeDirect(ByteBuffer)}
+	 * when it is no longer used; otherwise, it is accounted for until it is
+	 * garbage collected.
+	 * 
+	 * @param size
+	 *            the size of the buffer
+	 * @return the new buffer
+	 */
+	public ByteBuffer allocateDirect(int size) {
+		expungeCollectedBuffers();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		DirectRef ref = new DirectRef(buffer, collectedBuffers);
+		synchronized (directBuffers) {
+			ref.next = directBuffers.put(ref.hash, ref);
+			offHeapBytes += ref.size;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Releases a buffer obtained with {@link #allocateDirect(int)}. The
+	 * buffer must not be used afterwards.
+	 * 
+	 * @param buffer
+	 *            the buffer to release
+	 */
+	public void freeDirect(ByteBuffer buffer) {
+		int hash = System.identityHashCode(buffer);
+		DirectRef ref;
+		synchronized (directBuffers) {
+			DirectRef prev = null;
+			ref = directBuffers.get(hash);
+			while (ref != null && ref.get() != buffer) {
+				prev = ref;
+				ref = ref.next;
+			}
+			if (ref == null) {
+				return;
+			}
+			unlink(ref, prev);
+		}
+		ref.clear();
+		if (unsafeInvokeCleaner != null) {
+			try {
+				unsafeInvokeCleaner.invoke(unsafe, buffer);
+			} catch (Throwable e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Could not free direct buffer", e);
+				}
+			}
+		}
+	}
+
+	// Called with the lock on directBuffers
+	private void unlink(DirectRef ref, DirectRef prev) {
+		if (prev != null) {
+			prev.next = ref.next;
+		} else if (ref.next != null) {
+			directBuffers.put(ref.hash, ref.next);
+		} else {
+			directBuffers.remove(ref.hash);
+		}
+		offHeapBytes -= ref.size;
+	}
+
+	private void expungeCollectedBuffers() {
+		Reference<? extends ByteBuffer> r;
+		while ((r = collectedBuffers.poll()) != null) {
+			DirectRef ref = (DirectRef) r;
+			synchronized (directBuffers) {
+				DirectRef prev = null;
+				DirectRef cur = directBuffers.get(ref.hash);
+				while (cur != null && cur != ref) {
+					prev = cur;
+					cur = cur.next;
+				}
+				if (cur != null) {
+					unlink(cur, prev);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the direct buffers in use
+	 */
+	public long getOffHeapBytes() {
+		expungeCollectedBuffers();
+		synchronized (directBuffers) {
+			return offHeapBytes;
+		}
 	}
 
 	public void registerFactory(Factory<? extends WritableContainer<?>> factory) {
@@ -4,9 +4,16 @@ import ibis.ipl.IbisIdentifier;
 import ibis.ipl.WriteMessage;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import nl.vu.cs.ajira.net.NetworkLayer;
 import nl.vu.cs.ajira.utils.Configuration;
@@ -21,12 +28,196 @@ import org.slf4j.LoggerFactory;
  * for the nodes. For example it can keep track of the bytes 
  * sent by messages or the time to sent a messages.
  *
+ * Counters are identified by a {@link Counter} handle, obtained once with
+ * {@link #counter(String)}. Every thread adds to its own cells, one per node
+ * and submission, so that updating a counter takes neither a lock nor a map
+ * lookup. The cells are merged into the per-node maps only when the counters
+ * are read or sent to another node. A {@link Histogram} records the
+ * distribution of a value (e.g. a latency) in a fixed number of log-linear
+ * buckets; it is reported as its count, percentiles and maximum.
+ *
  */
 public class StatisticsCollector {
 
 	protected static final Logger log = LoggerFactory
 			.getLogger(StatisticsCollector.class);
+
+	/**
+	 * A handle to a counter, shared by all the nodes and submissions.
+	 */
+	public static final class Counter {
+		private final int id;
+		private final String name;
+
+		private Counter(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * A handle to a histogram. Values below 8 have a bucket of their own;
+	 * larger values go in one of 8 buckets per power of two, so that the
+	 * relative error is at most 12.5%. The buckets are counters with a
+	 * reserved name and are created when first used.
+	 */
+	public static final class Histogram {
+		private final String name;
+		private final AtomicReferenceArray<Counter> buckets = new AtomicReferenceArray<Counter>(
+				HISTOGRAM_BUCKETS);
+
+		private Histogram(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		private Counter bucket(int index) {
+			Counter c = buckets.get(index);
+			if (c == null) {
+				c = counter(name + HISTOGRAM_SEPARATOR + index);
+				buckets.set(index, c);
+			}
+			return c;
+		}
+	}
+
+	private static final int HISTOGRAM_SUB_BITS = 3;
+	private static final int HISTOGRAM_BUCKETS = (62 - HISTOGRAM_SUB_BITS + 2) << HISTOGRAM_SUB_BITS;
+	private static final char HISTOGRAM_SEPARATOR = '\u0000';
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	private static final Map<String, Counter> registry = new ConcurrentHashMap<String, Counter>();
+	private static volatile Counter[] countersById = new Counter[64];
+	private static int nCounters = 0;
+	private static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * Returns the handle of the counter with the given name, registering it
+	 * if needed. Hot paths should keep the handle in a static field.
+	 * 
+	 * @param name
+	 * 		The name of the counter.
+	 * @return
+	 * 		The handle of the counter.
+	 */
+	public static Counter counter(String name) {
+		Counter c = registry.get(name);
+		if (c == null) {
+			synchronized (registry) {
+				c = registry.get(name);
+				if (c == null) {
+					c = new Counter(nCounters, name);
+					Counter[] byId = countersById;
+					if (nCounters == byId.length) {
+						byId = Arrays.copyOf(byId, byId.length * 2);
+					}
+					byId[nCounters++] = c;
+					countersById = byId;
+					registry.put(name, c);
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the handle of the histogram with the given name, registering
+	 * it if needed.
+	 * 
+	 * @param name
+	 * 		The name of the histogram.
+	 * @return
+	 * 		The handle of the histogram.
+	 */
+	public static Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if (h == null) {
+			synchronized (histograms) {
+				h = histograms.get(name);
+				if (h == null) {
+					h = new Histogram(name);
+					histograms.put(name, h);
+				}
+			}
+		}
+		return h;
+	}
+
+	private static int bucketOf(long value) {
+		if (value < (1 << HISTOGRAM_SUB_BITS)) {
+			return value < 0 ? 0 : (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - HISTOGRAM_SUB_BITS))
+				& ((1 << HISTOGRAM_SUB_BITS) - 1);
+		return ((exp - HISTOGRAM_SUB_BITS + 1) << HISTOGRAM_SUB_BITS) + sub;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	private static long bucketMax(int index) {
+		if (index < (1 << HISTOGRAM_SUB_BITS)) {
+			return index;
+		}
+		int shift = (index >> HISTOGRAM_SUB_BITS) - 1;
+		long sub = index & ((1 << HISTOGRAM_SUB_BITS) - 1);
+		return (((1L << HISTOGRAM_SUB_BITS) + sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * The cells of a thread for one node and one submission. Only the owner
+	 * thread creates new cells; it republishes the array every time it does.
+	 */
+	private static final class Cells {
+		final int nodeId;
+		final int submissionId;
+		volatile AtomicLong[] values = new AtomicLong[16];
+		volatile boolean removed;
+		// The cells that have been merged at least once. Accessed only by
+		// merge().
+		final BitSet reported = new BitSet();
+
+		Cells(int nodeId, int submissionId) {
+			this.nodeId = nodeId;
+			this.submissionId = submissionId;
+		}
+
+		void add(int id, long value) {
+			AtomicLong[] v = values;
+			AtomicLong cell;
+			if (id >= v.length || (cell = v[id]) == null) {
+				if (id >= v.length) {
+					v = Arrays.copyOf(v, Math.max(id + 1, v.length * 2));
+				}
+				cell = new AtomicLong();
+				v[id] = cell;
+				values = v;
+			}
+			cell.addAndGet(value);
+		}
+	}
+
+	private static final class ThreadCells {
+		final Map<Long, Cells> cells = new HashMap<Long, Cells>();
+		Cells last;
+	}
+
 	private final Map<Integer, Map<Integer, Map<String, Long>>> counters = new HashMap<Integer, Map<Integer, Map<String, Long>>>();
+	private final ConcurrentLinkedQueue<Cells> allCells = new ConcurrentLinkedQueue<Cells>();
+	private final ThreadLocal<ThreadCells> threadCells = new ThreadLocal<ThreadCells>() {
+		@Override
+		protected ThreadCells initialValue() {
+			return new ThreadCells();
+		}
+	};
 
 	private boolean statsEnabled;
 	private NetworkLayer net;
@@ -48,6 +239,145 @@ public class StatisticsCollector {
 		myId = net.getMyPartition();
 	}
 
+	private Cells getCells(int nodeId, int submissionId) {
+		ThreadCells t = threadCells.get();
+		Cells c = t.last;
+		if (c != null && c.submissionId == submissionId && c.nodeId == nodeId
+				&& !c.removed) {
+			return c;
+		}
+		Long key = ((long) nodeId << 32) | (submissionId & 0xffffffffL);
+		c = t.cells.get(key);
+		if (c == null || c.removed) {
+			// Forget the cells of the submissions that are gone
+			Iterator<Cells> itr = t.cells.values().iterator();
+			while (itr.hasNext()) {
+				if (itr.next().removed) {
+					itr.remove();
+				}
+			}
+			c = new Cells(nodeId, submissionId);
+			t.cells.put(key, c);
+			allCells.add(c);
+		}
+		t.last = c;
+		return c;
+	}
+
+	/**
+	 * Moves the values of the cells of all the threads to the maps. Cells
+	 * that have been removed are merged for the last time and dropped.
+	 */
+	private synchronized void merge() {
+		Iterator<Cells> itr = allCells.iterator();
+		while (itr.hasNext()) {
+			Cells c = itr.next();
+			boolean removed = c.removed;
+			AtomicLong[] v = c.values;
+			// Read after the cells, so that it knows all their counters
+			Counter[] byId = countersById;
+			Map<String, Long> m = null;
+			for (int i = 0; i < v.length; ++i) {
+				if (v[i] != null) {
+					long value = v[i].getAndSet(0);
+					if (value != 0 || !c.reported.get(i)) {
+						c.reported.set(i);
+						if (m == null) {
+							m = getMap(c.nodeId, c.submissionId);
+						}
+						Long oValue = m.get(byId[i].name);
+						m.put(byId[i].name, oValue == null ? value : oValue
+								+ value);
+					}
+				}
+			}
+			if (removed) {
+				itr.remove();
+			}
+		}
+	}
+
+	private Map<String, Long> getMap(int nodeId, int submissionId) {
+		Map<Integer, Map<String, Long>> submissionsCounters = counters
+				.get(nodeId);
+		if (submissionsCounters == null) {
+			submissionsCounters = new HashMap<Integer, Map<String, Long>>();
+			counters.put(nodeId, submissionsCounters);
+		}
+
+		Map<String, Long> c = submissionsCounters.get(submissionId);
+		if (c == null) {
+			c = new TreeMap<String, Long>();
+			submissionsCounters.put(submissionId, c);
+		}
+		return c;
+	}
+
+	private void markRemoved(int submissionId, boolean local) {
+		for (Cells c : allCells) {
+			if (c.submissionId == submissionId && (c.nodeId == myId) == local) {
+				c.removed = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of the counters in which the buckets of every histogram
+	 * are replaced by its count, percentiles and maximum.
+	 */
+	private static Map<String, Long> summarize(Map<String, Long> counters) {
+		if (counters == null) {
+			return null;
+		}
+		Map<String, Long> result = new TreeMap<String, Long>();
+		Map<String, long[]> hists = null;
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			String name = entry.getKey();
+			int sep = name.indexOf(HISTOGRAM_SEPARATOR);
+			if (sep < 0) {
+				result.put(name, entry.getValue());
+				continue;
+			}
+			if (hists == null) {
+				hists = new TreeMap<String, long[]>();
+			}
+			String hName = name.substring(0, sep);
+			long[] buckets = hists.get(hName);
+			if (buckets == null) {
+				buckets = new long[HISTOGRAM_BUCKETS];
+				hists.put(hName, buckets);
+			}
+			buckets[Integer.parseInt(name.substring(sep + 1))] += entry
+					.getValue();
+		}
+		if (hists != null) {
+			for (Map.Entry<String, long[]> entry : hists.entrySet()) {
+				String name = entry.getKey();
+				long[] buckets = entry.getValue();
+				long count = 0;
+				int max = 0;
+				for (int i = 0; i < buckets.length; ++i) {
+					count += buckets[i];
+					if (buckets[i] > 0) {
+						max = i;
+					}
+				}
+				result.put(name + " (count)", count);
+				for (double p : PERCENTILES) {
+					long rank = (long) Math.ceil(count * p / 100);
+					long seen = 0;
+					int i = 0;
+					while (i < max && (seen += buckets[i]) < rank) {
+						++i;
+					}
+					result.put(name + " (p" + (int) p + ")", bucketMax(i));
+				}
+				result.put(name + " (max)", bucketMax(max));
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * 
 	 * @param submission
@@ -57,9 +387,10 @@ public class StatisticsCollector {
 	 * 		all its counters and their values.
 	 */
 	public synchronized Map<String, Long> getCounters(int submission) {
+		merge();
 		Map<Integer, Map<String, Long>> mines = counters.get(myId);
 		if (mines != null) {
-			return mines.get(submission);
+			return summarize(mines.get(submission));
 		}
 		return null;
 	}
@@ -67,7 +398,7 @@ public class StatisticsCollector {
 	/**
 	 * Removes the map corresponding to the node 
 	 * and the submission id.
-	 * 
+	 *
 	 * @param idSubmission
 	 * 		The submission id.
 	 * @return
@@ -76,18 +407,32 @@ public class StatisticsCollector {
 	 */
 	public synchronized Map<String, Long> removeCountersSubmission(
 			int idSubmission) {
+		markRemoved(idSubmission, true);
+		merge();
 		Map<Integer, Map<String, Long>> mines = counters.get(myId);
 		if (mines != null)
-			return mines.remove(idSubmission);
+			return summarize(mines.remove(idSubmission));
 		else
 			return null;
 	}
 
+	/**
+	 * Signals that the counters of a submission of another node will no
+	 * longer be updated on this node. They are dropped after the next
+	 * {@link #sendStatisticsAway()}.
+	 *
+	 * @param idSubmission
+	 * 		The submission id.
+	 */
+	public synchronized void submissionFinished(int idSubmission) {
+		markRemoved(idSubmission, false);
+	}
+
 	/**
 	 * If the statistics collector is enabled
 	 * it adds or it updates the counter for a
 	 * specific node id and submission id.
-	 * 
+	 *
 	 * @param nodeId
 	 * 		The id of the node.
 	 * @param submissionId
@@ -97,29 +442,51 @@ public class StatisticsCollector {
 	 * @param value
 	 * 		The value of the counter.
 	 */
-	public synchronized void addCounter(int nodeId, int submissionId,
-			String nameCounter, long value) {
-
+	public void addCounter(int nodeId, int submissionId, String nameCounter,
+			long value) {
 		if (statsEnabled) {
-			Map<Integer, Map<String, Long>> submissionsCounters = counters
-					.get(nodeId);
-			if (submissionsCounters == null) {
-				submissionsCounters = new HashMap<Integer, Map<String, Long>>();
-				counters.put(nodeId, submissionsCounters);
-			}
+			getCells(nodeId, submissionId).add(counter(nameCounter).id, value);
+		}
+	}
 
-			Map<String, Long> c = submissionsCounters.get(submissionId);
-			if (c == null) {
-				c = new TreeMap<String, Long>();
-				submissionsCounters.put(submissionId, c);
-			}
+	/**
+	 * Same as {@link #addCounter(int, int, String, long)}, with a counter
+	 * handle.
+	 *
+	 * @param nodeId
+	 * 		The id of the node.
+	 * @param submissionId
+	 * 		The submission id.
+	 * @param counter
+	 * 		The handle of the counter.
+	 * @param value
+	 * 		The value to add.
+	 */
+	public void addCounter(int nodeId, int submissionId, Counter counter,
+			long value) {
+		if (statsEnabled) {
+			getCells(nodeId, submissionId).add(counter.id, value);
+		}
+	}
 
-			long oValue = 0;
-			if (c.containsKey(nameCounter)) {
-				oValue = c.get(nameCounter);
-			}
-			oValue += value;
-			c.put(nameCounter, oValue);
+	/**
+	 * If the statistics collector is enabled it records a value in a
+	 * histogram, for a specific node id and submission id.
+	 *
+	 * @param nodeId
+	 * 		The id of the node.
+	 * @param submissionId
+	 * 		The submission id.
+	 * @param histogram
+	 * 		The handle of the histogram.
+	 * @param value
+	 * 		The value to record.
+	 */
+	public void record(int nodeId, int submissionId, Histogram histogram,
+			long value) {
+		if (statsEnabled) {
+			getCells(nodeId, submissionId).add(
+					histogram.bucket(bucketOf(value)).id, 1);
 		}
 	}
 
@@ -134,6 +501,8 @@ public class StatisticsCollector {
 	 */
 	public synchronized void sendStatisticsAway() throws IOException {
 
+		merge();
+
 		for (Map.Entry<Integer, Map<Integer, Map<String, Long>>> entry : counters
 				.entrySet()) {
 			// If node is not localhost
@@ -143,8 +512,10 @@ public class StatisticsCollector {
 				IbisIdentifier receiver = null;
 
 				// For every submission
-				for (Map.Entry<Integer, Map<String, Long>> entry2 : entry
-						.getValue().entrySet()) {
+				Iterator<Map.Entry<Integer, Map<String, Long>>> itr = entry
+						.getValue().entrySet().iterator();
+				while (itr.hasNext()) {
+					Map.Entry<Integer, Map<String, Long>> entry2 = itr.next();
 
 					Map<String, Long> submissionCounters = entry2.getValue();
 					// If there are counters
@@ -169,9 +540,9 @@ public class StatisticsCollector {
 							msg.writeArray(key);
 							msg.writeLong(entry3.getValue());
 						}
-						submissionCounters.clear();
 
 					}
+					itr.remove();
 				}
 
 				if (msg != null) {
@@ -3,7 +3,11 @@ package nl.vu.cs.ajira.net;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.WriteMessage;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.actions.support.Query;
@@ -12,25 +16,78 @@ import nl.vu.cs.ajira.chains.ChainExecutor;
 import nl.vu.cs.ajira.chains.Location;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
 import nl.vu.cs.ajira.storage.Container;
+import nl.vu.cs.ajira.utils.Consts;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * 
- * This class is used to send chains to other nodes.
+ * This class is used to send chains to other nodes. The chains that are
+ * waiting to be sent are grouped per destination, and every node receives
+ * them in a single message. A chain that goes to all the nodes is serialized
+ * once: only its chain id is changed for every node.
  * 
  */
 class ChainSender implements Runnable {
 
 	static final Logger log = LoggerFactory.getLogger(ChainSender.class);
 
+	// Gives access to the buffer, to avoid a copy
+	private static class ChainBuffer extends ByteArrayOutputStream {
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * The serialized chains that go to one node.
+	 */
+	private static class Batch {
+		final IbisIdentifier node;
+		final ChainBuffer buffer = new ChainBuffer();
+		final DataOutputStream output = new DataOutputStream(buffer);
+		// submission id -> submission node of the chains in the batch
+		final Map<Integer, Integer> submissions = new HashMap<Integer, Integer>();
+		// submission id -> bytes of the chains in the batch, to split the
+		// statistics of the message
+		final Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+		int nChains;
+
+		Batch(IbisIdentifier node) {
+			this.node = node;
+		}
+
+		void add(Chain chain, int size) {
+			Integer s = sizes.get(chain.getSubmissionId());
+			if (s == null) {
+				submissions.put(chain.getSubmissionId(),
+						chain.getSubmissionNode());
+				s = 0;
+			}
+			sizes.put(chain.getSubmissionId(), s + size);
+			nChains++;
+		}
+
+		void clear() {
+			buffer.reset();
+			submissions.clear();
+			sizes.clear();
+			nChains = 0;
+		}
+	}
+
 	Container<Chain> chainsToSend;
 	Container<Chain> chainsToProcess;
 	Context context;
 	Chain chain;
 	StatisticsCollector stats;
 
+	private final Map<IbisIdentifier, Batch> batches = new HashMap<IbisIdentifier, Batch>();
+	private final ChainBuffer template = new ChainBuffer();
+	private final DataOutputStream templateOutput = new DataOutputStream(
+			template);
+
 	/**
 	 * Custom constructor.
 	 * 
@@ -47,6 +104,115 @@ class ChainSender implements Runnable {
 		this.stats = context.getStatisticsCollector();
 	}
 
+	private Batch getBatch(IbisIdentifier node) {
+		Batch batch = batches.get(node);
+		if (batch == null) {
+			batch = new Batch(node);
+			batches.put(node, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Sends the chains of a batch in one message. If it fails, the
+	 * submissions of the chains are killed.
+	 */
+	private void flush(Batch batch) {
+		if (batch.nChains == 0) {
+			return;
+		}
+		NetworkLayer ibis = context.getNetworkLayer();
+		WriteMessage msg = null;
+		try {
+			msg = ibis.getMessageToSend(batch.node,
+					NetworkLayer.nameMgmtReceiverPort);
+			msg.writeByte((byte) 0);
+			msg.writeInt(batch.nChains);
+			msg.writeInt(batch.buffer.size());
+			msg.writeArray(batch.buffer.getBuffer(), 0, batch.buffer.size());
+			ibis.finishMessage(msg, batch.sizes);
+			msg = null;
+			if (log.isDebugEnabled()) {
+				log.debug("Sent " + batch.nChains + " chains to " + batch.node);
+			}
+		} catch (Throwable e) {
+			if (msg != null && e instanceof IOException) {
+				msg.finish((IOException) e);
+			}
+			if (log.isDebugEnabled()) {
+				log.debug(
+						"Error in the main execution of the communicator thread",
+						e);
+			}
+			for (Map.Entry<Integer, Integer> entry : batch.submissions
+					.entrySet()) {
+				context.killSubmission(entry.getValue(), entry.getKey(), e);
+			}
+		}
+		batch.clear();
+	}
+
+	/**
+	 * Puts a chain in the queue of this node or in the batches of the nodes
+	 * it goes to.
+	 */
+	private void dispatch(Chain chain, Chain supportChain, Query query)
+			throws Exception {
+		ChainExecutor ac = new ChainExecutor(null, context, chain);
+
+		chain.getQuery(query);
+		Location loc = context.getInputLayer(chain.getInputLayer())
+				.getLocations(query.getTuple(), ac);
+
+		NetworkLayer ibis = context.getNetworkLayer();
+		IbisIdentifier[] nodes = ibis.getPeersLocation(loc);
+
+		if (nodes.length == 0) { // Put it directly in the queue
+			chainsToProcess.add(chain);
+			return;
+		}
+
+		// Send the chains
+		boolean serialized = false;
+		int i = nodes.length - 1;
+		while (i != 0) {
+			long chainId = context.getChainCounter(chain.getSubmissionId());
+			if (nodes[i].compareTo(ibis.clusterIbis.identifier()) == 0) {
+				chain.branch(supportChain, chainId, 0);
+				chainsToProcess.add(supportChain);
+			} else {
+				if (!serialized) {
+					chain.branch(supportChain, chainId, 0);
+					template.reset();
+					supportChain.writeTo(templateOutput);
+					serialized = true;
+				} else {
+					chain.addChainChildren(1);
+				}
+				Chain.setSerializedChainId(template.getBuffer(), 0, chainId);
+				Batch batch = getBatch(nodes[i]);
+				batch.buffer.write(template.getBuffer(), 0, template.size());
+				batch.add(chain, template.size());
+				if (batch.buffer.size() >= Consts.MIN_SIZE_TO_SEND) {
+					flush(batch);
+				}
+			}
+			i--;
+		}
+
+		if (nodes[0].compareTo(ibis.clusterIbis.identifier()) == 0) {
+			chainsToProcess.add(chain);
+		} else {
+			Batch batch = getBatch(nodes[0]);
+			int start = batch.buffer.size();
+			chain.writeTo(batch.output);
+			batch.add(chain, batch.buffer.size() - start);
+			if (batch.buffer.size() >= Consts.MIN_SIZE_TO_SEND) {
+				flush(batch);
+			}
+		}
+	}
+
 	@Override
 	public void run() {
 		Query query = new Query();
@@ -54,66 +220,29 @@ class ChainSender implements Runnable {
 		Chain supportChain = new Chain();
 
 		while (true) {
-
-			WriteMessage msg = null;
-
-			try {
-				chainsToSend.remove(chain);
-				ChainExecutor ac = new ChainExecutor(null, context, chain);
-
-				chain.getQuery(query);
-				Location loc = context.getInputLayer(chain.getInputLayer())
-						.getLocations(query.getTuple(), ac);
-
-				NetworkLayer ibis = context.getNetworkLayer();
-				IbisIdentifier[] nodes = ibis.getPeersLocation(loc);
-
-				if (nodes.length == 0) { // Put it directly in the queue
-					chainsToProcess.add(chain);
-				} else { // Send the chains
-
-					int i = nodes.length - 1;
-					while (i != 0) {
-						chain.branch(supportChain, context
-								.getChainCounter(chain.getSubmissionId()), 0);
-
-						if (nodes[i].compareTo(ibis.clusterIbis.identifier()) == 0) {
-							chainsToProcess.add(supportChain);
-						} else {
-							msg = ibis.getMessageToSend(nodes[i],
-									NetworkLayer.nameMgmtReceiverPort);
-							msg.writeByte((byte) 0);
-							supportChain.writeTo(new WriteMessageWrapper(msg));
-							ibis.finishMessage(msg,
-									supportChain.getSubmissionId());
-							msg = null;
-						}
-						i--;
+			// Wait for a chain, then take all the chains that are already
+			// waiting
+			chainsToSend.remove(chain);
+			while (true) {
+				try {
+					dispatch(chain, supportChain, query);
+				} catch (Throwable e) {
+					if (log.isDebugEnabled()) {
+						log.debug(
+								"Error in the main execution of the communicator thread",
+								e);
 					}
-
-					if (nodes[0].compareTo(ibis.clusterIbis.identifier()) == 0) {
-						chainsToProcess.add(chain);
-					} else {
-						msg = ibis.getMessageToSend(nodes[0],
-								NetworkLayer.nameMgmtReceiverPort);
-						msg.writeByte((byte) 0);
-						chain.writeTo(new WriteMessageWrapper(msg));
-						ibis.finishMessage(msg, chain.getSubmissionId());
-						msg = null;
-					}
-				}
-
-			} catch (Throwable e) {
-				if (msg != null && e instanceof IOException) {
-					msg.finish((IOException) e);
+					context.killSubmission(chain.getSubmissionNode(),
+							chain.getSubmissionId(), e);
 				}
-				if (log.isDebugEnabled()) {
-					log.debug(
-							"Error in the main execution of the communicator thread",
-							e);
+				if (chainsToSend.getNElements() == 0) {
+					break;
 				}
-				context.killSubmission(chain.getSubmissionNode(),
-						chain.getSubmissionId(), e);
+				chainsToSend.remove(chain);
+			}
+
+			for (Batch batch : batches.values()) {
+				flush(batch);
 			}
 		}
 	}
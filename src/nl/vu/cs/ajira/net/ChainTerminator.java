@@ -3,13 +3,17 @@ package nl.vu.cs.ajira.net;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.WriteMessage;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.chains.Chain;
+import nl.vu.cs.ajira.utils.Consts;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +22,11 @@ import org.slf4j.LoggerFactory;
  * This class keep track of the chains that have terminated and sends messages
  * to the corresponding nodes informing that the chain has terminated.
  * 
+ * The terminated chains of a submission are coalesced in a single message to
+ * the submission node. A batch is sent when it holds
+ * {@link Consts#TERMINATION_BATCH_SIZE} chains, or when its oldest chain has
+ * waited {@link Consts#TERMINATION_DELAY} microseconds.
+ * 
  */
 class ChainTerminator implements Runnable {
 
@@ -97,11 +106,34 @@ class ChainTerminator implements Runnable {
 		}
 	}
 
+	/**
+	 * 
+	 * The terminated chains of a submission that are not sent yet.
+	 * 
+	 */
+	private static class Batch {
+
+		public final int nodeId;
+		public final int submissionId;
+		public final long deadline;
+		public final List<ChainInfo> chains = new ArrayList<ChainInfo>();
+
+		public Batch(int nodeId, int submissionId, long deadline) {
+			this.nodeId = nodeId;
+			this.submissionId = submissionId;
+			this.deadline = deadline;
+		}
+	}
+
 	static final Logger log = LoggerFactory.getLogger(ChainTerminator.class);
 
 	Context context;
 	private final List<ChainInfo> chainsTerminated = Collections
 			.synchronizedList(new LinkedList<ChainTerminator.ChainInfo>());
+	// Only accessed by the thread of the terminator
+	private final Map<Integer, Batch> batches = new HashMap<Integer, Batch>();
+	private final int maxBatchSize;
+	private final long delay;
 
 	/**
 	 * Custom constructor.
@@ -111,6 +143,10 @@ class ChainTerminator implements Runnable {
 	 */
 	public ChainTerminator(Context context) {
 		this.context = context;
+		this.maxBatchSize = Math.max(1, context.getConfiguration().getInt(
+				Consts.TERMINATION_BATCH_SIZE, 1024));
+		this.delay = Math.max(0, context.getConfiguration().getLong(
+				Consts.TERMINATION_DELAY, 500)) * 1000;
 	}
 
 	/**
@@ -187,70 +223,155 @@ class ChainTerminator implements Runnable {
 	}
 
 	/**
-	 * For each chain from the chainsTreminated it sends a message to the
-	 * corresponding nodes informing that the chain has terminated.
+	 * Sends the terminated chains of a batch to the submission node, or
+	 * applies them directly in local mode.
+	 */
+	private void flush(Batch batch) {
+		if (batch == null) {
+			return;
+		}
+		List<ChainInfo> chains = batch.chains;
+		int n = chains.size();
+		try {
+			if (context.isLocalMode()) {
+				long[] chainIds = new long[n];
+				long[] parentChainIds = new long[n];
+				int[] nchildren = new int[n];
+				long[][] additionalChainCounters = new long[n][];
+				int[][] additionalChainValues = new int[n][];
+				for (int i = 0; i < n; ++i) {
+					ChainInfo header = chains.get(i);
+					chainIds[i] = header.chainId;
+					parentChainIds[i] = header.parentChainId;
+					nchildren[i] = header.nchildren;
+					additionalChainCounters[i] = header.additionalChainCounters;
+					additionalChainValues[i] = header.additionalChainValues;
+				}
+				context.getSubmissionsRegistry().updateCounters(
+						batch.submissionId, n, chainIds, parentChainIds,
+						nchildren, additionalChainCounters,
+						additionalChainValues);
+			} else {
+				NetworkLayer ibis = context.getNetworkLayer();
+				IbisIdentifier identifier = ibis.getPeerLocation(batch.nodeId);
+				WriteMessage msg = ibis.getMessageToSend(identifier,
+						NetworkLayer.nameMgmtReceiverPort);
+				msg.writeByte((byte) 2);
+				msg.writeBoolean(false);
+				msg.writeInt(batch.submissionId);
+				msg.writeInt(n);
+				for (int j = 0; j < n; ++j) {
+					ChainInfo header = chains.get(j);
+					msg.writeLong(header.chainId);
+					msg.writeLong(header.parentChainId);
+					msg.writeInt(header.nchildren);
+
+					if (header.additionalChainCounters != null) {
+						msg.writeInt(header.additionalChainCounters.length);
+						for (int i = 0; i < header.additionalChainCounters.length; ++i) {
+							msg.writeLong(header.additionalChainCounters[i]);
+							msg.writeInt(header.additionalChainValues[i]);
+						}
+					} else {
+						msg.writeInt(0);
+					}
+				}
+
+				ibis.finishMessage(msg, batch.submissionId);
+				if (log.isDebugEnabled()) {
+					log.debug("Sent message with id 2 to " + identifier
+							+ " for " + n + " chains");
+				}
+			}
+		} catch (Throwable e) {
+			log.warn("Error in sending the termination codes", e);
+			// Nothing we can do now, except cleanup locally.
+			context.cleanupSubmission(batch.nodeId, batch.submissionId, null);
+		}
+	}
+
+	/**
+	 * Takes the chains from the chainsTerminated, and sends to the
+	 * corresponding nodes the batches that are full or that have waited long
+	 * enough. In local mode, the batches are applied as soon as the queue is
+	 * drained.
 	 */
 	@Override
 	public void run() {
-		ChainInfo header = null;
-		NetworkLayer ibis = context.getNetworkLayer();
-
+		List<ChainInfo> terminated = new ArrayList<ChainInfo>();
 		boolean localMode = context.isLocalMode();
 
 		while (true) {
 			try {
 				synchronized (chainsTerminated) {
 					while (chainsTerminated.size() == 0) {
-						chainsTerminated.wait();
-					}
-					header = chainsTerminated.remove(0);
-				}
-
-				if (!header.failed) {
-					if (localMode) {
-						context.getSubmissionsRegistry().updateCounters(
-								header.submissionId, header.chainId,
-								header.parentChainId, header.nchildren,
-								header.additionalChainCounters,
-								header.additionalChainValues);
-					} else {
-						IbisIdentifier identifier = ibis
-								.getPeerLocation(header.nodeId);
-						WriteMessage msg = ibis.getMessageToSend(identifier,
-								NetworkLayer.nameMgmtReceiverPort);
-						msg.writeByte((byte) 2);
-						msg.writeBoolean(false);
-						msg.writeInt(header.submissionId);
-						msg.writeLong(header.chainId);
-						msg.writeLong(header.parentChainId);
-						msg.writeInt(header.nchildren);
-
-						if (header.additionalChainCounters != null) {
-							msg.writeInt(header.additionalChainCounters.length);
-							for (int i = 0; i < header.additionalChainCounters.length; ++i) {
-								msg.writeLong(header.additionalChainCounters[i]);
-								msg.writeInt(header.additionalChainValues[i]);
-							}
+						if (batches.size() == 0) {
+							chainsTerminated.wait();
 						} else {
-							msg.writeInt(0);
+							long wait = nextDeadline() - System.nanoTime();
+							if (wait <= 0) {
+								break;
+							}
+							chainsTerminated.wait(wait / 1000000,
+									(int) (wait % 1000000));
 						}
+					}
+					terminated.addAll(chainsTerminated);
+					chainsTerminated.clear();
+				}
+			} catch (InterruptedException e) {
+				// Flush what we have
+			}
 
-						ibis.finishMessage(msg, header.submissionId);
-						if (log.isDebugEnabled()) {
-							log.debug("Sent message with id 2 to " + identifier);
-						}
+			for (ChainInfo header : terminated) {
+				if (header.failed) {
+					// Send the chains that terminated before first
+					flush(batches.remove(header.submissionId));
+					try {
+						context.killSubmission(header.nodeId,
+								header.submissionId, header.exception);
+					} catch (Throwable e) {
+						log.warn("Error in sending the termination codes", e);
+						context.cleanupSubmission(header.nodeId,
+								header.submissionId, header.exception);
 					}
 				} else {
-					context.killSubmission(header.nodeId,
-							header.submissionId, header.exception);
+					Batch batch = batches.get(header.submissionId);
+					if (batch == null) {
+						batch = new Batch(header.nodeId, header.submissionId,
+								System.nanoTime() + delay);
+						batches.put(header.submissionId, batch);
+					}
+					batch.chains.add(header);
+					if (batch.chains.size() >= maxBatchSize) {
+						batches.remove(header.submissionId);
+						flush(batch);
+					}
 				}
-			} catch (Throwable e) {
-				log.warn("Error in sending the termination codes", e);
-				// Nothing we can do now, except cleanup locally.
-				context.cleanupSubmission(header.nodeId,
-						header.submissionId, header.exception);
 			}
+			terminated.clear();
 
+			long now = System.nanoTime();
+			Iterator<Batch> itr = batches.values().iterator();
+			while (itr.hasNext()) {
+				Batch batch = itr.next();
+				if (localMode || batch.deadline - now <= 0) {
+					itr.remove();
+					flush(batch);
+				}
+			}
+		}
+	}
+
+	private long nextDeadline() {
+		long deadline = 0;
+		boolean first = true;
+		for (Batch batch : batches.values()) {
+			if (first || batch.deadline - deadline < 0) {
+				deadline = batch.deadline;
+				first = false;
+			}
 		}
+		return deadline;
 	}
 }
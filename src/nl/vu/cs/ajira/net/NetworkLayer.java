@@ -44,6 +44,9 @@ public class NetworkLayer {
 
 	static final Logger log = LoggerFactory.getLogger(NetworkLayer.class);
 
+	private static final StatisticsCollector.Counter SEND_TIME = StatisticsCollector.counter("NetworkLayer: time sending msgs (ms)");
+	private static final StatisticsCollector.Counter BYTES_SENT = StatisticsCollector.counter("NetworkLayer: bytes sent");
+
 	public static final String queryReceiverPort = "query-receiver-port";
 	public static final String nameMgmtReceiverPort = "mgmt-receiver-port";
 	public static final String nameBcstReceiverPort = "bcst-receiver-port";
@@ -183,7 +186,7 @@ public class NetworkLayer {
 			int idBucket, int remoteNodeId, long bufferKey, boolean streaming) {
 		// called from upcall thread, so no new thread needed.
 		tupleRequester.handleNewRequest(idSubmission, submissionNode, idBucket,
-				remoteNodeId, bufferKey, 0, 0, streaming);
+				remoteNodeId, bufferKey, streaming);
 	}
 
 	public void signalsBucketToFetch(int idSubmission, int submissionNode,
@@ -195,9 +198,27 @@ public class NetworkLayer {
 
 	public void addRequestToSendTuples(long bucketKey, int remoteNodeId,
 			int submissionId, int submissionNode, int bucketId, long ticket,
-			int sequence, int nrequest) {
+			int sequence, int nrequest, int credits) {
 		tupleSender.handleNewRequest(bucketKey, remoteNodeId, submissionId,
-				submissionNode, bucketId, ticket, sequence, nrequest);
+				submissionNode, bucketId, ticket, sequence, nrequest, credits);
+	}
+
+	/**
+	 * @return whether remote-buckets are pushed to their destination rather
+	 *         than fetched by it
+	 */
+	public boolean isPushingTransfers() {
+		return tupleSender.isPushing();
+	}
+
+	public void startPushTransfer(long bucketKey, int remoteNodeId,
+			int submissionId, int submissionNode, int bucketId) {
+		tupleSender.startTransfer(bucketKey, remoteNodeId, submissionId,
+				submissionNode, bucketId);
+	}
+
+	public void signalTransferReady(long bucketKey) {
+		tupleSender.bucketReady(bucketKey);
 	}
 
 	public void removeActiveRequest(long ticket) {
@@ -653,12 +674,58 @@ public class NetworkLayer {
 		long bytes = msg.finish();
 		long startTime = timers.get(p.name());
 		stats.addCounter(0, submissionId,
-				"NetworkLayer: time sending msgs (ms)",
+				SEND_TIME,
 				System.currentTimeMillis() - startTime);
-		stats.addCounter(0, submissionId, "NetworkLayer: bytes sent", bytes);
+		stats.addCounter(0, submissionId, BYTES_SENT, bytes);
 		// stats.addCounter(0, submissionId, "Messages sent", 1);
 	}
 
+	/**
+	 * Same as {@link #finishMessage(WriteMessage, int)}, for a message with
+	 * the data of several submissions: the bytes and the time are split among
+	 * them in proportion to the size of their data.
+	 * 
+	 * @param sizes
+	 *            the number of bytes of the data of every submission
+	 */
+	public void finishMessage(WriteMessage msg, Map<Integer, Integer> sizes)
+			throws IOException {
+		SendPort p = msg.localPort();
+		long bytes = msg.finish();
+		long time = System.currentTimeMillis() - timers.get(p.name());
+		addCounters(stats, SEND_TIME, BYTES_SENT, time, bytes, sizes);
+	}
+
+	/**
+	 * Splits the time and the bytes of a message with the data of several
+	 * submissions among them, in proportion to the size of their data.
+	 */
+	static void addCounters(StatisticsCollector stats,
+			StatisticsCollector.Counter timeCounter,
+			StatisticsCollector.Counter bytesCounter, long time, long bytes,
+			Map<Integer, Integer> sizes) {
+		long total = 0;
+		for (int size : sizes.values()) {
+			total += size;
+		}
+		long remainingBytes = bytes;
+		long remainingTime = time;
+		long remainingSize = total;
+		for (Map.Entry<Integer, Integer> entry : sizes.entrySet()) {
+			// The last submission gets what is left after rounding
+			int size = entry.getValue();
+			long b = remainingSize == 0 ? 0 : remainingBytes * size
+					/ remainingSize;
+			long t = remainingSize == 0 ? 0 : remainingTime * size
+					/ remainingSize;
+			stats.addCounter(0, entry.getKey(), timeCounter, t);
+			stats.addCounter(0, entry.getKey(), bytesCounter, b);
+			remainingBytes -= b;
+			remainingTime -= t;
+			remainingSize -= size;
+		}
+	}
+
 	public static class CountInfo {
 		int count;
 		List<Object[]> receivedObjects = new ArrayList<Object[]>();
@@ -4,8 +4,11 @@ import ibis.ipl.ReadMessage;
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class ReadMessageWrapper implements DataInput {
+import nl.vu.cs.ajira.data.types.bytearray.ByteBufferInput;
+
+public class ReadMessageWrapper implements DataInput, ByteBufferInput {
 
 	ReadMessage message;
 
@@ -48,6 +51,11 @@ public class ReadMessageWrapper implements DataInput {
 		message.readArray(b, off, len);
 	}
 
+	@Override
+	public void readFully(ByteBuffer b) throws IOException {
+		message.readByteBuffer(b);
+	}
+
 	@Override
 	public int readInt() throws IOException {
 		return message.readInt();
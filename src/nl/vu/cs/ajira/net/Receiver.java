@@ -8,15 +8,21 @@ import ibis.ipl.WriteMessage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.buckets.Bucket;
 import nl.vu.cs.ajira.buckets.Buckets;
 import nl.vu.cs.ajira.buckets.WritableTuple;
 import nl.vu.cs.ajira.chains.Chain;
+import nl.vu.cs.ajira.chains.ChainQueue;
+import nl.vu.cs.ajira.data.types.bytearray.BDataInput;
 import nl.vu.cs.ajira.exceptions.JobFailedException;
+import nl.vu.cs.ajira.mgmt.MemoryManager;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
-import nl.vu.cs.ajira.storage.Container;
 import nl.vu.cs.ajira.storage.Factory;
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
 import nl.vu.cs.ajira.submissions.Job;
@@ -34,11 +40,14 @@ import org.slf4j.LoggerFactory;
 class Receiver implements MessageUpcall {
 	static final Logger log = LoggerFactory.getLogger(Receiver.class);
 
+	private static final StatisticsCollector.Counter RECEIVE_TIME = StatisticsCollector.counter("Receiver:upcall: time receiving msgs (ms)");
+	private static final StatisticsCollector.Counter BYTES_RECEIVED = StatisticsCollector.counter("Receiver:upcall: bytes received");
+
 	Factory<Chain> chainFactory = new Factory<Chain>(Chain.class);
 	Factory<WritableContainer<WritableTuple>> bufferFactory;
 
 	Context context;
-	Container<Chain> chainsToProcess;
+	ChainQueue chainsToProcess;
 	Buckets buckets;
 	NetworkLayer net;
 	StatisticsCollector stats;
@@ -90,15 +99,30 @@ class Receiver implements MessageUpcall {
 		}
 
 		switch (messageId) {
-		case 0: // Chain to process
-			Chain chain = chainFactory.get();
-			chain.readFrom(new ReadMessageWrapper(message));
-			endMessage(message, time, chain.getSubmissionId(), false);
-			if (log.isDebugEnabled()) {
-				log.debug("Received chain " + chain.getChainId());
+		case 0: // Chains to process
+			int nChains = message.readInt();
+			byte[] serialized = new byte[message.readInt()];
+			message.readArray(serialized);
+			BDataInput input = new BDataInput(serialized);
+			List<Chain> received = new ArrayList<Chain>(nChains);
+			Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+			for (int i = 0; i < nChains; ++i) {
+				Chain chain = chainFactory.get();
+				int start = input.getCurrentPosition();
+				chain.readFrom(input);
+				if (log.isDebugEnabled()) {
+					log.debug("Received chain " + chain.getChainId());
+				}
+				received.add(chain);
+				Integer s = sizes.get(chain.getSubmissionId());
+				int size = input.getCurrentPosition() - start;
+				sizes.put(chain.getSubmissionId(), s == null ? size : s + size);
+			}
+			endMessage(message, time, sizes);
+			chainsToProcess.addAll(received);
+			for (Chain chain : received) {
+				chainFactory.release(chain);
 			}
-			chainsToProcess.add(chain);
-			chainFactory.release(chain);
 			break;
 		case 1: // Receive signal that remote node has some tuples to send to
 			// local bucket or that a chain didn't have.
@@ -128,8 +152,10 @@ class Receiver implements MessageUpcall {
 					message.readArray(cfParams);
 				}
 			}
+			boolean compact = message.readBoolean();
 			long bufferKey = message.readLong();
 			boolean streaming = message.readBoolean();
+			boolean pushed = message.readBoolean();
 			int lSignature = message.readByte();
 			byte[] signature = new byte[lSignature];
 			message.readArray(signature);
@@ -153,7 +179,7 @@ class Receiver implements MessageUpcall {
 
 			Bucket bucket = buckets.getOrCreateBucket(submissionNode,
 					idSubmission, idBucket, isSorted, isSorted, streaming,
-					cfParams, signature);
+					compact, cfParams, signature);
 			if (updateCounters) {
 				bucket.updateCounters(idChain, idParentChain, children,
 						isResponsible);
@@ -163,7 +189,7 @@ class Receiver implements MessageUpcall {
 				bucket.setAdditionalCounters(chains, vals);
 			}
 
-			if (bufferKey > -1) {
+			if (bufferKey > -1 && !pushed) {
 				int idRemoteNode = net.getPeerId(message.origin()
 						.ibisIdentifier());
 				net.signalsBucketToFetch(idSubmission, submissionNode,
@@ -179,25 +205,31 @@ class Receiver implements MessageUpcall {
 			idSubmission = message.readInt();
 
 			if (!isChainFailed) {
-				idChain = message.readLong();
-				idParentChain = message.readLong();
-				children = message.readInt();
-
-				long[] additionalC = null;
-				int[] additionalCV = null;
-				int s = message.readInt();
-				if (s > 0) {
-					additionalC = new long[s];
-					additionalCV = new int[s];
-					for (int i = 0; i < s; ++i) {
-						additionalC[i] = message.readLong();
-						additionalCV[i] = message.readInt();
+				// A batch of terminated chains of the submission
+				int n = message.readInt();
+				long[] chainIds = new long[n];
+				long[] parentChainIds = new long[n];
+				int[] nchildren = new int[n];
+				long[][] additionalC = new long[n][];
+				int[][] additionalCV = new int[n][];
+				for (int j = 0; j < n; ++j) {
+					chainIds[j] = message.readLong();
+					parentChainIds[j] = message.readLong();
+					nchildren[j] = message.readInt();
+					int s = message.readInt();
+					if (s > 0) {
+						additionalC[j] = new long[s];
+						additionalCV[j] = new int[s];
+						for (int i = 0; i < s; ++i) {
+							additionalC[j][i] = message.readLong();
+							additionalCV[j][i] = message.readInt();
+						}
 					}
 				}
 
 				endMessage(message, time, idSubmission, true);
 				context.getSubmissionsRegistry().updateCounters(idSubmission,
-						idChain, idParentChain, children, additionalC,
+						n, chainIds, parentChainIds, nchildren, additionalC,
 						additionalCV);
 			} else {
 				// Cleanup submission
@@ -224,11 +256,12 @@ class Receiver implements MessageUpcall {
 			long ticket = message.readLong();
 			int sequence = message.readInt();
 			int nrequest = message.readInt();
+			int credits = message.readInt();
 			endMessage(message, time, submissionId, false);
 			net.addRequestToSendTuples(bucketKey,
 					net.getPeerId(message.origin().ibisIdentifier()),
 					submissionId, submissionNode, bucketId, ticket, sequence,
-					nrequest);
+					nrequest, credits);
 			break;
 		case 5: // A bucket to copy to local
 			ticket = message.readLong();
@@ -248,6 +281,9 @@ class Receiver implements MessageUpcall {
 				WritableContainer<WritableTuple> container = bufferFactory
 						.get();
 				container.init(isSortingBucket);
+				// Never wait for memory inside the upcall: the messages that
+				// release memory arrive through this same port.
+				container.reserve(submissionNode, submissionId, null, false);
 
                                 if (compressed) {
                                     int s = message.readInt();
@@ -261,14 +297,17 @@ class Receiver implements MessageUpcall {
 				boolean isFinished = message.readBoolean();
 				endMessage(message, time, submissionId, true);
 				// Finish message before calling getExistingBucket, because that
-				// call may block.
+				// call may block. The same goes for waiting for the memory
+				// budget.
+				MemoryManager.getInstance().awaitBudget(submissionNode,
+						submissionId, null);
 				bucket = buckets.getExistingBucket(submissionId, bucketId);
 				bucket.addAll(container, isSorted);
 				// addAll takes over control of container.
 				bucket.updateCounters(sequence, isFinished);
 
 				if (!isFinished) {
-					// Need to request for another fetch
+					// Return the credit of this chunk to the sender
 					int remoteNodeId = net.getPeerId(origin.ibisIdentifier());
 					net.signalsBucketToFetch(submissionId, submissionNode,
 							bucketId, remoteNodeId, bucketKey, ++sequence,
@@ -359,6 +398,7 @@ class Receiver implements MessageUpcall {
 					reply.writeLong(bucket.getKey());
 				}
 				reply.finish();
+				tmpBuffer.releaseReservation();
 				tmpBuffer.clear();
 				bufferFactory.release(tmpBuffer);
 				tmpBuffer = null;
@@ -399,7 +439,9 @@ class Receiver implements MessageUpcall {
 			// Statistics request
 			submissionId = message.readInt();
 			message.finish();
+			stats.submissionFinished(submissionId);
 			stats.sendStatisticsAway();
+			context.getChainHandlerManager().submissionFinished(submissionId);
 			if (myId != 0) {
 				// Node 0 has the answer, so cannot clear yet.
 				buckets.removeBucketsOfSubmission(submissionId);
@@ -611,10 +653,25 @@ class Receiver implements MessageUpcall {
 			boolean mustFinish) throws IOException {
 		long bytes = mustFinish ? msg.finish() : msg.bytesRead();
 		long time = System.currentTimeMillis() - startTime;
-		stats.addCounter(0, submissionId,
-				"Receiver:upcall: time receiving msgs (ms)", time);
-		stats.addCounter(0, submissionId, "Receiver:upcall: bytes received",
-				bytes);
+		stats.addCounter(0, submissionId, RECEIVE_TIME, time);
+		stats.addCounter(0, submissionId, BYTES_RECEIVED, bytes);
 		// stats.addCounter(0, submissionId, "Messages read", 1);
 	}
+
+	/**
+	 * Same as {@link #endMessage(ReadMessage, long, int, boolean)}, for a
+	 * message with the chains of several submissions, which is not finished:
+	 * the bytes and the time are split among them in proportion to the size
+	 * of their chains.
+	 * 
+	 * @param sizes
+	 *            the number of bytes of the chains of every submission
+	 */
+	private void endMessage(ReadMessage msg, long startTime,
+			Map<Integer, Integer> sizes) throws IOException {
+		long bytes = msg.bytesRead();
+		long time = System.currentTimeMillis() - startTime;
+		NetworkLayer.addCounters(stats, RECEIVE_TIME, BYTES_RECEIVED, time,
+				bytes, sizes);
+	}
 }
@@ -21,6 +21,7 @@ public class TupleInfo implements Writable {
 	public long expected;
 	public int nrequests;
 	public long ticket;
+	public int credits;
 
 	/**
 	 * Read the information from an input source.
@@ -36,6 +37,7 @@ public class TupleInfo implements Writable {
 		expected = input.readLong();
 		nrequests = input.readInt();
 		ticket = input.readLong();
+		credits = input.readInt();
 	}
 
 	/**
@@ -52,5 +54,6 @@ public class TupleInfo implements Writable {
 		output.writeLong(expected);
 		output.writeInt(nrequests);
 		output.writeLong(ticket);
+		output.writeInt(credits);
 	}
 }
@@ -9,18 +9,22 @@ import java.util.Set;
 
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.storage.Factory;
+import nl.vu.cs.ajira.utils.Consts;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class is used to handle/send a request for tuples transfer
- * (remote-bucket's data fetch).
+ * (remote-bucket's data fetch). The first request of a transfer grants the
+ * sender a window of {@link Consts#TUPLE_SEND_WINDOW} chunks; every following
+ * request returns the credit of a chunk that has been received.
  */
 class TupleRequester {
 	static final Logger log = LoggerFactory.getLogger(TupleRequester.class);
 
 	private final Context context;
+	private final int window;
 	private long ticket = 0;
 	private Set<Long> activeRequests = new HashSet<Long>();
 	private Factory<TupleInfo> tuFactory = new Factory<TupleInfo>(
@@ -34,6 +38,8 @@ class TupleRequester {
 	 */
 	public TupleRequester(Context context) {
 		this.context = context;
+		this.window = Math.max(1, context.getConfiguration().getInt(
+				Consts.TUPLE_SEND_WINDOW, 4));
 	}
 
 	/**
@@ -56,11 +62,15 @@ class TupleRequester {
 	 * @param nrequest
 	 *            Requests number (how many requests are sent inside this
 	 *            message)
+	 * @param credits
+	 *            The number of chunks the sender may send
+	 * @param streaming
+	 *            Whether the bucket is a streaming bucket
 	 */
 
-	public void handleNewRequest(int idSubmission, int submissionNode,
+	private void handleNewRequest(int idSubmission, int submissionNode,
 			int idBucket, int remoteNodeId, long bufferKey, int sequence,
-			int nrequest, boolean streaming) {
+			int nrequest, int credits, boolean streaming) {
 		final TupleInfo tu = tuFactory.get();
 		tu.submissionId = idSubmission;
 		tu.submissionNode = submissionNode;
@@ -69,9 +79,11 @@ class TupleRequester {
 		tu.bucketKey = bufferKey;
 		tu.sequence = sequence;
 		tu.nrequests = nrequest;
+		tu.credits = credits;
 
-		// Calculate the expected time
-		if (!streaming) {
+		// Calculate the expected time. Credits are returned immediately: the
+		// sender keeps the transfer until it has data to send.
+		if (!streaming && sequence == 0) {
 			tu.expected = System.currentTimeMillis()
 					+ Math.min(1000, 2 * nrequest);
 		} else {
@@ -86,11 +98,23 @@ class TupleRequester {
 		handleInfo(tu);
 	}
 
+	/**
+	 * Starts a new transfer, granting the whole window to the sender.
+	 */
+	public void handleNewRequest(int idSubmission, int submissionNode,
+			int idBucket, int remoteNodeId, long bufferKey, boolean streaming) {
+		handleNewRequest(idSubmission, submissionNode, idBucket, remoteNodeId,
+				bufferKey, 0, 0, window, streaming);
+	}
+
+	/**
+	 * Returns the credit of a received chunk to the sender.
+	 */
 	public void handleNewRequest(int idSubmission, int submissionNode,
 			int idBucket, int remoteNodeId, long bufferKey, int sequence,
 			int nrequest) {
 		handleNewRequest(idSubmission, submissionNode, idBucket, remoteNodeId,
-				bufferKey, sequence, nrequest, false);
+				bufferKey, sequence, nrequest, 1, false);
 	}
 
 	/**
@@ -117,15 +141,14 @@ class TupleRequester {
 			}
 
 			if (currentTime >= info.expected) {
-				synchronized (activeRequests) {
-					/*
-					 * while (activeRequests.size() >=
-					 * Consts.MAX_CONCURRENT_TRANSFERS) { try {
-					 * log.debug("Waiting for number of active requests to decrease"
-					 * ); activeRequests.wait(); } catch (InterruptedException
-					 * e) { // ignore } }
-					 */
-					activeRequests.add(--ticket);
+				// Only the first request of a transfer is answered with its
+				// ticket.
+				long t = 0;
+				if (info.sequence == 0) {
+					synchronized (activeRequests) {
+						t = --ticket;
+						activeRequests.add(t);
+					}
 				}
 				WriteMessage msg = null;
 				try {
@@ -137,9 +160,10 @@ class TupleRequester {
 					msg.writeInt(info.submissionId);
 					msg.writeInt(info.submissionNode);
 					msg.writeInt(info.bucketId);
-					msg.writeLong(ticket);
+					msg.writeLong(t);
 					msg.writeInt(info.sequence);
 					msg.writeInt(info.nrequests);
+					msg.writeInt(info.credits);
 					net.finishMessage(msg, info.submissionId);
 
 					if (log.isDebugEnabled()) {
@@ -156,7 +180,7 @@ class TupleRequester {
 					if (msg != null && e instanceof IOException) {
 						msg.finish((IOException) e);
 					}
-					removeActiveRequest(ticket);
+					removeActiveRequest(t);
 					context.killSubmission(info.submissionNode,
 							info.submissionId, e);
 					return;
@@ -4,8 +4,11 @@ import ibis.ipl.WriteMessage;
 import ibis.util.ThreadPool;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.buckets.Bucket;
@@ -14,25 +17,59 @@ import nl.vu.cs.ajira.buckets.WritableTuple;
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
 import nl.vu.cs.ajira.utils.Consts;
 
-import org.iq80.snappy.Snappy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class is used to process the incoming requests for a tuple transfer and
  * to answer them by sending chunks from the assigned/specified remote-bucket.
+ * 
+ * Every transfer (identified by the key of the local bucket) is a stream with
+ * a window of credits. In push mode ({@link Consts#PUSH_TRANSFERS}, the
+ * default) the stream is opened by this node as soon as the destination is
+ * alerted, with a whole window; otherwise the first request of the receiver
+ * grants it. The receiver returns one credit for every chunk it has
+ * processed. As long as a stream has credits, it is rescheduled as soon as a
+ * chunk has been removed from the bucket, so that the next chunk is prepared
+ * and compressed by another sender thread while the previous one is still
+ * being written to the network. The number of threads that write to the same
+ * node at the same time is bounded, so that a slow node cannot hold all the
+ * sender threads.
+ * 
+ * A stream whose bucket has nothing to send waits until the bucket signals
+ * new data or the end of the transfer (see {@link #bucketReady(long)}).
  */
 class TupleSender {
 	private static final Logger log = LoggerFactory
 			.getLogger(TupleSender.class);
 
+	/**
+	 * The state of a transfer. The fields are protected by the lock on
+	 * <code>streams</code>.
+	 */
+	private static class Stream {
+		final TupleInfo info = new TupleInfo();
+		int credits;
+		int nextSequence;
+		// The stream is waiting, in sendList or being processed.
+		boolean scheduled;
+		boolean finished;
+	}
+
 	private final Context context;
 	private final Buckets buckets;
 
-	private final List<TupleInfo> checkList = new LinkedList<TupleInfo>();
-	private final List<TupleInfo> sendList = new LinkedList<TupleInfo>();
-	private int checkerTime = 1;
-        private final boolean compressing;
+	private final Map<Long, Stream> streams = new HashMap<Long, Stream>();
+	// Streams waiting for data, by bucket key.
+	private final Map<Long, Stream> waiting = new HashMap<Long, Stream>();
+	private final List<Stream> sendList = new LinkedList<Stream>();
+	private final boolean compressing;
+	private final boolean pushing;
+	private final int window;
+
+	// Number of threads that are sending to each node. Protected by sendList.
+	private final int[] writers;
+	private final int maxWritersPerNode;
 
 	/**
 	 * Custom constructor.
@@ -43,13 +80,14 @@ class TupleSender {
 	public TupleSender(Context context) {
 		this.context = context;
 		this.buckets = context.getBuckets();
-                this.compressing = context.getConfiguration().getBoolean(Consts.SEND_TUPLES_COMPRESSED, true);
-		ThreadPool.createNew(new Runnable() {
-			@Override
-			public void run() {
-				checkTuples();
-			}
-		}, "TupleSenderChecker");
+		this.compressing = context.getConfiguration().getBoolean(
+				Consts.SEND_TUPLES_COMPRESSED, true);
+		this.pushing = context.getConfiguration().getBoolean(
+				Consts.PUSH_TRANSFERS, true);
+		this.window = Math.max(1, context.getConfiguration().getInt(
+				Consts.TUPLE_SEND_WINDOW, 4));
+		writers = new int[context.getNetworkLayer().getNumberNodes()];
+		maxWritersPerNode = Math.max(1, Consts.MAX_TUPLE_SENDERS / 2);
 		for (int i = 0; i < Consts.MAX_TUPLE_SENDERS; i++) {
 			ThreadPool.createNew(new Runnable() {
 				@Override
@@ -60,6 +98,35 @@ class TupleSender {
 		}
 	}
 
+	/**
+	 * @return whether transfers are pushed to the destination, instead of
+	 *         being requested by it
+	 */
+	public boolean isPushing() {
+		return pushing;
+	}
+
+	/**
+	 * Starts pushing a transfer to the remote node, as if it had requested it
+	 * with a whole window of credits.
+	 * 
+	 * @param localBufferKey
+	 *            Local buffer's key
+	 * @param remoteNodeId
+	 *            The destination of the transfer
+	 * @param idSubmission
+	 *            Submission id
+	 * @param submissionNode
+	 *            The node that submitted the job
+	 * @param idBucket
+	 *            Bucket id (remote-bucket's id)
+	 */
+	public void startTransfer(long localBufferKey, int remoteNodeId,
+			int idSubmission, int submissionNode, int idBucket) {
+		handleNewRequest(localBufferKey, remoteNodeId, idSubmission,
+				submissionNode, idBucket, 0, 0, 0, window);
+	}
+
 	/**
 	 * Handles new incoming request for data fetch (tuples transfer from the
 	 * specified remote-bucket)
@@ -77,157 +144,179 @@ class TupleSender {
 	 * @param ticket
 	 *            The request's ticket number / id
 	 * @param sequence
-	 *            Sequence number (~ chunk number)
+	 *            Sequence number (~ chunk number). Only the first request of
+	 *            a transfer has sequence 0; the following ones return credits.
 	 * @param nrequest
 	 *            Requests number (how many requests were sent inside this
 	 *            message)
+	 * @param credits
+	 *            The number of chunks that the remote node is willing to
+	 *            receive
 	 */
 	public void handleNewRequest(long localBufferKey, int remoteNodeId,
 			int idSubmission, int submissionNode, int idBucket, long ticket,
-			int sequence, int nrequest) {
-		final TupleInfo tu = new TupleInfo();
-
-		tu.bucketKey = localBufferKey;
-		tu.remoteNodeId = remoteNodeId;
-		tu.submissionId = idSubmission;
-		tu.submissionNode = submissionNode;
-		tu.bucketId = idBucket;
-		tu.ticket = ticket;
-		tu.sequence = sequence;
-		tu.nrequests = nrequest;
-		tu.expected = -1;
-
-		Bucket bucket = buckets.getExistingBucket(tu.bucketKey, false);
-
-		if (bucket != null) {
-			boolean enoughData = bucket.availableToTransmit()
-					|| !buckets.isActiveTransfer(tu.submissionId,
-							tu.remoteNodeId, tu.bucketId);
-			if (log.isDebugEnabled()) {
-				log.debug("Checking bucket "
-						+ tu.bucketKey
-						+ ", enoughData = "
-						+ enoughData
-						+ ", isActive = "
-						+ buckets.isActiveTransfer(tu.submissionId,
-								tu.remoteNodeId, tu.bucketId));
-			}
-			if (enoughData) {
-				synchronized (sendList) {
-					sendList.add(tu);
-					sendList.notify();
+			int sequence, int nrequest, int credits) {
+		Stream stream;
+		synchronized (streams) {
+			stream = streams.get(localBufferKey);
+			if (stream == null) {
+				if (sequence != 0) {
+					// Credit for a transfer that is already finished.
+					return;
 				}
-
+				purgeCrashed();
+				stream = new Stream();
+				TupleInfo tu = stream.info;
+				tu.bucketKey = localBufferKey;
+				tu.remoteNodeId = remoteNodeId;
+				tu.submissionId = idSubmission;
+				tu.submissionNode = submissionNode;
+				tu.bucketId = idBucket;
+				tu.ticket = ticket;
+				tu.expected = -1;
+				streams.put(localBufferKey, stream);
+			}
+			stream.info.nrequests = nrequest;
+			stream.credits += credits;
+			if (stream.scheduled || stream.finished) {
 				return;
 			}
+			stream.scheduled = true;
 		}
+		schedule(stream);
+	}
 
-		synchronized (checkList) {
-			checkList.add(tu);
-			checkerTime = 1;
-			checkList.notify();
+	/*
+	 * Checks whether the bucket of a transfer has something to send.
+	 */
+	private boolean isReady(Stream stream) {
+		TupleInfo info = stream.info;
+		Bucket bucket = buckets.getExistingBucket(info.bucketKey, false);
+		if (bucket == null) {
+			return false;
 		}
+		boolean enoughData = bucket.availableToTransmit()
+				|| !buckets.isActiveTransfer(info.submissionId,
+						info.remoteNodeId, info.bucketId);
+		if (log.isDebugEnabled()) {
+			log.debug("Checking bucket "
+					+ info.bucketKey
+					+ ", enoughData = "
+					+ enoughData
+					+ ", isActive = "
+					+ buckets.isActiveTransfer(info.submissionId,
+							info.remoteNodeId, info.bucketId));
+		}
+		return enoughData;
 	}
 
-	/**
-	 * Checks each request to see if it can be answered to. The condition is
-	 * that the bucket should have available data for transfer.
+	/*
+	 * Puts a stream in the send list if it has data, and among the waiting
+	 * streams otherwise. The check is done while holding the lock on
+	 * waiting, so that a concurrent bucketReady() is not lost.
 	 */
-	private void checkTuples() {
-		for (;;) {
-			synchronized (checkList) {
-				while (checkList.size() == 0) {
-					try {
-						checkList.wait();
-					} catch (InterruptedException e) {
-						// nothing
-					}
-				}
-
-				int sz = checkList.size();
-
-				if (log.isDebugEnabled()) {
-					log.debug("checkTuples: size = " + sz);
-				}
-
-				for (int i = 0; i < sz; i++) {
-					TupleInfo info = checkList.remove(0);
-					if (context.hasCrashed(info.submissionId)) {
-						continue;
-					}
-					Bucket bucket = buckets.getExistingBucket(info.bucketKey,
-							false);
-					if (bucket != null) {
-						boolean enoughData = bucket.availableToTransmit()
-								|| !buckets.isActiveTransfer(info.submissionId,
-										info.remoteNodeId, info.bucketId);
-						if (enoughData) {
-							if (log.isDebugEnabled()) {
-								log.debug("Data available for "
-										+ context.getNetworkLayer()
-												.getPeerLocation(
-														info.remoteNodeId)
-										+ ", bucket = "
-										+ info.bucketKey
-										+ ", remote bucket = "
-										+ info.bucketId
-										+ ", isActive = "
-										+ buckets.isActiveTransfer(
-												info.submissionId,
-												info.remoteNodeId,
-												info.bucketId));
-							}
-
-							synchronized (sendList) {
-								sendList.add(info);
-								sendList.notify();
-							}
-
-							continue;
-						}
-					}
+	private void schedule(Stream stream) {
+		synchronized (waiting) {
+			if (!isReady(stream)) {
+				waiting.put(stream.info.bucketKey, stream);
+				return;
+			}
+		}
+		synchronized (sendList) {
+			sendList.add(stream);
+			sendList.notify();
+		}
+	}
 
-					checkList.add(info);
+	/*
+	 * Drops the waiting streams of submissions that have failed: their
+	 * buckets will not signal anymore. Called with the lock on streams.
+	 */
+	private void purgeCrashed() {
+		synchronized (waiting) {
+			Iterator<Stream> itr = waiting.values().iterator();
+			while (itr.hasNext()) {
+				Stream stream = itr.next();
+				if (context.hasCrashed(stream.info.submissionId)) {
+					itr.remove();
+					streams.remove(stream.info.bucketKey);
 				}
+			}
+		}
+	}
 
-				try {
-					checkList.wait(checkerTime);
-				} catch (InterruptedException e) {
-					// ignore
+	/**
+	 * Signals that the bucket of a transfer has new data to send, or that no
+	 * more data will be added to it.
+	 * 
+	 * @param bucketKey
+	 *            The key of the local bucket
+	 */
+	public void bucketReady(long bucketKey) {
+		Stream stream;
+		synchronized (waiting) {
+			stream = waiting.remove(bucketKey);
+		}
+		if (stream != null) {
+			if (context.hasCrashed(stream.info.submissionId)) {
+				synchronized (streams) {
+					streams.remove(bucketKey);
 				}
-
-				checkerTime = Math.min(10, 2 * checkerTime);
+				return;
+			}
+			synchronized (sendList) {
+				sendList.add(stream);
+				sendList.notify();
 			}
 		}
 	}
 
 	/**
-	 * Removes a request from the queue and answers to it.
+	 * Removes a request from the queue and answers to it. Streams whose
+	 * destination already has the maximum number of writers are skipped.
 	 */
 	private void sendTuples() {
-		byte[] buffer = new byte[10 + Snappy
+		byte[] buffer = new byte[10 + WritableContainer
 				.maxCompressedLength(Consts.TUPLES_CONTAINER_MAX_BUFFER_SIZE)];
 		for (;;) {
-			TupleInfo info;
+			Stream stream = null;
 			synchronized (sendList) {
-				while (sendList.size() == 0) {
-					try {
-						sendList.wait();
-					} catch (InterruptedException e) {
-						// nothing
+				while (stream == null) {
+					Iterator<Stream> itr = sendList.iterator();
+					while (itr.hasNext()) {
+						Stream s = itr.next();
+						if (writers[s.info.remoteNodeId] < maxWritersPerNode) {
+							itr.remove();
+							stream = s;
+							writers[s.info.remoteNodeId]++;
+							break;
+						}
+					}
+					if (stream == null) {
+						try {
+							sendList.wait();
+						} catch (InterruptedException e) {
+							// nothing
+						}
 					}
 				}
-
-				info = sendList.remove(0);
 			}
 			try {
-				sendTuple(info, buffer);
+				sendTuple(stream, buffer);
 			} catch (Throwable e) {
 				if (log.isDebugEnabled()) {
 					log.debug("Got Exception in tuple sender", e);
 				}
-				context.killSubmission(info.submissionNode, info.submissionId,
-						e);
+				synchronized (streams) {
+					streams.remove(stream.info.bucketKey);
+				}
+				context.killSubmission(stream.info.submissionNode,
+						stream.info.submissionId, e);
+			} finally {
+				synchronized (sendList) {
+					writers[stream.info.remoteNodeId]--;
+					sendList.notifyAll();
+				}
 			}
 		}
 	}
@@ -235,16 +324,21 @@ class TupleSender {
 	/**
 	 * Sends a chunk of tuples as a response to the request for data fetch. We
 	 * consider the provided information attached to the request for filling up
-	 * the response's message.
+	 * the response's message. If the stream has more credits, it is
+	 * rescheduled before the chunk is compressed and written.
 	 * 
-	 * @param info
-	 *            Information about the request
+	 * @param stream
+	 *            The transfer
 	 * @throws Exception
 	 */
-	private void sendTuple(TupleInfo info, byte[] supportBuffer)
+	private void sendTuple(Stream stream, byte[] supportBuffer)
 			throws Exception {
 
+		TupleInfo info = stream.info;
 		if (context.hasCrashed(info.submissionId)) {
+			synchronized (streams) {
+				streams.remove(info.bucketKey);
+			}
 			return;
 		}
 		NetworkLayer net = context.getNetworkLayer();
@@ -257,6 +351,32 @@ class TupleSender {
 					+ info.bucketKey + ", remote bucket = " + info.bucketId);
 		}
 		tmpBuffer = bucket.nonBlockingRemoveWChunk(null);
+		boolean isSortingBucket = bucket.isSortingBucket();
+		boolean isSorted = bucket.isSorted();
+		boolean isTransfered = buckets.cleanTransfer(info.remoteNodeId,
+				info.submissionId, info.bucketId);
+
+		int sequence;
+		int nrequests;
+		boolean reschedule = false;
+		synchronized (streams) {
+			sequence = stream.nextSequence++;
+			nrequests = info.nrequests;
+			stream.credits--;
+			if (isTransfered) {
+				stream.finished = true;
+				streams.remove(info.bucketKey);
+			} else if (stream.credits > 0) {
+				reschedule = true;
+			} else {
+				stream.scheduled = false;
+			}
+		}
+		if (reschedule) {
+			// The next chunk can be prepared while this one is sent.
+			schedule(stream);
+		}
+
 		WriteMessage msg = net.getMessageToSend(net
 				.getPeerLocation(info.remoteNodeId));
 		try {
@@ -265,24 +385,22 @@ class TupleSender {
 			msg.writeInt(info.submissionId);
 			msg.writeInt(info.submissionNode);
 			msg.writeInt(info.bucketId);
-			msg.writeInt(info.sequence);
+			msg.writeInt(sequence);
 			msg.writeLong(info.bucketKey);
-			msg.writeInt(info.nrequests);
-			msg.writeBoolean(bucket.isSortingBucket());
-			msg.writeBoolean(bucket.isSorted());
+			msg.writeInt(nrequests);
+			msg.writeBoolean(isSortingBucket);
+			msg.writeBoolean(isSorted);
 			msg.writeBoolean(true);
-                        msg.writeBoolean(compressing);
+			msg.writeBoolean(compressing);
 
-                        if (compressing) {
-                            int s = tmpBuffer.compressTo(supportBuffer);
-                            msg.writeInt(s);
-                            msg.writeArray(supportBuffer, 0, s);
-                        } else {
-                            tmpBuffer.writeTo(new WriteMessageWrapper(msg));
-                        }
+			if (compressing) {
+				int s = tmpBuffer.compressTo(supportBuffer);
+				msg.writeInt(s);
+				msg.writeArray(supportBuffer, 0, s);
+			} else {
+				tmpBuffer.writeTo(new WriteMessageWrapper(msg));
+			}
 
-			boolean isTransfered = buckets.cleanTransfer(info.remoteNodeId,
-					info.submissionId, info.bucketId);
 			msg.writeBoolean(isTransfered);
 
 			net.finishMessage(msg, info.submissionId);
@@ -291,7 +409,7 @@ class TupleSender {
 				log.debug("Sent chunk to "
 						+ net.getPeerLocation(info.remoteNodeId) + " of size "
 						+ tmpBuffer.getNElements() + " be copied at "
-						+ info.bucketKey + " req.=" + info.nrequests
+						+ info.bucketKey + " seq.=" + sequence
 						+ " isTransfered=" + isTransfered);
 			}
 		} catch (IOException e) {
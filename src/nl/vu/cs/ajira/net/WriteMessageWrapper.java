@@ -4,8 +4,11 @@ import ibis.ipl.WriteMessage;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public class WriteMessageWrapper implements DataOutput {
+import nl.vu.cs.ajira.data.types.bytearray.ByteBufferOutput;
+
+public class WriteMessageWrapper implements DataOutput, ByteBufferOutput {
 
 	WriteMessage message;
 
@@ -28,6 +31,11 @@ public class WriteMessageWrapper implements DataOutput {
 		message.writeArray(b, off, len);
 	}
 
+	@Override
+	public void write(ByteBuffer b) throws IOException {
+		message.writeByteBuffer(b);
+	}
+
 	@Override
 	public void writeBoolean(boolean v) throws IOException {
 		message.writeBoolean(v);
@@ -1,7 +1,6 @@
 package nl.vu.cs.ajira.storage;
 
 import java.lang.reflect.Constructor;
-import java.util.Random;
 
 import nl.vu.cs.ajira.storage.containers.WritableContainer;
 import nl.vu.cs.ajira.utils.Consts;
@@ -51,30 +50,19 @@ public class Factory<K> {
 		return bufferSize;
 	}
 
-	public synchronized long getEstimatedSizeInBytes(Random r) {
-		// Get 10 random elements and estimate the size
-
-		long estimatedSize = 0;
-		if (getNAvailableElements() < Consts.N_ELEMENTS_TO_SAMPLE) {
-			// Count them all
-			for (int i = 0; i < bufferSize; ++i) {
-				Object el = buffer[i];
-				if (el instanceof WritableContainer) {
-					estimatedSize += ((WritableContainer<?>) el)
-							.getTotalCapacity();
-				}
-			}
-			return estimatedSize;
-		} else {
-			for (int i = 0; i < Consts.N_ELEMENTS_TO_SAMPLE; ++i) {
-				Object el = buffer[r.nextInt(bufferSize)];
-				if (el instanceof WritableContainer) {
-					estimatedSize += ((WritableContainer<?>) el)
-							.getTotalCapacity();
-				}
+	/**
+	 * 
+	 * @return the number of bytes of the containers kept in the buffer
+	 */
+	public synchronized long getSizeInBytes() {
+		long size = 0;
+		for (int i = 0; i < bufferSize; ++i) {
+			Object el = buffer[i];
+			if (el instanceof WritableContainer) {
+				size += ((WritableContainer<?>) el).getTotalCapacity();
 			}
-			return estimatedSize / Consts.N_ELEMENTS_TO_SAMPLE * bufferSize;
 		}
+		return size;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -141,7 +129,7 @@ public class Factory<K> {
 	 * @param max
 	 *            is the new capacity of the buffer
 	 */
-	public void setMaxCapacity(int max) {
+	public synchronized void setMaxCapacity(int max) {
 		buffer = new Object[max];
 		bufferSize = 0;
 	}
@@ -150,7 +138,7 @@ public class Factory<K> {
 	 * Cleans the factory to free memory
 	 * 
 	 */
-	public void clean() {
+	public synchronized void clean() {
 		bufferSize = 0;
 		buffer = new Object[Consts.N_ELEMENTS_FACTORY];
 	}
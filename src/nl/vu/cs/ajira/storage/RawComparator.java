@@ -83,6 +83,20 @@ public class RawComparator<T> {
 		return compareBytes(b1, s1, l1, b2, s2, l2);
 	}
 
+	/**
+	 * Returns the number of leading bytes of a serialized field that this
+	 * comparator skips, provided that it compares the remaining bytes as
+	 * unsigned lexicographic byte strings, like {@link #compareBytes}. In all
+	 * other cases it returns -1, which tells the sorting code that it cannot
+	 * order fields of this type on a normalized prefix of their bytes.
+	 * Subclasses that are lexicographic should override this method.
+	 * 
+	 * @return the offset of the compared bytes, or -1
+	 */
+	public int getLexicographicOffset() {
+		return getClass() == RawComparator.class ? 0 : -1;
+	}
+
 	public static synchronized void registerComparator(int idSimpleData,
 			RawComparator<? extends SimpleData> cmp) {
 		cmps[idSimpleData] = cmp;
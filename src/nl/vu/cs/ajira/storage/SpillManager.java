@@ -0,0 +1,205 @@
+package nl.vu.cs.ajira.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nl.vu.cs.ajira.mgmt.StatisticsCollector;
+import nl.vu.cs.ajira.utils.Configuration;
+import nl.vu.cs.ajira.utils.Consts;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class decides where the temporary files used to spill data on disk are
+ * stored. The directories are read from the {@link Consts#SPILL_DIRS}
+ * parameter (a comma-separated list, by default <code>java.io.tmpdir</code>),
+ * which typically contains one directory per local disk. A new file goes to
+ * the directory with the most free space per pending spill file, so that both
+ * the space and the I/O are spread over the disks. The bytes written to and
+ * read from every directory are reported to the {@link StatisticsCollector}.
+ * Spill files are deleted as soon as they are consumed, through
+ * {@link #delete(File)}.
+ */
+public class SpillManager {
+
+	static final Logger log = LoggerFactory.getLogger(SpillManager.class);
+
+	private static class SpillDirectory {
+		final File dir;
+		final String counterWritten;
+		final String counterRead;
+		int pendingFiles;
+
+		SpillDirectory(File dir) {
+			this.dir = dir;
+			counterWritten = "SpillManager: bytes written to " + dir.getPath();
+			counterRead = "SpillManager: bytes read from " + dir.getPath();
+		}
+	}
+
+	private final StatisticsCollector stats;
+	private final List<SpillDirectory> dirs = new ArrayList<SpillDirectory>();
+	private final Map<String, SpillDirectory> dirsByPath = new HashMap<String, SpillDirectory>();
+	private final Set<File> files = new HashSet<File>();
+	private int next = 0;
+
+	/**
+	 * Creates a new spill manager with the directories listed in the
+	 * configuration.
+	 *
+	 * @param conf
+	 *            the configuration of the cluster
+	 * @param stats
+	 *            the statistics collector, or <code>null</code>
+	 */
+	public SpillManager(Configuration conf, StatisticsCollector stats) {
+		this.stats = stats;
+		String list = conf.get(Consts.SPILL_DIRS, null);
+		if (list != null) {
+			for (String path : list.split(",")) {
+				path = path.trim();
+				if (path.length() == 0) {
+					continue;
+				}
+				File dir = new File(path).getAbsoluteFile();
+				if (!dir.isDirectory() && !dir.mkdirs()) {
+					log.warn("Spill directory " + path
+							+ " cannot be created: ignored");
+					continue;
+				}
+				addDirectory(dir);
+			}
+		}
+		if (dirs.size() == 0) {
+			addDirectory(new File(System.getProperty("java.io.tmpdir"))
+					.getAbsoluteFile());
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Spill directories: " + dirsByPath.keySet());
+		}
+	}
+
+	private void addDirectory(File dir) {
+		if (!dirsByPath.containsKey(dir.getPath())) {
+			SpillDirectory d = new SpillDirectory(dir);
+			dirs.add(d);
+			dirsByPath.put(dir.getPath(), d);
+		}
+	}
+
+	/**
+	 * Creates a new, empty, spill file.
+	 *
+	 * @param prefix
+	 *            the prefix of the name of the file
+	 * @return the new file
+	 * @throws IOException
+	 */
+	public File newSpillFile(String prefix) throws IOException {
+		SpillDirectory d;
+		synchronized (this) {
+			// Start from a different directory every time, so that ties are
+			// broken round-robin.
+			d = null;
+			double best = -1;
+			for (int i = 0; i < dirs.size(); ++i) {
+				SpillDirectory c = dirs.get((next + i) % dirs.size());
+				double score = (double) c.dir.getUsableSpace()
+						/ (1 + c.pendingFiles);
+				if (score > best) {
+					best = score;
+					d = c;
+				}
+			}
+			next = (next + 1) % dirs.size();
+			d.pendingFiles++;
+		}
+		File file = File.createTempFile(prefix, "tmp", d.dir);
+		synchronized (this) {
+			files.add(file);
+		}
+		return file;
+	}
+
+	private SpillDirectory getDirectory(File file) {
+		return dirsByPath.get(file.getParentFile().getPath());
+	}
+
+	/**
+	 * Records that a spill file has been written completely.
+	 *
+	 * @param submissionNode
+	 *            the node that submitted the job
+	 * @param submissionId
+	 *            the submission that produced the file
+	 * @param file
+	 *            the spill file
+	 */
+	public void fileWritten(int submissionNode, int submissionId, File file) {
+		SpillDirectory d = getDirectory(file);
+		if (stats != null && d != null) {
+			stats.addCounter(submissionNode, submissionId, d.counterWritten,
+					file.length());
+		}
+	}
+
+	/**
+	 * Records that a spill file has been read completely.
+	 *
+	 * @param submissionNode
+	 *            the node that submitted the job
+	 * @param submissionId
+	 *            the submission that read the file
+	 * @param file
+	 *            the spill file
+	 */
+	public void fileRead(int submissionNode, int submissionId, File file) {
+		SpillDirectory d = getDirectory(file);
+		if (stats != null && d != null) {
+			stats.addCounter(submissionNode, submissionId, d.counterRead,
+					file.length());
+		}
+	}
+
+	/**
+	 * Deletes a spill file that is no longer needed.
+	 *
+	 * @param file
+	 *            the spill file
+	 */
+	public void delete(File file) {
+		synchronized (this) {
+			if (!files.remove(file)) {
+				return;
+			}
+			SpillDirectory d = getDirectory(file);
+			if (d != null) {
+				d.pendingFiles--;
+			}
+		}
+		if (!file.delete() && file.exists()) {
+			log.warn("Could not delete spill file " + file);
+		}
+	}
+
+	/**
+	 * Deletes all the spill files that are still around. Called when the
+	 * framework shuts down.
+	 */
+	public void deleteAll() {
+		List<File> l;
+		synchronized (this) {
+			l = new ArrayList<File>(files);
+		}
+		for (File file : l) {
+			delete(file);
+		}
+	}
+}
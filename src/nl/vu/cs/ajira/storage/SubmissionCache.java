@@ -5,6 +5,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import nl.vu.cs.ajira.actions.ActionTable;
+import nl.vu.cs.ajira.data.types.StringDictionary;
 import nl.vu.cs.ajira.net.NetworkLayer;
 
 import org.slf4j.Logger;
@@ -45,6 +47,14 @@ public class SubmissionCache {
 							+ " to submissionCache");
 				}
 				sc.put(key, value);
+				if (value instanceof StringDictionary) {
+					// Needed to deserialize the strings of the submission
+					StringDictionary.register(submissionId,
+							(StringDictionary) value);
+				} else if (value instanceof ActionTable) {
+					// Needed to read the actions of the chains
+					ActionTable.register(submissionId, (ActionTable) value);
+				}
 			}
 			sc.notifyAll();
 		}
@@ -95,6 +105,8 @@ public class SubmissionCache {
 
 	public void clearAll(int submissionId) {
 		Map<Object, Object> map = submissionsCache.remove(submissionId);
+		StringDictionary.unregister(submissionId);
+		ActionTable.unregister(submissionId);
 		int size = 0;
 		if (map != null)
 			size = map.size();
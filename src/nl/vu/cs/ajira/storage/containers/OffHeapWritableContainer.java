@@ -0,0 +1,37 @@
+package nl.vu.cs.ajira.storage.containers;
+
+import nl.vu.cs.ajira.storage.Writable;
+import nl.vu.cs.ajira.utils.Consts;
+
+/**
+ * A circular {@link WritableContainer} whose bytes are stored off-heap, in a
+ * direct buffer accounted for by the
+ * {@link nl.vu.cs.ajira.mgmt.MemoryManager}. The buffers of the tuples are of
+ * this class when {@link Consts#OFF_HEAP_CONTAINERS} is set, so that they do
+ * not weigh on the garbage collector.
+ */
+public class OffHeapWritableContainer<K extends Writable> extends
+		WritableContainer<K> {
+
+	/**
+	 * Creates a new off-heap container.
+	 * 
+	 * @param size
+	 *            The maximum size of the buffer.
+	 */
+	public OffHeapWritableContainer(Integer size) {
+		super(true, false, size, true);
+	}
+
+	/**
+	 * Creates a new off-heap container.
+	 * 
+	 * @param enableFieldMarks
+	 *            Is the new value of enableFieldDelimitors.
+	 * @param size
+	 *            The maximum size of the buffer.
+	 */
+	public OffHeapWritableContainer(Boolean enableFieldMarks, Integer size) {
+		super(true, enableFieldMarks, size, true);
+	}
+}
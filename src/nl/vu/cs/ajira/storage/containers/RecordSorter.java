@@ -0,0 +1,449 @@
+package nl.vu.cs.ajira.storage.containers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nl.vu.cs.ajira.buckets.TupleComparator;
+
+/**
+ * Sorts the records of a {@link WritableContainer} without boxing. Every
+ * record is identified by an index in the <code>coordinates</code> array,
+ * which holds its start and its length. When the comparator allows it, the
+ * first eight bytes of the first sort field are cached as a normalized
+ * <code>long</code> prefix: records are compared on the prefix first and the
+ * full {@link TupleComparator} is invoked only when the prefixes are equal.
+ * If there is a single sort field with a fixed length of at most eight bytes
+ * (for example a <code>TLong</code> or a <code>TInt</code>), the prefix
+ * determines the order completely and an LSD radix sort is used instead.
+ * <p>
+ * Large containers are sorted with a fork-join merge sort: the records are
+ * partitioned in ranges that are sorted in parallel, and the sorted ranges are
+ * merged in parallel as well. The number of threads is set with
+ * {@link #setParallelism(int)}.
+ * <p>
+ * The records of an off-heap container are copied, one or two at a time, to
+ * scratch arrays as long as the longest record before they are compared.
+ */
+public final class RecordSorter {
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	/* Containers with fewer records are always sorted sequentially. */
+	private static final int PARALLEL_THRESHOLD = 65536;
+
+	/* Minimum number of records sorted or merged by a single task. */
+	private static final int MIN_TASK_SIZE = 8192;
+
+	private static int parallelism = 1;
+	private static ForkJoinPool pool = null;
+
+	private final byte[] buffer;
+	/* The off-heap container that holds the records instead, or null */
+	private final WritableContainer<?> container;
+	private final int[] coordinates;
+	private final TupleComparator c;
+	/* Length of the sort field if the prefixes are exact, -1 otherwise */
+	private final int exactLength;
+	/*
+	 * For an off-heap container: a view of its own on the storage, and
+	 * copies of the last two records compared, as long as the longest
+	 * record, with their indexes.
+	 */
+	private final ByteBuffer view;
+	private final byte[] record1, record2;
+	private int loaded1 = -1, loaded2 = -1;
+
+	private RecordSorter(byte[] buffer, WritableContainer<?> container,
+			int[] coordinates, TupleComparator c, int exactLength,
+			int maxLength) {
+		this.buffer = buffer;
+		this.container = container;
+		this.coordinates = coordinates;
+		this.c = c;
+		this.exactLength = exactLength;
+		if (container != null) {
+			view = container.recordView();
+			record1 = new byte[maxLength];
+			record2 = new byte[maxLength];
+		} else {
+			view = null;
+			record1 = record2 = null;
+		}
+	}
+
+	/**
+	 * Sets the number of threads used to sort a single container. A value of
+	 * one disables the parallel sort.
+	 *
+	 * @param threads
+	 *            Number of threads
+	 */
+	public static synchronized void setParallelism(int threads) {
+		parallelism = Math.max(1, threads);
+		pool = null;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null && parallelism > 1) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	/**
+	 * Sorts the <code>indexes</code> array (which contains positions in the
+	 * <code>coordinates</code> array) according to the records they point to.
+	 *
+	 * @param buffer
+	 *            the circular buffer that contains the records
+	 * @param coordinates
+	 *            start and length of every record
+	 * @param indexes
+	 *            the positions to sort
+	 * @param c
+	 *            the comparator of the records
+	 */
+	static void sort(byte[] buffer, int[] coordinates, int[] indexes,
+			TupleComparator c) {
+		sort(buffer, null, coordinates, indexes, c);
+	}
+
+	/**
+	 * Same as {@link #sort(byte[], int[], int[], TupleComparator)}, for the
+	 * records of an off-heap container. The records are compared on copies
+	 * in two scratch arrays, so the container is not copied to the heap.
+	 */
+	static void sort(WritableContainer<?> container, int[] coordinates,
+			int[] indexes, TupleComparator c) {
+		sort(null, container, coordinates, indexes, c);
+	}
+
+	private static void sort(byte[] buffer, WritableContainer<?> container,
+			int[] coordinates, int[] indexes, TupleComparator c) {
+		int n = indexes.length;
+		long[] prefixes = new long[n];
+
+		int maxLength = 0;
+		if (container != null) {
+			for (int i = 0; i < n; ++i) {
+				maxLength = Math.max(maxLength, coordinates[indexes[i] + 1]);
+			}
+		}
+		ByteBuffer view = container != null ? container.recordView() : null;
+		byte[] record = container != null ? new byte[maxLength] : null;
+
+		boolean fixedLength = false;
+		int length = -1;
+		if (c.supportsPrefix()) {
+			fixedLength = c.getNumberFields() == 1;
+			for (int i = 0; i < n; ++i) {
+				byte[] b = buffer;
+				int start = coordinates[indexes[i]];
+				if (container != null) {
+					WritableContainer.copyRecord(view, start, record,
+							coordinates[indexes[i] + 1]);
+					b = record;
+					start = 0;
+				}
+				prefixes[i] = c.getPrefix(b, start);
+				if (fixedLength) {
+					int l = c.getFirstFieldLength(b, start);
+					if (length == -1) {
+						length = l;
+					} else if (l != length) {
+						fixedLength = false;
+					}
+				}
+			}
+		} // else all prefixes are equal: always use the full comparator.
+
+		RecordSorter sorter = new RecordSorter(buffer, container, coordinates,
+				c, fixedLength && length <= 8 ? length : -1, maxLength);
+		ForkJoinPool pool = getPool();
+		if (pool != null && n >= PARALLEL_THRESHOLD) {
+			int taskSize = Math.max(MIN_TASK_SIZE, n / (4 * parallelism));
+			pool.invoke(new SortTask(sorter, prefixes.clone(),
+					indexes.clone(), prefixes, indexes, 0, n, taskSize));
+		} else {
+			sorter.sort(prefixes.clone(), indexes.clone(), prefixes, indexes,
+					0, n);
+		}
+	}
+
+	/*
+	 * Returns a copy of this sorter with its own comparator, which can be used
+	 * by another thread.
+	 */
+	private RecordSorter copy() {
+		TupleComparator comp = new TupleComparator();
+		c.copyTo(comp);
+		return new RecordSorter(buffer, container, coordinates, comp,
+				exactLength, record1 != null ? record1.length : 0);
+	}
+
+	/*
+	 * Sorts the range [lo, hi) of src into dst. Both must contain the same
+	 * elements when the method is called.
+	 */
+	private void sort(long[] srcP, int[] srcI, long[] dstP, int[] dstI,
+			int lo, int hi) {
+		if (exactLength >= 0) {
+			radixSort(dstP, dstI, srcP, srcI, lo, hi, exactLength);
+		} else {
+			mergeSort(srcP, srcI, dstP, dstI, lo, hi);
+		}
+	}
+
+	private int compare(long p1, int i1, long p2, int i2) {
+		if (p1 != p2) {
+			return p1 < p2 ? -1 : 1;
+		}
+		if (exactLength >= 0) {
+			return 0;
+		}
+		if (container != null) {
+			if (loaded1 != i1) {
+				WritableContainer.copyRecord(view, coordinates[i1], record1,
+						coordinates[i1 + 1]);
+				loaded1 = i1;
+			}
+			if (loaded2 != i2) {
+				WritableContainer.copyRecord(view, coordinates[i2], record2,
+						coordinates[i2 + 1]);
+				loaded2 = i2;
+			}
+			return c.compare(record1, 0, coordinates[i1 + 1], record2, 0,
+					coordinates[i2 + 1]);
+		}
+		return c.compare(buffer, coordinates[i1], coordinates[i1 + 1], buffer,
+				coordinates[i2], coordinates[i2 + 1]);
+	}
+
+	/*
+	 * Sorts the range [lo, hi) of src into dst. Both must contain the same
+	 * elements when the method is called.
+	 */
+	private void mergeSort(long[] srcP, int[] srcI, long[] dstP, int[] dstI,
+			int lo, int hi) {
+		if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+			for (int i = lo + 1; i < hi; ++i) {
+				long p = dstP[i];
+				int idx = dstI[i];
+				int j = i - 1;
+				while (j >= lo && compare(dstP[j], dstI[j], p, idx) > 0) {
+					dstP[j + 1] = dstP[j];
+					dstI[j + 1] = dstI[j];
+					j--;
+				}
+				dstP[j + 1] = p;
+				dstI[j + 1] = idx;
+			}
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		mergeSort(dstP, dstI, srcP, srcI, lo, mid);
+		mergeSort(dstP, dstI, srcP, srcI, mid, hi);
+
+		// Already in order: just copy
+		if (compare(srcP[mid - 1], srcI[mid - 1], srcP[mid], srcI[mid]) <= 0) {
+			System.arraycopy(srcP, lo, dstP, lo, hi - lo);
+			System.arraycopy(srcI, lo, dstI, lo, hi - lo);
+			return;
+		}
+
+		merge(srcP, srcI, lo, mid, mid, hi, dstP, dstI, lo);
+	}
+
+	/*
+	 * Merges the sorted ranges [lo1, hi1) and [lo2, hi2) of src into dst,
+	 * starting from position pos.
+	 */
+	private void merge(long[] srcP, int[] srcI, int lo1, int hi1, int lo2,
+			int hi2, long[] dstP, int[] dstI, int pos) {
+		while (lo1 < hi1 && lo2 < hi2) {
+			if (compare(srcP[lo1], srcI[lo1], srcP[lo2], srcI[lo2]) <= 0) {
+				dstP[pos] = srcP[lo1];
+				dstI[pos++] = srcI[lo1++];
+			} else {
+				dstP[pos] = srcP[lo2];
+				dstI[pos++] = srcI[lo2++];
+			}
+		}
+		System.arraycopy(srcP, lo1, dstP, pos, hi1 - lo1);
+		System.arraycopy(srcI, lo1, dstI, pos, hi1 - lo1);
+		pos += hi1 - lo1;
+		System.arraycopy(srcP, lo2, dstP, pos, hi2 - lo2);
+		System.arraycopy(srcI, lo2, dstI, pos, hi2 - lo2);
+	}
+
+	/*
+	 * Returns the first position in [lo, hi) whose record is not smaller than
+	 * the given one.
+	 */
+	private int lowerBound(long[] p, int[] idx, int lo, int hi, long key,
+			int keyIndex) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(p[mid], idx[mid], key, keyIndex) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/*
+	 * LSD radix sort on the first nBytes bytes of the prefixes, restricted to
+	 * the range [lo, hi). The result is stored in p and idx; tmpP and tmpI are
+	 * used as scratch space. Passes in which all records have the same byte
+	 * are skipped.
+	 */
+	private static void radixSort(long[] p, int[] idx, long[] tmpP,
+			int[] tmpI, int lo, int hi, int nBytes) {
+		long[] srcP = p;
+		int[] srcI = idx;
+		long[] dstP = tmpP;
+		int[] dstI = tmpI;
+		int n = hi - lo;
+		int[] counts = new int[256];
+
+		for (int shift = 64 - 8 * nBytes; shift < 64; shift += 8) {
+			// The sign bit of the prefix is flipped
+			int flip = shift == 56 ? 0x80 : 0;
+
+			for (int i = 0; i < 256; ++i) {
+				counts[i] = 0;
+			}
+			for (int i = lo; i < hi; ++i) {
+				counts[((int) (srcP[i] >>> shift) & 0xff) ^ flip]++;
+			}
+
+			boolean skip = false;
+			int sum = lo;
+			for (int i = 0; i < 256; ++i) {
+				if (counts[i] == n) {
+					skip = true;
+					break;
+				}
+				int count = counts[i];
+				counts[i] = sum;
+				sum += count;
+			}
+			if (skip) {
+				continue;
+			}
+
+			for (int i = lo; i < hi; ++i) {
+				int pos = counts[((int) (srcP[i] >>> shift) & 0xff) ^ flip]++;
+				dstP[pos] = srcP[i];
+				dstI[pos] = srcI[i];
+			}
+
+			long[] tP = srcP;
+			srcP = dstP;
+			dstP = tP;
+			int[] tI = srcI;
+			srcI = dstI;
+			dstI = tI;
+		}
+
+		if (srcI != idx) {
+			System.arraycopy(srcP, lo, p, lo, n);
+			System.arraycopy(srcI, lo, idx, lo, n);
+		}
+	}
+
+	/*
+	 * Sorts the range [lo, hi) of src into dst, splitting it in two halves
+	 * that are sorted in parallel and then merged.
+	 */
+	@SuppressWarnings("serial")
+	private static class SortTask extends RecursiveAction {
+		private final RecordSorter sorter;
+		private final long[] srcP, dstP;
+		private final int[] srcI, dstI;
+		private final int lo, hi, taskSize;
+
+		SortTask(RecordSorter sorter, long[] srcP, int[] srcI, long[] dstP,
+				int[] dstI, int lo, int hi, int taskSize) {
+			this.sorter = sorter;
+			this.srcP = srcP;
+			this.srcI = srcI;
+			this.dstP = dstP;
+			this.dstI = dstI;
+			this.lo = lo;
+			this.hi = hi;
+			this.taskSize = taskSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= taskSize) {
+				sorter.copy().sort(srcP, srcI, dstP, dstI, lo, hi);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new SortTask(sorter, dstP, dstI, srcP, srcI, lo, mid,
+					taskSize), new SortTask(sorter, dstP, dstI, srcP, srcI,
+					mid, hi, taskSize));
+			new MergeTask(sorter, srcP, srcI, lo, mid, mid, hi, dstP, dstI,
+					lo, taskSize).compute();
+		}
+	}
+
+	/*
+	 * Merges two sorted ranges of src into dst. The larger range is split at
+	 * its middle record, the other range at the position of that record, and
+	 * the two pairs of ranges are merged in parallel.
+	 */
+	@SuppressWarnings("serial")
+	private static class MergeTask extends RecursiveAction {
+		private final RecordSorter sorter;
+		private final long[] srcP, dstP;
+		private final int[] srcI, dstI;
+		private final int lo1, hi1, lo2, hi2, pos, taskSize;
+
+		MergeTask(RecordSorter sorter, long[] srcP, int[] srcI, int lo1,
+				int hi1, int lo2, int hi2, long[] dstP, int[] dstI, int pos,
+				int taskSize) {
+			this.sorter = sorter;
+			this.srcP = srcP;
+			this.srcI = srcI;
+			this.lo1 = lo1;
+			this.hi1 = hi1;
+			this.lo2 = lo2;
+			this.hi2 = hi2;
+			this.dstP = dstP;
+			this.dstI = dstI;
+			this.pos = pos;
+			this.taskSize = taskSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi1 - lo1 + hi2 - lo2 <= taskSize) {
+				sorter.copy().merge(srcP, srcI, lo1, hi1, lo2, hi2, dstP,
+						dstI, pos);
+				return;
+			}
+
+			int lo1 = this.lo1, hi1 = this.hi1, lo2 = this.lo2, hi2 = this.hi2;
+			if (hi1 - lo1 < hi2 - lo2) {
+				lo1 = this.lo2;
+				hi1 = this.hi2;
+				lo2 = this.lo1;
+				hi2 = this.hi1;
+			}
+			int mid1 = (lo1 + hi1) >>> 1;
+			int mid2 = sorter.copy().lowerBound(srcP, srcI, lo2, hi2,
+					srcP[mid1], srcI[mid1]);
+			invokeAll(new MergeTask(sorter, srcP, srcI, lo1, mid1, lo2, mid2,
+					dstP, dstI, pos, taskSize), new MergeTask(sorter, srcP,
+					srcI, mid1, hi1, mid2, hi2, dstP, dstI, pos + mid1 - lo1
+							+ mid2 - lo2, taskSize));
+		}
+	}
+}
@@ -10,8 +10,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
 
 import nl.vu.cs.ajira.buckets.TupleComparator;
 import nl.vu.cs.ajira.data.types.bytearray.BDataInput;
@@ -19,11 +18,15 @@ import nl.vu.cs.ajira.data.types.bytearray.BDataOutput;
 import nl.vu.cs.ajira.data.types.bytearray.ByteArray;
 import nl.vu.cs.ajira.data.types.bytearray.CBDataInput;
 import nl.vu.cs.ajira.data.types.bytearray.CBDataOutput;
+import nl.vu.cs.ajira.data.types.bytearray.DCBDataInput;
+import nl.vu.cs.ajira.data.types.bytearray.DCBDataOutput;
 import nl.vu.cs.ajira.data.types.bytearray.FDataInput;
 import nl.vu.cs.ajira.data.types.bytearray.FDataOutput;
+import nl.vu.cs.ajira.mgmt.MemoryManager;
 import nl.vu.cs.ajira.storage.Container;
 import nl.vu.cs.ajira.storage.Factory;
 import nl.vu.cs.ajira.storage.RawComparator;
+import nl.vu.cs.ajira.storage.SpillManager;
 import nl.vu.cs.ajira.storage.Writable;
 import nl.vu.cs.ajira.utils.Utils;
 
@@ -50,6 +53,10 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 
 	protected boolean enableFieldDelimitors = false;
 
+	// The memory reserved for the container, if any
+	private MemoryManager.Reservation reservation;
+	private long reservedBytes;
+
 	/**
 	 * Creates a new object.
 	 * 
@@ -62,9 +69,34 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 	 */
 	public WritableContainer(Boolean circular, Boolean enableFieldMarks,
 			int maxSize) {
-		super(256 * 1024, maxSize);
+		this(circular, enableFieldMarks, maxSize, false);
+	}
 
-		if (circular) {
+	/**
+	 * Creates a new object, whose bytes are stored on the heap or off-heap.
+	 * 
+	 * @param circular
+	 *            Influences the class used for the input and output fields.
+	 *            Off-heap containers must be circular.
+	 * @param enableFieldMarks
+	 *            Is the new value of enableFieldDelimitors.
+	 * @param maxSize
+	 *            The maximum size of the ByteArray's buffer.
+	 * @param offHeap
+	 *            Whether the bytes are stored off-heap.
+	 */
+	protected WritableContainer(boolean circular, boolean enableFieldMarks,
+			int maxSize, boolean offHeap) {
+		super(256 * 1024, maxSize, offHeap);
+
+		if (offHeap) {
+			if (!circular) {
+				throw new IllegalArgumentException(
+						"Off-heap containers must be circular");
+			}
+			input = new DCBDataInput(this);
+			output = new DCBDataOutput(this, true);
+		} else if (circular) {
 			input = new CBDataInput(this);
 			output = new CBDataOutput(this, true);
 		} else {
@@ -151,6 +183,63 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 		// checkConsistency();
 	}
 
+	/**
+	 * Reserves the memory of the container from the budget of the
+	 * {@link MemoryManager}, on behalf of a submission. May block while the
+	 * budget is exhausted. The reservation follows the capacity of the
+	 * container until {@link #releaseReservation()} is called.
+	 * 
+	 * @param submissionNode
+	 *            the node that submitted the job
+	 * @param submissionId
+	 *            the submission
+	 * @param requester
+	 *            the owner of the container, which is not asked to spill, or
+	 *            <code>null</code>
+	 */
+	public void reserve(int submissionNode, int submissionId,
+			MemoryManager.Spillable requester) {
+		reserve(submissionNode, submissionId, requester, true);
+	}
+
+	/**
+	 * Same as {@link #reserve(int, int, MemoryManager.Spillable)}, without
+	 * waiting for the budget if <code>wait</code> is false (see
+	 * {@link MemoryManager#reserve(int, int, long, MemoryManager.Spillable, boolean)}
+	 * ).
+	 */
+	public void reserve(int submissionNode, int submissionId,
+			MemoryManager.Spillable requester, boolean wait) {
+		releaseReservation();
+		long bytes = getTotalCapacity();
+		reservation = MemoryManager.getInstance().reserve(submissionNode,
+				submissionId, bytes, requester, wait);
+		reservedBytes = bytes;
+	}
+
+	/**
+	 * Gives back the memory reserved with
+	 * {@link #reserve(int, int, MemoryManager.Spillable)}, if any.
+	 */
+	public void releaseReservation() {
+		if (reservation != null) {
+			MemoryManager.getInstance().release(reservation, reservedBytes);
+			reservation = null;
+			reservedBytes = 0;
+		}
+	}
+
+	@Override
+	protected void capacityChanged() {
+		if (reservation != null) {
+			long delta = getTotalCapacity() - reservedBytes;
+			if (delta != 0) {
+				reservedBytes += delta;
+				MemoryManager.getInstance().resize(reservation, delta);
+			}
+		}
+	}
+
 	public void init(boolean fieldMarks) {
 		clear();
 		this.enableFieldDelimitors = fieldMarks;
@@ -295,6 +384,37 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 		return v;
 	}
 
+	/**
+	 * Same as {@link #removeRaw(byte[])}, but the element is read into the
+	 * start of value, which is only replaced when it is too small, and its
+	 * length is returned in length[0].
+	 * 
+	 * @param value
+	 *            the array to read the element into
+	 * @param length
+	 *            receives the length of the element
+	 * @return the array that holds the element, or <code>null</code> if the
+	 *         container is empty
+	 */
+	public byte[] removeRaw(byte[] value, int[] length) {
+		if (!enableFieldDelimitors)
+			throw new UnsupportedOperationException("Method not supported");
+
+		if (start == end)
+			return null;
+
+		int l = input.readInt();
+		byte[] v = value;
+		if (v == null || v.length < l) {
+			v = new byte[l];
+		}
+		input.readFully(v, 0, l);
+		length[0] = l;
+
+		--nElements;
+		return v;
+	}
+
 //	private void checkConsistency() {
 //		if (end < 0) {
 //			log.error("checkConsistency: end = " + end, new Throwable());
@@ -355,11 +475,46 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 		end = buffer.end;
 		lengthLastElement = buffer.lengthLastElement;
 		pointerLastElement = buffer.pointerLastElement;
-		this.buffer = buffer.buffer;
+		takeStorage(buffer);
+	}
+
+	/*
+	 * A view on the off-heap storage, for a thread of the sorter.
+	 */
+	ByteBuffer recordView() {
+		return newView();
+	}
+
+	/*
+	 * Copies a record to the beginning of an array, for the sorter of an
+	 * off-heap container.
+	 */
+	static void copyRecord(ByteBuffer view, int pos, byte[] b, int len) {
+		getBytes(view, pos, b, 0, len);
 	}
 
 	public void sort(final RawComparator<K> c, Factory<WritableContainer<K>> fb)
 			throws Exception {
+		sort(c, fb, null);
+	}
+
+	/**
+	 * Sorts the elements of the container.
+	 * 
+	 * @param c
+	 *            the comparator of the elements
+	 * @param fb
+	 *            the factory used to get a second container, if the elements
+	 *            cannot be sorted in place
+	 * @param spills
+	 *            where to place the temporary file if there is not enough
+	 *            memory for a second container, or <code>null</code> to use
+	 *            the default temporary directory
+	 * @throws Exception
+	 */
+	public void sort(final RawComparator<K> c,
+			Factory<WritableContainer<K>> fb, SpillManager spills)
+			throws Exception {
 
 		if (!enableFieldDelimitors) {
 			throw new UnsupportedOperationException(
@@ -373,7 +528,7 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 
 		int l = 0;
 		final int[] coordinates = new int[(nElements * 2)];
-		Integer[] indexes = new Integer[nElements];
+		int[] indexes = new int[nElements];
 
 		int i = 0;
 		while (nElements > 0) {
@@ -395,15 +550,12 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 		// 2) Sort
 		time = System.currentTimeMillis();
 		((TupleComparator) c).timeConverting = 0;
-		Arrays.sort(indexes, new Comparator<Integer>() {
-			@Override
-			public int compare(Integer o1, Integer o2) {
-				int response = c.compare(buffer, coordinates[o1],
-						coordinates[o1 + 1], buffer, coordinates[o2],
-						coordinates[o2 + 1]);
-				return response;
-			}
-		});
+		if (isOffHeap()) {
+			RecordSorter.sort(this, coordinates, indexes, (TupleComparator) c);
+		} else {
+			RecordSorter.sort(buffer, coordinates, indexes,
+					(TupleComparator) c);
+		}
 
 		if (log.isDebugEnabled()) {
 			log.debug("Time sorting (\t" + indexes.length + "\t):\t"
@@ -451,8 +603,13 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 
 				// Not enough space to create an additional array. Store the
 				// data on disk and reread it.
-				File cacheFile = File.createTempFile("cache", "tmp");
-				cacheFile.deleteOnExit();
+				File cacheFile;
+				if (spills != null) {
+					cacheFile = spills.newSpillFile("cache");
+				} else {
+					cacheFile = File.createTempFile("cache", "tmp");
+					cacheFile.deleteOnExit();
+				}
 
 				OutputStream fout = new SnappyOutputStream(
 						new BufferedOutputStream(
@@ -481,7 +638,12 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 				start = 0;
 				end = s;
 				readFrom(fInputCache);
-				cacheFile.delete();
+				fInputCache.close();
+				if (spills != null) {
+					spills.delete(cacheFile);
+				} else {
+					cacheFile.delete();
+				}
 				nElements = indexes.length;
 			}
 		}
@@ -506,19 +668,26 @@ public class WritableContainer<K extends Writable> extends ByteArray implements
 	}
 
 	public boolean addRaw(byte[] key) {
+		return addRaw(key, key.length);
+	}
+
+	/**
+	 * Adds the first length bytes of key as an element.
+	 */
+	public boolean addRaw(byte[] key, int length) {
 
-		if (!grow(key.length + 4)) {
+		if (!grow(length + 4)) {
 			return false;
 		}
 
 		try {
 			if (enableFieldDelimitors) {
-				output.writeInt(key.length);
+				output.writeInt(length);
 				pointerLastElement = end;
-				output.write(key);
-				lengthLastElement = key.length;
+				output.write(key, 0, length);
+				lengthLastElement = length;
 			} else {
-				output.write(key);
+				output.write(key, 0, length);
 			}
 		} catch (IOException e) {
 			log.error("Internal error, should not happen", e);
@@ -0,0 +1,93 @@
+package nl.vu.cs.ajira.submissions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import nl.vu.cs.ajira.utils.LongIntMap;
+import nl.vu.cs.ajira.utils.LongMap;
+
+/**
+ * The number of children that every chain of a submission is still waiting
+ * for. The counters are split in stripes by chain id, each with its own lock,
+ * so that the terminations received by several threads are applied in
+ * parallel.
+ *
+ * The termination of a chain changes several counters, which may be in
+ * different stripes. The updates are done with the read lock, and the check
+ * that all the counters are zero with the write lock, so that it never sees a
+ * termination that is applied only in part.
+ */
+final class ChainMonitors {
+
+	private static final int STRIPES = 16;
+
+	private final LongIntMap[] stripes = new LongIntMap[STRIPES];
+	// Number of non-zero counters in all the stripes
+	private final AtomicInteger size = new AtomicInteger();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	ChainMonitors() {
+		for (int i = 0; i < STRIPES; ++i) {
+			stripes[i] = new LongIntMap();
+		}
+	}
+
+	/**
+	 * Adds a delta to the counter of a chain. Must be called between
+	 * {@link #beginUpdate()} and {@link #endUpdate()}.
+	 */
+	void add(long chainId, int delta) {
+		if (delta == 0) {
+			return;
+		}
+		LongIntMap stripe = stripes[LongMap.hash(chainId) & (STRIPES - 1)];
+		int value;
+		synchronized (stripe) {
+			value = stripe.add(chainId, delta);
+		}
+		if (value == 0) {
+			size.decrementAndGet();
+		} else if (value == delta) {
+			size.incrementAndGet();
+		}
+	}
+
+	void beginUpdate() {
+		lock.readLock().lock();
+	}
+
+	void endUpdate() {
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Blocks the updates, so that the counters can be checked.
+	 */
+	void beginCheck() {
+		lock.writeLock().lock();
+	}
+
+	void endCheck() {
+		lock.writeLock().unlock();
+	}
+
+	/**
+	 * @return the number of chains with a non-zero counter. It is exact only
+	 *         between {@link #beginCheck()} and {@link #endCheck()}.
+	 */
+	int size() {
+		return size.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < STRIPES; ++i) {
+			synchronized (stripes[i]) {
+				b.append(stripes[i]);
+			}
+		}
+		return b.toString();
+	}
+}
@@ -9,12 +9,46 @@ import java.util.Map;
 
 import nl.vu.cs.ajira.storage.Writable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class JobProperties implements Writable, Serializable {
 
+	/**
+	 * The priority of the job, an integer (0 by default). Used by the
+	 * <code>priority</code> scheduling policy: chains of jobs with a higher
+	 * priority are processed first.
+	 */
+	public static final String PRIORITY = "priority";
+
+	static final Logger log = LoggerFactory.getLogger(JobProperties.class);
+
 	private final Map<String, String> properties = new HashMap<String, String>();
+	// The value of PRIORITY, parsed when it is set
+	private int priority;
 
 	public void putProperty(String prop, String val) {
 		properties.put(prop, val);
+		if (prop.equals(PRIORITY)) {
+			priority = parsePriority(val);
+		}
+	}
+
+	private static int parsePriority(String val) {
+		try {
+			return Integer.parseInt(val.trim());
+		} catch (Exception e) {
+			log.warn("Invalid job priority " + val + ", using 0");
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the value of {@link #PRIORITY}, or 0 if it is not set or is not
+	 *         an integer
+	 */
+	public int getPriority() {
+		return priority;
 	}
 
 	public String getProperty(String prop, String defaultValue) {
@@ -31,11 +65,12 @@ public class JobProperties implements Writable, Serializable {
 	@Override
 	public void readFrom(DataInput input) throws IOException {
 		properties.clear();
+		priority = 0;
 		int n = input.readInt();
 		for (int i = 0; i < n; i++) {
 			String key = input.readUTF();
 			String value = input.readUTF();
-			properties.put(key, value);
+			putProperty(key, value);
 		}
 	}
 
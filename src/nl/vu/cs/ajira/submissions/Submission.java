@@ -1,6 +1,5 @@
 package nl.vu.cs.ajira.submissions;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import nl.vu.cs.ajira.utils.Consts;
@@ -24,7 +23,7 @@ public class Submission {
 	int rootChainsReceived = -1;
 	boolean mainRootReceived;
 
-	Map<Long, Integer> monitors = new HashMap<Long, Integer>();
+	final ChainMonitors monitors = new ChainMonitors();
 
 	public Submission(int submissionId, int assignedOutputBucket) {
 		startupTime = System.currentTimeMillis();
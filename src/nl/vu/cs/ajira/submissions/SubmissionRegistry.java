@@ -10,10 +10,12 @@ import java.util.concurrent.ConcurrentHashMap;
 import nl.vu.cs.ajira.Context;
 import nl.vu.cs.ajira.actions.ActionFactory;
 import nl.vu.cs.ajira.actions.ActionSequence;
+import nl.vu.cs.ajira.actions.ActionTable;
 import nl.vu.cs.ajira.buckets.Bucket;
 import nl.vu.cs.ajira.buckets.Buckets;
 import nl.vu.cs.ajira.chains.Chain;
 import nl.vu.cs.ajira.chains.ChainExecutor;
+import nl.vu.cs.ajira.chains.ChainHandlerManager;
 import nl.vu.cs.ajira.data.types.DataProvider;
 import nl.vu.cs.ajira.datalayer.InputLayer;
 import nl.vu.cs.ajira.mgmt.StatisticsCollector;
@@ -63,9 +65,50 @@ public class SubmissionRegistry {
 			long parentChainId, int nchildren, long[] additionalChainCounters,
 			int[] additionalChainValues) {
 		Submission sub = getSubmission(submissionId);
+		sub.monitors.beginUpdate();
+		try {
+			applyCounters(sub, chainId, parentChainId, nchildren,
+					additionalChainCounters, additionalChainValues);
+		} finally {
+			sub.monitors.endUpdate();
+		}
+		checkFinished(sub, submissionId);
+	}
+
+	/**
+	 * Applies the termination of several chains of the same submission. The
+	 * counters of the chains are updated in parallel with the other threads
+	 * that receive terminations, and the submission is locked only to check
+	 * whether it is finished.
+	 * 
+	 * @param submissionId
+	 *            The submission of the chains.
+	 * @param n
+	 *            The number of chains. Only the first n elements of the
+	 *            arrays are used.
+	 */
+	public void updateCounters(int submissionId, int n, long[] chainIds,
+			long[] parentChainIds, int[] nchildren,
+			long[][] additionalChainCounters, int[][] additionalChainValues) {
+		Submission sub = getSubmission(submissionId);
+		sub.monitors.beginUpdate();
+		try {
+			for (int i = 0; i < n; ++i) {
+				applyCounters(sub, chainIds[i], parentChainIds[i],
+						nchildren[i], additionalChainCounters[i],
+						additionalChainValues[i]);
+			}
+		} finally {
+			sub.monitors.endUpdate();
+		}
+		checkFinished(sub, submissionId);
+	}
 
+	private void applyCounters(Submission sub, long chainId,
+			long parentChainId, int nchildren, long[] additionalChainCounters,
+			int[] additionalChainValues) {
 		if (log.isDebugEnabled()) {
-			log.debug("updateCounters: submissionId = " + submissionId
+			log.debug("updateCounters: submissionId = " + sub.getSubmissionId()
 					+ ", chainId = " + chainId + ", parentChainId = "
 					+ parentChainId + ", nchildren = " + nchildren
 					+ ", additionalChainCounters="
@@ -73,75 +116,60 @@ public class SubmissionRegistry {
 					+ ", additionalChainValues="
 					+ Arrays.toString(additionalChainValues));
 		}
-		synchronized (sub) {
-			if (nchildren > 0) { // Set the expected children in the
-				// map
-				Integer c = sub.monitors.get(chainId);
-				if (c == null) {
-					c = nchildren;
-				} else {
-					c += nchildren;
-				}
-				if (c == 0) {
-					sub.monitors.remove(chainId);
-				} else {
-					sub.monitors.put(chainId, c);
-				}
-			}
+		if (nchildren > 0) { // Set the expected children in the
+			// map
+			sub.monitors.add(chainId, nchildren);
+		}
 
-			if (additionalChainCounters != null) {
-				for (int i = 0; i < additionalChainCounters.length; ++i) {
-					Integer c = sub.monitors.get(additionalChainCounters[i]);
-					if (c == null) {
-						c = additionalChainValues[i];
-					} else {
-						c += additionalChainValues[i];
-					}
-					if (c == 0) {
-						sub.monitors.remove(additionalChainCounters[i]);
-					} else {
-						sub.monitors.put(additionalChainCounters[i], c);
-					}
-				}
+		if (additionalChainCounters != null) {
+			for (int i = 0; i < additionalChainCounters.length; ++i) {
+				sub.monitors.add(additionalChainCounters[i],
+						additionalChainValues[i]);
 			}
+		}
 
-			if (parentChainId == -1) { // It is one of the root chains
+		if (parentChainId == -1) { // It is one of the root chains
+			synchronized (sub) {
 				sub.rootChainsReceived++;
 				if (chainId == 0) {
 					sub.mainRootReceived = true;
 				}
-			} else if (parentChainId >= 0) {
-				// Change the children field of the parent chain
-				Integer c = sub.monitors.get(parentChainId);
-				if (c == null) {
-					sub.monitors.put(parentChainId, -1);
-				} else {
-					c--;
-					if (c == 0) {
-						sub.monitors.remove(parentChainId);
-					} else {
-						sub.monitors.put(parentChainId, c);
-					}
-				}
 			}
+		} else if (parentChainId >= 0) {
+			// Change the children field of the parent chain
+			sub.monitors.add(parentChainId, -1);
+		}
+	}
 
-			if (log.isDebugEnabled()) {
-				log.debug("rootChainsReceived = " + sub.rootChainsReceived
-						+ ", mainRootReceived = " + sub.mainRootReceived
-						+ ", monitors.size() = " + sub.monitors.size()
-						+ " monitor content=" + sub.monitors);
-			}
-			if (sub.rootChainsReceived == 0 && sub.mainRootReceived
-					&& sub.monitors.size() == 0) {
-				if (sub.assignedBucket != -1) {
-					Bucket bucket = buckets.getExistingBucket(submissionId,
-							sub.assignedBucket);
-					bucket.waitUntilFinished();
+	private void checkFinished(Submission sub, int submissionId) {
+		if (sub.monitors.size() != 0) {
+			// Some chain is still running
+			return;
+		}
+		sub.monitors.beginCheck();
+		try {
+			synchronized (sub) {
+				if (log.isDebugEnabled()) {
+					log.debug("rootChainsReceived = " + sub.rootChainsReceived
+							+ ", mainRootReceived = " + sub.mainRootReceived
+							+ ", monitors.size() = " + sub.monitors.size()
+							+ " monitor content=" + sub.monitors);
 				}
+				if (sub.rootChainsReceived == 0 && sub.mainRootReceived
+						&& sub.monitors.size() == 0
+						&& sub.getState() != Consts.STATE_FINISHED) {
+					if (sub.assignedBucket != -1) {
+						Bucket bucket = buckets.getExistingBucket(
+								submissionId, sub.assignedBucket);
+						bucket.waitUntilFinished();
+					}
 
-				sub.setFinished(Consts.STATE_FINISHED);
-				sub.notifyAll();
+					sub.setFinished(Consts.STATE_FINISHED);
+					sub.notifyAll();
+				}
 			}
+		} finally {
+			sub.monitors.endCheck();
 		}
 	}
 
@@ -177,6 +205,9 @@ public class SubmissionRegistry {
 
 			ActionSequence actions = job.getActions();
 
+			// The actions of the first chain fill the table of the submission
+			ActionTable table = ActionTable.create(submissionId);
+
 			Chain chain = new Chain();
 			chain.setParentChainId(-1);
 			chain.setInputLayer(InputLayer.DEFAULT_LAYER);
@@ -188,6 +219,14 @@ public class SubmissionRegistry {
 				sub.assignedBucket = resultBucket;
 			}
 
+			table.fix();
+			context.getSubmissionCache().putObjectInCache(submissionId,
+					ActionTable.CACHE_KEY, table);
+			if (!context.isLocalMode()) {
+				context.getSubmissionCache().broadcastCacheObject(submissionId,
+						ActionTable.CACHE_KEY);
+			}
+
 			JobProperties props = job.getProperties();
 			if (props != null && props.size() != 0) {
 				context.getSubmissionCache().putObjectInCache(submissionId,
@@ -206,6 +245,7 @@ public class SubmissionRegistry {
 		} catch (Throwable e) {
 			log.error("Init of the submission " + sub + " has failed", e);
 			submissions.remove(submissionId);
+			ActionTable.unregister(submissionId);
 			sub.setFinished(Consts.STATE_INIT_FAILED);
 			sub.setException(e);
 		}
@@ -225,6 +265,8 @@ public class SubmissionRegistry {
 		for (int i = 0; i < net.getNumberNodes(); ++i) {
 			if (i == net.getMyPartition()) {
 				cache.clearAll(submission.getSubmissionId());
+				ChainHandlerManager.getInstance().submissionFinished(
+						submission.getSubmissionId());
 			} else {
 				WriteMessage msg = net.getMessageToSend(net.getPeerLocation(i),
 						NetworkLayer.nameMgmtReceiverPort);
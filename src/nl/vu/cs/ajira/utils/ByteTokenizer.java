@@ -0,0 +1,58 @@
+package nl.vu.cs.ajira.utils;
+
+import nl.vu.cs.ajira.data.types.TByteSlice;
+
+/**
+ * Splits the bytes of a {@link TByteSlice} in tokens separated by ASCII
+ * whitespace, the same characters as <code>\s</code> in a regular expression.
+ * The tokens are returned as views over the bytes of the input, so that
+ * splitting a line does not allocate anything. A tokenizer can be reused for
+ * many inputs.
+ */
+public class ByteTokenizer {
+
+	private byte[] array;
+	private int position;
+	private int end;
+
+	/**
+	 * Starts splitting the given input. The input must not change while its
+	 * tokens are used.
+	 *
+	 * @param input
+	 *            the bytes to split
+	 */
+	public void reset(TByteSlice input) {
+		array = input.getArray();
+		position = input.getStart();
+		end = position + input.getLength();
+	}
+
+	/**
+	 * Makes the parameter a view over the next token.
+	 *
+	 * @param token
+	 *            the object that receives the token
+	 * @return <code>true</code> if there was another token, <code>false</code>
+	 *         otherwise
+	 */
+	public boolean next(TByteSlice token) {
+		while (position < end && isWhitespace(array[position])) {
+			position++;
+		}
+		if (position == end) {
+			return false;
+		}
+		int start = position;
+		while (position < end && !isWhitespace(array[position])) {
+			position++;
+		}
+		token.set(array, start, position - start);
+		return true;
+	}
+
+	public static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f'
+				|| b == 0x0B;
+	}
+}
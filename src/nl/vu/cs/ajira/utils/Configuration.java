@@ -53,6 +53,43 @@ public class Configuration extends Properties {
 		setProperty(prop, Integer.toString(value));
 	}
 
+	/**
+	 * 
+	 * @param prop
+	 *            The key (property name) of the value that is looked.
+	 * @param defaultValue
+	 *            The default value that is returned if the key does not exists.
+	 * @return The value converted to Long of the key prop.
+	 */
+	public long getLong(String prop, long defaultValue) {
+		String value = this.getProperty(prop);
+		if (value == null) {
+			value = System.getProperty(prop);
+			if (value == null) {
+				return defaultValue;
+			}
+		}
+		try {
+			return Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			log.warn("Got exception", e);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Add to the property list the key prop and its corresponding value
+	 * converted to String.
+	 * 
+	 * @param prop
+	 *            The key (property name) that is added in the property list.
+	 * @param value
+	 *            The value of the key prop.
+	 */
+	public void setLong(String prop, long value) {
+		setProperty(prop, Long.toString(value));
+	}
+
 	/**
 	 * Add to the property list the key prop and its corresponding value.
 	 * 
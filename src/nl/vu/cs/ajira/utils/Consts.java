@@ -4,8 +4,6 @@ public class Consts {
 
 	/********** DEFAULT VALUES **********/
 	public static final double MAX_MEMORY_TO_USE = 0.75; // 75%
-	public static final double MIN_MEMORY_SIZE_BEFORE_CLEANING = 0.10;
-	public static final int N_ELEMENTS_TO_SAMPLE = 10;
 
 	public static final int MAX_TUPLE_ELEMENTS = 64;
 	public static final int MAX_N_ACTIONS = 128;
@@ -48,6 +46,8 @@ public class Consts {
 	public static final int DATATYPE_TBOOLEANARRAY = 10;
 	public static final int DATATYPE_TDOUBLEARRAY = 11;
 	public static final int DATATYPE_TDOUBLE = 12;
+	public static final int DATATYPE_TBYTESLICE = 13;
+	public static final int DATATYPE_TUTF8STRING = 14;
 
 	public static final String STATE_OPEN = "ACTIVE";
 	public static final String STATE_FINISHED = "FINISHED";
@@ -56,11 +56,30 @@ public class Consts {
 
 	/********** DEFAULT CONFIGURATION OPTIONS **********/
 	public static final String N_PROC_THREADS = "ajira.threads.processing";
+	public static final String N_MAX_PROC_THREADS = "ajira.threads.processingMax";
 	public static final String N_MERGE_THREADS = "ajira.threads.merge";
+	public static final String N_SORT_THREADS = "ajira.threads.sort";
+	public static final String CHAIN_SCHEDULING_POLICY = "ajira.scheduler.policy";
+	public static final String SPILL_DIRS = "ajira.spill.dirs";
 	public static final String START_IBIS = "ajira.ibis.startserver";
 	public static final String STATS_ENABLED = "ajira.stats.enabled";
+	public static final String OFF_HEAP_CONTAINERS = "ajira.containers.offHeap";
+	public static final String MEMORY_BUDGET = "ajira.memory.budget";
+	public static final String MEMORY_MAX_WAIT = "ajira.memory.maxWait";
+	/**
+	 * When set, sorted buckets compare their tuples on normalized keys. This
+	 * changes the order of the sorted and grouped output: <code>TInt</code>,
+	 * <code>TLong</code> and <code>TDouble</code> fields are then ordered
+	 * numerically, negative numbers first, while by default their bytes are
+	 * compared unsigned, which puts negative numbers after the positive ones.
+	 */
+	public static final String NORMALIZED_KEYS = "ajira.buckets.normalizedKeys";
 
 	public static final String BUCKETCOUNTER_NAME = "ajira.BucketCounter";
 	public static final String CHAINCOUNTER_NAME = "ajira.ChainCounter";
 	public static final String SEND_TUPLES_COMPRESSED = "ajira.compressTuples";
+	public static final String TUPLE_SEND_WINDOW = "ajira.net.sendWindow";
+	public static final String PUSH_TRANSFERS = "ajira.net.push";
+	public static final String TERMINATION_BATCH_SIZE = "ajira.net.terminationBatch";
+	public static final String TERMINATION_DELAY = "ajira.net.terminationDelay";
 }
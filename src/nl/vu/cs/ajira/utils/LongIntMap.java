@@ -0,0 +1,135 @@
+package nl.vu.cs.ajira.utils;
+
+import java.util.Arrays;
+
+/**
+ * A table mapping longs to ints, with open addressing, so that no object is
+ * created for the keys, the values or the entries. A key that is not in the
+ * table has the value 0, and a key whose value becomes 0 is removed, so the
+ * table only holds the non-zero values.
+ */
+public class LongIntMap {
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	public LongIntMap(int initialSize) {
+		// Make sure size is a multiple of 2.
+		int sz = 2;
+		while (sz < initialSize) {
+			sz += sz;
+		}
+		keys = new long[sz];
+		values = new int[sz];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int i = LongMap.hash(key) & mask;
+		while (values[i] != 0 && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the value of the key, or 0 if it is not in the table
+	 */
+	public int get(long key) {
+		return values[slot(key)];
+	}
+
+	/**
+	 * Adds a delta to the value of a key.
+	 *
+	 * @return the new value
+	 */
+	public int add(long key, int delta) {
+		int i = slot(key);
+		int value = values[i] + delta;
+		if (values[i] == 0) {
+			if (value != 0) {
+				keys[i] = key;
+				values[i] = value;
+				if (++size >= 2 * keys.length / 3) {
+					resize(2 * keys.length);
+				}
+			}
+		} else if (value == 0) {
+			remove(i);
+		} else {
+			values[i] = value;
+		}
+		return value;
+	}
+
+	/*
+	 * Frees a slot, and moves back the following entries of the cluster that
+	 * can be found from their home slot only through it.
+	 */
+	private void remove(int i) {
+		int mask = keys.length - 1;
+		size--;
+		int j = i;
+		for (;;) {
+			values[i] = 0;
+			int home;
+			do {
+				j = (j + 1) & mask;
+				if (values[j] == 0) {
+					return;
+				}
+				home = LongMap.hash(keys[j]) & mask;
+			} while (i <= j ? (i < home && home <= j) : (i < home || home <= j));
+			keys[i] = keys[j];
+			values[i] = values[j];
+			i = j;
+		}
+	}
+
+	private void resize(int newCapacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[newCapacity];
+		values = new int[newCapacity];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] != 0) {
+				int i = slot(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	/**
+	 * Removes all of the mappings from this map. The map will be empty after
+	 * this call returns.
+	 */
+	public void clear() {
+		Arrays.fill(values, 0);
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != 0) {
+				if (b.length() > 1) {
+					b.append(", ");
+				}
+				b.append(keys[i]).append('=').append(values[i]);
+			}
+		}
+		return b.append('}').toString();
+	}
+}
@@ -0,0 +1,178 @@
+package nl.vu.cs.ajira.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable-length encoding of integers: seven bits per byte, least significant
+ * group first, with the high bit set on all the bytes but the last. Small
+ * values take one byte. Signed values are first zig-zag encoded, so that small
+ * negative values are small as well.
+ *
+ * The ordered encoding is for values that are compared as raw bytes: it
+ * writes a header byte, which tells the sign and the number of bytes that
+ * follow, and then the significant bytes of the value, big endian. Comparing
+ * two encodings as unsigned byte strings gives the order of the values.
+ */
+public class Varint {
+
+	/**
+	 * Writes a non-negative int in 1 to 5 bytes.
+	 */
+	public static void writeUnsignedInt(DataOutput output, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte(value);
+	}
+
+	/**
+	 * Reads an int written by {@link #writeUnsignedInt(DataOutput, int)}.
+	 */
+	public static int readUnsignedInt(DataInput input) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = input.readByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Reads an int written by {@link #writeUnsignedInt(DataOutput, int)} from a
+	 * circular buffer.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param position
+	 *            the position of the first byte, which may be past the end of
+	 *            the buffer
+	 * @return the value in the upper 32 bits, and the position after it (less
+	 *         than the length of the buffer) in the lower 32 bits
+	 */
+	public static long readUnsignedInt(byte[] buffer, int position) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (position >= buffer.length) {
+				position -= buffer.length;
+			}
+			b = buffer[position++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (position >= buffer.length) {
+			position -= buffer.length;
+		}
+		return ((long) value << 32) | position;
+	}
+
+	/**
+	 * @return the number of bytes that
+	 *         {@link #writeUnsignedInt(DataOutput, int)} writes for the value
+	 */
+	public static int sizeOfUnsignedInt(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a long in 1 to 10 bytes.
+	 */
+	public static void writeUnsignedLong(DataOutput output, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.writeByte(((int) value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a long written by {@link #writeUnsignedLong(DataOutput, long)}.
+	 */
+	public static long readUnsignedLong(DataInput input) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = input.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Writes a signed long, zig-zag encoded, so that values close to zero take
+	 * one byte.
+	 */
+	public static void writeSignedLong(DataOutput output, long value)
+			throws IOException {
+		writeUnsignedLong(output, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Reads a long written by {@link #writeSignedLong(DataOutput, long)}.
+	 */
+	public static long readSignedLong(DataInput input) throws IOException {
+		long v = readUnsignedLong(input);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	// The header of the ordered encoding of 0 and -1, which have no bytes
+	private static final int ORDERED_ZERO = 0x80;
+	private static final int ORDERED_MINUS_ONE = 0x7F;
+
+	private static int orderedLength(long value) {
+		// Number of significant bytes of the value, or of its complement if
+		// it is negative
+		long v = value < 0 ? ~value : value;
+		return (71 - Long.numberOfLeadingZeros(v)) >> 3;
+	}
+
+	/**
+	 * Writes a long with the ordered encoding, in 1 to 9 bytes.
+	 */
+	public static void writeOrderedLong(DataOutput output, long value)
+			throws IOException {
+		int n = orderedLength(value);
+		output.writeByte(value < 0 ? ORDERED_MINUS_ONE - n : ORDERED_ZERO + n);
+		for (int shift = (n - 1) * 8; shift >= 0; shift -= 8) {
+			output.writeByte((int) (value >>> shift));
+		}
+	}
+
+	/**
+	 * Reads a long written by {@link #writeOrderedLong(DataOutput, long)}.
+	 */
+	public static long readOrderedLong(DataInput input) throws IOException {
+		int header = input.readUnsignedByte();
+		boolean negative = header < ORDERED_ZERO;
+		int n = negative ? ORDERED_MINUS_ONE - header : header - ORDERED_ZERO;
+		long value = negative ? -1 : 0;
+		for (int i = 0; i < n; ++i) {
+			value = (value << 8) | input.readUnsignedByte();
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of bytes that
+	 *         {@link #writeOrderedLong(DataOutput, long)} writes for the value
+	 */
+	public static int sizeOfOrderedLong(long value) {
+		return 1 + orderedLength(value);
+	}
+}